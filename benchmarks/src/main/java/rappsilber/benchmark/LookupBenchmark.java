@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * Benchmarks the peptide and fragment lookups.
+ * <br/>Each operation does the lookups for all synthetic spectra - so the
+ * score is the time needed for the lookups of one search of these spectra.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+
+    /**
+     * the search state for each of the fragment lookups
+     */
+    @State(Scope.Benchmark)
+    public static class LookupState extends SearchState {
+        /** which fragment lookup gets build (FRAGMENTTREE) */
+        @Param({"FU", "array"})
+        public String fragmentTree;
+
+        @Override
+        protected String fragmentTree() {
+            return fragmentTree;
+        }
+    }
+
+    /**
+     * looks up the peptides for each peak of the mgx spectra
+     */
+    @Benchmark
+    public void fragmentLookupGetForMass(LookupState state, Blackhole bh) {
+        for (double mz : state.peakMZ) {
+            bh.consume(state.fragments.getForMass(mz, mz, SyntheticData.MAX_PEPTIDE_MASS));
+        }
+    }
+
+    /**
+     * the alpha candidate selection based on the mgx spectra
+     */
+    @Benchmark
+    public void fragmentLookupAlphaCandidates(LookupState state, Blackhole bh) {
+        for (int i = 0; i < state.mgx.length; i++) {
+            bh.consume(state.fragments.getAlphaCandidates(state.mgx[i], state.config.getPrecousorTolerance().getMaxRange(state.precursorMass[i])));
+        }
+    }
+
+    /**
+     * looks up the beta candidates for the alpha peptides of the spectra
+     */
+    @Benchmark
+    public void peptideLookupGetForMass(SearchState state, Blackhole bh) {
+        double clMass = state.crosslinker.getCrossLinkedMass();
+        for (int i = 0; i < state.pairs.length; i++) {
+            Peptide alpha = state.pairs[i][0];
+            double betaMass = state.precursorMass[i] - alpha.getMass() - clMass;
+            bh.consume(state.peptides.getForMass(betaMass, state.precursorMass[i]));
+        }
+    }
+}
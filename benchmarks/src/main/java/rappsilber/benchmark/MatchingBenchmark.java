@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.match.MatchedFragmentCollection;
+import rappsilber.ms.spectra.match.matcher.DirectMatchBinarySort;
+import rappsilber.ms.spectra.match.matcher.DirectMatchFragmentsTree;
+import rappsilber.ms.spectra.match.matcher.DirectMatchFragmentsTreeLowRes;
+import rappsilber.ms.spectra.match.matcher.Match;
+
+/**
+ * Benchmarks the {@link Match} implementations by matching the fragments of
+ * the peptide pair of each synthetic spectrum to that spectrum.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MatchingBenchmark {
+
+    @Param({"DirectMatchBinarySort", "DirectMatchFragmentsTree", "DirectMatchFragmentsTreeLowRes"})
+    public String matcher;
+
+    private Match m_matcher;
+    /** fresh copies of the spectra for each invocation */
+    private Spectra[] m_spectra;
+
+    @Setup(Level.Trial)
+    public void setupMatcher(SearchState state) {
+        if (matcher.contentEquals("DirectMatchFragmentsTree")) {
+            m_matcher = new DirectMatchFragmentsTree(state.config);
+        } else if (matcher.contentEquals("DirectMatchFragmentsTreeLowRes")) {
+            m_matcher = new DirectMatchFragmentsTreeLowRes();
+        } else {
+            m_matcher = new DirectMatchBinarySort(state.config);
+        }
+    }
+
+    /**
+     * matching annotates the spectra - so each invocation gets its own copies
+     */
+    @Setup(Level.Invocation)
+    public void copySpectra(SearchState state) {
+        m_spectra = state.annotatedCopies();
+    }
+
+    @Benchmark
+    public void matchFragmentsNonGreedy(SearchState state, Blackhole bh) {
+        for (int i = 0; i < m_spectra.length; i++) {
+            Spectra s = m_spectra[i];
+            MatchedFragmentCollection mfc = new MatchedFragmentCollection(s.getPrecurserCharge());
+            m_matcher.matchFragmentsNonGreedy(s, state.pairFragments[i], state.config.getFragmentTolerance(), mfc);
+            bh.consume(mfc);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rappsilber.applications.SimpleXiProcessMultipleCandidates;
+import rappsilber.config.RunConfig;
+import rappsilber.config.RunConfigFile;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.dataAccess.SingleSpectrumAccess;
+import rappsilber.ms.lookup.fragments.FragmentLookup;
+import rappsilber.ms.lookup.peptides.PeptideLookup;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+
+/**
+ * A prepared search on a synthetic database together with synthetic spectra
+ * of cross-linked peptide pairs from that database.
+ * <br/>The search gets prepared exactly as for a real search
+ * ({@link SimpleXiProcessMultipleCandidates#prepareSearch()}) - so the
+ * benchmarks use the same peptide and fragment lookups as a search would.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+@State(Scope.Benchmark)
+public class SearchState {
+
+    /** number of proteins in the synthetic database */
+    @Param({"100"})
+    public int proteins;
+
+    /** number of synthetic spectra */
+    @Param({"100"})
+    public int spectra;
+
+    public RunConfig config;
+    public SimpleXiProcessMultipleCandidates search;
+    public FragmentLookup fragments;
+    public PeptideLookup peptides;
+    public CrossLinker crosslinker;
+
+    /** spectra as read from a peak-list */
+    public Spectra[] raw;
+    /** spectra with isotope clusters annotated - as used for matching */
+    public Spectra[] annotated;
+    /** the reduced spectra used for alpha candidate selection */
+    public Spectra[] mgx;
+    /** the peptide pair each spectrum was created from */
+    public Peptide[][] pairs;
+    /** all fragments of each peptide pair */
+    public ArrayList<Fragment>[] pairFragments;
+    /** the m/z values of all peaks of the mgx spectra */
+    public double[] peakMZ;
+    /** precursor masses of the spectra */
+    public double[] precursorMass;
+
+    private File m_fasta;
+
+    /**
+     * @return which fragment lookup gets build (FRAGMENTTREE)
+     */
+    protected String fragmentTree() {
+        return "FU";
+    }
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException, ParseException {
+        SyntheticData data = new SyntheticData(20160101L);
+        m_fasta = File.createTempFile("xi_benchmark", ".fasta");
+        data.writeFasta(m_fasta, proteins);
+
+        config = new RunConfigFile(new StringReader(SyntheticData.CONFIG + "FRAGMENTTREE:" + fragmentTree() + "\n"));
+        config.setMaxPeptideMass(SyntheticData.MAX_PEPTIDE_MASS);
+        search = new SimpleXiProcessMultipleCandidates(m_fasta, new SingleSpectrumAccess(new Spectra()), null, config, null);
+        search.prepareSearch();
+        fragments = search.getFragments();
+        peptides = search.getXLPeptideLookup();
+        crosslinker = config.getCrossLinker().get(0);
+
+        // the linkable target peptides
+        ArrayList<Peptide> linkable = new ArrayList<Peptide>();
+        for (Peptide p : peptides) {
+            if (!p.isDecoy() && p.length() > 5 && SyntheticData.linkSite(p, crosslinker) >= 0) {
+                linkable.add(p);
+            }
+        }
+
+        raw = new Spectra[spectra];
+        annotated = new Spectra[spectra];
+        mgx = new Spectra[spectra];
+        pairs = new Peptide[spectra][];
+        pairFragments = (ArrayList<Fragment>[]) new ArrayList[spectra];
+        ArrayList<Double> mz = new ArrayList<Double>();
+        precursorMass = new double[spectra];
+        for (int i = 0; i < spectra; i++) {
+            Peptide alpha = linkable.get(data.getRandom().nextInt(linkable.size()));
+            Peptide beta = linkable.get(data.getRandom().nextInt(linkable.size()));
+            pairs[i] = new Peptide[]{alpha, beta};
+            raw[i] = data.crosslinkSpectrum(alpha, beta, crosslinker, config, i);
+            precursorMass[i] = raw[i].getPrecurserMass();
+
+            annotated[i] = raw[i].cloneComplete();
+            config.getIsotopAnnotation().anotate(annotated[i]);
+
+            Spectra mgc = raw[i].getMgcSpectra();
+            mgx[i] = mgc.cloneTopPeaks(config.getNumberMgcPeaks(), 100).getMgxSpectra();
+            for (SpectraPeak sp : mgx[i].getPeaksArray()) {
+                mz.add(sp.getMZ());
+            }
+
+            pairFragments[i] = new MatchedXlinkedPeptide(annotated[i], alpha, beta, crosslinker, config).getFragments();
+        }
+        peakMZ = new double[mz.size()];
+        for (int i = 0; i < peakMZ.length; i++) {
+            peakMZ[i] = mz.get(i);
+        }
+    }
+
+    /**
+     * a copy of the annotated spectra - matching annotates the peaks. So every
+     * invocation has to start from fresh copies
+     * @return
+     */
+    public Spectra[] annotatedCopies() {
+        Spectra[] ret = new Spectra[annotated.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = annotated[i].cloneComplete();
+        }
+        return ret;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_fasta.delete();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Benchmarks the copying and the preprocessing of spectra.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpectraBenchmark {
+
+    @Benchmark
+    public void cloneComplete(SearchState state, Blackhole bh) {
+        for (Spectra s : state.annotated) {
+            bh.consume(s.cloneComplete());
+        }
+    }
+
+    @Benchmark
+    public void cloneEmpty(SearchState state, Blackhole bh) {
+        for (Spectra s : state.annotated) {
+            bh.consume(s.cloneEmpty());
+        }
+    }
+
+    /**
+     * isotope cluster detection as done for each spectrum of a search
+     */
+    @Benchmark
+    public void isotopeAnnotation(SearchState state, Blackhole bh) {
+        for (Spectra s : state.raw) {
+            Spectra c = s.cloneComplete();
+            state.config.getIsotopAnnotation().anotate(c);
+            bh.consume(c.getIsotopeClusters());
+        }
+    }
+
+    /**
+     * creation of the reduced spectra used for alpha candidate selection
+     */
+    @Benchmark
+    public void mgcMgx(SearchState state, Blackhole bh) {
+        for (Spectra s : state.raw) {
+            Spectra mgc = s.getMgcSpectra();
+            bh.consume(mgc.cloneTopPeaks(state.config.getNumberMgcPeaks(), 100).getMgxSpectra());
+        }
+    }
+}
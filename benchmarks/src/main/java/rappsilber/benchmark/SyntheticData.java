@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.loss.Loss;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+import rappsilber.utils.Util;
+
+/**
+ * Generates reproducible inputs for the benchmarks.
+ * <br/>Everything is derived from a fixed seed - so the same version of
+ * xiSEARCH gets the same proteins, peptides and spectra each time and results
+ * of different versions can be compared.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SyntheticData {
+
+    /** the config used for all benchmarks - a BS3 search with trypsin */
+    public static final String CONFIG =
+            "tolerance:precursor:6ppm\n"
+            + "tolerance:fragment:20ppm\n"
+            + "UseCPUs:1\n"
+            + "crosslinker:SymetricSingleAminoAcidRestrictedCrossLinker:Name:BS3;MASS:138.06807;LINKEDAMINOACIDS:K(0),S(0.2),T(0.2),Y(0.2),nterm(0)\n"
+            + "modification:fixed::SYMBOLEXT:cm;MODIFIED:C;DELTAMASS:57.021464\n"
+            + "modification:variable::SYMBOLEXT:ox;MODIFIED:M;DELTAMASS:15.99491463\n"
+            + "digestion:PostAAConstrainedDigestion:DIGESTED:K,R;ConstrainingAminoAcids:P;NAME=Trypsin\n"
+            + "fragment:BIon\n"
+            + "fragment:YIon\n"
+            + "fragment:PeptideIon\n"
+            + "loss:AminoAcidRestrictedLoss:NAME:H20;aminoacids:S,T,D,E;MASS:18.01056027;cterm\n"
+            + "loss:AminoAcidRestrictedLoss:NAME:NH3;aminoacids:R,K,N,Q;MASS:17.02654493;nterm\n"
+            + "loss:AIonLoss\n"
+            + "EVALUATELINEARS:true\n"
+            + "ConservativeLosses:3\n"
+            + "MATCH_MISSING_MONOISOTOPIC:true\n"
+            + "mgcpeaks:10\n"
+            + "topmgchits:150\n"
+            + "topmgxhits:10\n"
+            + "missedcleavages:2\n"
+            + "MAX_MODIFICATION_PER_PEPTIDE:3\n"
+            + "MAX_MODIFIED_PEPTIDES_PER_PEPTIDE:20\n"
+            + "missing_isotope_peaks:2\n";
+
+    /** the largest peptide considered */
+    public static final double MAX_PEPTIDE_MASS = 6000;
+
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+    /** number of noise peaks per spectrum */
+    private static final int NOISE_PEAKS = 80;
+
+    private final Random m_random;
+
+    public SyntheticData(long seed) {
+        m_random = new Random(seed);
+    }
+
+    /**
+     * writes a FASTA file with random protein sequences
+     * @param f where to write to
+     * @param proteins how many proteins
+     * @throws IOException
+     */
+    public void writeFasta(File f, int proteins) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        try {
+            for (int p = 0; p < proteins; p++) {
+                pw.println(">sp|BENCH" + p + "|BENCH" + p + "_SYNTH synthetic protein " + p);
+                int length = 200 + m_random.nextInt(400);
+                StringBuilder sb = new StringBuilder(length);
+                sb.append('M');
+                for (int i = 1; i < length; i++) {
+                    sb.append(AMINO_ACIDS.charAt(m_random.nextInt(AMINO_ACIDS.length())));
+                }
+                for (int i = 0; i < sb.length(); i += 60) {
+                    pw.println(sb.substring(i, Math.min(sb.length(), i + 60)));
+                }
+            }
+        } finally {
+            pw.close();
+        }
+    }
+
+    /**
+     * first residue the cross-linker can link to
+     * @return the residue or -1 if the peptide can not be linked
+     */
+    public static int linkSite(Peptide p, CrossLinker cl) {
+        for (int i = 0; i < p.length(); i++) {
+            if (cl.canCrossLink(p, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * creates a spectrum for a cross-linked peptide pair.
+     * <br/>Peaks (with an isotope peak) are created for about two thirds of
+     * the non-lossy fragments, that are possible for the first linkable
+     * residues of each peptide, plus some random noise.
+     * @param alpha
+     * @param beta
+     * @param cl
+     * @param config
+     * @param scan scan number for the spectrum
+     * @return
+     */
+    public Spectra crosslinkSpectrum(Peptide alpha, Peptide beta, CrossLinker cl, RunConfig config, int scan) {
+        int charge = 3 + m_random.nextInt(2);
+        double mass = alpha.getMass() + beta.getMass() + cl.getCrossLinkedMass();
+        Spectra s = new Spectra();
+        s.setRun("synthetic");
+        s.setScanNumber(scan);
+        s.setPrecurserCharge(charge);
+        s.setPrecurserMZ(mass / charge + Util.PROTON_MASS);
+        s.setPrecurserIntensity(1e7);
+        s.setTolearance(config.getFragmentTolerance());
+
+        MatchedXlinkedPeptide match = new MatchedXlinkedPeptide(s, alpha, beta, cl, config);
+        match.setCrossLinkedResidues(linkSite(alpha, cl), linkSite(beta, cl));
+        ArrayList<Fragment> fragments = match.getPossibleFragments();
+        for (Fragment f : fragments) {
+            if (f.isClass(Loss.class) || m_random.nextInt(3) == 0) {
+                continue;
+            }
+            int fragCharge = 1 + m_random.nextInt(Math.min(charge - 1, 2));
+            double mz = f.getMZ(fragCharge);
+            double intensity = 1e4 + m_random.nextDouble() * 1e6;
+            s.addPeak(mz, intensity);
+            s.addPeak(mz + Util.C13_MASS_DIFFERENCE / fragCharge, intensity * 0.6);
+        }
+        for (int i = 0; i < NOISE_PEAKS; i++) {
+            s.addPeak(150 + m_random.nextDouble() * 1800, m_random.nextDouble() * 5e4);
+        }
+        return s;
+    }
+
+    public Random getRandom() {
+        return m_random;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import rappsilber.utils.XiVersion;
+
+/**
+ * Runs the benchmarks.
+ * <br/>Without a result format given, the results are written as JSON to
+ * xiSEARCH-&lt;version&gt;-benchmarks.json - so runs of different versions
+ * can be compared. All arguments are handed on to JMH.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class XiBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmd);
+        if (!cmd.getResultFormat().hasValue() && !cmd.getResult().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+            builder.result("xiSEARCH-" + XiVersion.getVersionString() + "-benchmarks.json");
+        }
+        if (cmd.getIncludes().isEmpty()) {
+            builder.include(XiBenchmarks.class.getPackage().getName() + ".*");
+        }
+        Options opts = builder.build();
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.ms.dataAccess.output.CSVExportMatches;
+import rappsilber.ms.dataAccess.output.ColumnarResultReader;
+import rappsilber.ms.dataAccess.output.MatchColumns;
+
+/**
+ * Converts a file written by the
+ * {@link rappsilber.ms.dataAccess.output.ColumnarResultWriter} into the csv
+ * format xi writes otherwise.
+ * <br/>Same as for {@link Xi} the output gets compressed if it ends in .gz and
+ * is tab separated for .tsv and .txt files.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ColumnarToCSV {
+
+    public static void printusage() {
+        System.out.println(""
+                + "java -cp Xlink.jar rappsilber.applications.ColumnarToCSV [--locale=locale] input.xicol output.csv\n"
+                + "--locale     what local to use for writing out numbers (default en)\n"
+                + "output       - will output to stdout");
+    }
+
+    /**
+     * converts the input into csv
+     * @param in the columnar file
+     * @param out the csv-writer
+     * @return number of converted rows
+     * @throws IOException
+     */
+    public static long convert(ColumnarResultReader in, CSVExportMatches out) throws IOException {
+        MatchColumns.Column[] columns = in.getColumns();
+        MatchColumns.Row row = in.newRow();
+        long count = 0;
+        out.writeHeader(columns);
+        while (in.next(row)) {
+            out.writeRow(columns, row);
+            count++;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String locale = "en";
+        String input = null;
+        String output = null;
+        for (String arg : args) {
+            if (arg.startsWith("--locale=")) {
+                locale = arg.substring("--locale=".length());
+            } else if (arg.startsWith("--help")) {
+                printusage();
+                return;
+            } else if (input == null) {
+                input = arg;
+            } else if (output == null) {
+                output = arg;
+            } else {
+                printusage();
+                System.exit(1);
+            }
+        }
+        if (input == null || output == null) {
+            printusage();
+            System.exit(1);
+        }
+
+        boolean gzip = output.endsWith(".gz");
+        boolean tabSep = output.endsWith("txt.gz")||output.endsWith("tsv.gz")||output.endsWith("txt")||output.endsWith("tsv");
+        CSVExportMatches csv;
+        if (output.contentEquals("-")) {
+            csv = new CSVExportMatches(System.out, null, gzip);
+        } else {
+            csv = new CSVExportMatches(new FileOutputStream(output), null, gzip);
+        }
+        if (tabSep) {
+            csv.setDelimChar("\t");
+        }
+        if (!csv.setLocale(locale)) {
+            Logger.getLogger(ColumnarToCSV.class.getName()).log(Level.SEVERE, "could not set the number locale: " + locale);
+            System.exit(1);
+        }
+        ColumnarResultReader in = new ColumnarResultReader(new File(input));
+        long rows = convert(in, csv);
+        in.close();
+        csv.finished();
+        Logger.getLogger(ColumnarToCSV.class.getName()).log(Level.INFO, "converted " + rows + " matches");
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.crosslinker.SymetricSingleAminoAcidRestrictedCrossLinker;
+import rappsilber.ms.lookup.fragments.FragmentLookup;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.ions.BasicCrossLinkedFragmentProducer;
+import rappsilber.ms.sequence.ions.CrossLinkedFragmentProducer;
+import rappsilber.ms.sequence.ions.CrosslinkedFragment;
+import rappsilber.ms.sequence.ions.CrosslinkerContaining;
+import rappsilber.ms.sequence.ions.DoubleFragmentation;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.PeptideIon;
+import rappsilber.ms.sequence.ions.loss.CleavableCrossLinkerPeptide;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+import rappsilber.utils.Util;
+
+/**
+ * Computes the same score as
+ * {@link SimpleXiProcessLinearIncluded#getMGXMatchScores(Spectra, Peptide, Peptide, CrossLinker, long)}
+ * without creating any fragment objects per peptide pair.
+ * <br/>The primary fragments of each peptide are turned once per spectrum
+ * into a {@link FragmentLadder} of primitive values. Cross-linked fragments are
+ * then only a mass (fragment + partner + cross-linker) that is looked up
+ * in the spectrum - in the same order the fragments would have been created.
+ * Peaks are flagged as matched via a stamp per peak and the number of peptides
+ * for each peak is only looked up once per spectrum.
+ * <br/>Fragments are looked up in the same order as before as the first
+ * fragment matching a peak decides, which factor gets applied - so the
+ * resulting score is exactly the same.
+ * <br/>Not thread-safe - each thread needs its own instance.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class MGXPairScorer {
+
+    /**
+     * primitive representation of the primary fragments of a peptide
+     */
+    protected static class FragmentLadder {
+        /** the fragments - in the order returned by getPrimaryFragments */
+        Fragment[] fragments;
+        /** m/z of the singly charged fragments */
+        double[] mz;
+        /** neutral masses */
+        double[] neutralMass;
+        /** length of the fragment relative to the peptide */
+        double[] relativeLength;
+        /** f.isClass(PeptideIon.class) */
+        boolean[] isPeptideIon;
+        /** f instanceof PeptideIon */
+        boolean[] instanceOfPeptideIon;
+        /** f.isClass(CrosslinkerContaining.class) */
+        boolean[] crosslinkerContaining;
+        /** the m/z that gets looked up for a fragment linked to a peptide ion */
+        double[] complementMZ;
+        /** cached number of peptides for the complement m/z (NaN if not yet known) */
+        double[] complementCount;
+        /** no fragment is treated differently by the generic implementation */
+        boolean plain = true;
+        /** per cross-linker: can the fragment be linked */
+        IdentityHashMap<CrossLinker, boolean[]> linkable = new IdentityHashMap<CrossLinker, boolean[]>(2);
+
+        FragmentLadder(Peptide p, RunConfig config) {
+            ArrayList<Fragment> frags = p.getPrimaryFragments(config);
+            int n = frags.size();
+            fragments = frags.toArray(new Fragment[n]);
+            mz = new double[n];
+            neutralMass = new double[n];
+            relativeLength = new double[n];
+            isPeptideIon = new boolean[n];
+            instanceOfPeptideIon = new boolean[n];
+            crosslinkerContaining = new boolean[n];
+            complementMZ = new double[n];
+            complementCount = new double[n];
+            for (int i = 0; i < n; i++) {
+                Fragment f = fragments[i];
+                mz[i] = f.getMZ(1);
+                neutralMass[i] = f.getNeutralMass();
+                relativeLength[i] = f.length() / (double) f.getPeptide().length();
+                isPeptideIon[i] = f.isClass(PeptideIon.class);
+                instanceOfPeptideIon[i] = f instanceof PeptideIon;
+                crosslinkerContaining[i] = f.isClass(CrosslinkerContaining.class);
+                complementMZ[i] = f.getPeptide().getMass() - f.getMass() + 2 * Util.PROTON_MASS;
+                complementCount[i] = Double.NaN;
+                if (f.isClass(CrosslinkedFragment.class) || f.isClass(CleavableCrossLinkerPeptide.CleavableCrossLinkerPeptideFragment.class)) {
+                    plain = false;
+                }
+            }
+        }
+
+        /**
+         * @return which fragments can be linked by the given cross-linker
+         */
+        boolean[] getLinkable(CrossLinker cl) {
+            boolean[] ret = linkable.get(cl);
+            if (ret == null) {
+                ret = new boolean[fragments.length];
+                for (int i = 0; i < fragments.length; i++) {
+                    ret[i] = cl.canCrossLink(fragments[i]);
+                }
+                linkable.put(cl, ret);
+            }
+            return ret;
+        }
+    }
+
+    private final RunConfig m_config;
+    private final FragmentLookup m_fragments;
+
+    /** the spectrum the cached values belong to */
+    private Spectra m_spectrum;
+    /** m/z values of the peaks of the spectrum */
+    private double[] m_peakMZ = new double[0];
+    /** number of peptides per peak (NaN if not yet looked up) */
+    private double[] m_peakCount = new double[0];
+    /** if m_peakMatched[i] == m_stamp then peak i was already matched */
+    private int[] m_peakMatched = new int[0];
+    private int m_stamp = 0;
+    /** fragment ladders of the peptides seen for the current spectrum */
+    private IdentityHashMap<Peptide, FragmentLadder> m_ladders = new IdentityHashMap<Peptide, FragmentLadder>();
+
+    public MGXPairScorer(RunConfig config, FragmentLookup fragments) {
+        m_config = config;
+        m_fragments = fragments;
+    }
+
+    /**
+     * can this scorer produce the same score as the generic implementation
+     * for the current configuration
+     * @return false if cross-linked fragments are produced in a way not
+     * reproduced here
+     */
+    public boolean canScore() {
+        ArrayList<CrossLinkedFragmentProducer> producers = m_config.getCrossLinkedFragmentProducers();
+        return producers.size() == 1 && producers.get(0).getClass() == BasicCrossLinkedFragmentProducer.class;
+    }
+
+    /**
+     * switch the cached values over to the given spectrum
+     */
+    private void setSpectrum(Spectra mgx) {
+        if (mgx == m_spectrum) {
+            return;
+        }
+        m_spectrum = mgx;
+        m_ladders.clear();
+        SpectraPeak[] peaks = mgx.getPeaksArray();
+        int n = peaks.length;
+        if (m_peakMZ.length < n) {
+            m_peakMZ = new double[n];
+            m_peakCount = new double[n];
+            m_peakMatched = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            m_peakMZ[i] = peaks[i].getMZ();
+            m_peakCount[i] = Double.NaN;
+            m_peakMatched[i] = 0;
+        }
+        m_stamp = 0;
+    }
+
+    private FragmentLadder getLadder(Peptide p) {
+        FragmentLadder l = m_ladders.get(p);
+        if (l == null) {
+            l = new FragmentLadder(p, m_config);
+            m_ladders.put(p, l);
+        }
+        return l;
+    }
+
+    /**
+     * flags the peak matching the m/z as matched
+     * @return the index of the peak or -1 if there is no unmatched peak
+     */
+    private int claimPeak(double mz) {
+        int p = m_spectrum.getPeakIndexAt(mz);
+        if (p < 0 || m_peakMatched[p] == m_stamp) {
+            return -1;
+        }
+        m_peakMatched[p] = m_stamp;
+        return p;
+    }
+
+    private double peakCount(int p) {
+        double c = m_peakCount[p];
+        if (Double.isNaN(c)) {
+            c = m_fragments.countPeptides(m_peakMZ[p]);
+            m_peakCount[p] = c;
+        }
+        return c;
+    }
+
+    private double complementCount(FragmentLadder l, int i) {
+        double c = l.complementCount[i];
+        if (Double.isNaN(c)) {
+            c = m_fragments.countPeptides(l.complementMZ[i]);
+            l.complementCount[i] = c;
+        }
+        return c;
+    }
+
+    /**
+     * scores the primary fragments of a peptide
+     */
+    private double scorePrimary(FragmentLadder l, double score, double all) {
+        for (int i = 0; i < l.mz.length; i++) {
+            int p = claimPeak(l.mz[i]);
+            if (p >= 0) {
+                score *= peakCount(p) / all;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * scores the cross-linked fragment made up of fragment i of ladder f and
+     * fragment j of ladder c.
+     */
+    private double scoreLinked(FragmentLadder f, int i, FragmentLadder c, int j, double clMass, double score, double all) {
+        double mass = f.neutralMass[i] + c.neutralMass[j] + clMass;
+        int p = claimPeak(mass + Util.PROTON_MASS);
+        if (p < 0) {
+            return score;
+        }
+        // same base- and cross-linked fragment as CrosslinkedFragment would define
+        FragmentLadder bl = f, cfl = c;
+        int b = i, cf = j;
+        if (f.relativeLength[i] > c.relativeLength[j]) {
+            bl = c;
+            b = j;
+            cfl = f;
+            cf = i;
+        }
+        FragmentLadder subL, pepL;
+        int sub, pep;
+        if (bl.isPeptideIon[b]) {
+            subL = cfl;
+            sub = cf;
+            pepL = bl;
+            pep = b;
+        } else {
+            subL = bl;
+            sub = b;
+            pepL = cfl;
+            pep = cf;
+        }
+        if (pepL.isPeptideIon[pep] && !subL.isPeptideIon[sub]) {
+            // the generic implementation applies the factor for the
+            // complement m/z twice
+            double factor = complementCount(subL, sub) / all;
+            score *= factor;
+            return score * factor;
+        }
+        return score * (peakCount(p) / all);
+    }
+
+    private boolean canLink(CrossLinker cl, boolean[] fLinkable, FragmentLadder f, int i, boolean[] cLinkable, FragmentLadder c, int j) {
+        if (fLinkable != null) {
+            return fLinkable[i] && cLinkable[j];
+        }
+        return cl.canCrossLink(f.fragments[i], c.fragments[j]);
+    }
+
+    /**
+     * scores all cross-linked fragments in the order
+     * {@link CrosslinkedFragment#createCrosslinkedFragments(java.util.Collection, java.util.Collection, CrossLinker, boolean)}
+     * would create them.
+     */
+    private double scoreLinked(FragmentLadder a, FragmentLadder b, CrossLinker cl, double score, double all) {
+        double clMass = cl.getCrossLinkedMass();
+        boolean[] aLinkable = null;
+        boolean[] bLinkable = null;
+        // canCrossLink(f1,f2) is the same as canCrossLink(f1) && canCrossLink(f2)
+        if (cl.getClass() == SymetricSingleAminoAcidRestrictedCrossLinker.class) {
+            aLinkable = a.getLinkable(cl);
+            bLinkable = b.getLinkable(cl);
+        }
+        if (DoubleFragmentation.isDisabled()) {
+            for (int i = 0; i < a.mz.length; i++) {
+                if (a.instanceOfPeptideIon[i]) {
+                    for (int j = 0; j < b.mz.length; j++) {
+                        if (canLink(cl, aLinkable, a, i, bLinkable, b, j)) {
+                            score = scoreLinked(a, i, b, j, clMass, score, all);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < b.mz.length; i++) {
+                if (b.instanceOfPeptideIon[i]) {
+                    for (int j = 0; j < a.mz.length; j++) {
+                        if (canLink(cl, bLinkable, b, i, aLinkable, a, j)) {
+                            score = scoreLinked(b, i, a, j, clMass, score, all);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < a.mz.length; i++) {
+                if (a.crosslinkerContaining[i]) {
+                    continue;
+                }
+                for (int j = 0; j < b.mz.length; j++) {
+                    if (!b.crosslinkerContaining[j] && canLink(cl, aLinkable, a, i, bLinkable, b, j)) {
+                        score = scoreLinked(a, i, b, j, clMass, score, all);
+                    }
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * score a peptide pair against the mgx spectrum
+     * @param mgx
+     * @param alpha
+     * @param beta
+     * @param cl
+     * @param allfragments
+     * @return the score or NaN if the pair can't be scored here
+     */
+    public double score(Spectra mgx, Peptide alpha, Peptide beta, CrossLinker cl, long allfragments) {
+        setSpectrum(mgx);
+        FragmentLadder a = getLadder(alpha);
+        FragmentLadder b = beta == null ? null : getLadder(beta);
+        if (!a.plain || (b != null && !b.plain)) {
+            return Double.NaN;
+        }
+        m_stamp++;
+        double all = allfragments;
+        double score = scorePrimary(a, 1, all);
+        if (b != null) {
+            score = scoreLinked(a, b, cl, score, all);
+            score = scorePrimary(b, score, all);
+        }
+        return score;
+    }
+}
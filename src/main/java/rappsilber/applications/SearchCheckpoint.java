@@ -0,0 +1,384 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.ms.dataAccess.filter.spectrafilter.AbstractSpectraFilter;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * A journal of the spectra a search has completed - so that an interrupted
+ * search can be resumed.
+ * <br/>Every few minutes all results produced so far are flushed to the output
+ * files and the journal gets the spectra finished since the last checkpoint
+ * plus a commit line with the size of each output file. While that happens no
+ * spectrum is being searched - so the output files contain exactly the results
+ * of the committed spectra.
+ * <br/>On resume the output files are cut back to the sizes of the last commit
+ * and the committed spectra are filtered out of the input
+ * (see {@link #getResumeFilter()}). Results can then be appended to the
+ * outputs.
+ * <br/>Journal format (tab separated):
+ * <pre>
+ * #xi checkpoint 1
+ * output  path
+ * scan    run  scan-number  read-id
+ * commit  size-of-each-output
+ * finished
+ * </pre>
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SearchCheckpoint {
+
+    /** config key for the seconds between two checkpoints (0 = no checkpoints) */
+    public static final String INTERVAL_KEY = "CHECKPOINT_INTERVAL";
+    /** interval used on resume if none is configured */
+    public static final int DEFAULT_INTERVAL = 300;
+    /** the journal is written next to the first output with this extension */
+    public static final String JOURNAL_SUFFIX = ".checkpoint";
+    private static final String HEADER = "#xi checkpoint 1";
+
+    /**
+     * filters out spectra that where already searched
+     */
+    private class ResumeFilter extends AbstractSpectraFilter {
+        @Override
+        public boolean passScan(Spectra s) {
+            return !m_committed.contains(scanKey(s));
+        }
+    }
+
+    private final File m_journalFile;
+    private final List<File> m_outputs;
+    private final long m_interval;
+    /** spectra committed in the journal */
+    private final HashSet<String> m_committed = new HashSet<String>();
+    /** spectra finished since the last commit */
+    private final ArrayList<String> m_pending = new ArrayList<String>();
+    /** output sizes of the last commit - null if there was none */
+    private long[] m_sizes;
+    /** the journal said the search was finished */
+    private boolean m_finished = false;
+    /** searches of spectra hold the read-lock - checkpoints the write-lock */
+    private final ReentrantReadWriteLock m_lock = new ReentrantReadWriteLock(true);
+    private FileOutputStream m_journalStream;
+    private Writer m_journal;
+    /** flushes all results produced so far to the outputs */
+    private Runnable m_flush;
+    private Thread m_timer;
+
+    /**
+     * @param journal where to write the journal to
+     * @param outputs the files the results get written to
+     * @param interval milliseconds between two checkpoints
+     */
+    public SearchCheckpoint(File journal, List<File> outputs, long interval) {
+        m_journalFile = journal;
+        m_outputs = new ArrayList<File>();
+        for (File f : outputs) {
+            m_outputs.add(f.getAbsoluteFile());
+        }
+        m_interval = interval;
+    }
+
+    /**
+     * identifies a spectrum within the journal
+     * @param s
+     * @return
+     */
+    public static String scanKey(Spectra s) {
+        Integer scan = s.getScanNumber();
+        return s.getRun() + "\t" + (scan == null ? "-" : scan.toString()) + "\t" + s.getReadID();
+    }
+
+    /**
+     * reads the journal of a previous search and cuts the output files back to
+     * the last commit.
+     * @return true if there is something to resume from
+     * @throws IOException if the journal does not fit to the outputs
+     */
+    public boolean resume() throws IOException {
+        if (!m_journalFile.exists()) {
+            return false;
+        }
+        ArrayList<File> outputs = new ArrayList<File>();
+        ArrayList<String> scans = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(m_journalFile), StandardCharsets.UTF_8));
+        try {
+            String line = br.readLine();
+            if (line == null || !line.contentEquals(HEADER)) {
+                throw new IOException(m_journalFile + " is not a checkpoint journal");
+            }
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts[0].contentEquals("output") && parts.length == 2) {
+                    outputs.add(new File(parts[1]));
+                } else if (parts[0].contentEquals("scan") && parts.length == 4) {
+                    scans.add(line.substring("scan\t".length()));
+                } else if (parts[0].contentEquals("commit") && parts.length == m_outputs.size() + 1) {
+                    long[] sizes = new long[m_outputs.size()];
+                    try {
+                        for (int i = 0; i < sizes.length; i++) {
+                            sizes[i] = Long.parseLong(parts[i + 1]);
+                        }
+                    } catch (NumberFormatException ex) {
+                        // incompletely written commit
+                        continue;
+                    }
+                    m_sizes = sizes;
+                    m_committed.addAll(scans);
+                    scans.clear();
+                } else if (parts[0].contentEquals("finished")) {
+                    m_finished = true;
+                }
+            }
+        } finally {
+            br.close();
+        }
+        if (!outputs.equals(m_outputs)) {
+            throw new IOException("The checkpoint " + m_journalFile + " was written for different outputs: " + outputs);
+        }
+        if (m_sizes == null) {
+            return false;
+        }
+        for (int i = 0; i < m_sizes.length; i++) {
+            FileChannel fc = FileChannel.open(m_outputs.get(i).toPath(), StandardOpenOption.WRITE);
+            try {
+                if (fc.size() < m_sizes[i]) {
+                    throw new IOException(m_outputs.get(i) + " is shorter than recorded in the checkpoint");
+                }
+                fc.truncate(m_sizes[i]);
+            } finally {
+                fc.close();
+            }
+        }
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Resuming search - {0} spectra where already searched", m_committed.size());
+        return true;
+    }
+
+    /**
+     * @return true if {@link #resume()} found a commit to resume from
+     */
+    public boolean isResumed() {
+        return m_sizes != null;
+    }
+
+    /**
+     * @return true if the journal of the previous search said it was finished
+     */
+    public boolean isFinished() {
+        return m_finished;
+    }
+
+    /**
+     * @return a filter that drops all spectra that where already searched
+     */
+    public AbstractSpectraFilter getResumeFilter() {
+        return new ResumeFilter();
+    }
+
+    /**
+     * (re)writes the journal - containing only the committed state - and opens
+     * it for appending
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        File tmp = new File(m_journalFile.getPath() + ".tmp");
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+        try {
+            w.write(HEADER + "\n");
+            for (File f : m_outputs) {
+                w.write("output\t" + f.getPath() + "\n");
+            }
+            if (m_sizes != null) {
+                for (String s : m_committed) {
+                    w.write("scan\t" + s + "\n");
+                }
+                w.write(commitLine(m_sizes));
+            }
+        } finally {
+            w.close();
+        }
+        Files.move(tmp.toPath(), m_journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        m_journalStream = new FileOutputStream(m_journalFile, true);
+        m_journal = new BufferedWriter(new OutputStreamWriter(m_journalStream, StandardCharsets.UTF_8));
+    }
+
+    private String commitLine(long[] sizes) {
+        StringBuilder sb = new StringBuilder("commit");
+        for (long s : sizes) {
+            sb.append('\t').append(s);
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * starts writing checkpoints in regular intervals
+     * @param flush writes out all results produced so far
+     */
+    public synchronized void start(Runnable flush) {
+        m_flush = flush;
+        if (m_timer != null && m_timer.isAlive()) {
+            return;
+        }
+        m_timer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(m_interval);
+                        commit();
+                    } catch (InterruptedException ex) {
+                        break;
+                    } catch (IOException ex) {
+                        Logger.getLogger(SearchCheckpoint.class.getName()).log(Level.SEVERE, "Error writing checkpoint", ex);
+                    }
+                }
+            }
+        }, "Checkpoint");
+        m_timer.setDaemon(true);
+        m_timer.start();
+    }
+
+    /**
+     * stops the regular checkpoints and writes a last one
+     */
+    public synchronized void stop() {
+        if (m_timer != null) {
+            m_timer.interrupt();
+            try {
+                m_timer.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Interrupted while stopping the checkpoints", ex);
+            }
+            m_timer = null;
+        }
+        try {
+            commit();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error writing checkpoint", ex);
+        }
+    }
+
+    /**
+     * has to be called before a spectrum gets searched - blocks while a
+     * checkpoint is written
+     */
+    public void startSpectrum() {
+        m_lock.readLock().lock();
+    }
+
+    /**
+     * the spectrum was searched and all its results handed to the output
+     * @param s
+     */
+    public void spectrumDone(Spectra s) {
+        String key = scanKey(s);
+        synchronized (m_pending) {
+            m_pending.add(key);
+        }
+    }
+
+    /**
+     * has to be called after a spectrum was searched (successfully or not)
+     */
+    public void endSpectrum() {
+        m_lock.readLock().unlock();
+    }
+
+    /**
+     * waits for all spectra currently searched, flushes the outputs and
+     * records the finished spectra together with the size of the outputs
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        m_lock.writeLock().lock();
+        try {
+            if (m_journal == null) {
+                return;
+            }
+            if (m_flush != null) {
+                m_flush.run();
+            }
+            long[] sizes = new long[m_outputs.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                FileChannel fc = FileChannel.open(m_outputs.get(i).toPath(), StandardOpenOption.WRITE);
+                try {
+                    fc.force(true);
+                    sizes[i] = fc.size();
+                } finally {
+                    fc.close();
+                }
+            }
+            for (String s : m_pending) {
+                m_journal.write("scan\t" + s + "\n");
+            }
+            m_journal.write(commitLine(sizes));
+            m_journal.flush();
+            m_journalStream.getChannel().force(true);
+            m_committed.addAll(m_pending);
+            m_pending.clear();
+            m_sizes = sizes;
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * closes the journal
+     * @param complete if true the journal is marked as belonging to a finished
+     * search
+     */
+    public synchronized void finish(boolean complete) {
+        if (m_timer != null) {
+            stop();
+        }
+        m_lock.writeLock().lock();
+        try {
+            if (m_journal == null) {
+                return;
+            }
+            if (complete) {
+                m_journal.write("finished\n");
+            }
+            m_journal.close();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error closing the checkpoint journal", ex);
+        } finally {
+            m_journal = null;
+            m_lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import rappsilber.ms.dataAccess.BufferedSpectraAccess;
+import rappsilber.ms.dataAccess.output.BufferedResultWriter;
+
+/**
+ * Counters and timings of the stages a spectrum goes through while being
+ * searched.
+ * <br/>Each search thread writes into its own {@link ThreadStatistics} (see
+ * {@link #forThread()}) - so counting does not need any synchronisation. The
+ * values of all threads are only summed up when they are read.
+ * <br/>Besides the total time per stage the time a single spectrum spent in
+ * each stage is recorded in a histogram with power of two buckets (in
+ * microseconds) from which percentiles can be estimated.
+ * <br/>{@link #reset()} never writes to the values of the threads. It records
+ * the current values as baseline and all values are reported relative to
+ * that - so counts a thread adds while the reset runs are not lost.
+ * <br/>Via {@link #register()} the statistics are published over JMX.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SearchStatistics implements SearchStatisticsMBean {
+
+    /**
+     * the stages of searching a spectrum
+     */
+    public enum Stage {
+        /** waiting for the next spectrum */
+        INPUT("input"),
+        /** preparing the spectrum and looking up alpha candidates */
+        MGC("mgc"),
+        /** scoring candidate pairs */
+        MGX("mgx"),
+        /** matching fragments of the top candidates */
+        MATCHING("matching"),
+        /** scoring the matches */
+        SCORING("scoring"),
+        /** ranking and handing the matches to the output */
+        OUTPUT("output");
+
+        private final String m_name;
+
+        private Stage(String name) {
+            m_name = name;
+        }
+
+        @Override
+        public String toString() {
+            return m_name;
+        }
+    }
+
+    /**
+     * the things that get counted
+     */
+    public enum Counter {
+        /** searched spectra */
+        SPECTRA,
+        /** alpha candidates considered */
+        CANDIDATES,
+        /** candidate pairs that got a mgx score */
+        PAIRS,
+        /** matches that where fragment matched and scored */
+        MATCHES,
+        /** matches handed to the output */
+        RESULTS
+    }
+
+    /** number of histogram buckets per stage */
+    public static final int BUCKETS = 32;
+    private static final Stage[] STAGES = Stage.values();
+    private static final AtomicInteger m_instances = new AtomicInteger(0);
+
+    /**
+     * the statistics of a single thread - should only be written by one
+     * thread at a time
+     */
+    public static class ThreadStatistics {
+        /** nanoseconds spent per stage for the current spectrum */
+        private final long[] m_current = new long[STAGES.length];
+        private final AtomicLongArray m_nanos = new AtomicLongArray(STAGES.length);
+        private final AtomicLongArray m_histogram = new AtomicLongArray(STAGES.length * BUCKETS);
+        private final AtomicLongArray m_counts = new AtomicLongArray(Counter.values().length);
+        /** values at the last reset - only written by {@link SearchStatistics#reset()} */
+        private final AtomicLongArray m_nanosBase = new AtomicLongArray(STAGES.length);
+        private final AtomicLongArray m_histogramBase = new AtomicLongArray(STAGES.length * BUCKETS);
+        private final AtomicLongArray m_countsBase = new AtomicLongArray(Counter.values().length);
+
+        /**
+         * @return the current time to be handed to
+         * {@link #stage(rappsilber.applications.SearchStatistics.Stage, long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * adds the time since start to the given stage of the current
+         * spectrum
+         * @param stage
+         * @param start
+         * @return the current time - can be used as start for the next stage
+         */
+        public long stage(Stage stage, long start) {
+            long now = System.nanoTime();
+            m_current[stage.ordinal()] += now - start;
+            return now;
+        }
+
+        public void count(Counter counter, long value) {
+            // only this thread writes - so no atomic increment needed
+            m_counts.lazySet(counter.ordinal(), m_counts.get(counter.ordinal()) + value);
+        }
+
+        /**
+         * the current spectrum is done - adds its stage times to the totals
+         * and histograms
+         */
+        public void spectrumDone() {
+            for (int s = 0; s < m_current.length; s++) {
+                long t = m_current[s];
+                m_current[s] = 0;
+                m_nanos.lazySet(s, m_nanos.get(s) + t);
+                int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(t / 1000));
+                int i = s * BUCKETS + b;
+                m_histogram.lazySet(i, m_histogram.get(i) + 1);
+            }
+            count(Counter.SPECTRA, 1);
+        }
+
+        /**
+         * value of the array relative to the baseline. The baseline is read
+         * first - values only grow, so the result is never negative.
+         */
+        private static long sinceReset(AtomicLongArray values, AtomicLongArray base, int i) {
+            long b = base.get(i);
+            return values.get(i) - b;
+        }
+
+        /**
+         * takes the current values as new baseline
+         */
+        private static void setBase(AtomicLongArray values, AtomicLongArray base) {
+            for (int i = 0; i < values.length(); i++) {
+                base.set(i, values.get(i));
+            }
+        }
+    }
+
+    private final ConcurrentLinkedQueue<ThreadStatistics> m_threads = new ConcurrentLinkedQueue<ThreadStatistics>();
+    private final ThreadLocal<ThreadStatistics> m_thread = new ThreadLocal<ThreadStatistics>() {
+        @Override
+        protected ThreadStatistics initialValue() {
+            ThreadStatistics ts = new ThreadStatistics();
+            m_threads.add(ts);
+            return ts;
+        }
+    };
+    private volatile long m_startTime = System.nanoTime();
+    private ObjectName m_name;
+    /** state of the last summary - to report the recent speed */
+    private long m_lastSummaryTime = m_startTime;
+    private long m_lastSummarySpectra = 0;
+
+    /**
+     * @return the statistics of the calling thread
+     */
+    public ThreadStatistics forThread() {
+        return m_thread.get();
+    }
+
+    /**
+     * creates statistics that are not tied to a thread. They can be handed
+     * from thread to thread via {@link #bind(ThreadStatistics)} - e.g. for
+     * pooled workers that come and go.
+     * @return
+     */
+    public ThreadStatistics newStatistics() {
+        ThreadStatistics ts = new ThreadStatistics();
+        m_threads.add(ts);
+        return ts;
+    }
+
+    /**
+     * makes {@link #forThread()} return the given statistics for the calling
+     * thread until {@link #unbind()} is called.
+     * @param ts statistics created by {@link #newStatistics()}
+     */
+    public void bind(ThreadStatistics ts) {
+        m_thread.set(ts);
+    }
+
+    /**
+     * forgets the statistics bound to the calling thread
+     */
+    public void unbind() {
+        m_thread.remove();
+    }
+
+    /**
+     * publishes the statistics over JMX as
+     * rappsilber:type=SearchStatistics,id=N
+     */
+    public synchronized void register() {
+        if (m_name != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            m_name = new ObjectName("rappsilber:type=SearchStatistics,id=" + m_instances.incrementAndGet());
+            server.registerMBean(this, m_name);
+        } catch (Exception ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Could not publish the search statistics over JMX", ex);
+            m_name = null;
+        }
+    }
+
+    /**
+     * removes the statistics from JMX
+     */
+    public synchronized void unregister() {
+        if (m_name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_name);
+        } catch (Exception ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Could not remove the search statistics from JMX", ex);
+        }
+        m_name = null;
+    }
+
+    public long getCount(Counter counter) {
+        long c = 0;
+        for (ThreadStatistics ts : m_threads) {
+            c += ThreadStatistics.sinceReset(ts.m_counts, ts.m_countsBase, counter.ordinal());
+        }
+        return c;
+    }
+
+    /**
+     * @param stage
+     * @return nanoseconds spent in the stage over all threads
+     */
+    public long getNanos(Stage stage) {
+        long n = 0;
+        for (ThreadStatistics ts : m_threads) {
+            n += ThreadStatistics.sinceReset(ts.m_nanos, ts.m_nanosBase, stage.ordinal());
+        }
+        return n;
+    }
+
+    /**
+     * @param stage
+     * @return number of spectra per histogram bucket. Bucket b contains the
+     * spectra that spent less than 2^b microseconds in the stage.
+     */
+    public long[] getHistogram(Stage stage) {
+        long[] h = new long[BUCKETS];
+        for (ThreadStatistics ts : m_threads) {
+            for (int b = 0; b < BUCKETS; b++) {
+                h[b] += ThreadStatistics.sinceReset(ts.m_histogram, ts.m_histogramBase, stage.ordinal() * BUCKETS + b);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * estimates a percentile of the time spectra spent in a stage
+     * @param stage
+     * @param percentile between 0 and 1
+     * @return upper bound of the percentile in milliseconds
+     */
+    public double getPercentile(Stage stage, double percentile) {
+        long[] h = getHistogram(stage);
+        long all = 0;
+        for (long c : h) {
+            all += c;
+        }
+        if (all == 0) {
+            return 0;
+        }
+        long limit = (long) Math.ceil(all * percentile);
+        long sum = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            sum += h[b];
+            if (sum >= limit) {
+                return (1L << b) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    /**
+     * sets all values back to 0 - by taking the current values as baseline.
+     * Can be called while the search is running.
+     */
+    @Override
+    public synchronized void reset() {
+        for (ThreadStatistics ts : m_threads) {
+            ThreadStatistics.setBase(ts.m_nanos, ts.m_nanosBase);
+            ThreadStatistics.setBase(ts.m_histogram, ts.m_histogramBase);
+            ThreadStatistics.setBase(ts.m_counts, ts.m_countsBase);
+        }
+        m_startTime = System.nanoTime();
+        m_lastSummaryTime = m_startTime;
+        m_lastSummarySpectra = 0;
+    }
+
+    @Override
+    public long getSpectra() {
+        return getCount(Counter.SPECTRA);
+    }
+
+    @Override
+    public long getCandidates() {
+        return getCount(Counter.CANDIDATES);
+    }
+
+    @Override
+    public long getCandidatePairs() {
+        return getCount(Counter.PAIRS);
+    }
+
+    @Override
+    public long getEvaluatedMatches() {
+        return getCount(Counter.MATCHES);
+    }
+
+    @Override
+    public long getResults() {
+        return getCount(Counter.RESULTS);
+    }
+
+    @Override
+    public double getSpectraPerSecond() {
+        double s = (System.nanoTime() - m_startTime) / 1e9;
+        return s > 0 ? getSpectra() / s : 0;
+    }
+
+    @Override
+    public double getCandidatesPerSpectrum() {
+        long s = getSpectra();
+        return s > 0 ? getCandidates() / (double) s : 0;
+    }
+
+    @Override
+    public double getCandidatePairsPerSpectrum() {
+        long s = getSpectra();
+        return s > 0 ? getCandidatePairs() / (double) s : 0;
+    }
+
+    @Override
+    public String[] getStages() {
+        String[] ret = new String[STAGES.length];
+        long spectra = Math.max(1, getSpectra());
+        for (Stage s : STAGES) {
+            long n = getNanos(s);
+            ret[s.ordinal()] = String.format(Locale.ENGLISH, "%s: %.1fs total %.3fms/spectrum p50<%.3fms p90<%.3fms p99<%.3fms",
+                    s, n / 1e9, n / 1e6 / spectra, getPercentile(s, 0.5), getPercentile(s, 0.9), getPercentile(s, 0.99));
+        }
+        return ret;
+    }
+
+    @Override
+    public double getInputSeconds() {
+        return getNanos(Stage.INPUT) / 1e9;
+    }
+
+    @Override
+    public double getMgcSeconds() {
+        return getNanos(Stage.MGC) / 1e9;
+    }
+
+    @Override
+    public double getMgxSeconds() {
+        return getNanos(Stage.MGX) / 1e9;
+    }
+
+    @Override
+    public double getMatchingSeconds() {
+        return getNanos(Stage.MATCHING) / 1e9;
+    }
+
+    @Override
+    public double getScoringSeconds() {
+        return getNanos(Stage.SCORING) / 1e9;
+    }
+
+    @Override
+    public double getOutputSeconds() {
+        return getNanos(Stage.OUTPUT) / 1e9;
+    }
+
+    @Override
+    public int getInputQueueDepth() {
+        return BufferedSpectraAccess.countBufferedSpectra();
+    }
+
+    @Override
+    public int getOutputQueueDepth() {
+        return BufferedResultWriter.countBufferedMatches();
+    }
+
+    /**
+     * a one line summary - including the speed since the last summary
+     * @return
+     */
+    @Override
+    public synchronized String getSummary() {
+        long now = System.nanoTime();
+        long spectra = getSpectra();
+        double recent = now > m_lastSummaryTime ? (spectra - m_lastSummarySpectra) / ((now - m_lastSummaryTime) / 1e9) : 0;
+        m_lastSummaryTime = now;
+        m_lastSummarySpectra = spectra;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "spectra: %d (%.2f/s, recent %.2f/s); candidates/spectrum: %.1f; pairs/spectrum: %.1f; matches: %d; results: %d; queues: input %d output %d",
+                spectra, getSpectraPerSecond(), recent, getCandidatesPerSpectrum(), getCandidatePairsPerSpectrum(),
+                getEvaluatedMatches(), getResults(), getInputQueueDepth(), getOutputQueueDepth()));
+        double spec = Math.max(1, spectra);
+        for (Stage s : STAGES) {
+            sb.append(String.format(Locale.ENGLISH, "; %s %.3fms (p90<%.3fms)", s, getNanos(s) / 1e6 / spec, getPercentile(s, 0.9)));
+        }
+        return sb.toString();
+    }
+}
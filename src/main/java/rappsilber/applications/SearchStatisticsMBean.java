@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+/**
+ * What {@link SearchStatistics} publishes over JMX.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface SearchStatisticsMBean {
+
+    long getSpectra();
+
+    long getCandidates();
+
+    long getCandidatePairs();
+
+    long getEvaluatedMatches();
+
+    long getResults();
+
+    double getSpectraPerSecond();
+
+    double getCandidatesPerSpectrum();
+
+    double getCandidatePairsPerSpectrum();
+
+    /**
+     * @return per stage the total and average time and percentiles of the
+     * time per spectrum
+     */
+    String[] getStages();
+
+    double getInputSeconds();
+
+    double getMgcSeconds();
+
+    double getMgxSeconds();
+
+    double getMatchingSeconds();
+
+    double getScoringSeconds();
+
+    double getOutputSeconds();
+
+    /**
+     * @return spectra waiting in input buffers
+     */
+    int getInputQueueDepth();
+
+    /**
+     * @return matches waiting in output buffers
+     */
+    int getOutputQueueDepth();
+
+    String getSummary();
+
+    void reset();
+}
@@ -33,6 +33,7 @@ import java.util.LinkedList;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -44,8 +45,12 @@ import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.crosslinker.SymetricNarrySingleAminoAcidRestrictedCrossLinker;
 import rappsilber.ms.dataAccess.AbstractSpectraAccess;
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.BlockingSpectraAccess;
 import rappsilber.ms.dataAccess.BufferedSpectraAccess;
+import rappsilber.ms.dataAccess.MassOrderedSpectraAccess;
 import rappsilber.ms.dataAccess.SpectraAccess;
+import rappsilber.ms.dataAccess.PrecursorMassScan;
+import rappsilber.ms.dataAccess.SpectraPreprocessing;
 import rappsilber.ms.dataAccess.StackedSpectraAccess;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFilter;
 import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFromGroups;
@@ -56,6 +61,7 @@ import rappsilber.ms.dataAccess.output.ResultWriter;
 import rappsilber.ms.lookup.fragments.FragmentLookup;
 import rappsilber.ms.lookup.peptides.FUPeptideTree;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
+import rappsilber.ms.lookup.peptides.PeptideModifier;
 import rappsilber.ms.lookup.peptides.PeptideTree;
 import rappsilber.ms.score.AbstractScoreSpectraMatch;
 import rappsilber.ms.score.BS3ReporterIonScore;
@@ -68,6 +74,7 @@ import rappsilber.ms.score.LinkSiteDelta;
 import rappsilber.ms.score.Normalizer;
 import rappsilber.ms.score.NormalizerML;
 import rappsilber.ms.score.PrecursorFound;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.score.ScoreSpectraMatch;
 import rappsilber.ms.score.SpectraCoverage;
 import rappsilber.ms.score.SpectraCoverageConservative;
@@ -80,6 +87,8 @@ import rappsilber.ms.sequence.digest.AASpecificity;
 import rappsilber.ms.sequence.digest.Digestion;
 import rappsilber.ms.sequence.ions.DoubleFragmentation;
 import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.FragmentLadderCache;
+import rappsilber.ms.sequence.utils.PeptidePairSet;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.ms.spectra.match.MatchedBaseFragment;
@@ -116,6 +125,16 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     protected RunConfig m_config;
     private Thread[] m_searchThreads;
     private AtomicBoolean[] m_threadStop;
+    /** if the spectra are searched as individual tasks this schedules them */
+    private SpectrumTaskScheduler m_scheduler;
+    /** journal of the searched spectra - if the search can be resumed */
+    private SearchCheckpoint m_checkpoint;
+    /** scan of the peak lists that might still be running while digesting */
+    private PrecursorMassScan m_precursorMassScan;
+    /** the state of all currently active search workers */
+    private final ConcurrentLinkedQueue<SearchContext> m_searchContexts = new ConcurrentLinkedQueue<SearchContext>();
+    /** counters and timings of the search stages */
+    protected final SearchStatistics m_statistics = new SearchStatistics();
 //    private int m_useCPUs = Runtime.getRuntime().availableProcessors() - 1;
     protected boolean m_running = false;
     //private StackedSpectraAccess m_filter = null;
@@ -124,6 +143,8 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     protected boolean m_doStop = false;
 
     protected ArrayList<StackedSpectraAccess> m_filters = new ArrayList<StackedSpectraAccess>();
+    /** runs the configured input filters - if they should run in parallel */
+    protected SpectraPreprocessing m_preprocessing = null;
 
     private double m_smallestCrosslinkedPeptideMass;
 
@@ -212,6 +233,47 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         }
     }
 
+    /**
+     * State of a single search worker. A context is only used by one thread
+     * at a time - a search thread keeps its own, tasks of the
+     * {@link SpectrumTaskScheduler} take one from a pool for each spectrum.
+     */
+    protected class SearchContext {
+        /** where the matches get written to */
+        protected ResultWriter output;
+        /** buffers the output of this worker */
+        protected BufferedResultWriter buffer;
+        /** spectra processed but not yet reported */
+        protected int processed = 0;
+        /** when processed spectra where last reported */
+        protected double lastProgressReport = Calendar.getInstance().getTimeInMillis();
+        /** the last spectrum that was started - for error reporting */
+        protected Spectra last;
+        /** the last alpha peptide considered - for error reporting */
+        protected Peptide lastAlpha;
+        /** the last beta peptide considered - for error reporting */
+        protected Peptide lastBeta;
+
+        protected SearchContext(ResultWriter output) {
+            buffer = new BufferedResultWriter(output, 100);
+            this.output = buffer;
+            m_searchContexts.add(this);
+        }
+
+        /**
+         * count a processed spectrum - every 100 spectra or if no progress
+         * report was done in 10 seconds the count gets reported.
+         */
+        protected void spectrumProcessed() {
+            processed++;
+            if (processed >= 100 || Calendar.getInstance().getTimeInMillis() - lastProgressReport > 10000) {
+                increaseProcessedScans(processed);
+                lastProgressReport=Calendar.getInstance().getTimeInMillis();
+                processed=0;
+            }
+        }
+    }
+
     protected SimpleXiProcess() {
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Xi version: " + XiVersion.getVersionString());
     }
@@ -254,9 +316,14 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         m_testforlinearmod=m_config.retrieveObject("testforlinearmod", true);
         m_testlinear = m_prioritizelinears || m_testforlinearmod;
         
-        for (AbstractStackedSpectraAccess ssa :  m_config.getInputFilter()) {
-            ssa.setReader(m_msmInput);
-            m_msmInput = ssa;
+        if (SpectraPreprocessing.isEnabled(m_config)) {
+            m_preprocessing = new SpectraPreprocessing(m_config);
+            m_msmInput = m_preprocessing.stack(m_msmInput, m_config.getInputFilter());
+        } else {
+            for (AbstractStackedSpectraAccess ssa :  m_config.getInputFilter()) {
+                ssa.setReader(m_msmInput);
+                m_msmInput = ssa;
+            }
         }
 
     }
@@ -415,6 +482,10 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         rappsilber.utils.Util.forceGC();
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "After gc:"  + Util.memoryToString());
         setupScores();
+        // give all scores known so far their slot
+        ScoreRegistry.register(getConfig().getScores());
+        // create the fragment cache before the search threads share it
+        FragmentLadderCache.get(getConfig());
 
         setOutputTopOnly(getConfig().getTopMatchesOnly());
 
@@ -725,9 +796,18 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
     protected void digest() {
 //        m_maxPeptideMass = m_msmInput.getMaxPrecursorMass();
+        boolean provisionalMass = false;
         if (m_config.getMaxPeptideMass()<0) {
-            m_maxPeptideMass = m_msmInput.getMaxPrecursorMass();
-            m_config.setMaxPeptideMass(m_msmInput.getMaxPrecursorMass());
+            if (m_precursorMassScan != null && !m_precursorMassScan.isFinished()) {
+                // don't wait for the peak lists - digest with a provisional mass
+                provisionalMass = true;
+                m_maxPeptideMass = m_precursorMassScan.getProvisionalMass();
+                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Peak lists are still scanned - digest with a provisional maximum peptide mass of " + m_maxPeptideMass);
+            } else {
+                waitForPrecursorMassScan();
+                m_maxPeptideMass = m_msmInput.getMaxPrecursorMass();
+                m_config.setMaxPeptideMass(m_msmInput.getMaxPrecursorMass());
+            }
         } else {
             m_maxPeptideMass = m_config.getMaxPeptideMass();
         }
@@ -736,25 +816,22 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         
         //m_maxPeptideMass = Math.min(m_maxPeptideMass, m_msmInput.getMaxPrecursorMass());
         
-        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Build Peptide Tree");
-        //        m_peptides = new PeptideTree(m_FragmentTolerance);
-        String tree = getConfig().retrieveObject("FRAGMENTTREE", "default").toLowerCase();
-        if (tree.contentEquals("fu")) {
-            m_peptides = new FUPeptideTree(m_PrecoursorTolerance);
-            m_peptidesLinear = new FUPeptideTree(m_PrecoursorTolerance);
-        } else {
-            m_peptides = new PeptideTree(m_PrecoursorTolerance);
-            m_peptidesLinear = new PeptideTree(m_PrecoursorTolerance);
+        digestSequences();
+        if (provisionalMass) {
+            waitForPrecursorMassScan();
+            double maxMass = m_msmInput.getMaxPrecursorMass();
+            m_config.setMaxPeptideMass(maxMass);
+            if (maxMass > m_maxPeptideMass) {
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Maximum precursor mass (" + maxMass + ") is larger than the provisional maximum peptide mass - digest again");
+                m_maxPeptideMass = maxMass;
+                digestSequences();
+            } else if (maxMass < m_maxPeptideMass) {
+                m_maxPeptideMass = maxMass;
+                int removed = m_peptides.removeHeavierThan(maxMass) + m_peptidesLinear.removeHeavierThan(maxMass);
+                m_sequences.removePeptidesHeavierThan(maxMass);
+                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Removed " + removed + " peptides heavier than the maximum precursor mass of " + maxMass);
+            }
         }
-//        m_peptides = new PeptideMapDB(m_PrecoursorTolerance);
-//        m_peptidesLinear = new PeptideTree(m_PrecoursorTolerance);
-        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Digest Sequences");
-        setStatus("prepare: Digest sequence");
-        // digest
-        Digestion digest = getConfig().getDigestion_method();
-        digest.setMaxMissCleavages(getConfig().getMaxMissCleavages());
-        digest.setPeptideLookup(m_peptides, m_peptidesLinear);
-        m_sequences.digest(getConfig().getDigestion_method(), m_maxPeptideMass, m_Crosslinker);
         if (forceSameDecoys) {
             m_peptides.forceAddDiscarded();
             m_peptidesLinear.forceAddDiscarded();
@@ -777,6 +854,32 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         
     }
 
+    /**
+     * creates the peptide lookups and digests the sequences into them using
+     * the current maximum peptide mass
+     */
+    protected void digestSequences() {
+        //Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Build Peptide Tree");
+        //        m_peptides = new PeptideTree(m_FragmentTolerance);
+        String tree = getConfig().retrieveObject("FRAGMENTTREE", "default").toLowerCase();
+        if (tree.contentEquals("fu")) {
+            m_peptides = new FUPeptideTree(m_PrecoursorTolerance);
+            m_peptidesLinear = new FUPeptideTree(m_PrecoursorTolerance);
+        } else {
+            m_peptides = new PeptideTree(m_PrecoursorTolerance);
+            m_peptidesLinear = new PeptideTree(m_PrecoursorTolerance);
+        }
+//        m_peptides = new PeptideMapDB(m_PrecoursorTolerance);
+//        m_peptidesLinear = new PeptideTree(m_PrecoursorTolerance);
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Digest Sequences");
+        setStatus("prepare: Digest sequence");
+        // digest
+        Digestion digest = getConfig().getDigestion_method();
+        digest.setMaxMissCleavages(getConfig().getMaxMissCleavages());
+        digest.setPeptideLookup(m_peptides, m_peptidesLinear);
+        m_sequences.digest(getConfig().getDigestion_method(), m_maxPeptideMass, m_Crosslinker);
+    }
+
     protected void fixedModifications() {
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Apply Fixed Modifications");
         // apply fixed modification
@@ -946,14 +1049,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         m_config.getStatusInterface().setStatus("Applying variable modification to cross-linkable peptides");
         m_peptides.applyVariableModifications(m_config, m_peptidesLinear);
         m_config.getStatusInterface().setStatus("Applying linear modification to cross-linkable peptides");
-        ArrayList<Peptide> linearMods =  new ArrayList<>();
-        for (Peptide p: m_peptides) {
-            linearMods.addAll(p.modify(m_config,ModificationType.linear));
-        }
-        for (Peptide p: m_peptidesLinear) {
-            linearMods.addAll(p.modify(m_config,ModificationType.linear));
-        }
-        
+        ArrayList<Peptide> linearMods = PeptideModifier.modify(m_peptides, m_config, ModificationType.linear, null, null);
+        linearMods.addAll(PeptideModifier.modify(m_peptidesLinear, m_config, ModificationType.linear, null, null));
+
         for (Peptide p: linearMods) {
             m_peptidesLinear.addPeptide(p);
         }
@@ -973,7 +1071,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     }
 
     public void startSearch(int numberOfThreads) {
+        waitForPrecursorMassScan();
         m_ThreadInput = m_msmInput;
+        m_scheduler = null;
 
 
         Object bufferIn = getConfig().retrieveObject("BUFFERINPUT");
@@ -986,6 +1086,15 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             m_ThreadInput = f;
         }
 
+        String scheduler = getConfig().retrieveObject("SEARCHSCHEDULER", "threads");
+        boolean forkJoin = scheduler.equalsIgnoreCase("forkjoin") && supportsSpectrumTasks();
+        if (MassOrderedSpectraAccess.isEnabled(getConfig())) {
+            // search the spectra in order of precursor mass - one mass band
+            // per search thread (the fork-join scheduler reads them in one thread)
+            m_ThreadInput = new MassOrderedSpectraAccess(m_ThreadInput, forkJoin ? 1 : numberOfThreads,
+                    getConfig().retrieveObject(MassOrderedSpectraAccess.BLOCK_KEY, 10000));
+        }
+
         // should redundant cluster be deleted?
         boolean filterCluster = getConfig().retrieveObject("DELETE_REDUNDANT_CLUSTER", true);
         if (filterCluster) {
@@ -1002,10 +1111,30 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
 
         m_running = true;
+        m_statistics.register();
 
         m_output.writeHeader();
+        if (m_checkpoint != null) {
+            m_checkpoint.start(new Runnable() {
+                @Override
+                public void run() {
+                    flushSearchOutput();
+                }
+            });
+        }
         // fire up the threads
         m_processedInput = m_ThreadInput;
+        if (scheduler.equalsIgnoreCase("forkjoin")) {
+            if (forkJoin) {
+                // one dispatcher thread - the spectra get searched in a fork-join pool
+                m_scheduler = new SpectrumTaskScheduler(this, m_ThreadInput, m_output, numberOfThreads, numberOfThreads*10+10);
+                setSearchThreads(new Thread[]{new Thread(m_scheduler, "SearchScheduler")});
+                getSearchThreads()[0].start();
+                return;
+            }
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, 
+                    "{0} can not search spectra as individual tasks - will use search threads", this.getClass().getName());
+        }
         // just add some more threads so we could dynamically add and remove some
         setSearchThreads(new Thread[numberOfThreads*10+10]);
 //        if (numberOfThreads == 1) {
@@ -1024,6 +1153,10 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     }
     
     public void decreaseSearchThread() {
+        if (m_scheduler != null) {
+            m_scheduler.decreaseParallelism();
+            return;
+        }
         if (countSelectedSearchThread() > 1) {
             if (m_searchThreads != null) {
                 for (int i = m_threadStop.length-1; i>=0; i--) {
@@ -1038,7 +1171,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
     public void increaseSearchThread() {
         boolean started = false;
-        if (m_searchThreads != null) {
+        if (m_scheduler != null) {
+            started = m_scheduler.increaseParallelism();
+        } else if (m_searchThreads != null) {
             for (int i = 0; i<m_threadStop.length; i++) {
                 if (m_threadStop[i].get()) {
 
@@ -1061,6 +1196,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
     public int countActiveSearchThread() {
         int c=0;
+        if (m_scheduler != null) {
+            return m_scheduler.getActiveCount();
+        }
         if (m_searchThreads != null) {
             for (int i = 0; i<m_threadStop.length; i++) {
                 if (m_searchThreads[i] !=null && m_searchThreads[i].isAlive()) {
@@ -1073,6 +1211,9 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
     public int countSelectedSearchThread() {
         int c=0;
+        if (m_scheduler != null) {
+            return m_scheduler.getParallelism();
+        }
         if (m_searchThreads != null) {
             for (int i = 0; i<m_threadStop.length; i++) {
                 if (!m_threadStop[i].get()) {
@@ -1108,6 +1249,17 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         long totalTime = (System.nanoTime() - lastGCTestTime)/1000000;
         boolean oneRunning = false;
         if ((lastGCCollectedTime-gctime) / totalTime> 0.8) {
+            if (m_scheduler != null) {
+                if (m_scheduler.decreaseParallelism()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, 
+                            "\n=================================================\n"+
+                            "*** searching one spectrum less at a time to reduce memory load ***\n"+
+                            "=================================================\n");
+                    lastGCCollectedTime=getGarbageCollectionTime();
+                    lastGCTestTime = System.nanoTime();
+                }
+                return;
+            }
             for (AtomicBoolean ab : m_threadStop) {
                 if (!ab.get()) {
                     if (oneRunning) {
@@ -1356,6 +1508,11 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
             
         }
 
+        if (m_checkpoint != null) {
+            // record everything searched before the outputs get closed
+            m_checkpoint.stop();
+        }
+
         long proc = getProcessedSpectra();
         if (m_msmInput.getSpectraCount() >0) {
             long filteredOut = m_msmInput.getDiscardedSpectra();
@@ -1369,7 +1526,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 //            int procPerc = (int)(getProcessedSpectra()*100/m_msmInput.getSpectraCount());
 //            m_config.getStatusInterface().setStatus(procPerc +"% processed (" + proc + ") " + m_msmInput.countReadSpectra() + " read of " + m_msmInput.getSpectraCount());
             }
-        } else if (proc==0) {
+        } else if (proc==0 && (m_checkpoint == null || !m_checkpoint.isResumed())) {
             m_config.getStatusInterface().setStatus("Error: no Spectra found to process");
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE,"Error: no Spectra found to process");
             
@@ -1452,6 +1609,14 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         
         proc = getProcessedSpectra();
         Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Search Finished  (" + proc + ") " + m_msmInput.countReadSpectra() + " read of " + m_msmInput.getSpectraCount());
+        FragmentLadderCache fragmentCache = FragmentLadderCache.peek(m_config);
+        if (fragmentCache != null) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, fragmentCache.toString());
+        }
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Search statistics: {0}", m_statistics.getSummary());
+        if (m_preprocessing != null) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Spectra preprocessing: {0}", m_preprocessing.getSummary());
+        }
         m_config.getStatusInterface().setStatus("Finished (" + proc + ") " + m_msmInput.countReadSpectra() + " read of " + m_msmInput.getSpectraCount() + " waiting for writing out results");
 
         m_output.finished();
@@ -1461,6 +1626,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         
 
         m_running = false;
+        m_statistics.unregister();
 //        m_config.getStatusInterface().setStatus("Finished");
         Logger.getLogger(this.getClass().getName()).log(Level.FINE, "Open Threads:");
         System.err.flush();
@@ -1619,6 +1785,171 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         m_config.stopSearch();
     }
 
+    /**
+     * whether spectra can be searched as individual tasks via
+     * {@link SingleSpectrumSearch#processSpectrum(Spectra, SearchContext)} -
+     * e.g. by the {@link SpectrumTaskScheduler}. Otherwise only
+     * {@link #process(SpectraAccess, ResultWriter, AtomicBoolean)} can be used.
+     * <br/>True for all searches implementing {@link SingleSpectrumSearch}.
+     * Subclasses can override this to opt out - e.g. when a further subclass
+     * replaces process() and so would not be searched the same way.
+     * @return
+     */
+    protected boolean supportsSpectrumTasks() {
+        return this instanceof SingleSpectrumSearch;
+    }
+
+    /**
+     * creates the state for a new search worker
+     * @param output where the worker should write its results to
+     * @return
+     */
+    protected SearchContext newSearchContext(ResultWriter output) {
+        return new SearchContext(output);
+    }
+
+    /**
+     * called when a worker is done - reports the processed spectra and
+     * writes out everything still buffered
+     * @param context
+     */
+    protected void finishSearchContext(SearchContext context) {
+        increaseProcessedScans(context.processed);
+        context.processed = 0;
+        context.buffer.selfFinished();
+        context.buffer.flush();
+        m_searchContexts.remove(context);
+    }
+
+    /**
+     * searches a spectrum via
+     * {@link SingleSpectrumSearch#processSpectrum(Spectra, SearchContext)}
+     * and records it in the checkpoint journal - if there is one.
+     * <br/>Only to be used if {@link #supportsSpectrumTasks()}.
+     * @param spectrum the spectrum to search
+     * @param context the state of the calling worker
+     */
+    protected void searchSpectrum(Spectra spectrum, SearchContext context) throws IOException {
+        SingleSpectrumSearch search = (SingleSpectrumSearch) this;
+        if (m_checkpoint == null) {
+            search.processSpectrum(spectrum, context);
+            return;
+        }
+        m_checkpoint.startSpectrum();
+        try {
+            search.processSpectrum(spectrum, context);
+            m_checkpoint.spectrumDone(spectrum);
+        } finally {
+            m_checkpoint.endSpectrum();
+        }
+    }
+
+    /**
+     * writes all results of the searched spectra to the output. Only
+     * consistent if no spectrum is currently searched.
+     */
+    protected void flushSearchOutput() {
+        for (SearchContext context : m_searchContexts) {
+            context.buffer.selfFlush();
+        }
+        m_output.flush();
+    }
+
+    /**
+     * @return counters and timings of the search stages
+     */
+    public SearchStatistics getStatistics() {
+        return m_statistics;
+    }
+
+    /**
+     * keep a journal of the searched spectra so the search can be resumed.
+     * <br/>Only works if all spectra are searched via
+     * {@link SingleSpectrumSearch#processSpectrum(Spectra, SearchContext)}.
+     * @param checkpoint
+     * @return false if this search can not write checkpoints
+     */
+    public boolean setCheckpoint(SearchCheckpoint checkpoint) {
+        if (checkpoint != null && !supportsSpectrumTasks()) {
+            return false;
+        }
+        m_checkpoint = checkpoint;
+        return true;
+    }
+
+    /**
+     * the peak lists are still being scanned for the maximum precursor mass.
+     * <br/>The digestion then uses a provisional maximum peptide mass and the
+     * search waits for the scan before reading any spectra.
+     * @param scan
+     */
+    public void setPrecursorMassScan(PrecursorMassScan scan) {
+        m_precursorMassScan = scan;
+    }
+
+    /**
+     * waits for the scan of the peak lists - if there is one running
+     */
+    protected void waitForPrecursorMassScan() {
+        if (m_precursorMassScan == null) {
+            return;
+        }
+        if (!m_precursorMassScan.isFinished()) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Waiting for the peak lists to be scanned");
+            setStatus("prepare: wait for peak list scan");
+        }
+        try {
+            m_precursorMassScan.waitFor();
+        } catch (IOException | InterruptedException ex) {
+            String message = "problem when scanning the peaklist: " + ex.getMessage();
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, message, ex);
+            m_config.getStatusInterface().setStatus(message);
+            throw new Error(message, ex);
+        }
+        m_precursorMassScan = null;
+    }
+
+    /**
+     * called if the search of a spectrum failed
+     * @param context the state of the worker that failed
+     * @param e what went wrong
+     */
+    protected void searchFailed(SearchContext context, Exception e) {
+        Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "("+Thread.currentThread().getName()+") Error while processing spectra", e);
+        m_config.getStatusInterface().setStatus("Search Crashed:" + e.getMessage());
+        m_config.flagError("Search Crashed:" + e.getMessage() + " Peptides:" + context.lastAlpha + ", " + context.lastBeta , e, context.last, true);
+        m_config.stopSearch();
+    }
+
+    /**
+     * takes the next spectrum to search from the input shared by all search
+     * threads. Checking for and reading the spectrum is a single step - so a
+     * thread only gets null when the input is really exhausted and does not
+     * need to wait and check again.
+     * @param input
+     * @return the next spectrum or null if there are no more spectra
+     */
+    protected Spectra nextSpectrum(SpectraAccess input) {
+        try {
+            if (input instanceof BlockingSpectraAccess) {
+                return ((BlockingSpectraAccess) input).take();
+            }
+            synchronized (input) {
+                while (input.hasNext()) {
+                    Spectra s = input.next();
+                    if (s != null) {
+                        return s;
+                    }
+                }
+                return null;
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "({0}) interrupted while waiting for spectra", Thread.currentThread().getName());
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     public void process(SpectraAccess input, ResultWriter output, AtomicBoolean threadStop) {    
         try {
 
@@ -1629,27 +1960,23 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
             boolean evaluateSingles = getConfig().isEvaluateLinears();
 
+            // peptide pairs already looked at for the current spectrum
+            PeptidePairSet foundPeptidePairs = new PeptidePairSet();
+
             int countSpectra = 0;
             // go through each spectra
             int processed=0;
-            msmloop: while (input.hasNext()) {
-                processed ++;
-
-                if (input.countReadSpectra() % 100 ==  0) {
-                    System.err.println("Spectra Read " + input.countReadSpectra() + "\n");
-                }
-
-                if (m_doStop) {
-                    break;
-                }
+            msmloop: while (!m_doStop) {
                 // ScoredLinkedList<Peptide,Double> scoredPeptides = new ScoredLinkedList<Peptide, Double>();
-                Spectra spectraAllchargeStatess = input.next();
+                Spectra spectraAllchargeStatess = nextSpectrum(input);
 
                 if (spectraAllchargeStatess == null) {
-                    System.err.println("warning here - did not get a spectra");
-                    new Exception().printStackTrace();
+                    break;
+                }
+                processed ++;
 
-                    continue;
+                if (input.countReadSpectra() % 100 ==  0) {
+                    System.err.println("Spectra Read " + input.countReadSpectra() + "\n");
                 }
                 countSpectra ++;
 
@@ -1696,7 +2023,7 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                     Peptide[] scoreSortedAlphaPeptides = mgcMatchScores.getScoredSortedArray(new Peptide[mgcMatchScores.size()]);
 
 
-                    HashSet<String> foundPeptideSequences = new HashSet<String>();
+                    foundPeptidePairs.clear();
 
 
                     int lastIndex = Math.min(scoreSortedAlphaPeptides.length, getConfig().getTopMGCHits()) - 1;
@@ -1765,7 +2092,6 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                                     System.err.println(" found it");
                                 }
 
-                                String alphaId = alphaFirst.getSequence().getFastaHeader() + "_" + alphaFirst.toString();
                                 int betaCount = betaPeptides.size();
                                 betaSearch:
                                 betaloop: for (Peptide beta : betaPeptides) {
@@ -1778,15 +2104,13 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
                                         }
                                     }
                                     
-                                    String betaID = beta.getSequence().getFastaHeader() + "_" + beta.toString();
-
                                     // don't search alpha and beta reveresed
-                                    if (foundPeptideSequences.contains(betaID + "_" + alphaId)) {
+                                    if (foundPeptidePairs.contains(beta, alphaFirst)) {
                                         continue betaloop;
                                     }
 
                                     // remember we foudn these
-                                    foundPeptideSequences.add(alphaId + "_" + betaID);
+                                    foundPeptidePairs.add(alphaFirst, beta);
 
                                     evaluateMatch(spectra.cloneComplete(), alphaFirst, beta, cl, betaCount, scanMatches, false);
 
@@ -1868,14 +2192,12 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
 
 
     protected MatchedXlinkedPeptide getMatch(Spectra s, Peptide alphaFirst, Peptide beta, CrossLinker cl, boolean primaryOnly) {
-        Spectra sClone = s.cloneComplete();
         MatchedXlinkedPeptide match = new MatchedXlinkedPeptide(s, alphaFirst, beta, cl,getConfig(), primaryOnly);
         return match;
     }
 
     
     protected MatchedXlinkedPeptide getMatch(Spectra s, Peptide[] peptides, CrossLinker cl, boolean primaryOnly) {
-        Spectra sClone = s.cloneComplete();
         MatchedXlinkedPeptide match;
         if (cl instanceof SymetricNarrySingleAminoAcidRestrictedCrossLinker) {
              match = new MatchedXlinkedPeptideWeightedNnary(s, peptides, cl,getConfig(), primaryOnly);
@@ -1891,10 +2213,13 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
     }
 
     protected MatchedXlinkedPeptide evaluateMatch(MatchedXlinkedPeptide match, int betaCount, Collection<MatchedXlinkedPeptide> scanMatches, boolean primaryOnly) {
+        SearchStatistics.ThreadStatistics stats = m_statistics.forThread();
+        long time = stats.start();
         match.setCountPossibleBeta(betaCount);
         match.matchPeptides();
         
         filterMatch(match);
+        time = stats.stage(SearchStatistics.Stage.MATCHING, time);
 
         if (match.getMatchedFragments().isEmpty()) {
             return null;
@@ -1903,6 +2228,8 @@ public class SimpleXiProcess implements XiProcess {// implements ScoreSpectraMat
         for (ScoreSpectraMatch ssm : getConfig().getScores()) {
             ssm.score(match);
         }
+        stats.stage(SearchStatistics.Stage.SCORING, time);
+        stats.count(SearchStatistics.Counter.MATCHES, 1);
 //        for (double score : match.getScores().values())
 //            if(Double.isNaN(score)) {
 //                System.err.println("found it " + this.getClass().getName());
@@ -16,6 +16,7 @@
 package rappsilber.applications;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -37,12 +38,15 @@ import rappsilber.ms.dataAccess.filter.candidates.CandidatePairFilter;
 import rappsilber.ms.dataAccess.output.BufferedResultWriter;
 import rappsilber.ms.dataAccess.output.MinimumRequirementsFilter;
 import rappsilber.ms.dataAccess.output.ResultWriter;
+import rappsilber.ms.lookup.fragments.AlphaCandidateScores;
+import rappsilber.ms.lookup.fragments.ArrayBackedFragmentLookup;
 import rappsilber.ms.score.AutoValidation;
 import rappsilber.ms.score.DummyScore;
 import rappsilber.ms.score.FragmentCoverage;
 import rappsilber.ms.score.J48ModeledManual001;
 import rappsilber.ms.score.NormalizerML;
 import rappsilber.ms.score.RandomTreeModeledManual;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.SequenceList;
@@ -51,13 +55,13 @@ import rappsilber.ms.sequence.ions.CrosslinkedFragment;
 import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.sequence.ions.PeptideIon;
 import rappsilber.ms.sequence.ions.loss.CleavableCrossLinkerPeptide;
+import rappsilber.ms.sequence.utils.PeptidePairSet;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptideWeighted;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptideWeightedNnary;
 import rappsilber.utils.ArithmeticScoredOccurence;
-import rappsilber.utils.ScoredOccurence;
 import rappsilber.utils.Util;
 
 /**
@@ -228,6 +232,17 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
     
     protected boolean check_noncovalent = false;
 
+    /** score the mgx candidates with the {@link MGXPairScorer} */
+    protected boolean m_primitiveMGXScoring = true;
+
+    /** each thread has its own mgx scorer */
+    private final ThreadLocal<MGXPairScorer> m_mgxScorer = new ThreadLocal<MGXPairScorer>() {
+        @Override
+        protected MGXPairScorer initialValue() {
+            return new MGXPairScorer(m_config, m_Fragments);
+        }
+    };
+
     
     double sortMatchesByMS2Limit;
     String[] sortMatchesBySubScorePrio;
@@ -266,6 +281,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
      */
     protected void parseParameters(RunConfig config) {
         this.check_noncovalent = config.retrieveObject("CHECK_NON_COVALENT", this.check_noncovalent);
+        m_primitiveMGXScoring = config.retrieveObject("PRIMITIVE_MGX_SCORING", m_primitiveMGXScoring);
         sortMatchesByMS2Limit = m_config.retrieveObject("MS2ERROR_LIMIT", Double.NaN);
         m_matchSortComparator = new MS2LimitResultSort(sortMatchesByMS2Limit);
         String subScores = m_config.retrieveObject("PRIORETIES_SUBSCORES",(String) null);
@@ -295,9 +311,10 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
         getConfig().getScores().add(m_mgcmgxDeltaScore);
         getConfig().getScores().add(m_alphaBetaRank);
         //getConfig().getScores().add(new PassesManualValidation());
-        getConfig().getScores().add(new RandomTreeModeledManual());
-        getConfig().getScores().add(new J48ModeledManual001());
-        getConfig().getScores().add(new AutoValidation());
+        getConfig().getScores().add(new RandomTreeModeledManual(getConfig()));
+        getConfig().getScores().add(new J48ModeledManual001(getConfig()));
+        getConfig().getScores().add(new AutoValidation(getConfig()));
+        ScoreRegistry.register(getConfig().getScores());
         setRelaxedPrecursorMatching(getConfig().retrieveObject("RELAXEDPRECURSORMATCHING", isRelaxedPrecursorMatching()));
         if (isRelaxedPrecursorMatching()) {
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, "relaxedPrecursorMatching enabled: Matching additional precursor masses");
@@ -346,7 +363,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
         } else if (tree.contentEquals("int")) {
             m_Fragments = new rappsilber.ms.lookup.fragments.FragmentTreeSlimedIntArray(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
         } else if (tree.contentEquals("array")) {
-            m_Fragments = new rappsilber.ms.lookup.fragments.ArrayBackedFragmentLookup(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
+            m_Fragments = arrayFragmentLookup();
         }
 //        try {
 //            m_Fragments.writeOutTree(new File("/home/lfischer/temp/fragmenttree_sorted"+ (ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^a-zA-Z0-9\\._]+", "_")) + ".csv"));
@@ -354,11 +371,47 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 //            Logger.getLogger(SimpleXiProcessLinearIncluded.class.getName()).log(Level.SEVERE, null, ex);
 //        }
     }
+
+    /**
+     * builds the array backed fragment lookup.
+     * <br/>If FRAGMENTINDEX_DIR is set, a fragment index for the same
+     * sequences and settings found there gets memory-mapped instead. Otherwise
+     * the freshly build lookup gets written there for the next search.
+     * @return the fragment lookup
+     */
+    protected ArrayBackedFragmentLookup arrayFragmentLookup() {
+        String indexDir = getConfig().retrieveObject("FRAGMENTINDEX_DIR", "");
+        if (indexDir.isEmpty()) {
+            return new ArrayBackedFragmentLookup(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
+        }
+        
+        File indexFile = new File(indexDir, "xi_fragments_" + ArrayBackedFragmentLookup.indexKey(getSequenceList(), getConfig(), getMaxPeptideMass()) + ".idx");
+        if (indexFile.exists()) {
+            setStatus("Build Fragmenttree - reading index " + indexFile.getName());
+            try {
+                ArrayBackedFragmentLookup ret = ArrayBackedFragmentLookup.readIndex(indexFile, getSequenceList(), getConfig());
+                if (ret != null) {
+                    return ret;
+                }
+                Logger.getLogger(SimpleXiProcessLinearIncluded.class.getName()).log(Level.WARNING, "Fragment index {0} does not match the current peptides - rebuilding it", indexFile);
+            } catch (IOException ex) {
+                Logger.getLogger(SimpleXiProcessLinearIncluded.class.getName()).log(Level.WARNING, "Could not read fragment index " + indexFile + " - rebuilding it", ex);
+            }
+        }
+        
+        ArrayBackedFragmentLookup ret = new ArrayBackedFragmentLookup(m_peptides, getSequenceList(), m_config.getPreSearchThreads(), getConfig());
+        try {
+            new File(indexDir).mkdirs();
+            ret.writeIndex(indexFile);
+        } catch (IOException ex) {
+            Logger.getLogger(SimpleXiProcessLinearIncluded.class.getName()).log(Level.WARNING, "Could not write fragment index " + indexFile, ex);
+        }
+        return ret;
+    }
     
     
     @Override
     public void process(SpectraAccess input, ResultWriter output, AtomicBoolean threadStop) {
-        SpectraAccess unbufInput = input;
 //        BufferedSpectraAccess bsa = new BufferedSpectraAccess(input, 100);
 //        input = bsa;
         BufferedResultWriter brw = new BufferedResultWriter(output, 100);
@@ -388,25 +441,32 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
             }
 
             boolean evaluateSingles = getConfig().isEvaluateLinears();
+            
+            // alpha candidate scores are collected by peptide id - reused for each spectrum
+            Peptide[] allPeptides = getSequenceList().getAllPeptideIDs();
+            AlphaCandidateScores mgcMatchScores = new AlphaCandidateScores(allPeptides.length);
+            // alpha-beta pairs already looked at for the current spectrum
+            PeptidePairSet candidatePairs = new PeptidePairSet();
 
             int countSpectra = 0;
             int processed = 0;
+            SearchStatistics.ThreadStatistics stats = m_statistics.forThread();
+            long time = stats.start();
             // go through each spectra
-            while (delayedHasNext(input, unbufInput) && ! m_config.searchStopped()) {
-                
-                if (input.countReadSpectra() % 100 ==  0) {
-                    Logger.getLogger(this.getClass().getName()).log(Level.INFO,"("+Thread.currentThread().getName()+")Spectra Read " + unbufInput.countReadSpectra() + "\n");
-                }
+            while (! m_config.searchStopped()) {
 
                 if (m_doStop) {
                     break;
                 }
                 // ScoredLinkedList<Peptide,Double> scoredPeptides = new ScoredLinkedList<Peptide, Double>();
-                Spectra spectraAllchargeStatess = input.next();
+                Spectra spectraAllchargeStatess = nextSpectrum(input);
+                time = stats.stage(SearchStatistics.Stage.INPUT, time);
 //                int sn = spectraAllchargeStatess.getScanNumber();
                 if (spectraAllchargeStatess == null) {
-                    Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "({0}) did not get a spectra", Thread.currentThread().getName());
-                    continue;
+                    break;
+                }
+                if (input.countReadSpectra() % 100 ==  0) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.INFO,"("+Thread.currentThread().getName()+")Spectra Read " + input.countReadSpectra() + "\n");
                 }
                 processed ++;
                 countSpectra ++;
@@ -426,7 +486,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                 
                 
                 for (Spectra spectra : specs) {
-                    HashMap<Peptide,HashSet<Peptide>> alphaPeptides = new HashMap<Peptide, HashSet<Peptide>>();
+                    candidatePairs.clear();
 
                     
                     
@@ -452,7 +512,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
                     double maxPrecoursorMass = m_PrecoursorTolerance.getMaxRange(precoursorMass);
                     //ArithmeticScoredOccurence<Peptide> mgcMatchScores = getMGCMatchScores(mgc, allfragments, maxPrecoursorMass);
-                    ScoredOccurence<Peptide> mgcMatchScores = m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass);
+                    m_Fragments.getAlphaCandidates(mgx, maxPrecoursorMass, getConfig(), mgcMatchScores);
 
 
 
@@ -469,7 +529,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
                     // we get 10 times the accepted alpha candidates to be able to hanlde different modification states as single entries
                     // quite the hack
-                    ArrayList<Peptide> scoreSortedAlphaPeptides = mgcMatchScores.getLowestNEntries(maxMgcHits*10, maxMgcHits*100);
+                    ArrayList<Peptide> scoreSortedAlphaPeptides = mgcMatchScores.getLowestNEntries(maxMgcHits*10, maxMgcHits*100, allPeptides);
                     HashMap<String, Integer> mgcList = new HashMap<String,Integer>(maxMgcHits);
                     
                     double oldAlphaScore  = 2;
@@ -479,13 +539,16 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                     
                     ArithmeticScoredOccurence<MGXMatch> mgxScoreMatches = new ArithmeticScoredOccurence<MGXMatch>();
                     int alphaConsidered = scoreSortedAlphaPeptides.size();
+                    int mgxPairs = 0;
+                    time = stats.stage(SearchStatistics.Stage.MGC, time);
+                    stats.count(SearchStatistics.Counter.CANDIDATES, alphaConsidered);
                     MgcLoop:
                     for (Peptide ap : scoreSortedAlphaPeptides) {
                         
                         // if we already found this peptide with different modifications
                         // we just keep the previous
                         String baseSeq = ap.toStringBaseSequence();
-                        double alphaScore = mgcMatchScores.Score(ap, 1);
+                        double alphaScore = mgcMatchScores.score(ap, 1);
                         mgcRank = mgcList.get(baseSeq);
                         
                         // if we haven't see this peptide before we see if need to give it a new rank
@@ -502,8 +565,6 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                             continue;
                         }
                         
-                        HashSet<Peptide> betaList = new HashSet<>();
-                        alphaPeptides.put(ap, betaList);
 
                         // not a linear match?
                         if (m_PrecoursorTolerance.compare(ap.getMass(),precoursorMass) != 0) {
@@ -519,12 +580,10 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                                     ArrayList<Peptide> betaCandidates = m_peptides.getForMass(betaMass, precMass);
                                     int betaCount = betaCandidates.size();
                                     betaloop: for (Peptide beta : betaCandidates) {
-                                        // beta already seen as alpha before?
-                                        HashSet<Peptide> prevBeta = alphaPeptides.get(beta);
-                                        
                                         // we only want to have every peptide pair only ones
+                                        // (beta already seen as alpha with this peptide as beta?)
                                         if (cl.canCrossLink(ap,beta) && 
-                                                (prevBeta == null || !prevBeta.contains(ap)) && 
+                                                !candidatePairs.contains(beta, ap) && 
                                             cl.canCrossLink(ap, beta)) {
                                             for (CandidatePairFilter cf : getCadidatePairFilter()) {
                                                 if (!cf.passes(spectra, cl, ap, beta)) {
@@ -532,11 +591,12 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                                                 }
                                             }                                            
                                             
-                                            betaList.add(beta);
+                                            candidatePairs.add(ap, beta);
 
                                             double mgxscore = getMGXMatchScores(mgx, ap, beta, cl, allfragments);
 
                                             mgxScoreMatches.add(new MGXMatch(new Peptide[]{ap, beta}, cl, betaCount), mgxscore);
+                                            mgxPairs++;
 
 //                                            mgxscore = - Math.log(mgxscore);
                                         }
@@ -568,6 +628,8 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                     
                     //MGXMatch[] mgxResults = mgxScoreMatches.getScoredSortedArray(new MGXMatch[0]);
                     ArrayList<MGXMatch> mgxResults = mgxScoreMatches.getLowestNEntries(maxMgxHits, maxMgxHits*maxMgxHits);
+                    stats.stage(SearchStatistics.Stage.MGX, time);
+                    stats.count(SearchStatistics.Counter.PAIRS, mgxPairs);
 
                     if (mgxResults.size() > 0) {
   
@@ -579,7 +641,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                         // the distance between the top and the second the more likely
                         // the top one is right
                         double secondMGX = mgxResults.size() >1 ?  - Math.log(mgxScoreMatches.Score(mgxResults.get(1), 1)) : 0;
-                        double secondMGC = scoreSortedAlphaPeptides.size() >1 ?  - Math.log(mgcMatchScores.Score(scoreSortedAlphaPeptides.get(1), 1)):0;
+                        double secondMGC = scoreSortedAlphaPeptides.size() >1 ?  - Math.log(mgcMatchScores.score(scoreSortedAlphaPeptides.get(1), 1)):0;
                         //int mgxID = 0;
                         for (MGXMatch cmgx : mgxResults) {
                             double mgxScore = mgxScoreMatches.Score(cmgx, 0);
@@ -603,13 +665,13 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                             }
 
 
-                            double pa = mgcMatchScores.Score(ap, 1);
+                            double pa = mgcMatchScores.score(ap, 1);
 
 
                             double alphaMGC = -Math.log(pa);
 
 
-                            double pb = mgcMatchScores.Score(bp, 1);
+                            double pb = mgcMatchScores.score(bp, 1);
 
                             double mgcDelta = 0;
                             double betaMGC = 0;
@@ -640,7 +702,8 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                         }
                     }
                     //spectra.free();
-
+                    // matching and scoring get timed in evaluateMatch
+                    time = stats.start();
                 }
                 //spectraAllchargeStatess.free();
 
@@ -678,8 +741,11 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                         top.setValidated(true);
                     }
                     outputScanMatches(matches, output);
+                    stats.count(SearchStatistics.Counter.RESULTS, matches.length);
                 }
                 scanMatches.clear();
+                stats.stage(SearchStatistics.Stage.OUTPUT, time);
+                stats.spectrumDone();
                 // report every 100 or if no progress report was done in 10 seconds
                 if (processed >= 100 || Calendar.getInstance().getTimeInMillis() - lastProgressReport > 10000) {
                     increaseProcessedScans(processed);
@@ -690,6 +756,7 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
                     System.err.println("Closing down search thread " + Thread.currentThread().getName());
                     break;
                 }
+                time = stats.start();
             }
             
             increaseProcessedScans(processed);
@@ -713,40 +780,29 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
     }
     
     /**
-     * some thread synchronisation issues result in the input reporting sometimes 
-     * the end of the stream even so we haven't reached the end - this is 
-     * basically a dirty workaround
+     * whether there are more spectra.
+     * <br/>Used to wait a bit and ask again, as a {@link rappsilber.ms.dataAccess.BufferedSpectraAccess}
+     * could report the end of the input while the last spectra where still on
+     * their way into the buffer. The buffer now only reports the end after
+     * the last spectrum - so no waiting is needed anymore.
+     * Search loops should rather use {@link #nextSpectrum(rappsilber.ms.dataAccess.SpectraAccess)}.
      * @param input
      * @param unbufInput
      * @return 
      */
     protected boolean delayedHasNext(SpectraAccess input, SpectraAccess unbufInput) {
-        boolean ihn = input.hasNext();
-        if (!(ihn || unbufInput.hasNext())) {
-            try {
-                Thread.sleep(1000 + (int)(Math.random()*1000));
-            } catch (InterruptedException ex) {
-                Logger.getLogger(SimpleXiProcessLinearIncluded.class.getName()).log(Level.SEVERE, null, ex);
-            }
-            ihn = input.hasNext();
-            if ((ihn || unbufInput.hasNext())) {
-                Logger.getLogger(this.getClass().getName()).log(Level.WARNING,"({0}) Oddety here: input finished but not finished",Thread.currentThread().getName());
-            }
-        }
-        return ihn || unbufInput.hasNext();
+        return input.hasNext() || unbufInput.hasNext();
     }
 
     
     @Override
     protected MatchedXlinkedPeptide getMatch(Spectra s, Peptide alphaFirst, Peptide beta, CrossLinker cl, boolean primaryOnly) {
-        Spectra sClone = s.cloneComplete();
         MatchedXlinkedPeptideWeighted match = new MatchedXlinkedPeptideWeighted(s, alphaFirst, beta, cl,getConfig(), primaryOnly);
         //MatchedXlinkedPeptide match       = new MatchedXlinkedPeptide        (s, alphaFirst, beta, cl,getConfig(), primaryOnly);
         return match;
     }
 
     protected MatchedXlinkedPeptide getMatch(Spectra s, Peptide[] peptides, CrossLinker cl, boolean primaryOnly) {
-        Spectra sClone = s.cloneComplete();
         MatchedXlinkedPeptide match;
         if (cl instanceof SymetricNarrySingleAminoAcidRestrictedCrossLinker) {
              match = new MatchedXlinkedPeptideWeightedNnary(s, peptides, cl,getConfig(), primaryOnly);
@@ -757,6 +813,9 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
     }
 
     protected MatchedXlinkedPeptide evaluateMatch(Spectra sin, Peptide alphaFirst, Peptide beta, CrossLinker cl, int alphaCount, int alphaConsidered, int betaCount, Collection<MatchedXlinkedPeptide> scanMatches, double mgcScore, double mgcDeltaScore, double mgcShiftedDeltaScore, double mgcAlphaScore, double mgcBetaScore, double mgxScore, double mgxDelta, int mgxRank, int mgcRank, boolean primaryOnly) {
+        // the only copy of the spectrum for this candidate - callers should
+        // pass in the spectrum itself. Peaks share their (empty) annotations
+        // with the original until they get matched.
         Spectra s  = sin.cloneComplete();
         MatchedXlinkedPeptide match = getMatch(s, alphaFirst, beta, cl, primaryOnly);
         if (match!= null) {
@@ -837,6 +896,15 @@ public class SimpleXiProcessLinearIncluded extends SimpleXiProcess{
 
 
     protected double getMGXMatchScores(Spectra mgx, Peptide alpha, Peptide beta, CrossLinker cl, long allfragments) {
+        if (m_primitiveMGXScoring) {
+            MGXPairScorer scorer = m_mgxScorer.get();
+            if (scorer.canScore()) {
+                double score = scorer.score(mgx, alpha, beta, cl, allfragments);
+                if (!Double.isNaN(score)) {
+                    return score;
+                }
+            }
+        }
         ArrayList<Fragment> allFragments = alpha.getPrimaryFragments(m_config);
         if (beta != null) {
             ArrayList<Fragment> betaFragments = beta.getPrimaryFragments(m_config);
@@ -475,7 +475,7 @@ public class SimpleXiProcessOpenModification extends SimpleXiProcessLinearInclud
 
                         double mgcShiftedDelta =  -mgcScore;
 
-                        evaluateMatch(spectra.cloneComplete(), ap, null, null, 0, alphaCount, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
+                        evaluateMatch(spectra, ap, null, null, 0, alphaCount, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
                     }
                     spectra.free();
 
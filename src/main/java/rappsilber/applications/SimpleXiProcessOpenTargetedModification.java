@@ -503,7 +503,7 @@ public class SimpleXiProcessOpenTargetedModification extends SimpleXiProcessLine
 
                         double mgcShiftedDelta =  -mgcScore;
 
-                        evaluateMatch(spectra.cloneComplete(), ap, bp, cl, 0, 0, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
+                        evaluateMatch(spectra, ap, bp, cl, 0, 0, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID,0, false);
                     }
 //                    spectra.free();
 
@@ -541,7 +541,7 @@ public class SimpleXiProcessTargetModificationXlinkMulti extends SimpleXiProcess
 
                         double mgcShiftedDelta =  -mgcScore;
 
-                        evaluateMatch(spectra.cloneComplete(), ap, bp, cl, 0, 0, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID, 0, false);
+                        evaluateMatch(spectra, ap, bp, cl, 0, 0, 0, scanMatches, mgcScore, mgcDelta, mgcShiftedDelta, alphaMGC, 0, mgxScore, mgxDelta, mgxID, 0, false);
                     }
 //                    spectra.free();
 
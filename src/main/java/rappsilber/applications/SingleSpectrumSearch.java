@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.io.IOException;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Implemented by the {@link SimpleXiProcess} subclasses that can search each
+ * spectrum on its own - e.g. as a task of the {@link SpectrumTaskScheduler}
+ * or with a checkpoint journal.
+ * <br/>Searches that do not implement it can only be run via
+ * {@link SimpleXiProcess#process(rappsilber.ms.dataAccess.SpectraAccess, rappsilber.ms.dataAccess.output.ResultWriter, java.util.concurrent.atomic.AtomicBoolean)}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface SingleSpectrumSearch {
+
+    /**
+     * searches a single spectrum (with all its alternative charge states)
+     * and writes the matches to the output of the context.
+     * <br/>Gets called by several threads at the same time - each with its
+     * own context.
+     * @param spectrum the spectrum to search
+     * @param context the state of the calling worker - created by
+     * {@link SimpleXiProcess#newSearchContext(rappsilber.ms.dataAccess.output.ResultWriter)}
+     * @throws IOException
+     */
+    void processSpectrum(Spectra spectrum, SimpleXiProcess.SearchContext context) throws IOException;
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.applications;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.ms.dataAccess.SpectraAccess;
+import rappsilber.ms.dataAccess.output.ResultWriter;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Searches each spectrum as an individual task on a {@link ForkJoinPool}.
+ * <br/>A single dispatcher thread (this runnable) reads the spectra and
+ * submits one task per spectrum. Whichever worker is idle takes the next
+ * spectrum - so an expensive spectrum only ever occupies a single worker
+ * while the others keep going.
+ * <br/>The number of spectra that are searched at the same time can be
+ * changed while the search is running via {@link #increaseParallelism()} and
+ * {@link #decreaseParallelism()}. The pool only has as many workers as
+ * spectra can be searched at the same time.
+ * <br/>Each running task takes a {@link SimpleXiProcess.SearchContext} (and
+ * the statistics that go with it) from a pool of idle contexts and returns it
+ * when done. So there are never more contexts than the maximal parallelism -
+ * independent of how often the pool replaces its worker threads.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SpectrumTaskScheduler implements Runnable {
+
+    /**
+     * a semaphore where permits can also be taken away
+     */
+    private static class ResizeableSemaphore extends Semaphore {
+        private static final long serialVersionUID = -2418235611574185307L;
+
+        public ResizeableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * a search context together with the statistics the spectra searched
+     * with it are counted in
+     */
+    private static class SearchSlot {
+        final SimpleXiProcess.SearchContext m_context;
+        final SearchStatistics.ThreadStatistics m_statistics;
+
+        SearchSlot(SimpleXiProcess.SearchContext context, SearchStatistics.ThreadStatistics statistics) {
+            m_context = context;
+            m_statistics = statistics;
+        }
+    }
+
+    /**
+     * searches a single spectrum
+     */
+    private class SpectrumTask implements Runnable {
+        Spectra m_spectrum;
+
+        public SpectrumTask(Spectra spectrum) {
+            m_spectrum = spectrum;
+        }
+
+        @Override
+        public void run() {
+            SearchSlot slot = null;
+            try {
+                if (!isStopped()) {
+                    slot = takeSlot();
+                    m_xi.m_statistics.bind(slot.m_statistics);
+                    try {
+                        m_xi.searchSpectrum(m_spectrum, slot.m_context);
+                    } catch (Exception e) {
+                        m_failed = true;
+                        m_xi.searchFailed(slot.m_context, e);
+                    }
+                }
+            } finally {
+                m_spectrum = null;
+                if (slot != null) {
+                    m_xi.m_statistics.unbind();
+                    m_idleSlots.add(slot);
+                }
+                m_slots.release();
+            }
+        }
+    }
+
+    /** the search that does the actual work */
+    private final SimpleXiProcess m_xi;
+    /** where the spectra come from */
+    private final SpectraAccess m_input;
+    /** where the results go */
+    private final ResultWriter m_output;
+    /** the workers - sized to the current parallelism */
+    private ForkJoinPool m_pool;
+    /** pools replaced by a bigger one - might still finish some spectra */
+    private final ArrayList<ForkJoinPool> m_retiredPools = new ArrayList<ForkJoinPool>();
+    /** one permit per spectrum that can be searched at the same time */
+    private final ResizeableSemaphore m_slots;
+    /** current number of spectra that can be searched at the same time */
+    private int m_parallelism;
+    /** upper limit for m_parallelism */
+    private final int m_maxParallelism;
+    /** contexts not used by a running task */
+    private final ConcurrentLinkedQueue<SearchSlot> m_idleSlots = new ConcurrentLinkedQueue<SearchSlot>();
+    /** all contexts created - need to be finished at the end */
+    private final ConcurrentLinkedQueue<SearchSlot> m_allSlots = new ConcurrentLinkedQueue<SearchSlot>();
+    /** set if the search of a spectrum failed */
+    private volatile boolean m_failed = false;
+
+    /**
+     * @param xi the search
+     * @param input where to read the spectra from
+     * @param output where to write the results to
+     * @param parallelism how many spectra to search at the same time
+     * @param maxParallelism up to how many spectra can be searched at the
+     * same time after increasing the parallelism
+     */
+    public SpectrumTaskScheduler(SimpleXiProcess xi, SpectraAccess input, ResultWriter output, int parallelism, int maxParallelism) {
+        m_xi = xi;
+        m_input = input;
+        m_output = output;
+        m_maxParallelism = Math.max(1, maxParallelism);
+        m_parallelism = Math.max(1, Math.min(parallelism, m_maxParallelism));
+        m_slots = new ResizeableSemaphore(m_parallelism);
+        m_pool = newPool(m_parallelism);
+    }
+
+    private static ForkJoinPool newPool(int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("Search_" + t.getPoolIndex());
+                return t;
+            }
+        }, null, true);
+    }
+
+    /**
+     * takes an idle context or creates a new one. As each running task holds
+     * a permit of m_slots at most m_maxParallelism contexts get created.
+     * @return
+     */
+    private SearchSlot takeSlot() {
+        SearchSlot slot = m_idleSlots.poll();
+        if (slot == null) {
+            slot = new SearchSlot(m_xi.newSearchContext(m_output), m_xi.m_statistics.newStatistics());
+            m_allSlots.add(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * hands the task to the current pool
+     * @param task
+     */
+    private synchronized void execute(SpectrumTask task) {
+        m_pool.execute(task);
+    }
+
+    private boolean isStopped() {
+        return m_failed || m_xi.m_doStop || m_xi.getConfig().searchStopped();
+    }
+
+    /**
+     * reads all spectra and hands them to the workers. Returns after all
+     * spectra are searched.
+     */
+    @Override
+    public void run() {
+        String quitReason = "no new spectra";
+        try {
+            while (true) {
+                if (isStopped()) {
+                    quitReason = m_failed ? "search failed" : "search got stopped";
+                    break;
+                }
+                // wait for a free slot
+                m_slots.acquire();
+                Spectra s = m_xi.nextSpectrum(m_input);
+                if (s == null) {
+                    m_slots.release();
+                    break;
+                }
+                execute(new SpectrumTask(s));
+            }
+        } catch (InterruptedException ex) {
+            quitReason = "interrupted";
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Interrupted while waiting for a free search slot", ex);
+        }
+
+        // wait for the last spectra to be searched
+        ArrayList<ForkJoinPool> pools;
+        synchronized (this) {
+            m_pool.shutdown();
+            pools = new ArrayList<ForkJoinPool>(m_retiredPools);
+            pools.add(m_pool);
+        }
+        try {
+            for (ForkJoinPool pool : pools) {
+                while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                }
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Interrupted while waiting for the search to finish", ex);
+        }
+
+        if (m_failed) {
+            m_input.close();
+        }
+
+        // make sure stuff gets writen out
+        for (SearchSlot slot : m_allSlots) {
+            m_xi.finishSearchContext(slot.m_context);
+        }
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Search scheduler finished ({0})", quitReason);
+    }
+
+    /**
+     * allow one more spectrum to be searched at the same time
+     * @return true if the parallelism was increased
+     */
+    public synchronized boolean increaseParallelism() {
+        if (m_parallelism >= m_maxParallelism) {
+            return false;
+        }
+        m_parallelism++;
+        if (m_parallelism > m_pool.getParallelism() && !m_pool.isShutdown()) {
+            // the old pool finishes what it has and then shuts down
+            m_pool.shutdown();
+            m_retiredPools.add(m_pool);
+            m_pool = newPool(m_parallelism);
+        }
+        m_slots.release();
+        return true;
+    }
+
+    /**
+     * allow one spectrum less to be searched at the same time. Spectra
+     * currently being searched are not affected.
+     * @return true if the parallelism was decreased
+     */
+    public synchronized boolean decreaseParallelism() {
+        if (m_parallelism <= 1) {
+            return false;
+        }
+        m_parallelism--;
+        m_slots.reducePermits(1);
+        return true;
+    }
+
+    /**
+     * @return how many spectra can be searched at the same time
+     */
+    public synchronized int getParallelism() {
+        return m_parallelism;
+    }
+
+    /**
+     * @return number of worker threads currently searching a spectrum
+     */
+    public synchronized int getActiveCount() {
+        int active = m_pool.getActiveThreadCount();
+        for (ForkJoinPool pool : m_retiredPools) {
+            active += pool.getActiveThreadCount();
+        }
+        return active;
+    }
+}
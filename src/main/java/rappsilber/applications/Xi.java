@@ -37,15 +37,19 @@ import java.util.zip.GZIPOutputStream;
 import rappsilber.config.RunConfigFile;
 import rappsilber.gui.SimpleXiGui;
 import rappsilber.gui.components.DebugFrame;
+import rappsilber.ms.dataAccess.PrecursorMassScan;
 import rappsilber.ms.dataAccess.msm.AbstractMSMAccess;
 import rappsilber.ms.dataAccess.msm.MSMListIterator;
 import rappsilber.ms.dataAccess.output.CSVExportMatches;
+import rappsilber.ms.dataAccess.output.ColumnarResultReader;
+import rappsilber.ms.dataAccess.output.ColumnarResultWriter;
 import rappsilber.ms.dataAccess.output.PeakListWriter;
 import rappsilber.ms.dataAccess.output.ResultMultiplexer;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ui.MemMapStatusControl;
 import rappsilber.ui.StatusInterface;
 import rappsilber.utils.ObjectWrapper;
+import rappsilber.utils.ParallelGZIPOutputStream;
 import rappsilber.utils.Util;
 import rappsilber.utils.XiProvider;
 import rappsilber.utils.XiVersion;
@@ -116,6 +120,22 @@ public class Xi {
      * show a window with status and logging information
      */
     boolean displayLog = false;
+
+    /**
+     * continue an interrupted search from its checkpoint
+     */
+    boolean resume = false;
+
+    /**
+     * journal of the searched spectra - null if no checkpoints are written
+     */
+    SearchCheckpoint checkpoint;
+
+    /**
+     * scan of the peak lists running while the database gets prepared - null
+     * if the peak lists are scanned before
+     */
+    PrecursorMassScan peaklistScan;
     
     private DebugFrame debugGui;
     private ObjectWrapper<String> locale = new ObjectWrapper<>("en");
@@ -143,6 +163,8 @@ public class Xi {
                 + "--output     where to write the csv-output\n"
                 + "             - will output to stdout\n"
                 + "             can be repeated\n"
+                + "             files ending in .xicol get written in a binary\n"
+                + "             column oriented format (see ColumnarToCSV)\n"
                 + "--xiconf     add an additional option to the config\n"
                 + "--exampleconfig  writes out an example config and exits\n"
                 + "--log        displays a logging window\n"
@@ -151,6 +173,9 @@ public class Xi {
                 + "--dbgui      opens the database bound gui\n"
                 + "--peaksout   write out annotated peaks\n"
                 + "--locale     what local to use for writingh out numbers\n"
+                + "--resume     continue an interrupted search from the last\n"
+                + "             checkpoint (see CHECKPOINT_INTERVAL) and append\n"
+                + "             to the existing outputs\n"
                 + "--version    display version\n"
                 + "--versiongui display version in a window\n"
                 + "--changes    display change log\n"
@@ -210,6 +235,9 @@ public class Xi {
             } else if (arg.contentEquals("--help")) {
                 showHelp = true;
                 parsedArgs++;
+            } else if (arg.contentEquals("--resume")) {
+                resume = true;
+                parsedArgs++;
             } else if (arg.contentEquals("--log")) {
                 displayLog = true;
                 parsedArgs++;
@@ -279,6 +307,13 @@ public class Xi {
             String message = "detect maximum precursor mass ("  + cpus +")";
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, message);
             xiconfig.getStatusInterface().setStatus(message);
+            if (PrecursorMassScan.isEnabled(xiconfig)) {
+                // scan while the database gets prepared
+                peaklistScan = new PrecursorMassScan(peaklist, cpus,
+                        xiconfig.retrieveObject(PrecursorMassScan.PROVISIONAL_MASS_KEY, 10000d));
+                peaklistScan.start();
+                return;
+            }
             peaklist.gatherData(cpus);
             //m_db_msm.gatherData();
             
@@ -300,8 +335,93 @@ public class Xi {
         
     }
     
+    /**
+     * waits for the scan of the peak lists running in the background
+     */
+    public void waitForPeaklistScan() {
+        try {
+            peaklistScan.waitFor();
+        } catch (IOException|InterruptedException ex) {
+            String message = this.getClass().getSimpleName() + ": problem when setting up peaklist: " + ex.getMessage();
+            xiconfig.getStatusInterface().setStatus(message);
+            ex.printStackTrace();
+            System.exit(0);
+        }
+    }
+    
+    /**
+     * sets up the checkpoint journal - if checkpoints are enabled or the
+     * search should be resumed. On resume the outputs get cut back to the last
+     * checkpoint.
+     */
+    public void setupCheckpoint() {
+        int interval = xiconfig.retrieveObject(SearchCheckpoint.INTERVAL_KEY, resume ? SearchCheckpoint.DEFAULT_INTERVAL : 0);
+        if (interval <= 0) {
+            return;
+        }
+        if (outputArgs.contains("-") || !annotatedPeaksOut.isEmpty()) {
+            String message = "Checkpoints need all results to be written to files (--output but not to stdout or --peaksout)";
+            if (resume) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, message);
+                System.exit(1);
+            }
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, message + " - no checkpoints will be written");
+            return;
+        }
+        ArrayList<File> outputs = new ArrayList<>();
+        for (String out : outputArgs) {
+            outputs.add(new File(out));
+        }
+        checkpoint = new SearchCheckpoint(new File(outputArgs.get(0) + SearchCheckpoint.JOURNAL_SUFFIX), outputs, interval * 1000L);
+        try {
+            if (resume) {
+                if (!checkpoint.resume()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "No checkpoint to resume from - starting a new search");
+                } else if (checkpoint.isFinished()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "The search was already finished");
+                    System.exit(0);
+                }
+            }
+            checkpoint.open();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "could not set up the checkpoint", ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return true if the outputs are continued from a checkpoint
+     */
+    private boolean appendOutput() {
+        return checkpoint != null && checkpoint.isResumed();
+    }
+
     public void setupOutput() {
         for (String out : outputArgs) {
+            if (out.endsWith(".xicol")) {
+                // binary columnar output
+                try {
+                    long rows = 0;
+                    if (appendOutput()) {
+                        // count the rows that are already there
+                        ColumnarResultReader existing = new ColumnarResultReader(new File(out));
+                        existing.select(new int[0]);
+                        while (existing.next()) {
+                        }
+                        rows = existing.getTotalRows();
+                        existing.close();
+                    }
+                    ColumnarResultWriter colOut = new ColumnarResultWriter(new FileOutputStream(out, appendOutput()), xiconfig);
+                    if (appendOutput()) {
+                        colOut.setAppend(rows);
+                    }
+                    result_multiplexer.addResultWriter(colOut);
+                } catch (IOException ex) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "could not open ouput file:" + out, ex);
+                    System.exit(1);
+                }
+                continue;
+            }
             try {
                 boolean gzip = false;
                 boolean tabSep=false;
@@ -315,9 +435,14 @@ public class Xi {
                 CSVExportMatches CSVOut = null;
                 if (out.contentEquals("-")) {
                     CSVOut = new CSVExportMatches(System.out, xiconfig,gzip);
+                } else if (checkpoint != null && gzip) {
+                    // each flush has to end in a complete gzip member to be able to cut the file back there
+                    int threads = Math.max(1, xiconfig.retrieveObject(CSVExportMatches.GZIP_THREADS_KEY, 1));
+                    CSVOut = new CSVExportMatches(new ParallelGZIPOutputStream(new FileOutputStream(out, appendOutput()), threads), xiconfig, false);
                 } else {
-                    CSVOut = new CSVExportMatches(new FileOutputStream(out), xiconfig,gzip);
+                    CSVOut = new CSVExportMatches(new FileOutputStream(out, appendOutput()), xiconfig,gzip);
                 }
+                CSVOut.setAppend(appendOutput());
                 if (tabSep) {
                     CSVOut.setDelimChar("\t");
                 }
@@ -383,9 +508,10 @@ public class Xi {
                 return status;
             }
         });
+        MemMapStatusControl mmsc = null;
         if (statusexchange.value != null) {
             System.err.println("writing status to : " + statusexchange.value);
-            MemMapStatusControl mmsc = new MemMapStatusControl(new File(statusexchange.value));
+            mmsc = new MemMapStatusControl(new File(statusexchange.value));
             xiconfig.addStatusInterface(mmsc);
             mmsc.autoWriteMemInfo();
             
@@ -415,15 +541,45 @@ public class Xi {
         
         sequences = new SequenceList(fastas, xiconfig);
         
+        setupCheckpoint();
         setupOutput();
         
         
         m_xi_process = XiProvider.getXiSearch(sequences, peaklist, result_multiplexer, null, xiconfig, SimpleXiProcessMultipleCandidates.class);
         System.out.println("Xi - flavor:" + m_xi_process.getClass().getName());
+        if (peaklistScan != null) {
+            if (m_xi_process instanceof SimpleXiProcess) {
+                ((SimpleXiProcess) m_xi_process).setPrecursorMassScan(peaklistScan);
+            } else {
+                waitForPeaklistScan();
+            }
+        }
+        if (mmsc != null && m_xi_process instanceof SimpleXiProcess) {
+            // publish the search statistics every 10 seconds
+            mmsc.autoWriteStatistics(((SimpleXiProcess) m_xi_process).getStatistics(), 10000);
+        }
+        
+        if (checkpoint != null) {
+            if (!(m_xi_process instanceof SimpleXiProcess) || !((SimpleXiProcess) m_xi_process).setCheckpoint(checkpoint)) {
+                String message = m_xi_process.getClass().getName() + " can not write checkpoints";
+                if (appendOutput()) {
+                    Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, message + " - can not resume");
+                    System.exit(1);
+                }
+                Logger.getLogger(this.getClass().getName()).log(Level.WARNING, message);
+                checkpoint.finish(false);
+                checkpoint = null;
+            } else if (appendOutput()) {
+                m_xi_process.addFilter(checkpoint.getResumeFilter());
+            }
+        }
         
         m_xi_process.prepareSearch();
         m_xi_process.startSearch();
         m_xi_process.waitEnd();
+        if (checkpoint != null) {
+            checkpoint.finish(!xiconfig.searchStopped());
+        }
         result_multiplexer.finished();
     }
     
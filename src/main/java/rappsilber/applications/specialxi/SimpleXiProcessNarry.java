@@ -142,8 +142,8 @@ public class SimpleXiProcessNarry extends SimpleXiProcess{
         getConfig().getScores().add(m_mgcmgxDeltaScore);
         getConfig().getScores().add(m_alphaBetaRank);
         //getConfig().getScores().add(new PassesManualValidation());
-        getConfig().getScores().add(new RandomTreeModeledManual());
-        getConfig().getScores().add(new J48ModeledManual001());
+        getConfig().getScores().add(new RandomTreeModeledManual(getConfig()));
+        getConfig().getScores().add(new J48ModeledManual001(getConfig()));
         relaxedPrecursorMatching = getConfig().retrieveObject("RELAXEDPRECURSORMATCHING", relaxedPrecursorMatching);
         if (relaxedPrecursorMatching) {
             Logger.getLogger(this.getClass().getName()).log(Level.INFO, "relaxedPrecursorMatching enabled: Matching additional precursor masses");
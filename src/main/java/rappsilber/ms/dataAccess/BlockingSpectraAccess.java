@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * A spectra access that several threads can read from without racing between
+ * hasNext() and next().
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface BlockingSpectraAccess extends SpectraAccess {
+
+    /**
+     * waits until either the next spectrum is available or it is known that
+     * there are no more spectra.
+     * @return the next spectrum or null if the end of the input was reached
+     * @throws InterruptedException
+     */
+    Spectra take() throws InterruptedException;
+
+}
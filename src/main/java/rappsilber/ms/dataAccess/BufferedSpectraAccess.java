@@ -17,38 +17,83 @@ package rappsilber.ms.dataAccess;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rappsilber.ms.spectra.Spectra;
 
 /**
- *
+ * Reads spectra from the inner access in its own thread into a bounded
+ * buffer.
+ * <br/>Once the inner access is exhausted an end-of-input marker is placed
+ * behind the last spectrum. The marker is never removed - so every thread
+ * reading from the buffer sees the end as soon as it is reached and no thread
+ * sees it before all spectra where handed out. hasNext() and {@link #take()}
+ * wait for either a spectrum or the marker. If the buffer is full the reading
+ * thread waits for space.
  * @author stahir
  */
-public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runnable, StackedSpectraAccess {//, MultiReadSpectraAccess {
+public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runnable, StackedSpectraAccess, BlockingSpectraAccess {//, MultiReadSpectraAccess {
+
+    /** placed into the buffer after the last spectrum */
+    private static final Spectra END_OF_INPUT = new Spectra();
 
     private SpectraAccess m_innerAccess;
-    private ArrayBlockingQueue<Spectra> m_buffer = new ArrayBlockingQueue<Spectra>(10);
+    private final ArrayDeque<Spectra> m_buffer;
     private int m_numberSpectra = 0;
     private Thread m_fillBuffer;
 //    private final Object m_accessSynchronisation = new Object();
     private AtomicBoolean m_finishedReading = new AtomicBoolean(false);
     private int m_buffersize = 10;
     private final ReentrantLock lock = new ReentrantLock();
+    /** signalled when a spectrum or the end marker was added */
+    private final Condition m_notEmpty = lock.newCondition();
+    /** signalled when a spectrum was taken out */
+    private final Condition m_notFull = lock.newCondition();
     private int threadrestarts = 0;
     private AtomicBoolean m_closed = new AtomicBoolean(false);
+    /** all buffers - for reporting how many spectra are waiting */
+    private static final Set<BufferedSpectraAccess> m_allBuffers = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<BufferedSpectraAccess, Boolean>()));
 
     public BufferedSpectraAccess(int BufferSize) {
-        m_buffer = new ArrayBlockingQueue<Spectra>(BufferSize);
+        m_buffersize = Math.max(1, BufferSize);
+        m_buffer = new ArrayDeque<Spectra>(m_buffersize + 1);
         setUpThread();
-        m_buffersize = BufferSize;
+        m_allBuffers.add(this);
+    }
+
+    /**
+     * @return number of spectra currently waiting in this buffer
+     */
+    public int bufferedSpectra() {
+        lock.lock();
+        try {
+            return m_buffer.peekLast() == END_OF_INPUT ? m_buffer.size() - 1 : m_buffer.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of spectra currently waiting in any buffer
+     */
+    public static int countBufferedSpectra() {
+        int c = 0;
+        synchronized (m_allBuffers) {
+            for (BufferedSpectraAccess bsa : m_allBuffers) {
+                c += bsa.bufferedSpectra();
+            }
+        }
+        return c;
     }
 
     private void setUpThread() {
@@ -73,150 +118,171 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
 
     /**
      * returns whether another spectra can be read.
-     * in a multi-threaded case the result of hasNext can be only be taken as a 
-     * hint. Unless hasNext and next are consistently synchronised one thread 
-     * can receive the next element that was here indicated to be available.
-     * As this is a general case no synchronisation is performed here.
+     * Waits until either a spectrum is in the buffer or the end of the input
+     * was reached. In a multi-threaded case another thread could still take
+     * the spectrum before this thread calls next() - use {@link #take()} to
+     * check and read in one step.
      * @return true if another spectra should be retrievable; false otherwise
      */
     @Override
     public boolean hasNext() {
         lock.lock();
         try {
-            return innerHasNext();
+            while (m_buffer.isEmpty()) {
+                m_notEmpty.await();
+            }
+            return m_buffer.peekFirst() != END_OF_INPUT;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
             lock.unlock();
         }
     }
 
-    private boolean innerHasNext() {
-        boolean ihn = m_innerAccess.hasNext();
-        if (ihn) {
-            return true;
-        }
-        if (ihn && m_finishedReading.get()) {
-            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Reader finished before all data where read in.", new Exception());
-        }
-        
-        if (m_buffer.isEmpty()) {
-            if (!m_innerAccess.hasNext()) {
-                try {
-                    Thread.currentThread().sleep(500);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(BufferedSpectraAccess.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-        }
-        return (m_innerAccess.hasNext() || !m_buffer.isEmpty());
-    }
     long lastEmptyReported = Calendar.getInstance().getTimeInMillis() - 30000;
     int bec = 0;
     boolean doReportEmpty = true;
     int emptyReported = 0;
 
     /**
-     * returns the next available spectra or null if already all spectra where 
-     * read.
-     * This is synchronised
-     * @return 
+     * mark up if we have nothing left in the buffer - but don't do it all the
+     * time
+     * @param what
      */
-    @Override
-    public Spectra next() {
-        
-        // mark up if we have nothing left in the buffer
-        if (m_buffer.isEmpty()) {
-            if (doReportEmpty) {
-                bec++;
-                long n = Calendar.getInstance().getTimeInMillis();
-                // but don't do it all the time
-                if (n - lastEmptyReported > 30000) {
-                    lastEmptyReported = n;
-                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is empty on next (" + bec + ") " + Thread.currentThread().getName() );
-                    //bec = 0;
-                    if (emptyReported++ > 10) {
-                        doReportEmpty = false;
-                    }
+    private void reportEmpty(String what) {
+        if (doReportEmpty && m_buffer.isEmpty()) {
+            bec++;
+            long n = Calendar.getInstance().getTimeInMillis();
+            if (n - lastEmptyReported > 30000) {
+                lastEmptyReported = n;
+                Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is empty on " + what + " (" + bec + ") " + Thread.currentThread().getName() );
+                if (emptyReported++ > 10) {
+                    doReportEmpty = false;
                 }
             }
         }
+    }
 
-        lock.lock();
+    /**
+     * waits for the next spectrum or the end of the input
+     * @return the next spectrum or null if all spectra where read
+     * @throws InterruptedException
+     */
+    @Override
+    public Spectra take() throws InterruptedException {
+        lock.lockInterruptibly();
         try {
-            if (innerHasNext()) {
-                try {
-                    Spectra s = null;
-                    while ((innerHasNext()) && s == null) {
-                        s = m_buffer.poll(100, TimeUnit.MILLISECONDS);
-                    }
-                    if (s != null) {
-                        m_numberSpectra++;
-                    }
-                    return s;
-                } catch (InterruptedException ex) {
-                    return null;
-                }
-            } else {
+            reportEmpty("next");
+            while (m_buffer.isEmpty()) {
+                m_notEmpty.await();
+            }
+            if (m_buffer.peekFirst() == END_OF_INPUT) {
                 return null;
             }
+            Spectra s = m_buffer.pollFirst();
+            m_notFull.signal();
+            m_numberSpectra++;
+            return s;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * returns the next available spectra or null if already all spectra where 
+     * read.
+     * @return 
+     */
+    @Override
+    public Spectra next() {
+        try {
+            return take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
 
 //    @Override
     public int next(int maxcount, Collection<Spectra> c) {
+        lock.lock();
+        try {
+            reportEmpty("batch next");
+            while (m_buffer.isEmpty()) {
+                m_notEmpty.await();
+            }
+            int ret = 0;
+            while (ret < maxcount && !m_buffer.isEmpty() && m_buffer.peekFirst() != END_OF_INPUT) {
+                c.add(m_buffer.pollFirst());
+                ret++;
+            }
+            m_numberSpectra += ret;
+            m_notFull.signalAll();
+            return ret;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        if (m_buffer.isEmpty()) {
-            if (doReportEmpty) {
-                bec++;
-                long n = Calendar.getInstance().getTimeInMillis();
-                // but don't do it all the time
-                if (n - lastEmptyReported > 30000) {
-                    lastEmptyReported = n;
-                    Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Buffer is empty on batch next (" + bec + ") " + Thread.currentThread().getName() );
-                    //bec = 0;
-                    if (emptyReported++ > 10) {
-                        doReportEmpty = false;
-                    }
-                }
+    /**
+     * adds a spectrum to the buffer - waits while the buffer is full
+     * @param s
+     * @return false if the access was closed
+     * @throws InterruptedException
+     */
+    private boolean put(Spectra s) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (m_buffer.size() >= m_buffersize && !m_closed.get()) {
+                m_notFull.await();
+            }
+            if (m_closed.get()) {
+                return false;
             }
+            m_buffer.addLast(s);
+            m_notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
         }
-        
+    }
+
+    /**
+     * places the end marker behind the last spectrum and wakes up all waiting
+     * readers
+     */
+    private void endOfInput() {
         lock.lock();
         try {
-            int ret = 0;
-            if (innerHasNext()) {
-                try {
-                    Spectra s = null;
-                    while (innerHasNext() && s == null) {
-                        s = m_buffer.poll(100, TimeUnit.MILLISECONDS);
-                    }
-                    c.add(s);
-                    ret = 1;
-                } catch (InterruptedException ex) {
-                }
-                ret += m_buffer.drainTo(c,maxcount);
-                m_numberSpectra+=ret;                
-                return ret;
+            if (m_buffer.peekLast() != END_OF_INPUT) {
+                m_buffer.addLast(END_OF_INPUT);
             }
+            m_notEmpty.signalAll();
         } finally {
             lock.unlock();
         }
-        return 0;
     }
-
     
     @Override
     public void run() {
-        if (m_innerAccess instanceof MultiReadSpectraAccess) {
-            multiReadInner();
-        } else {
-            standardReadInner();
-        }
+        try {
+            if (m_innerAccess instanceof MultiReadSpectraAccess) {
+                multiReadInner();
+            } else {
+                standardReadInner();
+            }
+        } finally {
+            // even if reading failed - nobody should wait for more spectra
+            endOfInput();
 //        synchronized (m_accessSynchronisation) {
             m_finishedReading.set(true);
 //        }
+        }
     }
 
     @Override
@@ -242,11 +308,6 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
     StackTraceElement[] startingFrom = null;
     @Override
     public void setReader(SpectraAccess innerAccess) {
-        try {
-            Thread.currentThread().sleep(1000);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(BufferedSpectraAccess.class.getName()).log(Level.SEVERE, null, ex);
-        }
         m_innerAccess = innerAccess;
         m_finishedReading.set(false);
         startingFrom = Thread.currentThread().getStackTrace();
@@ -267,6 +328,7 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
         lock.lock();
         try {
             this.m_buffer.clear();
+            m_notFull.signalAll();
             m_innerAccess.restart();
             if (!m_fillBuffer.isAlive()) {
                 setUpThread();
@@ -279,6 +341,13 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
 
     public void close() {
         m_closed.set(true);
+        lock.lock();
+        try {
+            // let a waiting reading thread finish
+            m_notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
         m_innerAccess.close();
     }
 
@@ -302,19 +371,13 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
     protected void standardReadInner() {
         try {
             while (m_innerAccess.hasNext() && !m_closed.get()) {
-                try {
-
-                    Spectra s = m_innerAccess.next();
-                    if (s != null) {
-                        boolean added = false;
-                        while ((!added) && (!m_closed.get())) {
-                            added = m_buffer.offer(s, 10, TimeUnit.SECONDS);
-                        }
-                    }
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(BufferedSpectraAccess.class.getName()).log(Level.SEVERE, "Interrupted on put", ex);
+                Spectra s = m_innerAccess.next();
+                if (s != null && !put(s)) {
+                    break;
                 }
             }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(BufferedSpectraAccess.class.getName()).log(Level.SEVERE, "Interrupted on put", ex);
         } catch (Exception e) {
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, null, e);
             throw new Error(e);
@@ -329,30 +392,23 @@ public class BufferedSpectraAccess extends AbstractSpectraAccess implements Runn
         MultiReadSpectraAccess bsa = (MultiReadSpectraAccess) m_innerAccess;
         try {
             ArrayList<Spectra> prebuff = new ArrayList<Spectra>(m_buffersize);
-            while (m_innerAccess.hasNext()) {
+            while (m_innerAccess.hasNext() && !m_closed.get()) {
                 
                 bsa.next(m_buffersize, prebuff);
-                //Spectra s = m_innerAccess.next();
-                lock.lock(); 
-                try {
-                    for (Spectra s : prebuff) {
-                       if (s != null) {
-                            try {
-
-                                    m_buffer.put(s);
-                            } catch (InterruptedException ex) {
-                                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Might have lost a spectra", ex);
-                            }
-                       } else {
-                           Exception e = new NullPointerException("Got a null as spectra from the inner reader!");
-                           Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Odd thing happened", e);
+                for (Spectra s : prebuff) {
+                   if (s != null) {
+                       if (!put(s)) {
+                           return;
                        }
-                    }
-                } finally {
-                    lock.unlock();
+                   } else {
+                       Exception e = new NullPointerException("Got a null as spectra from the inner reader!");
+                       Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Odd thing happened", e);
+                   }
                 }
                 prebuff.clear();
             }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Might have lost a spectra", ex);
         } catch (Exception e) {
             Logger.getLogger(BufferedSpectraAccess.class.getName()).log(Level.SEVERE, null, e);
             throw new Error(e);
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Hands out the spectra ordered by precursor mass instead of in the order
+ * they where read.
+ * <br/>Spectra are read in blocks. Each block gets sorted by precursor mass
+ * and split into one mass band per search thread. Each thread then gets the
+ * spectra of its own band in increasing mass - so consecutive lookups of a
+ * thread hit neighbouring parts of the peptide and fragment lookups. A thread
+ * that finished its band takes spectra from the end of the band with the most
+ * spectra left.
+ * <br/>The next block is read and sorted in the background while the current
+ * one is searched.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class MassOrderedSpectraAccess extends AbstractStackedSpectraAccess implements BlockingSpectraAccess {
+
+    /** config key - "file" (default) or "mass" */
+    public static final String ORDER_KEY = "SPECTRA_ORDER";
+    /** config key for how many spectra are sorted together (0 = all) */
+    public static final String BLOCK_KEY = "SPECTRA_ORDER_BLOCK";
+
+    /**
+     * a block of spectra split into mass bands
+     */
+    private static class Block {
+        Spectra[][] m_bands;
+        /** next spectrum to take from the front of each band */
+        int[] m_front;
+        /** end (exclusive) of each band */
+        int[] m_back;
+        int m_left;
+
+        Block(ArrayList<Spectra> sorted, int bands) {
+            m_bands = new Spectra[bands][];
+            m_front = new int[bands];
+            m_back = new int[bands];
+            int n = sorted.size();
+            for (int b = 0; b < bands; b++) {
+                int from = (int) ((long) n * b / bands);
+                int to = (int) ((long) n * (b + 1) / bands);
+                m_bands[b] = sorted.subList(from, to).toArray(new Spectra[to - from]);
+                m_back[b] = to - from;
+            }
+            m_left = n;
+        }
+
+        Spectra take(int band) {
+            if (m_front[band] < m_back[band]) {
+                return remove(band, m_front[band]++);
+            }
+            // steal from the end of the fullest band
+            int fullest = -1;
+            int most = 0;
+            for (int b = 0; b < m_bands.length; b++) {
+                int left = m_back[b] - m_front[b];
+                if (left > most) {
+                    most = left;
+                    fullest = b;
+                }
+            }
+            if (fullest < 0) {
+                return null;
+            }
+            return remove(fullest, --m_back[fullest]);
+        }
+
+        private Spectra remove(int band, int i) {
+            Spectra s = m_bands[band][i];
+            m_bands[band][i] = null;
+            m_left--;
+            return s;
+        }
+    }
+
+    /** marks the end of the input */
+    private static final Block END_OF_INPUT = new Block(new ArrayList<Spectra>(), 1);
+
+    private static final Comparator<Spectra> BY_PRECURSOR_MASS = new Comparator<Spectra>() {
+        @Override
+        public int compare(Spectra o1, Spectra o2) {
+            return Double.compare(o1.getPrecurserMass(), o2.getPrecurserMass());
+        }
+    };
+
+    private final int m_bands;
+    private final int m_blockSize;
+    /** sorted blocks waiting to be searched */
+    private ArrayBlockingQueue<Block> m_blocks;
+    private Thread m_reader;
+    private Block m_current;
+    private Spectra m_currentSpectrum;
+    private int m_countReadSpectra = 0;
+    /** the band of each thread */
+    private final ThreadLocal<Integer> m_threadBand = new ThreadLocal<Integer>();
+    private int m_nextBand = 0;
+
+    /**
+     * @param inner where to read the spectra from
+     * @param bands number of mass bands - usually the number of search threads
+     * @param blockSize how many spectra get sorted together (0 = all)
+     */
+    public MassOrderedSpectraAccess(SpectraAccess inner, int bands, int blockSize) {
+        m_bands = Math.max(1, bands);
+        m_blockSize = blockSize <= 0 ? Integer.MAX_VALUE : blockSize;
+        setReader(inner);
+    }
+
+    /**
+     * @param config
+     * @return true if the config asks for spectra to be searched in order of
+     * precursor mass
+     */
+    public static boolean isEnabled(RunConfig config) {
+        return config.retrieveObject(ORDER_KEY, "file").trim().equalsIgnoreCase("mass");
+    }
+
+    private void startReader() {
+        final SpectraAccess inner = m_InnerAcces;
+        final ArrayBlockingQueue<Block> blocks = new ArrayBlockingQueue<Block>(1);
+        m_blocks = blocks;
+        m_reader = new Thread("MassOrderedSpectraReader") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        ArrayList<Spectra> block = new ArrayList<Spectra>();
+                        while (block.size() < m_blockSize && !isInterrupted() && inner.hasNext()) {
+                            Spectra s = inner.next();
+                            if (s != null) {
+                                block.add(s);
+                            }
+                        }
+                        if (isInterrupted()) {
+                            return;
+                        }
+                        if (block.isEmpty()) {
+                            break;
+                        }
+                        Collections.sort(block, BY_PRECURSOR_MASS);
+                        blocks.put(new Block(block, m_bands));
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(MassOrderedSpectraAccess.class.getName()).log(Level.SEVERE, "Error while reading spectra", ex);
+                }
+                try {
+                    blocks.put(END_OF_INPUT);
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+        m_reader.setDaemon(true);
+        m_reader.start();
+    }
+
+    private int threadBand() {
+        Integer band = m_threadBand.get();
+        if (band == null) {
+            band = m_nextBand++ % m_bands;
+            m_threadBand.set(band);
+        }
+        return band;
+    }
+
+    /**
+     * makes sure the current block has spectra left - if there are any
+     * @return false if the end of the input was reached
+     * @throws InterruptedException
+     */
+    private boolean fill() throws InterruptedException {
+        if (m_reader == null) {
+            startReader();
+        }
+        while (m_current == null || m_current.m_left == 0) {
+            if (m_current == END_OF_INPUT) {
+                return false;
+            }
+            m_current = m_blocks.take();
+        }
+        return true;
+    }
+
+    @Override
+    public Spectra take() throws InterruptedException {
+        synchronized (m_sync) {
+            if (!fill()) {
+                return null;
+            }
+            m_currentSpectrum = m_current.take(threadBand());
+            m_countReadSpectra++;
+            return m_currentSpectrum;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (m_sync) {
+            try {
+                return fill();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public Spectra next() {
+        try {
+            return take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public Spectra current() {
+        return m_currentSpectrum;
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_countReadSpectra;
+    }
+
+    private void stopReader() {
+        if (m_reader != null) {
+            m_reader.interrupt();
+            try {
+                m_reader.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            m_reader = null;
+        }
+        m_blocks = null;
+        m_current = null;
+    }
+
+    @Override
+    public void restart() throws IOException {
+        synchronized (m_sync) {
+            stopReader();
+            m_currentSpectrum = null;
+            m_countReadSpectra = 0;
+            super.restart();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (m_sync) {
+            stopReader();
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Applies a chain of {@link SpectraProcessor}s to the spectra of the inner
+ * access on a pool of threads.
+ * <br/>Spectra are read sequentially from the inner access and handed out in
+ * batches to the threads. A bounded number of batches is processed ahead of
+ * what was requested. If ordered the spectra are returned in the order they
+ * were read - otherwise in the order they get finished.
+ * <br/>The time spent in each processor is recorded (see
+ * {@link #getProcessorNanos(int)}).
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ParallelSpectraAccess extends AbstractStackedSpectraAccess {
+
+    private static final AtomicInteger m_poolCount = new AtomicInteger(0);
+
+    /**
+     * runs all processors on a batch of spectra
+     */
+    private class Batch implements Callable<ArrayList<Spectra>> {
+        ArrayList<Spectra> m_spectra;
+
+        public Batch(ArrayList<Spectra> spectra) {
+            m_spectra = spectra;
+        }
+
+        @Override
+        public ArrayList<Spectra> call() throws Exception {
+            long[] nanos = new long[m_processors.length];
+            long[] seen = new long[m_processors.length];
+            ArrayList<Spectra> ret = new ArrayList<Spectra>(m_spectra.size());
+            spectra:
+            for (Spectra s : m_spectra) {
+                for (int p = 0; p < m_processors.length; p++) {
+                    long start = System.nanoTime();
+                    s = m_processors[p].process(s);
+                    nanos[p] += System.nanoTime() - start;
+                    seen[p]++;
+                    if (s == null) {
+                        continue spectra;
+                    }
+                }
+                ret.add(s);
+            }
+            for (int p = 0; p < m_processors.length; p++) {
+                m_nanos.addAndGet(p, nanos[p]);
+                m_seen.addAndGet(p, seen[p]);
+            }
+            m_spectra = null;
+            return ret;
+        }
+    }
+
+    private final SpectraProcessor[] m_processors;
+    /** time spent in each processor */
+    private final AtomicLongArray m_nanos;
+    /** spectra handed to each processor */
+    private final AtomicLongArray m_seen;
+    private final int m_threads;
+    private final int m_batchSize;
+    /** how many batches to process ahead */
+    private final int m_readAhead;
+    private final boolean m_ordered;
+
+    private ExecutorService m_pool;
+    /** finished batches - if not ordered */
+    private CompletionService<ArrayList<Spectra>> m_finished;
+    /** batches in the order they were read */
+    private final ArrayDeque<Future<ArrayList<Spectra>>> m_pending = new ArrayDeque<Future<ArrayList<Spectra>>>();
+    private int m_inFlight = 0;
+    /** spectra of the current batch */
+    private ArrayList<Spectra> m_batch;
+    private int m_batchIndex = 0;
+    private Spectra m_current;
+    private int m_countReadSpectra = 0;
+
+    /**
+     * @param processors the processors in the order they get applied
+     * @param threads how many threads process spectra
+     * @param batchSize how many spectra get processed as one task
+     * @param ordered whether the spectra have to be returned in the order they
+     * were read
+     */
+    public ParallelSpectraAccess(List<? extends SpectraProcessor> processors, int threads, int batchSize, boolean ordered) {
+        m_processors = processors.toArray(new SpectraProcessor[processors.size()]);
+        m_nanos = new AtomicLongArray(m_processors.length);
+        m_seen = new AtomicLongArray(m_processors.length);
+        m_threads = Math.max(1, threads);
+        m_batchSize = Math.max(1, batchSize);
+        m_readAhead = m_threads * 2;
+        m_ordered = ordered;
+    }
+
+    private void startPool() {
+        final int id = m_poolCount.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        m_pool = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Preprocessing_" + id + "_" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_finished = new ExecutorCompletionService<ArrayList<Spectra>>(m_pool);
+    }
+
+    /**
+     * reads the next batch from the inner access and submits it
+     * @return false if there was nothing left to read
+     */
+    private boolean readBatch() {
+        ArrayList<Spectra> batch = new ArrayList<Spectra>(m_batchSize);
+        while (batch.size() < m_batchSize && m_InnerAcces.hasNext()) {
+            Spectra s = m_InnerAcces.next();
+            if (s != null) {
+                batch.add(s);
+            }
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        if (m_pool == null) {
+            startPool();
+        }
+        if (m_ordered) {
+            m_pending.add(m_pool.submit(new Batch(batch)));
+        } else {
+            m_finished.submit(new Batch(batch));
+        }
+        m_inFlight++;
+        return true;
+    }
+
+    /**
+     * makes sure that - if there is a spectrum left - m_batch contains it
+     * @return true if there is a spectrum left
+     */
+    private boolean advance() {
+        while (m_batch == null || m_batchIndex >= m_batch.size()) {
+            m_batch = null;
+            while (m_inFlight < m_readAhead && readBatch()) {
+            }
+            if (m_inFlight == 0) {
+                return false;
+            }
+            try {
+                // the oldest batch if ordered - otherwise whichever finished first
+                Future<ArrayList<Spectra>> f = m_ordered ? m_pending.peek() : m_finished.take();
+                m_batch = f.get();
+                m_batchIndex = 0;
+                if (m_ordered) {
+                    m_pending.poll();
+                }
+                m_inFlight--;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("Error while preprocessing spectra", ex.getCause());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (m_sync) {
+            return advance();
+        }
+    }
+
+    @Override
+    public Spectra next() {
+        synchronized (m_sync) {
+            if (!advance()) {
+                m_current = null;
+                return null;
+            }
+            m_current = m_batch.get(m_batchIndex);
+            // don't keep the spectra alive longer then needed
+            m_batch.set(m_batchIndex++, null);
+            m_countReadSpectra++;
+            return m_current;
+        }
+    }
+
+    @Override
+    public Spectra current() {
+        return m_current;
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_countReadSpectra;
+    }
+
+    /**
+     * @return number of processors
+     */
+    public int getProcessorCount() {
+        return m_processors.length;
+    }
+
+    public SpectraProcessor getProcessor(int p) {
+        return m_processors[p];
+    }
+
+    /**
+     * @param p
+     * @return nanoseconds spent in the processor summed over all threads
+     */
+    public long getProcessorNanos(int p) {
+        return m_nanos.get(p);
+    }
+
+    /**
+     * @param p
+     * @return how many spectra where handed to the processor
+     */
+    public long getProcessorSpectra(int p) {
+        return m_seen.get(p);
+    }
+
+    public int getThreads() {
+        return m_threads;
+    }
+
+    private void clearPending() {
+        for (Future<ArrayList<Spectra>> f : m_pending) {
+            f.cancel(true);
+        }
+        m_pending.clear();
+        m_batch = null;
+        m_inFlight = 0;
+        if (m_pool != null) {
+            m_pool.shutdownNow();
+            m_pool = null;
+        }
+    }
+
+    @Override
+    public void restart() throws IOException {
+        synchronized (m_sync) {
+            clearPending();
+            m_current = null;
+            m_countReadSpectra = 0;
+            super.restart();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (m_sync) {
+            clearPending();
+        }
+        super.close();
+    }
+}
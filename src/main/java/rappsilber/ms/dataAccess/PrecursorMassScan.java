@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+
+/**
+ * Runs {@link AbstractSpectraAccess#gatherData(int)} in the background.
+ * <br/>This way the database can be prepared while the peak lists are still
+ * scanned for the maximum precursor mass. Until the scan is finished the
+ * digestion can use a provisional maximum peptide mass.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class PrecursorMassScan {
+
+    /** config key - scan the peak lists while the database gets prepared */
+    public static final String CONCURRENT_KEY = "CONCURRENT_PEAKLIST_SCAN";
+    /** config key for the peptide mass used until the scan is finished */
+    public static final String PROVISIONAL_MASS_KEY = "PROVISIONAL_MAX_PEPTIDE_MASS";
+
+    private final AbstractSpectraAccess m_input;
+    private final int m_cpus;
+    private final double m_provisionalMass;
+    private final CountDownLatch m_finished = new CountDownLatch(1);
+    private volatile IOException m_error;
+
+    /**
+     * @param input the peak lists to scan
+     * @param cpus how many threads to use for the scan
+     * @param provisionalMass the maximum peptide mass to use until the scan is
+     * finished
+     */
+    public PrecursorMassScan(AbstractSpectraAccess input, int cpus, double provisionalMass) {
+        m_input = input;
+        m_cpus = cpus;
+        m_provisionalMass = provisionalMass;
+    }
+
+    /**
+     * @param config
+     * @return true if the config asks for the peak lists to be scanned while
+     * the database gets prepared
+     */
+    public static boolean isEnabled(RunConfig config) {
+        return config.retrieveObject(CONCURRENT_KEY, false);
+    }
+
+    /**
+     * starts the scan in a background thread
+     */
+    public void start() {
+        Thread t = new Thread("PeakListScan") {
+            @Override
+            public void run() {
+                try {
+                    m_input.gatherData(m_cpus);
+                    String message = "Maximum mass : " + m_input.getMaxPrecursorMass();
+                    System.err.println(message);
+                    Logger.getLogger(PrecursorMassScan.class.getName()).log(Level.INFO, message);
+                } catch (IOException ex) {
+                    m_error = ex;
+                } catch (RuntimeException ex) {
+                    m_error = new IOException(ex);
+                } finally {
+                    m_finished.countDown();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return true if the scan is finished
+     */
+    public boolean isFinished() {
+        return m_finished.getCount() == 0;
+    }
+
+    /**
+     * @return the maximum peptide mass to use until the scan is finished
+     */
+    public double getProvisionalMass() {
+        return m_provisionalMass;
+    }
+
+    /**
+     * waits for the scan to finish
+     * @return the maximum precursor mass found
+     * @throws IOException if the scan failed
+     * @throws InterruptedException
+     */
+    public double waitFor() throws IOException, InterruptedException {
+        m_finished.await();
+        if (m_error != null) {
+            throw m_error;
+        }
+        return m_input.getMaxPrecursorMass();
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Stacks the configured spectra filters onto the input.
+ * <br/>Consecutive filters that are {@link SpectraProcessor}s are combined
+ * into a {@link ParallelSpectraAccess} and run on several threads. All other
+ * filters are stacked as usual and see the spectra one after another.
+ * <br/>For every filter the number of spectra and the time spent in the
+ * filter is recorded and can be reported via {@link #getSummary()}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SpectraPreprocessing {
+
+    /** config key for the number of threads running the filters */
+    public static final String THREADS_KEY = "PREPROCESSING_THREADS";
+    /** config key - should the spectra stay in the order they where read */
+    public static final String ORDERED_KEY = "PREPROCESSING_ORDERED";
+    /** config key for how many spectra are processed as one task */
+    public static final String BATCH_KEY = "PREPROCESSING_BATCH";
+
+    /**
+     * measures the time spent in next() and hasNext() of the inner access -
+     * including everything below it
+     */
+    private static class TimedSpectraAccess extends AbstractStackedSpectraAccess {
+        final AtomicLong m_nanos = new AtomicLong();
+        final AtomicLong m_spectra = new AtomicLong();
+
+        public TimedSpectraAccess(SpectraAccess inner) {
+            setReader(inner);
+        }
+
+        @Override
+        public boolean hasNext() {
+            long start = System.nanoTime();
+            try {
+                return m_InnerAcces.hasNext();
+            } finally {
+                m_nanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public Spectra next() {
+            long start = System.nanoTime();
+            Spectra s = m_InnerAcces.next();
+            m_nanos.addAndGet(System.nanoTime() - start);
+            if (s != null) {
+                m_spectra.incrementAndGet();
+            }
+            return s;
+        }
+    }
+
+    /**
+     * a filter applied sequentially - its own time is the time measured after
+     * it minus the time measured for its input
+     */
+    private static class SequentialFilter {
+        String m_name;
+        TimedSpectraAccess m_input;
+        TimedSpectraAccess m_output;
+    }
+
+    private final int m_threads;
+    private final boolean m_ordered;
+    private final int m_batchSize;
+    private final ArrayList<Object> m_stages = new ArrayList<Object>();
+
+    public SpectraPreprocessing(int threads, boolean ordered, int batchSize) {
+        m_threads = threads;
+        m_ordered = ordered;
+        m_batchSize = batchSize;
+    }
+
+    public SpectraPreprocessing(RunConfig config) {
+        this(config.retrieveObject(THREADS_KEY, 0),
+                config.retrieveObject(ORDERED_KEY, true),
+                config.retrieveObject(BATCH_KEY, 10));
+    }
+
+    /**
+     * @param config
+     * @return true if the config asks for filters to be run in parallel
+     */
+    public static boolean isEnabled(RunConfig config) {
+        return config.retrieveObject(THREADS_KEY, 0) > 0;
+    }
+
+    /**
+     * stacks the filters onto the input
+     * @param input
+     * @param filters in the order they get applied
+     * @return the access returning the filtered spectra
+     */
+    public AbstractSpectraAccess stack(AbstractSpectraAccess input, List<? extends StackedSpectraAccess> filters) {
+        if (filters.isEmpty()) {
+            return input;
+        }
+        TimedSpectraAccess current = new TimedSpectraAccess(input);
+        ArrayList<SpectraProcessor> parallel = new ArrayList<SpectraProcessor>();
+        for (StackedSpectraAccess f : filters) {
+            if (f instanceof SpectraProcessor) {
+                parallel.add((SpectraProcessor) f);
+                continue;
+            }
+            current = stackParallel(current, parallel);
+            SequentialFilter sf = new SequentialFilter();
+            sf.m_name = f.getClass().getSimpleName();
+            sf.m_input = current;
+            f.setReader(current);
+            current = new TimedSpectraAccess(f);
+            sf.m_output = current;
+            m_stages.add(sf);
+        }
+        return stackParallel(current, parallel);
+    }
+
+    private TimedSpectraAccess stackParallel(TimedSpectraAccess input, ArrayList<SpectraProcessor> processors) {
+        if (processors.isEmpty()) {
+            return input;
+        }
+        ParallelSpectraAccess psa = new ParallelSpectraAccess(processors, m_threads, m_batchSize, m_ordered);
+        psa.setReader(input);
+        m_stages.add(psa);
+        processors.clear();
+        return new TimedSpectraAccess(psa);
+    }
+
+    private static void appendFilter(StringBuilder sb, String name, long spectra, long nanos) {
+        if (sb.length() > 0) {
+            sb.append("; ");
+        }
+        sb.append(name).append(' ').append(spectra).append(" spectra ");
+        sb.append(String.format(Locale.ENGLISH, "%.3fs", nanos / 1e9));
+        if (nanos > 0) {
+            sb.append(String.format(Locale.ENGLISH, " (%.1f/s)", spectra * 1e9 / nanos));
+        }
+    }
+
+    /**
+     * @return for each filter the number of spectra it saw, the time spent in
+     * it and the resulting throughput (per thread for parallel filters)
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Object stage : m_stages) {
+            if (stage instanceof ParallelSpectraAccess) {
+                ParallelSpectraAccess psa = (ParallelSpectraAccess) stage;
+                for (int p = 0; p < psa.getProcessorCount(); p++) {
+                    appendFilter(sb, psa.getProcessor(p).getClass().getSimpleName() + "[" + psa.getThreads() + " threads]",
+                            psa.getProcessorSpectra(p), psa.getProcessorNanos(p));
+                }
+            } else {
+                SequentialFilter sf = (SequentialFilter) stage;
+                long own = Math.max(0, sf.m_output.m_nanos.get() - sf.m_input.m_nanos.get());
+                appendFilter(sb, sf.m_name, sf.m_output.m_spectra.get(), own);
+            }
+        }
+        return sb.toString();
+    }
+
+}
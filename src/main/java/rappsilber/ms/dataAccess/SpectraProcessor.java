@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * A spectra filter that handles each spectrum on its own - the result only
+ * depends on the spectrum and the filter does not change any state shared
+ * between spectra.
+ * <br/>Filters implementing this can be applied to several spectra at the same
+ * time (see {@link ParallelSpectraAccess}). Filters that need some global
+ * state (e.g. calibration or remembering scans) must not implement it and
+ * will always see the spectra one after another.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public interface SpectraProcessor {
+
+    /**
+     * applies the filter to a single spectrum. Can be called by several threads
+     * at the same time.
+     * @param s
+     * @return the filtered spectrum or null if the spectrum should be dropped
+     */
+    Spectra process(Spectra s);
+
+}
@@ -21,6 +21,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rappsilber.config.RunConfig;
@@ -778,7 +779,7 @@ public class XiDBSingleSQLWriter extends AbstractResultWriter {
     }
 
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(Map<String, Double> scores, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
             for(String name: scores.keySet()){
@@ -26,6 +26,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rappsilber.config.RunConfig;
@@ -894,7 +895,7 @@ public class XiDBWriter extends AbstractResultWriter {
     }
 
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(Map<String, Double> scores, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
             for(String name: scores.keySet()){
@@ -33,6 +33,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.HashSet;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
@@ -2750,7 +2751,7 @@ public class XiDBWriterCopySqlIndividualBatchIDs extends AbstractResultWriter {
         return spec_match_id;
     }
 
-    private void saveScoreInformation(HashMap<String, Double> scores, long spec_match_id, IDs result_ids) {
+    private void saveScoreInformation(Map<String, Double> scores, long spec_match_id, IDs result_ids) {
         try {
             // First check if we've encouneterd the first score we come accross in the spectra
             for (String name : scores.keySet()) {
@@ -17,6 +17,7 @@ package rappsilber.ms.dataAccess.filter.spectrafilter;
 
 import rappsilber.config.RunConfig;
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.SpectraProcessor;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.annotation.Averagin;
 
@@ -24,7 +25,7 @@ import rappsilber.ms.spectra.annotation.Averagin;
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class DeIsotopDeCharge extends AbstractStackedSpectraAccess {
+public class DeIsotopDeCharge extends AbstractStackedSpectraAccess implements SpectraProcessor {
     Spectra s = null;
 //    SpectraAccess innerreader = null;
     Averagin a;
@@ -55,13 +56,17 @@ public class DeIsotopDeCharge extends AbstractStackedSpectraAccess {
     @Override
     public Spectra next() {
         synchronized (m_sync) {
-            s = m_InnerAcces.next();
-            a.AnnotateIsotops(s, s.getPrecurserCharge());
-            s = s.deChargeDeisotop();
+            s = process(m_InnerAcces.next());
             return s;
         }
     }
 
+    @Override
+    public Spectra process(Spectra n) {
+        a.AnnotateIsotops(n, n.getPrecurserCharge());
+        return n.deChargeDeisotop();
+    }
+
 
 
 
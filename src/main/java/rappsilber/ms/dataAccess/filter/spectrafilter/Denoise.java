@@ -20,6 +20,7 @@ import java.util.HashSet;
 import rappsilber.config.AbstractRunConfig;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.SpectraProcessor;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.utils.Util;
 
@@ -27,7 +28,7 @@ import rappsilber.utils.Util;
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class Denoise  extends AbstractStackedSpectraAccess {
+public class Denoise  extends AbstractStackedSpectraAccess implements SpectraProcessor {
 
 
     private double minMZ=0d;
@@ -82,7 +83,11 @@ public class Denoise  extends AbstractStackedSpectraAccess {
     
     
     public Spectra next() {
-        Spectra n = m_InnerAcces.next();
+        return process(m_InnerAcces.next());
+    }
+
+    @Override
+    public Spectra process(Spectra n) {
 
         // we try to keep peaks that could be related to the precursor
         double p_mz= n.getPrecurserMZ();
@@ -16,8 +16,10 @@
 package rappsilber.ms.dataAccess.filter.spectrafilter;
 
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.SpectraProcessor;
 import rappsilber.ms.spectra.Spectra;
 import static rappsilber.ms.spectra.Spectra.DEFAULT_ISOTOP_DETECTION;
 import rappsilber.ms.spectra.SpectraPeak;
@@ -35,12 +37,12 @@ import rappsilber.utils.Util;
  * 
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class MS2PrecursorDetection  extends AbstractStackedSpectraAccess {
+public class MS2PrecursorDetection  extends AbstractStackedSpectraAccess implements SpectraProcessor {
     private double window=3;
-    private double countCorrectedMZ=0;
-    private double countCorrectedCharge=0;
-    private double countFound=0;
-    private double count=0;
+    private final AtomicInteger countCorrectedMZ=new AtomicInteger();
+    private final AtomicInteger countCorrectedCharge=new AtomicInteger();
+    private final AtomicInteger countFound=new AtomicInteger();
+    private final AtomicInteger count=new AtomicInteger();
 
     public MS2PrecursorDetection(RunConfig conf) {
     }
@@ -63,15 +65,19 @@ public class MS2PrecursorDetection  extends AbstractStackedSpectraAccess {
     
     
     public Spectra next() {
-        Spectra  i =m_InnerAcces.next(); 
+        return process(m_InnerAcces.next());
+    }
+
+    @Override
+    public Spectra process(Spectra i) {
         // do we have a precursor peak?
         double precMZ =i.getPrecurserMZ();
         
         SpectraPeak precPeak =  i.getPeakAt(precMZ);
-        count++;
+        int seen = count.incrementAndGet();
         
         if (precPeak != null) {
-            countFound++;
+            countFound.incrementAndGet();
             double precPeakMZ = precPeak.getMZ();
             Spectra s = i.cloneEmpty();
             for (SpectraPeak sp : i.getPeaks(i.getPrecurserMZ()-window, i.getPrecurserMZ()+window)) {
@@ -99,18 +105,18 @@ public class MS2PrecursorDetection  extends AbstractStackedSpectraAccess {
                 }
             }
             if (pmz.size() >0) {
-                countCorrectedMZ++;
+                countCorrectedMZ.incrementAndGet();
                 i.setAdditionalMZ(pmz);
             }
             if (pc.size() >0) {
-                countCorrectedCharge++;
+                countCorrectedCharge.incrementAndGet();
                 i.setAdditionalCharge(pc);
             }
 
         }
 
-        if (count >0 && count % 1000 == 0) {
-            System.err.println("Spectra seen:"+count+"\nPrecursor seen:"+ 
+        if (seen % 1000 == 0) {
+            System.err.println("Spectra seen:"+seen+"\nPrecursor seen:"+ 
                     countFound +"\nm/z corrected:"+countCorrectedMZ
                     +"\ncharge corrected:"+countCorrectedCharge);
         }
@@ -16,13 +16,14 @@
 package rappsilber.ms.dataAccess.filter.spectrafilter;
 
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.SpectraProcessor;
 import rappsilber.ms.spectra.Spectra;
 
 /**
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class Rebase  extends AbstractStackedSpectraAccess {
+public class Rebase  extends AbstractStackedSpectraAccess implements SpectraProcessor {
 
 
 
@@ -36,7 +37,11 @@ public class Rebase  extends AbstractStackedSpectraAccess {
    
     
     public Spectra next() {
-        Spectra n =m_InnerAcces.next();
+        return process(m_InnerAcces.next());
+    }
+
+    @Override
+    public Spectra process(Spectra n) {
         n.setOrigin(n);
         return n;
     }
@@ -17,6 +17,7 @@ package rappsilber.ms.dataAccess.filter.spectrafilter;
 
 import java.util.HashSet;
 import rappsilber.ms.dataAccess.AbstractStackedSpectraAccess;
+import rappsilber.ms.dataAccess.SpectraProcessor;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.ms.spectra.SpectraPeakCluster;
@@ -25,7 +26,7 @@ import rappsilber.ms.spectra.SpectraPeakCluster;
  *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
-public class RemoveSinglePeaks  extends AbstractStackedSpectraAccess {
+public class RemoveSinglePeaks  extends AbstractStackedSpectraAccess implements SpectraProcessor {
 
 
 
@@ -39,7 +40,11 @@ public class RemoveSinglePeaks  extends AbstractStackedSpectraAccess {
    
     
     public Spectra next() {
-        Spectra n =m_InnerAcces.next();
+        return process(m_InnerAcces.next());
+    }
+
+    @Override
+    public Spectra process(Spectra n) {
         Spectra r = n.cloneEmpty();
         HashSet<SpectraPeak> peaks = new HashSet<>();
         for (SpectraPeakCluster spc :n.getIsotopeClusters()) {
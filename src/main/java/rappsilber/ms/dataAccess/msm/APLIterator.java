@@ -421,6 +421,8 @@ public class APLIterator extends AbstractMSMAccess {
 
                 chargeStates = line.substring(7).split(" and ");
 
+            } else if (s != null && PeakLineParser.addPeak(line, s)) {
+                // plain "mz intensity" peak
             } else if ((m = RE_PEAK_ENTRY.matcher(line)).matches()) {
                 s.addPeak(Double.parseDouble(m.group(1)), Double.parseDouble(m.group(2)));
             } // else ignore
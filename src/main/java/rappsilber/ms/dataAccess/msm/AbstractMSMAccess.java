@@ -94,11 +94,37 @@ public abstract class AbstractMSMAccess extends AbstractSpectraAccess {
             } else {
                 return new ZipMSMListIterator(path, t, minCharge,config);
             }
-        } else if (lname.endsWith(".apl") || lname.endsWith(".gz"))  {
+        } else if (config != null && !config.retrieveObject("SPECTRACACHE_DIR", "").isEmpty()) {
+            return SpectraCacheFile.getCachedAccess(path, t, minCharge, config, config.retrieveObject("SPECTRACACHE_DIR", ""));
+        } else {
+            return openPeakListFile(path, t, minCharge, config);
+        }
+    }
+
+    /**
+     * opens a single uncompressed peak-list file
+     * @param path
+     * @param t
+     * @param minCharge
+     * @param config
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static AbstractMSMAccess openPeakListFile(File path, ToleranceUnit t, int minCharge, RunConfig config) throws FileNotFoundException, IOException, ParseException {
+        String lname = path.getAbsolutePath().toLowerCase();
+        if (lname.endsWith(".apl") || lname.endsWith(".gz"))  {
             return new APLIterator(path, t, minCharge, config);
         } else if (lname.endsWith(".mzml"))  {
+            if (config != null && config.retrieveObject("MZMLREADER", "jmzml").equalsIgnoreCase("stax")) {
+                return new StaxMzMLIterator(path, t, minCharge, config);
+            }
             return new MzMLIterator(path, t, minCharge, config);
         } else {
+            if (config != null && config.retrieveObject("MGFREADER", "default").equalsIgnoreCase("parallel")) {
+                return new ParallelMGFIterator(path, t, minCharge, config);
+            }
             return new MSMIterator(path, t, minCharge, config);
         }
     }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.msm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Reads the spectra of a peak-list from a {@link SpectraCacheFile}.
+ * <br/>The spectra come out in the same order and with the same content as
+ * they where read from the original peak-list - only the source is still
+ * reported as the original peak-list.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class CachedMSMIterator extends AbstractMSMAccess {
+
+    private final SpectraCacheFile m_cache;
+    private Spectra         m_current   = null;
+    private String          m_source = "";
+    private RunConfig       m_config;
+    /** next spectrum to read */
+    private int             m_next = 0;
+    private int             m_countReadSpectra = 0;
+    private int             m_nextID = 0;
+
+    /**
+     * @param cache the cache to read from
+     * @param peaklist the peak-list that was cached
+     * @param t tolerance assigned to the spectra
+     * @param config
+     */
+    public CachedMSMIterator(SpectraCacheFile cache, File peaklist, ToleranceUnit t, RunConfig config) {
+        m_cache = cache;
+        m_config = config;
+        setToleranceUnit(t);
+        m_inputPath = peaklist.getAbsolutePath();
+        m_source = peaklist.getName();
+        setInputPath(m_inputPath);
+        // gatherData() was already done when the cache was written
+        m_MaxPrecursorMass = cache.getMaxPrecursorMass();
+        m_scanCount = cache.getScanCount();
+    }
+
+    /**
+     * reads the i-th spectrum of the cache
+     */
+    private Spectra read(int i) {
+        try {
+            Spectra s = m_cache.read(i, getToleranceUnit());
+            s.setSource(m_inputPath);
+            s.setPeakFileName(m_source);
+            return s;
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error reading " + m_cache.getFile(), ex);
+            if (m_config != null) {
+                m_config.getStatusInterface().setStatus("Error reading peaklist" + ex);
+            }
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    /**
+     * returns the spectrum for the given run and scan number
+     * @param run
+     * @param scan
+     * @return the spectrum or null if there is no spectrum for that scan
+     */
+    public Spectra getSpectra(String run, int scan) {
+        int i = m_cache.indexOf(run, scan);
+        if (i < 0) {
+            return null;
+        }
+        return read(i);
+    }
+
+    @Override
+    public Spectra current() {
+        return m_current;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        return m_next < m_cache.size();
+    }
+
+    @Override
+    public synchronized Spectra next() {
+        if (m_next >= m_cache.size()) {
+            m_current = null;
+            return null;
+        }
+        m_current = read(m_next++);
+        m_countReadSpectra++;
+        m_current.setReadID(m_nextID++);
+        return m_current;
+    }
+
+    @Override
+    public void gatherData() {
+        // the cache already knows
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_countReadSpectra;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return true;
+    }
+
+    @Override
+    public synchronized void restart() {
+        m_next = 0;
+        m_nextID = 0;
+        m_current = null;
+    }
+
+    @Override
+    public void close() {
+        m_cache.close();
+    }
+
+}
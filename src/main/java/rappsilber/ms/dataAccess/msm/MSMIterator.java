@@ -34,6 +34,7 @@ import java.util.zip.GZIPInputStream;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.dataAccess.utils.RobustFileInputStream;
+import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.match.PreliminaryMatch;
 import rappsilber.utils.Util;
@@ -141,6 +142,17 @@ public class MSMIterator extends AbstractMSMAccess {
      * @throws java.io.FileNotFoundException
      */
     public MSMIterator(InputStream msmfile, String source, ToleranceUnit t, int minCharge, RunConfig config, int firstID) throws FileNotFoundException, ParseException, IOException  {
+        this(msmfile, source, t, minCharge, config, firstID, null);
+    }
+
+    /**
+     * provides a new msm-file based SpectraIterator that already knows the
+     * sequences before reading the first scan
+     * @param msmfile
+     * @throws java.io.FileNotFoundException
+     */
+    MSMIterator(InputStream msmfile, String source, ToleranceUnit t, int minCharge, RunConfig config, int firstID, SequenceList sequences) throws FileNotFoundException, ParseException, IOException  {
+        setSequences(sequences);
         setToleranceUnit(t);
         m_nextID = firstID;
         m_MinChargeState = minCharge;
@@ -511,7 +523,9 @@ public class MSMIterator extends AbstractMSMAccess {
         boolean hasTitle=false;
         while (line != null) {
             try {
-                if (line.startsWith("BEGIN IONS")) {
+                if (s != null && !line.isEmpty() && line.charAt(0) <= '9' && PeakLineParser.addPeak(line, s)) {
+                    // the bulk of the lines - plain "mz intensity" peaks
+                } else if (line.startsWith("BEGIN IONS")) {
                     //s = Spectra.getSpectra(); // we read a new spectra
                     s = new Spectra(); // we read a new spectra
                     s.setTolearance(m_ToleranceUnit);
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.msm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Reads uncompressed mgf-files by parsing chunks of the file in parallel.
+ * <br/>The file is read in large blocks through a {@link FileChannel} and
+ * each block is extended up to the next "BEGIN IONS" at the start of a line.
+ * So every chunk only contains complete spectra and gets parsed by its own
+ * {@link MSMIterator} on a small pool of threads - meaning the spectra come
+ * out exactly as if the file was read by a single {@link MSMIterator}.
+ * Spectra are returned in the order of the file.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ParallelMGFIterator extends AbstractMSMAccess {
+
+    /** how much to read at least per chunk */
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    /** how much more to read at a time while looking for the end of a chunk */
+    private static final int BOUNDARY_READ = 64 * 1024;
+    /** what starts a new spectrum */
+    private static final byte[] SPECTRUM_START = "\nBEGIN IONS".getBytes();
+
+    /**
+     * parses one chunk of the file
+     */
+    private class ChunkParser implements Callable<ArrayList<Spectra>> {
+        byte[] m_data;
+        int m_length;
+
+        public ChunkParser(byte[] data, int length) {
+            m_data = data;
+            m_length = length;
+        }
+
+        @Override
+        public ArrayList<Spectra> call() throws Exception {
+            ArrayList<Spectra> ret = new ArrayList<Spectra>();
+            MSMIterator chunk = new MSMIterator(new ByteArrayInputStream(m_data, 0, m_length), m_source, getToleranceUnit(), m_MinChargeState, m_config, 0, getSequences());
+            while (chunk.hasNext()) {
+                ret.add(chunk.next());
+            }
+            chunk.close();
+            m_data = null;
+            return ret;
+        }
+    }
+
+    Spectra         m_current   = null;
+    File            m_inputFile = null;
+    String          m_source = "";
+    private int     m_countReadSpectra = 0;
+    private int     m_nextID = 0;
+    RunConfig       m_config;
+    int             m_MinChargeState = 1;
+
+    /** the file */
+    private FileInputStream m_inputStream;
+    private FileChannel m_channel;
+    private long m_fileSize;
+    /** where the next chunk starts */
+    private long m_position = 0;
+
+    /** parses the chunks */
+    private final ExecutorService m_parser;
+    /** chunks read but not yet returned - in the order of the file */
+    private final ArrayDeque<Future<ArrayList<Spectra>>> m_pending = new ArrayDeque<Future<ArrayList<Spectra>>>();
+    /** how many chunks to read ahead */
+    private final int m_readAhead;
+    /** spectra of the current chunk */
+    private ArrayList<Spectra> m_chunk = null;
+    /** next spectrum to return from the current chunk */
+    private int m_chunkIndex = 0;
+
+    /**
+     * provides a new mgf-file based SpectraIterator
+     * @param mgffile
+     * @param t tolerance assigned to the spectra
+     * @param minCharge
+     * @param config
+     * @throws java.io.FileNotFoundException
+     */
+    public ParallelMGFIterator(File mgffile, ToleranceUnit t, int minCharge, RunConfig config) throws FileNotFoundException, IOException {
+        setToleranceUnit(t);
+        m_MinChargeState = minCharge;
+        m_config = config;
+
+        int threads = 2;
+        if (config != null) {
+            threads = config.retrieveObject("MGF_READER_THREADS", threads);
+        }
+        threads = Math.max(1, threads);
+        m_readAhead = threads * 2;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final String name = mgffile.getName();
+        m_parser = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mgf_parse_" + threadCount.incrementAndGet() + "_" + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        m_inputFile = mgffile;
+        m_inputPath = mgffile.getAbsolutePath();
+        m_source = mgffile.getName();
+        setInputPath(m_inputPath);
+        openFile();
+    }
+
+    private void openFile() throws FileNotFoundException, IOException {
+        m_inputStream = new FileInputStream(m_inputFile);
+        m_channel = m_inputStream.getChannel();
+        m_fileSize = m_channel.size();
+        m_position = 0;
+        byte[] magic = new byte[2];
+        if (readFully(0, magic, 0, 2) == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            closeFile();
+            throw new IOException(m_inputFile + " is compressed - can't be read in parallel chunks");
+        }
+    }
+
+    private void closeFile() {
+        try {
+            if (m_channel != null) {
+                m_channel.close();
+            }
+            if (m_inputStream != null) {
+                m_inputStream.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Error while closing " + m_inputPath, ex);
+        }
+        m_channel = null;
+        m_inputStream = null;
+    }
+
+    /**
+     * reads from the file
+     * @return number of bytes read - only less then length at the end of the file
+     */
+    private int readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+        int total = 0;
+        while (bb.hasRemaining()) {
+            int read = m_channel.read(bb, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * reads the next chunk of complete spectra and hands it to the parser
+     * @return false if there was nothing left to read
+     */
+    private boolean readChunk() throws IOException {
+        if (m_channel == null || m_position >= m_fileSize) {
+            return false;
+        }
+        long start = m_position;
+        long remaining = m_fileSize - start;
+        if (remaining <= CHUNK_SIZE) {
+            // the rest of the file
+            byte[] data = new byte[(int) remaining];
+            int len = readFully(start, data, 0, data.length);
+            m_position = m_fileSize;
+            m_pending.add(m_parser.submit(new ChunkParser(data, len)));
+            return true;
+        }
+
+        byte[] data = new byte[CHUNK_SIZE + BOUNDARY_READ];
+        int len = readFully(start, data, 0, CHUNK_SIZE);
+        int searchFrom = len - 1;
+        while (true) {
+            int boundary = indexOf(data, len, searchFrom);
+            if (boundary >= 0) {
+                // the chunk ends right before the "BEGIN IONS"
+                m_position = start + boundary + 1;
+                m_pending.add(m_parser.submit(new ChunkParser(data, boundary + 1)));
+                return true;
+            }
+            if (start + len >= m_fileSize) {
+                // no further spectrum - so take everything
+                m_position = m_fileSize;
+                m_pending.add(m_parser.submit(new ChunkParser(data, len)));
+                return true;
+            }
+            if (data.length - len < BOUNDARY_READ) {
+                data = Arrays.copyOf(data, data.length + BOUNDARY_READ * 16);
+            }
+            searchFrom = Math.max(0, len - SPECTRUM_START.length + 1);
+            len += readFully(start + len, data, len, BOUNDARY_READ);
+        }
+    }
+
+    /**
+     * finds the next spectrum start
+     * @return index of the line break in front of the next "BEGIN IONS" or -1
+     */
+    private static int indexOf(byte[] data, int length, int from) {
+        int last = length - SPECTRUM_START.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            for (int j = 1; j < SPECTRUM_START.length; j++) {
+                if (data[i + j] != SPECTRUM_START[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * makes sure that - if there is a spectrum left - m_chunk contains it
+     * @return true if there is a spectrum left
+     */
+    private boolean advance() {
+        while (m_chunk == null || m_chunkIndex >= m_chunk.size()) {
+            m_chunk = null;
+            try {
+                while (m_pending.size() < m_readAhead && readChunk()) {
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error reading " + m_inputPath, ex);
+                closeFile();
+            }
+            Future<ArrayList<Spectra>> f = m_pending.poll();
+            if (f == null) {
+                return false;
+            }
+            try {
+                m_chunk = f.get();
+                m_chunkIndex = 0;
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error reading " + m_inputPath, ex);
+                if (m_config != null) {
+                    m_config.getStatusInterface().setStatus("Error reading peaklist" + ex);
+                }
+                System.exit(-1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * returns the current Spectra
+     * @return
+     */
+    public Spectra current() {
+        return m_current;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        return advance();
+    }
+
+    @Override
+    public synchronized Spectra next() {
+        if (!advance()) {
+            m_current = null;
+            return null;
+        }
+        m_current = m_chunk.get(m_chunkIndex);
+        // don't keep the spectra alive longer then needed
+        m_chunk.set(m_chunkIndex++, null);
+
+        m_current.setSource(m_inputPath);
+        m_current.setPeakFileName(m_source);
+        m_countReadSpectra++;
+        m_current.setReadID(m_nextID++);
+        return m_current;
+    }
+
+    /**
+     * gathers the information the same way as the {@link MSMIterator}
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    @Override
+    public void gatherData() throws FileNotFoundException, IOException {
+        try {
+            MSMIterator msm = new MSMIterator(m_inputFile, getToleranceUnit(), m_MinChargeState, m_config);
+            msm.gatherData();
+            m_MaxPrecursorMass = msm.getMaxPrecursorMass();
+            m_scanCount = msm.getSpectraCount();
+            msm.close();
+        } catch (ParseException ex) {
+            throw new IOException("Error while gathering information from " + m_inputFile, ex);
+        }
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_countReadSpectra;
+    }
+
+    private void clearPending() {
+        for (Future<ArrayList<Spectra>> f : m_pending) {
+            f.cancel(true);
+        }
+        m_pending.clear();
+        m_chunk = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        clearPending();
+        closeFile();
+        m_parser.shutdownNow();
+    }
+
+    @Override
+    public boolean canRestart() {
+        return m_inputFile != null;
+    }
+
+    @Override
+    public synchronized void restart() throws IOException {
+        if (canRestart()) {
+            clearPending();
+            closeFile();
+            m_nextID = 0;
+            m_current = null;
+            openFile();
+        }
+    }
+
+    /**
+     * @return the m_nextID
+     */
+    public int getNextID() {
+        return m_nextID;
+    }
+
+    /**
+     * @param m_nextID the m_nextID to set
+     */
+    public void setNextID(int m_nextID) {
+        this.m_nextID = m_nextID;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.msm;
+
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Hand written parser for the peak lines of peak-lists.
+ * <br/>Peak lines make up nearly all of a peak-list and the usual form is
+ * just "mz intensity". These get parsed here without a regular expression and
+ * without creating substrings. Everything that is not of that simple form
+ * (exponents, more than one dot, missing white-space, ...) is rejected and
+ * should be handed to the regular expression as before - so the accepted
+ * lines are a subset of what <code>RE_PEAK_ENTRY</code> accepts and lead to
+ * exactly the same values as {@link Double#parseDouble(java.lang.String)}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public final class PeakLineParser {
+
+    /** powers of ten that are exactly representable as double */
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /** up to this many digits the mantissa is exactly representable */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private PeakLineParser() {
+    }
+
+    /**
+     * if the line is of the form "mz intensity" the peak gets added to the
+     * spectrum.
+     * @param line
+     * @param s
+     * @return true if the line was a simple peak line and the peak was added;
+     * false if the line needs to be looked at in some other way.
+     */
+    public static boolean addPeak(String line, Spectra s) {
+        int len = line.length();
+        int p = skipWhiteSpace(line, 0, len);
+
+        int mzStart = p;
+        p = numberEnd(line, p, len);
+        if (p < 0) {
+            return false;
+        }
+        int mzEnd = p;
+
+        int intStart = skipWhiteSpace(line, p, len);
+        if (intStart == mzEnd) {
+            // no separator
+            return false;
+        }
+        p = numberEnd(line, intStart, len);
+        if (p < 0) {
+            return false;
+        }
+        int intEnd = p;
+        if (skipWhiteSpace(line, p, len) != len) {
+            // something else follows
+            return false;
+        }
+
+        s.addPeak(parseDouble(line, mzStart, mzEnd), parseDouble(line, intStart, intEnd));
+        return true;
+    }
+
+    /**
+     * finds the end of a plain decimal number ([0-9]+ with at most one dot)
+     * @return end of the number or -1 if there is no plain number
+     */
+    private static int numberEnd(String line, int p, int len) {
+        boolean digits = false;
+        boolean dot = false;
+        while (p < len) {
+            char c = line.charAt(p);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.') {
+                if (dot) {
+                    return -1;
+                }
+                dot = true;
+            } else if (isWhiteSpace(c)) {
+                break;
+            } else {
+                return -1;
+            }
+            p++;
+        }
+        return digits ? p : -1;
+    }
+
+    private static int skipWhiteSpace(String line, int p, int len) {
+        while (p < len && isWhiteSpace(line.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * same as the white space of regular expressions (\s)
+     */
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * parses a plain decimal number. If the digits and the decimal places
+     * are few enough, the value is computed directly as a single correctly
+     * rounded division of two exactly representable doubles - which gives the
+     * same result as {@link Double#parseDouble(java.lang.String)}. Otherwise
+     * it is handed to {@link Double#parseDouble(java.lang.String)}.
+     */
+    private static double parseDouble(String line, int start, int end) {
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean dot = false;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.') {
+                dot = true;
+                continue;
+            }
+            if (mantissa == 0 && c == '0') {
+                // leading zeros don't count towards the precision
+                if (dot) {
+                    decimals++;
+                }
+                continue;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+            digits++;
+            if (dot) {
+                decimals++;
+            }
+            if (digits > MAX_EXACT_DIGITS) {
+                return Double.parseDouble(line.substring(start, end));
+            }
+        }
+        if (decimals >= POW10.length) {
+            return Double.parseDouble(line.substring(start, end));
+        }
+        return mantissa / POW10[decimals];
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.msm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.dataAccess.SpectraAccess;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
+
+/**
+ * A binary container for the spectra read from a peak-list.
+ * <br/>When the same peak-list gets searched again and again (e.g. while
+ * tuning cross-linker or modification settings), the spectra are read from
+ * this file instead of parsing the peak-list each time. The file consists of
+ * <ul>
+ * <li>a fixed size header (number of spectra, where the index starts and
+ * what gatherData() found in the peak-list)</li>
+ * <li>one record per spectrum with the precursor information and the peaks
+ * as plain m/z and intensity arrays</li>
+ * <li>the index - the offset, run and scan number of each record - so
+ * spectra can also be read by run and scan number</li>
+ * </ul>
+ * The file gets written to a temporary file of its own and atomically moved
+ * into place once it is complete - so concurrent searches never see or write
+ * into a partial cache. The name contains a hash of everything that influences the
+ * spectra read from the peak-list (see
+ * {@link #cacheKey(java.io.File, int, rappsilber.config.RunConfig)}).
+ * <br/>Isotope clusters are not stored as they are annotated for each search
+ * with the settings of that search.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class SpectraCacheFile {
+    /** identifies a cache file ("XiSPECCA") */
+    private static final long CACHE_MAGIC = 0x5869535045434341L;
+    /** version of the file format */
+    private static final int CACHE_VERSION = 1;
+    /** size of the header */
+    private static final int CACHE_HEADER_SIZE = 64;
+    /** extension of cache files */
+    public static final String EXTENSION = ".xispc";
+    /** how much gets read at once when reading through the file */
+    private static final int READ_WINDOW = 1024 * 1024;
+
+    private final File m_file;
+    private final RandomAccessFile m_raf;
+    private final FileChannel m_channel;
+    private final int m_count;
+    private final long m_indexOffset;
+    private final double m_maxPrecursorMass;
+    private final int m_scanCount;
+    /** where each record starts */
+    private final long[] m_offsets;
+    /** run of each record (index into m_runs) */
+    private final int[] m_runIds;
+    /** scan number of each record */
+    private final int[] m_scans;
+    /** does the record have a scan number */
+    private final boolean[] m_hasScan;
+    private final String[] m_runs;
+    /** run to scan to record - only build when needed */
+    private HashMap<String, HashMap<Integer, Integer>> m_scanIndex;
+
+    /** the part of the file that was read last */
+    private ByteBuffer m_window = ByteBuffer.allocate(0);
+    private long m_windowStart = 0;
+
+    /**
+     * opens a cache file
+     * @param f
+     * @throws IOException if the file is not a complete cache file
+     */
+    public SpectraCacheFile(File f) throws IOException {
+        m_file = f;
+        m_raf = new RandomAccessFile(f, "r");
+        m_channel = m_raf.getChannel();
+        try {
+            ByteBuffer header = readBytes(0, CACHE_HEADER_SIZE);
+            if (header.getLong() != CACHE_MAGIC || header.getInt() != CACHE_VERSION) {
+                throw new IOException(f + " is not a spectra cache file of the current version");
+            }
+            m_count = header.getInt();
+            m_indexOffset = header.getLong();
+            m_maxPrecursorMass = header.getDouble();
+            m_scanCount = header.getInt();
+            if (m_indexOffset < CACHE_HEADER_SIZE || m_indexOffset > m_channel.size()) {
+                throw new IOException(f + " is not a complete spectra cache file");
+            }
+
+            ByteBuffer index = readBytes(m_indexOffset, (int) (m_channel.size() - m_indexOffset));
+            int runCount = index.getInt();
+            m_runs = new String[runCount];
+            for (int r = 0; r < runCount; r++) {
+                m_runs[r] = getString(index);
+            }
+            m_offsets = new long[m_count + 1];
+            m_runIds = new int[m_count];
+            m_scans = new int[m_count];
+            m_hasScan = new boolean[m_count];
+            for (int i = 0; i < m_count; i++) {
+                m_offsets[i] = index.getLong();
+                m_runIds[i] = index.getInt();
+                m_hasScan[i] = index.get() != 0;
+                m_scans[i] = index.getInt();
+            }
+            m_offsets[m_count] = m_indexOffset;
+        } catch (IOException | RuntimeException ex) {
+            m_raf.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("Could not read " + f, ex);
+        }
+    }
+
+    /**
+     * a hash of everything that influences what spectra are read from a
+     * peak-list: the file itself (path, size and modification time), the
+     * minimum charge state, the reader used for the peak-list and the settings
+     * that are applied while reading.
+     * @param peaklist
+     * @param minCharge
+     * @param config
+     * @return hex-string of the hash
+     */
+    public static String cacheKey(File peaklist, int minCharge, RunConfig config) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Error(ex);
+        }
+        StringBuilder key = new StringBuilder();
+        key.append("CACHE_VERSION:").append(CACHE_VERSION).append('\n');
+        key.append("file:").append(peaklist.getAbsolutePath()).append('\n');
+        key.append("length:").append(peaklist.length()).append('\n');
+        key.append("modified:").append(peaklist.lastModified()).append('\n');
+        key.append("minCharge:").append(minCharge).append('\n');
+        if (config != null) {
+            key.append("SCAN_RE:").append(config.retrieveObject("SCAN_RE", "")).append('\n');
+            key.append("RUN_RE:").append(config.retrieveObject("RUN_RE", "")).append('\n');
+            // the reader that fills the cache
+            key.append("MZMLREADER:").append(config.retrieveObject("MZMLREADER", "jmzml").toLowerCase()).append('\n');
+            key.append("MGFREADER:").append(config.retrieveObject("MGFREADER", "default").toLowerCase()).append('\n');
+            key.append("additionalMZ:").append(config.getAdditionalPrecursorMZOffsets()).append('\n');
+            key.append("additionalMZUnknownCharge:").append(config.getAdditionalPrecursorMZOffsetsUnknowChargeStates()).append('\n');
+        }
+        md.update(key.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * where the cache for a peak-list would be found
+     * @param cacheDir
+     * @param peaklist
+     * @param minCharge
+     * @param config
+     * @return
+     */
+    public static File cacheFile(String cacheDir, File peaklist, int minCharge, RunConfig config) {
+        String name = peaklist.getName().replaceAll("[^a-zA-Z0-9\\._\\-]+", "_");
+        return new File(cacheDir, name + "_" + cacheKey(peaklist, minCharge, config) + EXTENSION);
+    }
+
+    /**
+     * returns an access to the spectra of the peak-list that reads from the
+     * cache. If there is no cache for the peak-list yet, the peak-list gets
+     * read once and the cache gets written.
+     * @param peaklist
+     * @param t tolerance assigned to the spectra
+     * @param minCharge
+     * @param config
+     * @param cacheDir
+     * @return
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static AbstractMSMAccess getCachedAccess(File peaklist, ToleranceUnit t, int minCharge, RunConfig config, String cacheDir) throws IOException, ParseException {
+        File cache = cacheFile(cacheDir, peaklist, minCharge, config);
+        if (cache.exists()) {
+            try {
+                return new CachedMSMIterator(new SpectraCacheFile(cache), peaklist, t, config);
+            } catch (IOException ex) {
+                Logger.getLogger(SpectraCacheFile.class.getName()).log(Level.WARNING, "Could not read spectra cache " + cache + " - recreating it", ex);
+            }
+        }
+
+        // gather the information on its own reader - some readers consume the spectra while doing so
+        AbstractMSMAccess gather = AbstractMSMAccess.openPeakListFile(peaklist, t, minCharge, config);
+        gather.gatherData();
+        gather.close();
+        AbstractMSMAccess source = AbstractMSMAccess.openPeakListFile(peaklist, t, minCharge, config);
+        try {
+            new File(cacheDir).mkdirs();
+            if (write(source, cache, gather.getMaxPrecursorMass(), gather.getSpectraCount())) {
+                return new CachedMSMIterator(new SpectraCacheFile(cache), peaklist, t, config);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SpectraCacheFile.class.getName()).log(Level.WARNING, "Could not write spectra cache " + cache, ex);
+        } finally {
+            source.close();
+        }
+        // could not cache it - so just read the peak-list
+        return AbstractMSMAccess.openPeakListFile(peaklist, t, minCharge, config);
+    }
+
+    /**
+     * reads all spectra from the source and writes them into a cache file.
+     * @param source
+     * @param f
+     * @param maxPrecursorMass what gatherData found as maximum precursor mass
+     * @param scanCount what gatherData found as number of spectra
+     * @return false if the spectra can't be cached (they come with
+     * preliminary matches or a candidate tolerance)
+     * @throws IOException
+     */
+    public static boolean write(SpectraAccess source, File f, double maxPrecursorMass, int scanCount) throws IOException {
+        // each writer gets its own temporary file next to the cache
+        File dir = f.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(f.getName() + ".", ".tmp", dir);
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        ArrayList<Integer> runIds = new ArrayList<Integer>();
+        ArrayList<Integer> scans = new ArrayList<Integer>();
+        ArrayList<String> runs = new ArrayList<String>();
+        HashMap<String, Integer> runIndex = new HashMap<String, Integer>();
+        long indexOffset;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+        try {
+            out.write(new byte[CACHE_HEADER_SIZE]);
+            while (source.hasNext()) {
+                Spectra s = source.next();
+                if (s == null) {
+                    continue;
+                }
+                if (!s.getPreliminaryMatch().isEmpty() || s.getPeptideCandidateTolerance() != null) {
+                    out.close();
+                    tmp.delete();
+                    Logger.getLogger(SpectraCacheFile.class.getName()).log(Level.INFO, "Spectra with preliminary matches can not be cached");
+                    return false;
+                }
+                offsets.add((long) out.size() & 0xFFFFFFFFL);
+                if (out.size() == Integer.MAX_VALUE) {
+                    // DataOutputStream.size() stops counting at 2GB
+                    throw new IOException("Peak-list to large to be cached");
+                }
+                String run = s.getRun();
+                Integer r = runIndex.get(run);
+                if (r == null) {
+                    r = runs.size();
+                    runs.add(run);
+                    runIndex.put(run, r);
+                }
+                runIds.add(r);
+                scans.add(s.getScanNumber());
+                writeSpectrum(out, s);
+            }
+            indexOffset = out.size();
+            if (indexOffset == Integer.MAX_VALUE) {
+                throw new IOException("Peak-list to large to be cached");
+            }
+            out.writeInt(runs.size());
+            for (String run : runs) {
+                putString(out, run);
+            }
+            for (int i = 0; i < offsets.size(); i++) {
+                out.writeLong(offsets.get(i));
+                out.writeInt(runIds.get(i));
+                Integer scan = scans.get(i);
+                out.writeByte(scan == null ? 0 : 1);
+                out.writeInt(scan == null ? 0 : scan);
+            }
+        } catch (IOException | RuntimeException ex) {
+            out.close();
+            tmp.delete();
+            throw ex;
+        }
+        out.close();
+
+        // now that we know it - write the header
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.writeLong(CACHE_MAGIC);
+            raf.writeInt(CACHE_VERSION);
+            raf.writeInt(offsets.size());
+            raf.writeLong(indexOffset);
+            raf.writeDouble(maxPrecursorMass);
+            raf.writeInt(scanCount);
+        } finally {
+            raf.close();
+        }
+        try {
+            try {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Logger.getLogger(SpectraCacheFile.class.getName()).log(Level.INFO, "Spectra cache written to {0}", f);
+        return true;
+    }
+
+    private static void writeSpectrum(DataOutputStream out, Spectra s) throws IOException {
+        putString(out, s.getScanTitle());
+        putString(out, s.getRun());
+        Integer scan = s.getScanNumber();
+        out.writeByte(scan == null ? 0 : 1);
+        out.writeInt(scan == null ? 0 : scan);
+        out.writeDouble(s.getElutionTimeStart());
+        out.writeDouble(s.getElutionTimeEnd());
+        out.writeDouble(s.getPrecurserIntensity());
+        out.writeDouble(s.getPrecurserMZExp());
+        out.writeDouble(s.getPrecurserMZ());
+        out.writeInt(s.getPrecurserChargeExp());
+        out.writeInt(s.getPrecurserCharge());
+        int[] alternatives = s.getPrecoursorChargeAlternatives();
+        if (alternatives == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(alternatives.length);
+            for (int c : alternatives) {
+                out.writeInt(c);
+            }
+        }
+        putDoubles(out, s.getAdditionalMZ());
+        List<Integer> charges = s.getAdditionalCharge();
+        if (charges == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(charges.size());
+            for (Integer c : charges) {
+                out.writeInt(c);
+            }
+        }
+        putDoubles(out, s.getPeptideCandidateMasses());
+        putDoubles(out, s.getPeptideCandidateMassWeights());
+
+        SpectraPeak[] peaks = s.getPeaksArray();
+        out.writeInt(peaks.length);
+        for (SpectraPeak p : peaks) {
+            out.writeDouble(p.getMZ());
+        }
+        for (SpectraPeak p : peaks) {
+            out.writeDouble(p.getIntensity());
+        }
+    }
+
+    /**
+     * reads a spectrum from the cache
+     * @param i number of the spectrum
+     * @param t tolerance assigned to the spectrum
+     * @return
+     * @throws IOException
+     */
+    public synchronized Spectra read(int i, ToleranceUnit t) throws IOException {
+        long start = m_offsets[i];
+        int length = (int) (m_offsets[i + 1] - start);
+        if (start < m_windowStart || start + length > m_windowStart + m_window.limit()) {
+            m_window = readBytes(start, (int) Math.min(Math.max(READ_WINDOW, length), m_indexOffset - start));
+            m_windowStart = start;
+        }
+        ByteBuffer bb = m_window;
+        bb.position((int) (start - m_windowStart));
+
+        Spectra s = new Spectra();
+        s.setTolearance(t);
+        s.setScanTitle(getString(bb));
+        s.setRun(getString(bb));
+        boolean hasScan = bb.get() != 0;
+        int scan = bb.getInt();
+        if (hasScan) {
+            s.setScanNumber(scan);
+        }
+        s.setElutionTimeStart(bb.getDouble());
+        s.setElutionTimeEnd(bb.getDouble());
+        s.setPrecurserIntensity(bb.getDouble());
+        double mzExp = bb.getDouble();
+        double mz = bb.getDouble();
+        if (mzExp != -1) {
+            s.setPrecurserMZExp(mzExp);
+        }
+        if (mz != -1) {
+            s.setPrecurserMZ(mz);
+        }
+        int chargeExp = bb.getInt();
+        int charge = bb.getInt();
+        if (chargeExp != -1) {
+            s.setPrecurserCharge(chargeExp);
+        }
+        if (charge != -1) {
+            s.setPrecurserCharge(charge);
+        }
+        int alternativeCount = bb.getInt();
+        int[] alternatives = null;
+        if (alternativeCount >= 0) {
+            alternatives = new int[alternativeCount];
+            for (int a = 0; a < alternativeCount; a++) {
+                alternatives[a] = bb.getInt();
+            }
+        }
+        s.setPrecoursorChargeAlternatives(alternatives);
+        s.setAdditionalMZ(getDoubles(bb));
+        int chargeCount = bb.getInt();
+        if (chargeCount >= 0) {
+            int[] charges = new int[chargeCount];
+            for (int c = 0; c < chargeCount; c++) {
+                charges[c] = bb.getInt();
+            }
+            s.setAdditionalCharge(charges);
+        }
+        ArrayList<Double> masses = getDoubles(bb);
+        ArrayList<Double> weights = getDoubles(bb);
+        if (masses != null) {
+            for (int m = 0; m < masses.size(); m++) {
+                s.addPeptideCandidateMass(masses.get(m), weights.get(m));
+            }
+        }
+
+        int peakCount = bb.getInt();
+        int mzPos = bb.position();
+        int intensityPos = mzPos + peakCount * 8;
+        for (int p = 0; p < peakCount; p++) {
+            s.addPeak(bb.getDouble(mzPos + p * 8), bb.getDouble(intensityPos + p * 8));
+        }
+        return s;
+    }
+
+    /**
+     * @return number of spectra in the cache
+     */
+    public int size() {
+        return m_count;
+    }
+
+    /**
+     * @return the maximum precursor mass gatherData() found in the peak-list
+     */
+    public double getMaxPrecursorMass() {
+        return m_maxPrecursorMass;
+    }
+
+    /**
+     * @return the number of spectra gatherData() found in the peak-list
+     */
+    public int getScanCount() {
+        return m_scanCount;
+    }
+
+    /**
+     * @param i
+     * @return the run of the i-th spectrum
+     */
+    public String getRun(int i) {
+        return m_runs[m_runIds[i]];
+    }
+
+    /**
+     * @param i
+     * @return the scan number of the i-th spectrum (or null)
+     */
+    public Integer getScanNumber(int i) {
+        return m_hasScan[i] ? m_scans[i] : null;
+    }
+
+    /**
+     * finds a spectrum by run and scan number
+     * @param run
+     * @param scan
+     * @return the number of the spectrum or -1 if not found
+     */
+    public synchronized int indexOf(String run, int scan) {
+        if (m_scanIndex == null) {
+            m_scanIndex = new HashMap<String, HashMap<Integer, Integer>>();
+            for (int i = m_count - 1; i >= 0; i--) {
+                if (m_hasScan[i]) {
+                    String r = m_runs[m_runIds[i]];
+                    HashMap<Integer, Integer> scans = m_scanIndex.get(r);
+                    if (scans == null) {
+                        scans = new HashMap<Integer, Integer>();
+                        m_scanIndex.put(r, scans);
+                    }
+                    // the first spectrum for a scan wins
+                    scans.put(m_scans[i], i);
+                }
+            }
+        }
+        HashMap<Integer, Integer> scans = m_scanIndex.get(run);
+        if (scans == null) {
+            return -1;
+        }
+        Integer i = scans.get(scan);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return the cache file
+     */
+    public File getFile() {
+        return m_file;
+    }
+
+    public void close() {
+        try {
+            m_raf.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SpectraCacheFile.class.getName()).log(Level.WARNING, "Error closing " + m_file, ex);
+        }
+    }
+
+    private ByteBuffer readBytes(long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (m_channel.read(bb, position + bb.position()) < 0) {
+                throw new IOException("Unexpected end of " + m_file);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String getString(ByteBuffer bb) {
+        int length = bb.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(bb.array(), bb.arrayOffset() + bb.position(), length, StandardCharsets.UTF_8);
+        bb.position(bb.position() + length);
+        return s;
+    }
+
+    private static void putDoubles(DataOutputStream out, List<Double> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(values.size());
+            for (Double d : values) {
+                out.writeDouble(d);
+            }
+        }
+    }
+
+    private static ArrayList<Double> getDoubles(ByteBuffer bb) {
+        int count = bb.getInt();
+        if (count < 0) {
+            return null;
+        }
+        ArrayList<Double> ret = new ArrayList<Double>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(bb.getDouble());
+        }
+        return ret;
+    }
+}
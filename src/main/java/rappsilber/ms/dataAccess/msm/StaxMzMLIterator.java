@@ -0,0 +1,755 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.msm;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Reads mzML files by streaming through them with StAX.
+ * <br/>Alternative to {@link MzMLIterator} that does not go through jmzml.
+ * Only the header of each spectrum is parsed on the reading thread - MS1
+ * spectra are skipped without decoding their binary data and for MS2
+ * spectra the base64 (and zlib) encoded arrays are decoded straight into
+ * primitive arrays on a small pool of decoder threads. Spectra are still
+ * returned in the order of the file.
+ * <br/>If the file is an indexedmzML, {@link #gatherData()} uses the
+ * spectrum offsets of the index and only reads the header of each spectrum
+ * instead of parsing the whole file.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class StaxMzMLIterator extends AbstractMSMAccess {
+
+    private static final String ACC_MS_LEVEL = "MS:1000511";
+    private static final String ACC_SCAN_START_TIME = "MS:1000016";
+    private static final String ACC_SELECTED_MZ = "MS:1000744";
+    private static final String ACC_CHARGE = "MS:1000041";
+    private static final String ACC_PEAK_INTENSITY = "MS:1000042";
+    private static final String ACC_MZ_ARRAY = "MS:1000514";
+    private static final String ACC_INTENSITY_ARRAY = "MS:1000515";
+    private static final String ACC_32BIT_FLOAT = "MS:1000521";
+    private static final String ACC_64BIT_FLOAT = "MS:1000523";
+    private static final String ACC_ZLIB = "MS:1000574";
+    private static final String ACC_NO_COMPRESSION = "MS:1000576";
+
+    private static final Pattern INDEX_LIST_OFFSET = Pattern.compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+    private static final Pattern INDEX_OFFSET = Pattern.compile("<offset[^>]*>\\s*([0-9]+)\\s*</offset>");
+
+    /**
+     * one encoded binary data array
+     */
+    private static class BinaryArray {
+        String data;
+        boolean doublePrecision = true;
+        boolean zlib = false;
+        String unsupportedCompression = null;
+        int length = -1;
+
+        /**
+         * @return the values of the array
+         */
+        double[] decode() throws IOException {
+            if (unsupportedCompression != null) {
+                throw new IOException("Unsupported compression of binary data (" + unsupportedCompression + ")");
+            }
+            byte[] bytes = Base64.getMimeDecoder().decode(data);
+            if (zlib) {
+                bytes = inflate(bytes);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int count = bytes.length / (doublePrecision ? 8 : 4);
+            if (length >= 0 && length < count) {
+                count = length;
+            }
+            double[] ret = new double[count];
+            if (doublePrecision) {
+                bb.asDoubleBuffer().get(ret);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    ret[i] = bb.getFloat();
+                }
+            }
+            return ret;
+        }
+
+        private static byte[] inflate(byte[] compressed) throws IOException {
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            byte[] out = new byte[Math.max(compressed.length * 4, 64)];
+            int len = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (len == out.length) {
+                        out = java.util.Arrays.copyOf(out, out.length * 2);
+                    }
+                    int read = inflater.inflate(out, len, out.length - len);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    len += read;
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Could not decompress binary data", ex);
+            } finally {
+                inflater.end();
+            }
+            return java.util.Arrays.copyOf(out, len);
+        }
+    }
+
+    /**
+     * the not yet decoded content of a MS2 spectrum
+     */
+    private class RawSpectrum implements Callable<Spectra> {
+        Integer index;
+        String id;
+        double rt = 0;
+        float precMZ = 0;
+        float precIntensity = 0;
+        int precCharge = 0;
+        BinaryArray mz;
+        BinaryArray intensity;
+
+        /**
+         * decodes the peaks and turns this into a spectrum
+         */
+        @Override
+        public Spectra call() throws Exception {
+            if (mz == null || intensity == null) {
+                throw new IOException("Spectrum " + id + " is missing the m/z or intensity array");
+            }
+            double[] mzs = mz.decode();
+            double[] intensities = intensity.decode();
+            if (mzs.length != intensities.length) {
+                throw new IOException("Spectrum " + id + " has " + mzs.length + " m/z values but " + intensities.length + " intensities");
+            }
+            // same precision as MzMLIterator for the precursor
+            Spectra s = new Spectra(rt, precIntensity, precMZ, precCharge);
+            s.setTolearance(getToleranceUnit());
+            for (int p = 0; p < mzs.length; p++) {
+                s.addPeak(mzs[p], intensities[p]);
+            }
+            s.setScanNumber(index);
+            s.setScanTitle(id);
+            s.setRun(m_source);
+            return s;
+        }
+    }
+
+    Spectra         m_current   = null;
+    File            m_inputFile = null;
+    String          m_source = "";
+    private int     m_countReadSpectra = 0;
+    private int     m_nextID = 0;
+    RunConfig       m_config;
+
+    /** stream through the file */
+    private InputStream m_inputStream;
+    private XMLStreamReader m_reader;
+    private final XMLInputFactory m_xmlFactory;
+    /** have we seen the end of the spectrum list */
+    private boolean m_endOfFile = false;
+
+    /** decodes the binary data */
+    private final ExecutorService m_decoder;
+    /** spectra read but not yet returned - in the order of the file */
+    private final ArrayDeque<Future<Spectra>> m_pending = new ArrayDeque<Future<Spectra>>();
+    /** how many spectra to read ahead */
+    private final int m_readAhead;
+
+    /**
+     * provides a new mzML-file based SpectraIterator
+     * @param mzmlfile
+     * @param t tolerance assigned to the spectra
+     * @param minCharge
+     * @param config
+     * @throws java.io.FileNotFoundException
+     */
+    public StaxMzMLIterator(File mzmlfile, ToleranceUnit t, int minCharge, RunConfig config) throws FileNotFoundException, IOException {
+        this(mzmlfile, t, minCharge, config, 0);
+    }
+
+    /**
+     * provides a new mzML-file based SpectraIterator
+     * @param mzmlfile
+     * @param t tolerance assigned to the spectra
+     * @param minCharge
+     * @param config
+     * @param firstID read id of the first spectrum
+     * @throws java.io.FileNotFoundException
+     */
+    public StaxMzMLIterator(File mzmlfile, ToleranceUnit t, int minCharge, RunConfig config, int firstID) throws FileNotFoundException, IOException {
+        m_nextID = firstID;
+        setToleranceUnit(t);
+        m_config = config;
+
+        int threads = 2;
+        if (config != null) {
+            threads = config.retrieveObject("MZML_DECODER_THREADS", threads);
+        }
+        threads = Math.max(1, threads);
+        m_readAhead = threads * 8;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final String name = mzmlfile.getName();
+        m_decoder = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "mzML_decode_" + threadCount.incrementAndGet() + "_" + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        m_xmlFactory = XMLInputFactory.newInstance();
+        m_xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        m_xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        inputFromFile(mzmlfile);
+    }
+
+    protected void inputFromFile(File mzmlfile) throws FileNotFoundException, IOException {
+        m_inputFile = mzmlfile;
+        m_inputPath = mzmlfile.getAbsolutePath();
+        m_source = mzmlfile.getName();
+        openReader();
+    }
+
+    private void openReader() throws FileNotFoundException, IOException {
+        m_inputStream = new BufferedInputStream(new FileInputStream(m_inputFile), 1024 * 1024);
+        try {
+            m_reader = m_xmlFactory.createXMLStreamReader(m_inputStream);
+        } catch (XMLStreamException ex) {
+            m_inputStream.close();
+            throw new IOException("Could not open " + m_inputFile + " as xml", ex);
+        }
+        m_endOfFile = false;
+    }
+
+    private void closeReader() {
+        try {
+            if (m_reader != null) {
+                m_reader.close();
+            }
+            if (m_inputStream != null) {
+                m_inputStream.close();
+            }
+        } catch (XMLStreamException | IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Error while closing " + m_inputPath, ex);
+        }
+        m_reader = null;
+        m_inputStream = null;
+        m_endOfFile = true;
+    }
+
+    /**
+     * reads spectra until enough are queued up for decoding
+     */
+    private void fillPending() {
+        while (!m_endOfFile && m_pending.size() < m_readAhead) {
+            try {
+                RawSpectrum raw = readNextMS2(m_reader, false);
+                if (raw == null) {
+                    closeReader();
+                } else {
+                    m_pending.add(m_decoder.submit(raw));
+                }
+            } catch (XMLStreamException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error reading " + m_inputPath, ex);
+                closeReader();
+            }
+        }
+    }
+
+    /**
+     * returns the current Spectra
+     * @return
+     */
+    public Spectra current() {
+        return m_current;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        fillPending();
+        return !m_pending.isEmpty();
+    }
+
+    @Override
+    public synchronized Spectra next() {
+        fillPending();
+        Future<Spectra> f = m_pending.poll();
+        if (f == null) {
+            m_current = null;
+            return null;
+        }
+        try {
+            m_current = f.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error decoding spectrum from " + m_inputPath, ex);
+            m_current = null;
+            return null;
+        }
+        // keep the decoders busy
+        fillPending();
+
+        m_current.setSource(m_inputPath);
+        m_current.setPeakFileName(m_source);
+        m_countReadSpectra++;
+        if (m_current.getTolearance() == null) {
+            m_current.setTolearance(getToleranceUnit());
+        }
+        m_current.setReadID(m_nextID++);
+
+        if (m_current.getAdditionalMZ() == null && m_config != null) {
+            m_current.setAdditionalMZ(m_config.getAdditionalPrecursorMZOffsets());
+            if (m_current.getPrecoursorChargeAlternatives().length > 1) {
+                HashSet<Double> mz = new HashSet<>();
+                if (m_config.getAdditionalPrecursorMZOffsets() != null) {
+                    mz.addAll(m_config.getAdditionalPrecursorMZOffsets());
+                }
+                mz.addAll(m_config.getAdditionalPrecursorMZOffsetsUnknowChargeStates());
+                m_current.setAdditionalMZ(mz);
+            }
+        }
+        return m_current;
+    }
+
+    /**
+     * reads forward to the next MS2 spectrum
+     * @param reader
+     * @param headerOnly if true the binary data are not read
+     * @return the spectrum or null if there are no more spectra
+     * @throws XMLStreamException
+     */
+    private RawSpectrum readNextMS2(XMLStreamReader reader, boolean headerOnly) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("spectrum".equals(reader.getLocalName())) {
+                    RawSpectrum raw = readSpectrum(reader, headerOnly);
+                    if (raw != null) {
+                        return raw;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && "spectrumList".equals(reader.getLocalName())) {
+                // there is nothing of interest after the spectra
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * reads the spectrum the reader is positioned at.
+     * @param reader
+     * @param headerOnly if true the binary data are not read
+     * @return the spectrum or null if it is not a MS2 spectrum
+     * @throws XMLStreamException
+     */
+    private RawSpectrum readSpectrum(XMLStreamReader reader, boolean headerOnly) throws XMLStreamException {
+        RawSpectrum raw = new RawSpectrum();
+        String index = reader.getAttributeValue(null, "index");
+        raw.index = index == null ? null : Integer.valueOf(index.trim());
+        raw.id = reader.getAttributeValue(null, "id");
+        int defaultLength = parseInt(reader.getAttributeValue(null, "defaultArrayLength"), -1);
+
+        String msLevel = null;
+        boolean inScan = false;
+        boolean inSelectedIon = false;
+        boolean selectedIonRead = false;
+        BinaryArray array = null;
+        Boolean arrayIsMZ = null;
+        int depth = 0;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String name = reader.getLocalName();
+                if ("cvParam".equals(name)) {
+                    String acc = reader.getAttributeValue(null, "accession");
+                    String value = reader.getAttributeValue(null, "value");
+                    if (depth == 1 && ACC_MS_LEVEL.equals(acc)) {
+                        msLevel = value == null ? "" : value.trim();
+                        if (!"2".equals(msLevel)) {
+                            // not interested - skip it without looking at the data
+                            skipElement(reader, depth);
+                            return null;
+                        }
+                    } else if (inScan && ACC_SCAN_START_TIME.equals(acc)) {
+                        raw.rt = Double.parseDouble(value.trim());
+                    } else if (inSelectedIon) {
+                        if (ACC_SELECTED_MZ.equals(acc)) {
+                            raw.precMZ = Float.parseFloat(value.trim());
+                        } else if (ACC_CHARGE.equals(acc)) {
+                            raw.precCharge = Integer.parseInt(value.trim());
+                        } else if (ACC_PEAK_INTENSITY.equals(acc)) {
+                            raw.precIntensity = Float.parseFloat(value.trim());
+                        }
+                    } else if (array != null) {
+                        if (ACC_MZ_ARRAY.equals(acc)) {
+                            arrayIsMZ = Boolean.TRUE;
+                        } else if (ACC_INTENSITY_ARRAY.equals(acc)) {
+                            arrayIsMZ = Boolean.FALSE;
+                        } else if (ACC_64BIT_FLOAT.equals(acc)) {
+                            array.doublePrecision = true;
+                        } else if (ACC_32BIT_FLOAT.equals(acc)) {
+                            array.doublePrecision = false;
+                        } else if (ACC_ZLIB.equals(acc)) {
+                            array.zlib = true;
+                        } else if (ACC_NO_COMPRESSION.equals(acc)) {
+                            array.zlib = false;
+                        } else if (isCompressionTerm(reader.getAttributeValue(null, "name"))) {
+                            array.unsupportedCompression = reader.getAttributeValue(null, "name");
+                        }
+                    }
+                } else if ("scan".equals(name)) {
+                    inScan = true;
+                } else if ("selectedIon".equals(name)) {
+                    // like MzMLIterator we only look at the first selected ion
+                    inSelectedIon = !selectedIonRead;
+                } else if ("binaryDataArrayList".equals(name)) {
+                    if (headerOnly) {
+                        skipElement(reader, depth);
+                        return "2".equals(msLevel) ? raw : null;
+                    }
+                } else if ("binaryDataArray".equals(name)) {
+                    array = new BinaryArray();
+                    array.length = parseInt(reader.getAttributeValue(null, "arrayLength"), defaultLength);
+                    arrayIsMZ = null;
+                } else if ("binary".equals(name) && array != null) {
+                    array.data = reader.getElementText();
+                    depth--;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth < 0) {
+                    // end of the spectrum
+                    return "2".equals(msLevel) ? raw : null;
+                }
+                String name = reader.getLocalName();
+                if ("scan".equals(name)) {
+                    inScan = false;
+                } else if ("selectedIon".equals(name)) {
+                    if (inSelectedIon) {
+                        selectedIonRead = true;
+                    }
+                    inSelectedIon = false;
+                } else if ("binaryDataArray".equals(name)) {
+                    if (arrayIsMZ == Boolean.TRUE) {
+                        raw.mz = array;
+                    } else if (arrayIsMZ == Boolean.FALSE) {
+                        raw.intensity = array;
+                    }
+                    array = null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * is the cv-term name one of the compression terms we can not decode
+     * (e.g. numpress)
+     */
+    private static boolean isCompressionTerm(String name) {
+        return name != null && name.toLowerCase().contains("compression") && !name.equalsIgnoreCase("zlib compression") && !name.equalsIgnoreCase("no compression");
+    }
+
+    /**
+     * skips to the end of the spectrum
+     * @param reader
+     * @param depth current depth within the spectrum element
+     */
+    private static void skipElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                if (depth < 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gathers the number of MS2 spectra and the maximal precursor mass.
+     * If the file has an index, only the header of each spectrum is read.
+     * @throws FileNotFoundException
+     */
+    @Override
+    public void gatherData() throws FileNotFoundException {
+        try {
+            if (gatherDataFromIndex()) {
+                return;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Could not use the index of " + m_inputPath + " - reading the whole file", ex);
+        }
+        gatherDataByScanning();
+    }
+
+    /**
+     * uses the spectrum offsets of an indexedmzML to read only the header of
+     * each spectrum
+     * @return false if there is no usable index
+     * @throws IOException
+     */
+    private boolean gatherDataFromIndex() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(m_inputFile, "r");
+        try {
+            long fileLength = raf.length();
+            // the offset of the index is at the end of the file
+            int tailLength = (int) Math.min(fileLength, 4096);
+            String tail = readString(raf, fileLength - tailLength, tailLength);
+            Matcher m = INDEX_LIST_OFFSET.matcher(tail);
+            if (!m.find()) {
+                return false;
+            }
+            long indexOffset = Long.parseLong(m.group(1));
+            if (indexOffset <= 0 || indexOffset >= fileLength) {
+                return false;
+            }
+            String index = readString(raf, indexOffset, (int) Math.min(fileLength - indexOffset, Integer.MAX_VALUE));
+            int spectrumIndexStart = index.indexOf("<index name=\"spectrum\"");
+            if (spectrumIndexStart < 0) {
+                return false;
+            }
+            int spectrumIndexEnd = index.indexOf("</index>", spectrumIndexStart);
+            if (spectrumIndexEnd < 0) {
+                return false;
+            }
+            LongArrayList offsets = new LongArrayList();
+            m = INDEX_OFFSET.matcher(index.substring(spectrumIndexStart, spectrumIndexEnd));
+            while (m.find()) {
+                offsets.add(Long.parseLong(m.group(1)));
+            }
+
+            int ms2count = 0;
+            double maxmass = 0;
+            byte[] buffer = new byte[4096];
+            StringBuilder header = new StringBuilder();
+            for (int i = 0; i < offsets.size(); i++) {
+                long start = offsets.getLong(i);
+                long end = i + 1 < offsets.size() ? offsets.getLong(i + 1) : indexOffset;
+                // read till the binary data start
+                header.setLength(0);
+                long pos = start;
+                raf.seek(start);
+                int headerEnd = -1;
+                while (pos < end && headerEnd < 0) {
+                    int read = raf.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+                    if (read <= 0) {
+                        break;
+                    }
+                    int searchFrom = Math.max(0, header.length() - 32);
+                    header.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+                    pos += read;
+                    headerEnd = header.indexOf("<binaryDataArrayList", searchFrom);
+                }
+                if (!header.toString().startsWith("<spectrum")) {
+                    // offsets don't fit the file
+                    return false;
+                }
+                String h = headerEnd < 0 ? header.toString() : header.substring(0, headerEnd);
+                String msLevel = cvParamValue(h, ACC_MS_LEVEL);
+                if (msLevel != null && msLevel.trim().equals("2")) {
+                    ms2count++;
+                    String mz = cvParamValue(h, ACC_SELECTED_MZ);
+                    String charge = cvParamValue(h, ACC_CHARGE);
+                    if (mz != null && charge != null) {
+                        int parCharge = Integer.parseInt(charge.trim());
+                        if (parCharge != 0) {
+                            double mass = Math.abs(Float.parseFloat(mz.trim()) * parCharge);
+                            if (mass > maxmass) {
+                                maxmass = mass;
+                            }
+                        }
+                    }
+                }
+            }
+            m_MaxPrecursorMass = maxmass;
+            m_scanCount = ms2count;
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * the value of the first cvParam with the given accession
+     * @param xml
+     * @param accession
+     * @return the value or null if not found
+     */
+    private static String cvParamValue(String xml, String accession) {
+        int a = xml.indexOf("\"" + accession + "\"");
+        if (a < 0) {
+            return null;
+        }
+        int tagStart = xml.lastIndexOf('<', a);
+        int tagEnd = xml.indexOf('>', a);
+        if (tagStart < 0 || tagEnd < 0) {
+            return null;
+        }
+        String tag = xml.substring(tagStart, tagEnd);
+        int v = tag.indexOf(" value=\"");
+        if (v < 0) {
+            return null;
+        }
+        v += 8;
+        int ve = tag.indexOf('"', v);
+        if (ve < 0) {
+            return null;
+        }
+        return tag.substring(v, ve);
+    }
+
+    private static String readString(RandomAccessFile raf, long pos, int length) throws IOException {
+        byte[] data = new byte[length];
+        raf.seek(pos);
+        raf.readFully(data);
+        return new String(data, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * no index - so go through the whole file but still without decoding
+     * any binary data
+     * @throws FileNotFoundException
+     */
+    private void gatherDataByScanning() throws FileNotFoundException {
+        int ms2count = 0;
+        double maxmass = 0;
+        InputStream is = new BufferedInputStream(new FileInputStream(m_inputFile), 1024 * 1024);
+        try {
+            XMLStreamReader reader = m_xmlFactory.createXMLStreamReader(is);
+            RawSpectrum raw;
+            while ((raw = readNextMS2(reader, true)) != null) {
+                ms2count++;
+                if (raw.precCharge != 0) {
+                    double mass = Math.abs(raw.precMZ * raw.precCharge);
+                    if (mass > maxmass) {
+                        maxmass = mass;
+                    }
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error reading " + m_inputPath, ex);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ex) {
+            }
+        }
+        m_MaxPrecursorMass = maxmass;
+        m_scanCount = ms2count;
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_countReadSpectra;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Future<Spectra> f : m_pending) {
+            f.cancel(true);
+        }
+        m_pending.clear();
+        closeReader();
+        m_decoder.shutdownNow();
+    }
+
+    @Override
+    public boolean canRestart() {
+        return m_inputFile != null;
+    }
+
+    @Override
+    public synchronized void restart() throws IOException {
+        if (canRestart()) {
+            for (Future<Spectra> f : m_pending) {
+                f.cancel(true);
+            }
+            m_pending.clear();
+            closeReader();
+            m_nextID = 0;
+            openReader();
+        }
+    }
+
+    /**
+     * @return the m_nextID
+     */
+    public int getNextID() {
+        return m_nextID;
+    }
+
+    /**
+     * @param m_nextID the m_nextID to set
+     */
+    public void setNextID(int m_nextID) {
+        this.m_nextID = m_nextID;
+    }
+
+}
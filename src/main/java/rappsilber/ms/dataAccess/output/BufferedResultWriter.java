@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.LinkedList;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -491,6 +492,23 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
 
     public int bufferedMatches() {
         return m_buffer.size();
+    }
+
+    /**
+     * @return number of matches currently waiting in any active buffer
+     */
+    public static int countBufferedMatches() {
+        int c = 0;
+        try {
+            for (BufferedResultWriter brw : allActiveWriters.toArray(new BufferedResultWriter[0])) {
+                if (brw != null) {
+                    c += brw.bufferedMatches();
+                }
+            }
+        } catch (ConcurrentModificationException ex) {
+            // the list changed while reading it - just report what we have
+        }
+        return c;
     }    
     public boolean isAlive() {
         return m_runner.isAlive();
@@ -502,7 +520,8 @@ public class BufferedResultWriter extends AbstractStackedResultWriter implements
     public void selfFlush() {
 //        boolean doFlush;
         m_doFlush.set(true);
-        if (m_runner.isAlive() && !m_buffer.isEmpty()) {
+        // a match could already be taken from the buffer but not yet be written
+        if (m_runner.isAlive() && (!m_buffer.isEmpty() || m_countForwardedMatches.get() < m_countMatches.get())) {
             while ((m_doFlush.get() || (m_finished.get() && !m_buffer.isEmpty())) && m_runner.isAlive() ) {
                 try {
                     Thread.sleep(100);
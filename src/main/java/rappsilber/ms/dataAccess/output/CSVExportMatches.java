@@ -15,42 +15,54 @@
  */
 package rappsilber.ms.dataAccess.output;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.text.DecimalFormat;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 import rappsilber.config.RunConfig;
-import rappsilber.ms.crosslinker.CrossLinker;
-import rappsilber.ms.score.ScoreSpectraMatch;
-import rappsilber.ms.sequence.AminoAcid;
-import rappsilber.ms.sequence.AminoModification;
-import rappsilber.ms.sequence.NonProteinPeptide;
-import rappsilber.ms.sequence.Peptide;
-import rappsilber.ms.sequence.Sequence;
-import rappsilber.ms.sequence.fasta.FastaHeader;
-import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
-import rappsilber.ms.spectra.match.MatchedXlinkedPeptideWeighted;
-import rappsilber.utils.MyArrayUtils;
+import rappsilber.utils.FastDecimalFormat;
+import rappsilber.utils.ParallelGZIPOutputStream;
 import rappsilber.utils.Util;
 
 /**
- *
+ * Writes the matches as csv-file.
+ * <br/>Each row is assembled in a reused buffer and encoded into a reused
+ * byte buffer. Compressed output can be compressed on several threads (see
+ * {@link #GZIP_THREADS_KEY}).
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 public class CSVExportMatches extends AbstractResultWriter implements ResultWriter{
 
+    /** config key for the number of threads compressing gzip output (0 compresses in the writing thread) */
+    public static final String GZIP_THREADS_KEY = "CSV_GZIP_THREADS";
+
     public RunConfig m_config;
     /** the stream used to write something */
-    PrintStream m_out;
+    OutputStream m_out;
+    /** the current row */
+    private final StringBuilder m_line = new StringBuilder(4096);
+    private char[] m_chars = new char[4096];
+    private ByteBuffer m_bytes = ByteBuffer.allocate(8192);
+    private final CharsetEncoder m_encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final String m_lineSeparator = System.lineSeparator();
+    /** set if writing failed at some point */
+    private boolean m_error = false;
+    /** the output already has a header */
+    private boolean m_append = false;
     private int m_resultCount=0;
     private int m_topResultCount=0;
     private boolean m_isOpenModification = false;
@@ -62,8 +74,12 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
     private boolean quoteDoubles=false;
     private String localNumberGroupingSeperator;
     private String localNumberDecimalSeparator;
-    private NumberFormat numberFormat;
+    private FastDecimalFormat numberFormat;
     private Locale locale=Locale.ENGLISH;
+    /** the columns of the output - created when first needed */
+    private MatchColumns m_columns;
+    /** values of the current match */
+    private MatchColumns.Row m_row;
 
     /**
      * create a new class and connect it to the given output stream
@@ -79,12 +95,17 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
      */
     public CSVExportMatches(OutputStream out, RunConfig config, boolean gziped) throws IOException {
         this.gziped=gziped;
+        m_config = config;
         if (gziped) {
-            m_out = new PrintStream(new GZIPOutputStream(out));
+            int threads = config == null ? 0 : config.retrieveObject(GZIP_THREADS_KEY, 0);
+            if (threads > 0) {
+                m_out = new BufferedOutputStream(new ParallelGZIPOutputStream(out, threads), 64 * 1024);
+            } else {
+                m_out = new BufferedOutputStream(new GZIPOutputStream(out, 64 * 1024), 64 * 1024);
+            }
         } else {
-            m_out = new PrintStream(out);
+            m_out = new BufferedOutputStream(out, 64 * 1024);
         }
-        m_config = config;
         setLocale(Locale.getDefault());
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -107,14 +128,12 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
     
     public void setLocale(Locale locale) {
         this.locale = locale;
-        numberFormat = NumberFormat.getNumberInstance(locale);
-        DecimalFormat fformat  = (DecimalFormat) numberFormat;
-        fformat.setGroupingUsed(false);
-        DecimalFormatSymbols symbols=fformat.getDecimalFormatSymbols();
-        fformat.setMaximumFractionDigits(6);
+        numberFormat = new FastDecimalFormat(locale, 6);
+        DecimalFormatSymbols symbols=numberFormat.getDecimalFormat().getDecimalFormatSymbols();
         localNumberGroupingSeperator= ""+symbols.getGroupingSeparator();
         localNumberDecimalSeparator= ""+symbols.getDecimalSeparator();
         quoteDoubles = localNumberDecimalSeparator.contentEquals(delimChar);
+        m_columns = null;
     }
 
     
@@ -149,370 +168,175 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
      */
     public void setQuoteChar(String quoteChar) {
         this.quoteChar = quoteChar;
+        m_columns = null;
     }
     
-    private String scanHeader() {
-        return "Run"+ delimChar + "Scan" + delimChar + "ScanTitle" + delimChar + 
-                "peakListFileName"+ delimChar + "ScanId"+ delimChar + 
-                "Source" + delimChar + "ElutionStart"+ delimChar + 
-                "ElutionEnd"+ delimChar + "PrecursorMass"+ delimChar + 
-                "PrecoursorCharge"+ delimChar + "PrecurserMZ"+ delimChar + 
-                "PrecurserIntensity"+ delimChar + "CalcMass"+ delimChar + 
-                "CalcMZ"+ delimChar + "validated"+ delimChar + 
-                "decoy"+ delimChar + "MatchRank";
-    }
-
-    private String peptideHeader(int PeptideNumber) {
-        PeptideNumber++;
-        String ret = delimChar +"Protein"+ PeptideNumber +
-                delimChar +"Name"+ PeptideNumber +
-                delimChar +"Description"+ PeptideNumber +
-                delimChar +"Fasta"+ PeptideNumber +
-                delimChar +"Protein"+ PeptideNumber + "decoy" +
-                delimChar +"Peptide" + PeptideNumber +
-                delimChar +"BasePeptide" + PeptideNumber +
-                delimChar +"PeptideLinkMap" + PeptideNumber +
-                delimChar +"PeptideMass" + PeptideNumber +
-                delimChar +"PeptideWeight" + PeptideNumber +
-                delimChar +"Start" + PeptideNumber +
-                delimChar +"LengthPeptide" + PeptideNumber +
-                delimChar +"Link" + PeptideNumber +
-                delimChar +"Linked AminoAcid " + PeptideNumber +
-                delimChar +"LinkWindow" + PeptideNumber +
-                delimChar +"ProteinLink" + PeptideNumber +
-                delimChar +"ProteinCount" + PeptideNumber +
-                delimChar +"PositionCount" + PeptideNumber +
-                delimChar +"Modifications" + PeptideNumber +
-                delimChar +"ModificationPositions" + PeptideNumber +
-                delimChar +"ModificationMasses" + PeptideNumber +
-                delimChar +"OpenModPosition" + PeptideNumber +
-                delimChar +"OpenMass" + PeptideNumber +
-                delimChar +"OpenModWindow" + PeptideNumber;
-                
-        return ret;
-    }
-
-    private String crosslinkerHeader() {
-        String header = delimChar +"Crosslinker"+ delimChar + "CrosslinkerMass"+ delimChar + " decoyCrosslinker";
-        return header;
-    }
-
-    private String scoreHeader() {
-        String header = "";
-        Collection<ScoreSpectraMatch> scores = m_config.getScores();
-        for (ScoreSpectraMatch score : scores) {
-            for (String name : score.scoreNames() ) {
-                header += delimChar + name;
-            }
-        }
-        return header;
-    }
-
-    private String d2s(double d) {
+    private StringBuilder appendDouble(StringBuilder sb, double d) {
         if (Double.isNaN(d) || Double.isInfinite(d)) {
-            return Double.toString(d);
+            return sb.append(d);
         }
         if (quoteDoubles) {
-            return quoteChar + numberFormat.format(d) + quoteChar;
+            return numberFormat.append(sb.append(quoteChar), d).append(quoteChar);
         } else {
-            return numberFormat.format(d);
-        }
-    }
-    
-    private String i2s(int i) {
-        return numberFormat.format(i);
-    }
-    
-    private String scanValues(MatchedXlinkedPeptide match) {
-        Spectra s = match.getSpectrum();
-        try {
-            double calcMass = match.getPeptides()[0].getMass();
-            if (match.getPeptide(1) != null) {
-                calcMass += match.getPeptides()[1].getMass() + match.getCrosslinker().getCrossLinkedMass();
-            }
-            double calcMZ = calcMass / s.getPrecurserCharge() + Util.PROTON_MASS;
-
-            return quoteChar + s.getRun().replace(quoteChar, " ") + quoteChar + delimChar + 
-                    i2s(s.getScanNumber()) + delimChar  + 
-                    quoteChar + s.getScanTitle().replace(quoteChar, " ") + quoteChar + delimChar + 
-                    quoteChar + s.getPeakFileName().replace(quoteChar, quoteChar+quoteChar) + quoteChar + delimChar  + 
-                    i2s(s.getReadID()) + delimChar + quoteChar + s.getSource() + quoteChar + delimChar  +
-                    d2s(s.getElutionTimeStart()) + delimChar + 
-                    d2s(s.getElutionTimeEnd()) + delimChar +
-                    d2s(s.getPrecurserMass()) + delimChar + 
-                    s.getPrecurserCharge() + delimChar +
-                    d2s(s.getPrecurserMZ()) + delimChar + 
-                    d2s(s.getPrecurserIntensity()) + delimChar + 
-                    d2s(calcMass) + delimChar + d2s(calcMZ) + delimChar + 
-                    match.isValidated() + delimChar + 
-                    (match.isDecoy()?"1":"0") + delimChar + match.getMatchrank();
-        } catch (Exception e) {
-            throw new Error(e);
+            return numberFormat.append(sb, d);
         }
     }
 
-    private String CrosslinkerValues(MatchedXlinkedPeptide match) {
-        CrossLinker cl = match.getCrosslinker();
-        if (cl == null) {
-            return MyArrayUtils.toString(Collections.nCopies(3, delimChar), "");
-        } else {
-            return delimChar+quoteChar + cl.getName().replace(quoteChar, " ") + quoteChar + delimChar +
-                    d2s(cl.getCrossLinkedMass()) + delimChar + (match.getCrosslinker().isDecoy()?"1":"0");
+    /**
+     * the columns for the matches
+     */
+    private MatchColumns columns() {
+        if (m_columns == null) {
+            m_columns = new MatchColumns(m_config, quoteChar, numberFormat);
+            m_row = m_columns.newRow();
         }
+        return m_columns;
     }
 
-    private String peptideValues(MatchedXlinkedPeptide match, int PeptideNumber) {
-        Peptide[]  peps = match.getPeptides();
-
-        if (peps.length > PeptideNumber) {
-            double[] weights = null;
-            if (match instanceof MatchedXlinkedPeptideWeighted) {
-                weights = ((MatchedXlinkedPeptideWeighted) match).getLinkageWeights(PeptideNumber);
-            } else {
-                weights = new double[peps[PeptideNumber].length()];
-                java.util.Arrays.fill(weights, 0);
-            }
-            Peptide p = match.getPeptides()[PeptideNumber];
-            int ipepLinkSite = (match.getLinkingSite(PeptideNumber));
-            Peptide.PeptidePositions[] pps = p.getPositions();
-            StringBuilder sbAccessions= new  StringBuilder();
-            StringBuilder sbNames = new  StringBuilder();
-            StringBuilder sbDescription = new  StringBuilder();
-            StringBuilder sbFasta = new  StringBuilder();
-            StringBuilder sbPepStart = new  StringBuilder();
-            StringBuilder sbProtLink = new  StringBuilder();
-            for (Peptide.PeptidePositions pp : pps) {
-                FastaHeader fh=pp.base.getSplitFastaHeader();
-                String name = fh.isSplit() ? pp.base.getSplitFastaHeader().getName(): "";
-                if (name != null) {
-                    name = name.replace(quoteChar, " ").replace(";", " ");
-                } else {
-                    name = "";
-                }
-                sbAccessions.append(pp.base.getSplitFastaHeader().getAccession().replace(quoteChar, " ").replace(";", " ")).append(";");
-                sbNames.append(name).append(";");
-                sbDescription.append((fh.isSplit() ? fh.getDescription().replace(quoteChar, " ").replace(";", " ") : "")).append(";");
-                sbFasta.append(fh.getHeader().replace(quoteChar, " ").replace(";", " ")).append(";");
-                sbPepStart.append(i2s(pp.start+1)).append(";");
-                sbProtLink.append(i2s(pp.start+ipepLinkSite+1)).append(";");
-            }
-            //FastaHeader fh = p.getSequence().getSplitFastaHeader();
-            String accession = sbAccessions.substring(0,sbAccessions.length()-1);
-            String name = sbNames.substring(0,sbNames.length()-1);
-            String description = sbDescription.substring(0,sbDescription.length()-1);
-            String fasta = sbFasta.substring(0,sbFasta.length()-1);
-            String decoy = (p.getSequence().isDecoy() ? "1" : "0");
-            String pepsequence = p.toString();
-            String pepBaseSequence = p.toStringBaseSequence();
-            String pepWeightedSequence = p.toString(weights);
-            String pepMass = d2s(p.getMass()) ;
-            String pepStart = sbPepStart.substring(0, sbPepStart.length()-1);
-            String pepLength = Integer.toString(p.length());
-            String pepLinkSite = ipepLinkSite < 0 ? "" : i2s(ipepLinkSite + 1);
-            String linkedAAA = ipepLinkSite < 0 ? "" : p.aminoAcidAt(ipepLinkSite).toString();
-            String linkWindow = ipepLinkSite < 0 ? "" : sequenceWindow(p, ipepLinkSite, 20);
-            String protLinkSite = ipepLinkSite < 0 ? "" : sbProtLink.substring(0, sbProtLink.length()-1).replace(localNumberGroupingSeperator, "");
-            if (pps.length >1) {
-                pepStart="\""+pepStart+"\"";
-                protLinkSite="\""+protLinkSite+"\"";
-            }
-            String protCount =  i2s(p.getProteinCount());
-            String siteCounts = i2s(p.getPositions().length);
-            String pepWeight = "";
-            if (PeptideNumber == 0) {
-                pepWeight = ""+d2s(match.getPeptide1Weight());
+    /**
+     * formats a row as csv-line
+     * @param line where to append the row to
+     * @param columns
+     * @param row
+     */
+    private void appendRow(StringBuilder line, MatchColumns.Column[] columns, MatchColumns.Row row) {
+        for (int c = 0; c < columns.length; c++) {
+            MatchColumns.Column col = columns[c];
+            boolean isNull = row.isNull(c);
+            if (c > 0 && (isNull || col.getFormat() != MatchColumns.Format.APPEND)) {
+                line.append(delimChar);
             }
-            if (PeptideNumber == 1) {
-                pepWeight = ""+d2s(match.getPeptide2Weight());
+            if (isNull) {
+                continue;
             }
-            if (p.isNTerminal() || p instanceof NonProteinPeptide) {
-                pepsequence = "-." + pepsequence;
-            } else {
-                StringBuilder sb = new StringBuilder();
-                HashSet<String> found = new HashSet<String>(pps.length);
-                for (Peptide.PeptidePositions pp : pps) {
-                    String aa = "-";
-                    if (pp.start >0) {
-                        aa = pp.base.aminoAcidAt(pp.start-1).toString();
+            switch (col.getType()) {
+                case DOUBLE:
+                    appendDouble(line, row.getDouble(c));
+                    break;
+                case INT:
+                    if (col.getFormat() == MatchColumns.Format.NUMBER) {
+                        numberFormat.append(line, row.getInt(c));
+                    } else {
+                        line.append(row.getInt(c));
                     }
-                    if (!found.contains(aa)) {
-                        sb.append(aa);
-                        found.add(aa);
+                    break;
+                default:
+                    String v = row.getText(c);
+                    switch (col.getFormat()) {
+                        case QUOTED:
+                            line.append(quoteChar).append(v).append(quoteChar);
+                            break;
+                        case QUOTED_ESCAPED:
+                            line.append(quoteChar).append(v.replace(quoteChar, quoteChar+quoteChar)).append(quoteChar);
+                            break;
+                        case QUOTED_IF_DELIMITER:
+                            if (v.contains(delimChar)) {
+                                line.append(quoteChar).append(v).append(quoteChar);
+                            } else {
+                                line.append(v);
+                            }
+                            break;
+                        case QUOTED_IF_MULTIPLE:
+                            if (row.getInt(col.getReference()) > 1) {
+                                line.append('"').append(v).append('"');
+                            } else {
+                                line.append(v);
+                            }
+                            break;
+                        default:
+                            line.append(v);
                     }
-                }
-                if (found.size() >1) {
-                    pepsequence = "[" + sb + "]." + pepsequence;
-                } else {
-                    pepsequence = sb + "." + pepsequence;
-                }
-                
             }
+        }
+    }
 
-            if (p.isCTerminal() || p instanceof NonProteinPeptide) {
-                pepsequence += ".-";
-            } else {
-                StringBuilder sb = new StringBuilder();
-                HashSet<String> found = new HashSet<String>(pps.length);
-                for (Peptide.PeptidePositions pp : pps) {
-                    String aa = "-";
-                    if (pp.base.length() > pp.start + p.length()) {
-                        aa = pp.base.aminoAcidAt(pp.start+p.length()).toString();
-                    }
-                    if (!found.contains(aa)) {
-                        sb.append(aa);
-                        found.add(aa);
-                    }
-                }
-                if (found.size() >1) {
-                    pepsequence += ".[" + sb +"]";
-                } else {
-                    pepsequence += "." + sb +"";
-                }
-            }
-            
-            
-            StringBuilder s = new StringBuilder(delimChar+quoteChar + accession.replace(quoteChar, " ") + quoteChar +
-                    delimChar+quoteChar + name.replace(quoteChar, " ") + quoteChar +
-                    delimChar+quoteChar + description.replace(quoteChar, " ") + quoteChar +
-                    delimChar+quoteChar + fasta.replace(quoteChar, " ") + quoteChar +
-                    delimChar + decoy +
-                    delimChar+quoteChar + pepsequence + quoteChar +
-                    delimChar+quoteChar + pepBaseSequence + quoteChar +
-                    delimChar+quoteChar + pepWeightedSequence + quoteChar +
-                    delimChar + pepMass +
-                    delimChar + pepWeight +
-                    delimChar + pepStart +
-                    delimChar + pepLength +
-                    delimChar + pepLinkSite +
-                    delimChar+quoteChar + linkedAAA + quoteChar +
-                    delimChar+quoteChar + linkWindow + quoteChar +
-                    delimChar + protLinkSite +
-                    delimChar + protCount +
-                    delimChar + siteCounts + delimChar);
-            HashMap<Integer,AminoAcid> mods = p.getModification();
-            if (mods.size() == 0) {
-                s.append(MyArrayUtils.toString(Collections.nCopies(5, delimChar), ""));
-            } else {
-                StringBuilder m = new StringBuilder();
-                StringBuilder mp = new StringBuilder();
-                StringBuilder mm = new StringBuilder();
-                double om_mass = 0;
-                int om_pos = 0;
-                m.append(quoteChar);
-                int modCount = 0;
-                for (Integer i : mods.keySet() ) {
-                    if (mods.get(i) instanceof AminoModification) {
-                        modCount++;
-                        AminoModification mod = (AminoModification) mods.get(i);
-                        m.append(mod.SequenceID + ";");
-                        mp.append((i+1) + ";");
-                        mm.append(mod.weightDiff + ";");
-                        if (mod.SequenceID.contains("_om")) {
-                            om_mass = mod.weightDiff;
-                            om_pos = i;
-                        }
-                    } else {
-                        // replacement of some kind
-                        AminoAcid aaReplacement  = mods.get(i);
-                        AminoAcid aaOrig = p.getSourceSequence().aminoAcidAt(p.getStart()+i);
-                        m.append(aaOrig + "->"+aaReplacement+" ;");
-                        mp.append((i+1) + ";");
-                        mm.append((aaReplacement.mass - aaOrig.mass) + ";");
-                    }
-                }
-                
-                s.append(m.substring(0, m.length() - 1));
-                s.append(quoteChar + delimChar);
-                String smp =mp.substring(0, mp.length() - 1);
-                if (smp.contains(delimChar)) {
-                    s.append(quoteChar);
-                }
-                s.append(smp);
-                if (smp.contains(delimChar)) {
-                    s.append(quoteChar);
-                }
-                s.append(delimChar);
-                if (smp.contains(delimChar)) {
-                    s.append(quoteChar);
+    /**
+     * encodes the line (plus line separator) and writes it out
+     * @param line
+     */
+    private void writeLine(StringBuilder line) {
+        line.append(m_lineSeparator);
+        int len = line.length();
+        if (m_chars.length < len) {
+            m_chars = new char[Math.max(len, m_chars.length * 2)];
+        }
+        line.getChars(0, len, m_chars, 0);
+        CharBuffer cb = CharBuffer.wrap(m_chars, 0, len);
+        m_encoder.reset();
+        m_bytes.clear();
+        try {
+            while (true) {
+                CoderResult cr = cb.hasRemaining() ? m_encoder.encode(cb, m_bytes, true) : CoderResult.UNDERFLOW;
+                if (cr.isUnderflow()) {
+                    cr = m_encoder.flush(m_bytes);
                 }
-                s.append(mm.substring(0, mm.length() - 1));
-                if (smp.contains(delimChar)) {
-                    s.append(quoteChar);
+                if (cr.isUnderflow()) {
+                    break;
                 }
-                if (om_mass == 0) {
-                    s.append(MyArrayUtils.toString(Collections.nCopies(3, delimChar), ""));
+                if (cr.isOverflow()) {
+                    ByteBuffer larger = ByteBuffer.allocate(m_bytes.capacity() * 2);
+                    m_bytes.flip();
+                    larger.put(m_bytes);
+                    m_bytes = larger;
                 } else {
-                    s.append(delimChar + i2s(om_pos+1));
-                    s.append("" + d2s(om_mass));
-                    s.append(delimChar + sequenceWindow(p, om_pos, 20));
+                    cr.throwException();
                 }
-
             }
-
-
-//        return ",Protein"+ PeptideNumber +
-//                ",Peptide" + PeptideNumber +
-//                ",Start" + PeptideNumber +
-//                ",LengthPeptide" + PeptideNumber +
-//                ",Link" + PeptideNumber +
-//                ",ProteinLink" + PeptideNumber;
-            return s.toString();
-        } else {
-            return delimChar +
-                    MyArrayUtils.toString(Collections.nCopies(2, delimChar), "") +
-                    delimChar +
-                    delimChar +
-                    delimChar +
-                    delimChar +
-                    delimChar +
-                    delimChar +
-                    ",,,,,,,,,,,,,,,".replace(",", ""+delimChar)
-                    ;
+            m_out.write(m_bytes.array(), 0, m_bytes.position());
+        } catch (CharacterCodingException ex) {
+            // can't happen as we replace anything unmappable
+            throw new Error(ex);
+        } catch (IOException ex) {
+            if (!m_error) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error writing results", ex);
+            }
+            m_error = true;
         }
     }
 
-    private String scoreValues(MatchedXlinkedPeptide match) {
-        String line = "";
-        Collection<ScoreSpectraMatch> scores = m_config.getScores();
-        for (ScoreSpectraMatch score : scores) {
-            for (String name : score.scoreNames() ) {
-                line += delimChar + d2s(match.getScore(name));
-            }
+    private void switchDelimiter() {
+        if ((!delimCharSet) && delimChar.contentEquals(",") && localNumberDecimalSeparator.contentEquals(delimChar) ) {
+            setDelimChar(";");
         }
-        return line;
     }
 
-
-
     public void writeHeader() {
-        if ((!delimCharSet) && delimChar.contentEquals(",") && localNumberDecimalSeparator.contentEquals(delimChar) ) {
-            setDelimChar(";");
+        writeHeader(columns().getColumns());
+    }
+
+    /**
+     * writes the header for the given columns
+     * @param columns
+     */
+    public void writeHeader(MatchColumns.Column[] columns) {
+        switchDelimiter();
+        if (m_append) {
+            return;
         }
-        StringBuffer Header = new StringBuffer();
-        Header.append(scanHeader());
-        Header.append(crosslinkerHeader());
-        for (int i = 0; i < m_config.getMaxCrosslinkedPeptides(); i++) {
-            Header.append(peptideHeader(i));
+        StringBuilder Header = m_line;
+        Header.setLength(0);
+        for (int c = 0; c < columns.length; c++) {
+            if (c > 0) {
+                Header.append(delimChar);
+            }
+            Header.append(columns[c].getName());
         }
+        writeLine(Header);
+    }
 
-        Header.append(scoreHeader());
-
-        m_out.println(Header);
+    /**
+     * if set no header gets written - e.g. when appending to the output of a
+     * resumed search
+     * @param append
+     */
+    public void setAppend(boolean append) {
+        m_append = append;
     }
 
     public void writeResult(MatchedXlinkedPeptide match) {
-//        Spectra s= match.getSpectra();
-//        if (s == null)
-//            System.out.println("found it");
-        StringBuffer line = new StringBuffer();
-        line.append(scanValues(match));
-        line.append(CrosslinkerValues(match));
-        for (int i = 0; i < m_config.getMaxCrosslinkedPeptides(); i++) {
-            line.append(peptideValues(match, i));
-        }
-        line.append(scoreValues(match));
-
-        m_out.println(line);
+        MatchColumns columns = columns();
+        columns.fill(m_row, match);
+        writeRow(columns.getColumns(), m_row);
         m_resultCount++;
         if (match.getMatchrank() == 1) {
             m_topResultCount++;
@@ -523,9 +347,26 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
 
     }
 
+    /**
+     * writes out a row of values. E.g. to convert {@link ColumnarResultReader
+     * columnar files} into csv.
+     * @param columns
+     * @param row
+     */
+    public void writeRow(MatchColumns.Column[] columns, MatchColumns.Row row) {
+        StringBuilder line = m_line;
+        line.setLength(0);
+        appendRow(line, columns, row);
+        writeLine(line);
+    }
+
     @Override
     public void finished() {
-        m_out.close();
+        try {
+            m_out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error closing the result file", ex);
+        }
         super.finished();
     }
 
@@ -539,41 +380,12 @@ public class CSVExportMatches extends AbstractResultWriter implements ResultWrit
         return m_topResultCount;
     }
 
-    private String sequenceWindow(Peptide p, int pos, int window) {
-        StringBuilder sb = new StringBuilder();
-        StringBuilder end = new StringBuilder();
-        Sequence s = p.getSequence();
-        int sp = p.getStart() + pos;
-        int from = sp - window;
-        int to = sp + window;
-        if (from <0) {
-            for (int l = from; l < 0; l++) {
-                sb.append('.');
-            }
-            from = 0;
-        }
-        
-        if (to >= s.length()) {
-            for (int l = s.length(); l<=to;l++ ) {
-                end.append('.');
-            }
-            to = s.length() - 1;
-        }
-        
-        for (int l = from ; l<= to ; l++) {
-            AminoAcid aa = s.aminoAcidAt(l);
-            if (aa instanceof AminoModification) {
-                sb.append(((AminoModification)aa).BaseAminoAcid.SequenceID);
-            } else {
-                sb.append(aa.SequenceID);
-            }
-        }
-        sb.append(end);
-        return sb.toString();
-    }
-
     public void flush() {
-        m_out.flush();
+        try {
+            m_out.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error writing results", ex);
+        }
     }
 
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by the {@link ColumnarResultWriter} row group by row
+ * group.
+ * <br/>Via {@link #select(java.lang.String...)} the reader can be restricted
+ * to some columns - all other columns are skipped without being decompressed
+ * or decoded. E.g. for only reading some scores:
+ * <pre>
+ * ColumnarResultReader r = new ColumnarResultReader(file);
+ * int score = r.getColumnIndex("match score");
+ * r.select(score);
+ * while (r.next()) {
+ *     double s = r.getDouble(score);
+ * }
+ * r.close();
+ * </pre>
+ * Files without the end marker (e.g. of an interrupted search) are read up to
+ * the last row group.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ColumnarResultReader implements Closeable {
+
+    private final DataInputStream m_in;
+    private final MatchColumns.Column[] m_columns;
+    /** which columns get decoded */
+    private final boolean[] m_selected;
+
+    /** values of the current row group - per column */
+    private final double[][] m_doubles;
+    private final int[][] m_ints;
+    private final String[][] m_dictionaries;
+    /** null bitmaps - or null if a column has no null in the row group */
+    private final byte[][] m_nulls;
+    /** rows in the current row group */
+    private int m_groupRows = 0;
+    /** rows in the row groups read so far */
+    private long m_readRows = 0;
+    /** current row within the row group */
+    private int m_row = -1;
+    private boolean m_end = false;
+    private long m_totalRows = -1;
+
+    private final Inflater m_inflater = new Inflater();
+    private byte[] m_stored = new byte[64 * 1024];
+    private byte[] m_raw = new byte[64 * 1024];
+
+    public ColumnarResultReader(File f) throws IOException {
+        this(new FileInputStream(f));
+    }
+
+    /**
+     * reads the column definitions from the stream
+     * @param in
+     * @throws IOException if the stream does not contain a columnar result file
+     */
+    public ColumnarResultReader(InputStream in) throws IOException {
+        m_in = new DataInputStream(new BufferedInputStream(in, 256 * 1024));
+        byte[] magic = new byte[ColumnarResultWriter.MAGIC.length];
+        try {
+            m_in.readFully(magic);
+        } catch (EOFException ex) {
+            throw new IOException("Not a columnar result file", ex);
+        }
+        if (!Arrays.equals(magic, ColumnarResultWriter.MAGIC)) {
+            throw new IOException("Not a columnar result file");
+        }
+        int version = m_in.readInt();
+        if (version > ColumnarResultWriter.VERSION) {
+            throw new IOException("Unsupported version of columnar result file: " + version);
+        }
+        int n = m_in.readInt();
+        m_columns = new MatchColumns.Column[n];
+        MatchColumns.Type[] types = MatchColumns.Type.values();
+        MatchColumns.Format[] formats = MatchColumns.Format.values();
+        for (int c = 0; c < n; c++) {
+            String name = m_in.readUTF();
+            MatchColumns.Type type = types[m_in.readByte()];
+            MatchColumns.Format format = formats[m_in.readByte()];
+            int reference = m_in.readInt();
+            m_columns[c] = new MatchColumns.Column(name, type, format, reference);
+        }
+        m_selected = new boolean[n];
+        Arrays.fill(m_selected, true);
+        m_doubles = new double[n][];
+        m_ints = new int[n][];
+        m_dictionaries = new String[n][];
+        m_nulls = new byte[n][];
+    }
+
+    public MatchColumns.Column[] getColumns() {
+        return m_columns;
+    }
+
+    /**
+     * @param name
+     * @return the index of the column with the given name or -1
+     */
+    public int getColumnIndex(String name) {
+        for (int c = 0; c < m_columns.length; c++) {
+            if (m_columns[c].getName().equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * restricts reading to the given columns. Should be called before the
+     * first row is read.
+     * @param columns
+     */
+    public void select(int... columns) {
+        Arrays.fill(m_selected, false);
+        for (int c : columns) {
+            m_selected[c] = true;
+        }
+    }
+
+    /**
+     * restricts reading to the given columns. Should be called before the
+     * first row is read.
+     * @param names
+     */
+    public void select(String... names) {
+        int[] cols = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            cols[i] = getColumnIndex(names[i]);
+            if (cols[i] < 0) {
+                throw new IllegalArgumentException("Unknown column " + names[i]);
+            }
+        }
+        select(cols);
+    }
+
+    /**
+     * @return a row that can hold the values of all columns
+     */
+    public MatchColumns.Row newRow() {
+        return new MatchColumns.Row(m_columns.length);
+    }
+
+    /**
+     * moves on to the next row
+     * @return false if there is no more row
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        m_row++;
+        while (m_row >= m_groupRows) {
+            if (m_end || !readRowGroup()) {
+                m_end = true;
+                return false;
+            }
+            m_row = 0;
+        }
+        return true;
+    }
+
+    /**
+     * reads the next row into the given row - unselected columns are null
+     * @param row
+     * @return false if there is no more row
+     * @throws IOException
+     */
+    public boolean next(MatchColumns.Row row) throws IOException {
+        if (!next()) {
+            return false;
+        }
+        for (int c = 0; c < m_columns.length; c++) {
+            if (!m_selected[c] || isNull(c)) {
+                row.setNull(c);
+                continue;
+            }
+            switch (m_columns[c].getType()) {
+                case DOUBLE:
+                    row.set(c, getDouble(c));
+                    break;
+                case INT:
+                    row.set(c, getInt(c));
+                    break;
+                default:
+                    row.set(c, getText(c));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return total number of rows in the file - only known after the last
+     * row was read (-1 before)
+     */
+    public long getTotalRows() {
+        return m_totalRows;
+    }
+
+    private void checkSelected(int column) {
+        if (!m_selected[column]) {
+            throw new IllegalStateException("Column " + m_columns[column].getName() + " was not selected");
+        }
+    }
+
+    public boolean isNull(int column) {
+        checkSelected(column);
+        byte[] nulls = m_nulls[column];
+        return nulls != null && (nulls[m_row >> 3] & (1 << (m_row & 7))) != 0;
+    }
+
+    public double getDouble(int column) {
+        checkSelected(column);
+        return m_doubles[column][m_row];
+    }
+
+    public int getInt(int column) {
+        checkSelected(column);
+        return m_ints[column][m_row];
+    }
+
+    public String getText(int column) {
+        checkSelected(column);
+        int id = m_ints[column][m_row];
+        return id < 0 ? null : m_dictionaries[column][id];
+    }
+
+    /**
+     * reads the next row group
+     * @return false if the end of the file was reached
+     */
+    private boolean readRowGroup() throws IOException {
+        int rows;
+        try {
+            rows = m_in.readInt();
+        } catch (EOFException ex) {
+            // file without end - e.g. of a search that was interrupted
+            m_totalRows = m_readRows;
+            return false;
+        }
+        if (rows == 0) {
+            m_totalRows = m_in.readLong();
+            return false;
+        }
+        m_groupRows = rows;
+        m_readRows += rows;
+        for (int c = 0; c < m_columns.length; c++) {
+            byte encoding = m_in.readByte();
+            int length = m_in.readInt();
+            int stored = m_in.readInt();
+            if (!m_selected[c]) {
+                skipFully(stored);
+                continue;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(readChunk(encoding, length, stored), 0, length);
+            try {
+                if (chunk.get() != 0) {
+                    byte[] nulls = m_nulls[c];
+                    if (nulls == null || nulls.length < (rows + 7) / 8) {
+                        nulls = new byte[(rows + 7) / 8];
+                    }
+                    chunk.get(nulls, 0, (rows + 7) / 8);
+                    m_nulls[c] = nulls;
+                } else {
+                    m_nulls[c] = null;
+                }
+                switch (m_columns[c].getType()) {
+                    case DOUBLE:
+                        if (m_doubles[c] == null || m_doubles[c].length < rows) {
+                            m_doubles[c] = new double[rows];
+                        }
+                        chunk.asDoubleBuffer().get(m_doubles[c], 0, rows);
+                        break;
+                    case INT:
+                        readInts(chunk, c, rows);
+                        break;
+                    default:
+                        String[] dict = new String[chunk.getInt()];
+                        for (int i = 0; i < dict.length; i++) {
+                            int l = chunk.getInt();
+                            dict[i] = new String(chunk.array(), chunk.position(), l, StandardCharsets.UTF_8);
+                            chunk.position(chunk.position() + l);
+                        }
+                        m_dictionaries[c] = dict;
+                        readInts(chunk, c, rows);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("Corrupt chunk for column " + m_columns[c].getName(), ex);
+            }
+        }
+        return true;
+    }
+
+    private void readInts(ByteBuffer chunk, int c, int rows) {
+        if (m_ints[c] == null || m_ints[c].length < rows) {
+            m_ints[c] = new int[rows];
+        }
+        chunk.asIntBuffer().get(m_ints[c], 0, rows);
+    }
+
+    /**
+     * reads and - if needed - decompresses a chunk
+     * @return the uncompressed data (the first length bytes)
+     */
+    private byte[] readChunk(byte encoding, int length, int stored) throws IOException {
+        if (m_stored.length < stored) {
+            m_stored = new byte[stored];
+        }
+        m_in.readFully(m_stored, 0, stored);
+        if (encoding == ColumnarResultWriter.ENCODING_RAW) {
+            return m_stored;
+        }
+        if (encoding != ColumnarResultWriter.ENCODING_DEFLATE) {
+            throw new IOException("Unknown chunk encoding " + encoding);
+        }
+        if (m_raw.length < length) {
+            m_raw = new byte[length];
+        }
+        m_inflater.reset();
+        m_inflater.setInput(m_stored, 0, stored);
+        try {
+            int read = 0;
+            while (read < length) {
+                int r = m_inflater.inflate(m_raw, read, length - read);
+                if (r == 0 && (m_inflater.finished() || m_inflater.needsInput())) {
+                    throw new IOException("Truncated chunk");
+                }
+                read += r;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt chunk", ex);
+        }
+        return m_raw;
+    }
+
+    private void skipFully(int bytes) throws IOException {
+        while (bytes > 0) {
+            int s = m_in.skipBytes(bytes);
+            if (s <= 0) {
+                // skipBytes might give up early - so read instead
+                m_in.readByte();
+                s = 1;
+            }
+            bytes -= s;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_inflater.end();
+        m_in.close();
+    }
+}
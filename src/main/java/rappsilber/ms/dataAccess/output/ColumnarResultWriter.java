@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+import rappsilber.utils.FastDecimalFormat;
+
+/**
+ * Writes the matches into a binary, column oriented file.
+ * <br/>The file contains the same columns as the {@link CSVExportMatches
+ * csv-output} (see {@link MatchColumns}) and can be read back with the
+ * {@link ColumnarResultReader} - including only reading some of the columns.
+ * <br/>Layout (all numbers big-endian as written by {@link DataOutputStream}):
+ * <pre>
+ * file     := "XICOLRES" version:int columnCount:int column* rowGroup* end
+ * column   := name:UTF type:byte format:byte reference:int
+ * rowGroup := rows:int chunk*   (one chunk per column)
+ * chunk    := encoding:byte length:int storedLength:int byte[storedLength]
+ *             (encoding 0: stored as is; 1: deflate compressed)
+ * end      := 0:int totalRows:long
+ * </pre>
+ * The content of a chunk is a null-flag (byte) - if set followed by a bitmap
+ * of the null rows - and then the values: a double or int per row or, for
+ * texts, a dictionary of the distinct texts (count:int, then length:int and
+ * UTF-8 bytes for each) followed by the dictionary index per row (-1 for null).
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ColumnarResultWriter extends AbstractResultWriter implements ResultWriter {
+
+    /** identifies the file type */
+    public static final byte[] MAGIC = "XICOLRES".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    /** chunk is stored uncompressed */
+    public static final byte ENCODING_RAW = 0;
+    /** chunk is deflate compressed */
+    public static final byte ENCODING_DEFLATE = 1;
+    /** default number of rows per row group */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 16 * 1024;
+
+    private final RunConfig m_config;
+    private final DataOutputStream m_out;
+    private final int m_rowGroupSize;
+    private MatchColumns m_columns;
+    private MatchColumns.Column[] m_columnDefs;
+    private MatchColumns.Row m_row;
+
+    /** values of the current row group - per column */
+    private double[][] m_doubles;
+    private int[][] m_ints;
+    private boolean[][] m_nulls;
+    private HashMap<String, Integer>[] m_dictionaries;
+    private ArrayList<String>[] m_dictionaryEntries;
+    /** rows in the current row group */
+    private int m_rows = 0;
+    private long m_totalRows = 0;
+
+    private final ByteArrayOutputStream m_chunk = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream m_chunkOut = new DataOutputStream(m_chunk);
+    private final Deflater m_deflater = new Deflater();
+    private byte[] m_compressed = new byte[64 * 1024];
+
+    private int m_resultCount = 0;
+    private int m_topResultCount = 0;
+    private boolean m_closed = false;
+    /** the output already has a header */
+    private boolean m_append = false;
+
+    public ColumnarResultWriter(OutputStream out, RunConfig config) {
+        this(out, config, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * @param out where to write to
+     * @param config defines the scores and number of peptides written
+     * @param rowGroupSize how many rows are written as one group
+     */
+    public ColumnarResultWriter(OutputStream out, RunConfig config, int rowGroupSize) {
+        m_out = new DataOutputStream(new BufferedOutputStream(out, 256 * 1024));
+        m_config = config;
+        m_rowGroupSize = rowGroupSize;
+    }
+
+    @Override
+    public void writeHeader() {
+        if (m_columns != null) {
+            return;
+        }
+        m_columns = new MatchColumns(m_config, "\"", new FastDecimalFormat(Locale.ENGLISH, 6));
+        m_columnDefs = m_columns.getColumns();
+        m_row = m_columns.newRow();
+        int n = m_columnDefs.length;
+        m_doubles = new double[n][];
+        m_ints = new int[n][];
+        m_nulls = new boolean[n][m_rowGroupSize];
+        m_dictionaries = new HashMap[n];
+        m_dictionaryEntries = new ArrayList[n];
+        for (int c = 0; c < n; c++) {
+            switch (m_columnDefs[c].getType()) {
+                case DOUBLE:
+                    m_doubles[c] = new double[m_rowGroupSize];
+                    break;
+                case INT:
+                    m_ints[c] = new int[m_rowGroupSize];
+                    break;
+                default:
+                    m_ints[c] = new int[m_rowGroupSize];
+                    m_dictionaries[c] = new HashMap<String, Integer>();
+                    m_dictionaryEntries[c] = new ArrayList<String>();
+            }
+        }
+        if (m_append) {
+            return;
+        }
+        try {
+            m_out.write(MAGIC);
+            m_out.writeInt(VERSION);
+            m_out.writeInt(n);
+            for (MatchColumns.Column col : m_columnDefs) {
+                m_out.writeUTF(col.getName());
+                m_out.writeByte(col.getType().ordinal());
+                m_out.writeByte(col.getFormat().ordinal());
+                m_out.writeInt(col.getReference());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error writing results", ex);
+        }
+    }
+
+    /**
+     * continue a file that was cut off after a row group (e.g. of a resumed
+     * search) - no header gets written
+     * @param existingRows number of rows already in the file
+     */
+    public void setAppend(long existingRows) {
+        m_append = true;
+        m_totalRows = existingRows;
+    }
+
+    @Override
+    public synchronized void writeResult(MatchedXlinkedPeptide match) throws IOException {
+        if (m_columns == null) {
+            writeHeader();
+        }
+        m_columns.fill(m_row, match);
+        int r = m_rows;
+        for (int c = 0; c < m_columnDefs.length; c++) {
+            boolean isNull = m_row.isNull(c);
+            m_nulls[c][r] = isNull;
+            switch (m_columnDefs[c].getType()) {
+                case DOUBLE:
+                    m_doubles[c][r] = isNull ? 0 : m_row.getDouble(c);
+                    break;
+                case INT:
+                    m_ints[c][r] = isNull ? 0 : m_row.getInt(c);
+                    break;
+                default:
+                    if (isNull) {
+                        m_ints[c][r] = -1;
+                    } else {
+                        String v = m_row.getText(c);
+                        Integer id = m_dictionaries[c].get(v);
+                        if (id == null) {
+                            id = m_dictionaryEntries[c].size();
+                            m_dictionaries[c].put(v, id);
+                            m_dictionaryEntries[c].add(v);
+                        }
+                        m_ints[c][r] = id;
+                    }
+            }
+        }
+        m_rows++;
+        if (m_rows == m_rowGroupSize) {
+            writeRowGroup();
+        }
+        m_resultCount++;
+        if (match.getMatchrank() == 1) {
+            m_topResultCount++;
+        }
+        if (m_doFreeMatch) {
+            match.free();
+        }
+    }
+
+    /**
+     * writes out the current row group
+     */
+    private void writeRowGroup() throws IOException {
+        if (m_rows == 0) {
+            return;
+        }
+        m_out.writeInt(m_rows);
+        for (int c = 0; c < m_columnDefs.length; c++) {
+            m_chunk.reset();
+            writeNulls(m_nulls[c]);
+            switch (m_columnDefs[c].getType()) {
+                case DOUBLE:
+                    for (int r = 0; r < m_rows; r++) {
+                        m_chunkOut.writeDouble(m_doubles[c][r]);
+                    }
+                    break;
+                case INT:
+                    for (int r = 0; r < m_rows; r++) {
+                        m_chunkOut.writeInt(m_ints[c][r]);
+                    }
+                    break;
+                default:
+                    ArrayList<String> entries = m_dictionaryEntries[c];
+                    m_chunkOut.writeInt(entries.size());
+                    for (String e : entries) {
+                        byte[] b = e.getBytes(StandardCharsets.UTF_8);
+                        m_chunkOut.writeInt(b.length);
+                        m_chunkOut.write(b);
+                    }
+                    for (int r = 0; r < m_rows; r++) {
+                        m_chunkOut.writeInt(m_ints[c][r]);
+                    }
+                    entries.clear();
+                    m_dictionaries[c].clear();
+            }
+            m_chunkOut.flush();
+            writeChunk();
+        }
+        m_totalRows += m_rows;
+        m_rows = 0;
+    }
+
+    private void writeNulls(boolean[] nulls) throws IOException {
+        boolean any = false;
+        for (int r = 0; r < m_rows && !any; r++) {
+            any = nulls[r];
+        }
+        m_chunkOut.writeByte(any ? 1 : 0);
+        if (any) {
+            byte[] bitmap = new byte[(m_rows + 7) / 8];
+            for (int r = 0; r < m_rows; r++) {
+                if (nulls[r]) {
+                    bitmap[r >> 3] |= 1 << (r & 7);
+                }
+            }
+            m_chunkOut.write(bitmap);
+        }
+    }
+
+    /**
+     * compresses the chunk - if that makes it smaller - and writes it out
+     */
+    private void writeChunk() throws IOException {
+        byte[] raw = m_chunk.toByteArray();
+        m_deflater.reset();
+        m_deflater.setInput(raw);
+        m_deflater.finish();
+        int len = 0;
+        while (!m_deflater.finished() && len < raw.length) {
+            if (len == m_compressed.length) {
+                m_compressed = java.util.Arrays.copyOf(m_compressed, m_compressed.length * 2);
+            }
+            len += m_deflater.deflate(m_compressed, len, m_compressed.length - len);
+        }
+        if (m_deflater.finished() && len < raw.length) {
+            m_out.writeByte(ENCODING_DEFLATE);
+            m_out.writeInt(raw.length);
+            m_out.writeInt(len);
+            m_out.write(m_compressed, 0, len);
+        } else {
+            m_out.writeByte(ENCODING_RAW);
+            m_out.writeInt(raw.length);
+            m_out.writeInt(raw.length);
+            m_out.write(raw);
+        }
+    }
+
+    @Override
+    public int getResultCount() {
+        return m_resultCount;
+    }
+
+    @Override
+    public int getTopResultCount() {
+        return m_topResultCount;
+    }
+
+    @Override
+    public synchronized void finished() {
+        if (!m_closed) {
+            m_closed = true;
+            try {
+                if (m_columns == null) {
+                    writeHeader();
+                }
+                writeRowGroup();
+                m_out.writeInt(0);
+                m_out.writeLong(m_totalRows);
+                m_out.close();
+            } catch (IOException ex) {
+                Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error closing the result file", ex);
+            }
+            m_deflater.end();
+        }
+        super.finished();
+    }
+
+    /**
+     * writes out everything written so far (as a row group of its own)
+     */
+    @Override
+    public synchronized void flush() {
+        if (m_closed || m_columns == null) {
+            return;
+        }
+        try {
+            writeRowGroup();
+            m_out.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "Error writing results", ex);
+        }
+    }
+}
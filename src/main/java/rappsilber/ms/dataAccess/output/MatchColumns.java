@@ -0,0 +1,517 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess.output;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.score.ScoreRegistry;
+import rappsilber.ms.score.ScoreSpectraMatch;
+import rappsilber.ms.sequence.AminoAcid;
+import rappsilber.ms.sequence.AminoModification;
+import rappsilber.ms.sequence.NonProteinPeptide;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.fasta.FastaHeader;
+import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptideWeighted;
+import rappsilber.utils.FastDecimalFormat;
+import rappsilber.utils.Util;
+
+/**
+ * The columns written out for each match and the values of a match for these
+ * columns.
+ * <br/>Shared by the {@link CSVExportMatches csv} and the
+ * {@link ColumnarResultWriter columnar} output - so both contain the same
+ * data and a columnar file can be turned into the same csv-file.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class MatchColumns {
+
+    /** what kind of values a column holds */
+    public enum Type {
+        TEXT, DOUBLE, INT
+    }
+
+    /** how the value of a column is written into a csv-file */
+    public enum Format {
+        /** as it is */
+        PLAIN,
+        /** in quotes */
+        QUOTED,
+        /** in quotes and quotes within the text get doubled */
+        QUOTED_ESCAPED,
+        /** quoted if the text contains the delimiter */
+        QUOTED_IF_DELIMITER,
+        /** quoted if the int column referenced by the column is larger then 1 */
+        QUOTED_IF_MULTIPLE,
+        /** numbers formatted according to the locale */
+        NUMBER,
+        /** a number that gets appended to the previous column - if set */
+        APPEND
+    }
+
+    /**
+     * a column of the output
+     */
+    public static class Column {
+        private final String m_name;
+        private final Type m_type;
+        private final Format m_format;
+        /** for {@link Format#QUOTED_IF_MULTIPLE} the column holding the count */
+        private final int m_reference;
+
+        public Column(String name, Type type, Format format, int reference) {
+            m_name = name;
+            m_type = type;
+            m_format = format;
+            m_reference = reference;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public Type getType() {
+            return m_type;
+        }
+
+        public Format getFormat() {
+            return m_format;
+        }
+
+        public int getReference() {
+            return m_reference;
+        }
+    }
+
+    /**
+     * the values of one match. Any column can be empty (null).
+     */
+    public static class Row {
+        private final String[] m_text;
+        private final double[] m_double;
+        private final int[] m_int;
+        private final boolean[] m_null;
+
+        public Row(int columns) {
+            m_text = new String[columns];
+            m_double = new double[columns];
+            m_int = new int[columns];
+            m_null = new boolean[columns];
+            clear();
+        }
+
+        /** sets all columns to null */
+        public void clear() {
+            Arrays.fill(m_text, null);
+            Arrays.fill(m_null, true);
+        }
+
+        public void set(int column, String value) {
+            m_text[column] = value;
+            m_null[column] = value == null;
+        }
+
+        public void set(int column, double value) {
+            m_double[column] = value;
+            m_null[column] = false;
+        }
+
+        public void set(int column, int value) {
+            m_int[column] = value;
+            m_null[column] = false;
+        }
+
+        public void setNull(int column) {
+            m_text[column] = null;
+            m_null[column] = true;
+        }
+
+        public boolean isNull(int column) {
+            return m_null[column];
+        }
+
+        public String getText(int column) {
+            return m_text[column];
+        }
+
+        public double getDouble(int column) {
+            return m_double[column];
+        }
+
+        public int getInt(int column) {
+            return m_int[column];
+        }
+
+        public int size() {
+            return m_null.length;
+        }
+    }
+
+    /** columns per peptide */
+    private static final int PEPTIDE_COLUMNS = 24;
+
+    private final Column[] m_columns;
+    private final int m_peptides;
+    /** registry slots of the score columns */
+    private final int[] m_scoreSlots;
+    private final String m_quoteChar;
+    /** used for the lists of positions */
+    private final FastDecimalFormat m_numberFormat;
+
+    /**
+     * @param config defines the scores and the number of peptides
+     * @param quoteChar quotes within texts get replaced by spaces
+     * @param numberFormat used to format lists of numbers that are stored as
+     * text
+     */
+    public MatchColumns(RunConfig config, String quoteChar, FastDecimalFormat numberFormat) {
+        m_quoteChar = quoteChar;
+        m_numberFormat = numberFormat;
+        m_peptides = config.getMaxCrosslinkedPeptides();
+        ArrayList<Column> cols = new ArrayList<Column>();
+        addText(cols, "Run", Format.QUOTED);
+        addInt(cols, "Scan", Format.NUMBER);
+        addText(cols, "ScanTitle", Format.QUOTED);
+        addText(cols, "peakListFileName", Format.QUOTED_ESCAPED);
+        addInt(cols, "ScanId", Format.NUMBER);
+        addText(cols, "Source", Format.QUOTED);
+        addDouble(cols, "ElutionStart");
+        addDouble(cols, "ElutionEnd");
+        addDouble(cols, "PrecursorMass");
+        addInt(cols, "PrecoursorCharge", Format.PLAIN);
+        addDouble(cols, "PrecurserMZ");
+        addDouble(cols, "PrecurserIntensity");
+        addDouble(cols, "CalcMass");
+        addDouble(cols, "CalcMZ");
+        addText(cols, "validated", Format.PLAIN);
+        addInt(cols, "decoy", Format.PLAIN);
+        addInt(cols, "MatchRank", Format.PLAIN);
+
+        addText(cols, "Crosslinker", Format.QUOTED);
+        addDouble(cols, "CrosslinkerMass");
+        addInt(cols, " decoyCrosslinker", Format.PLAIN);
+
+        for (int p = 1; p <= m_peptides; p++) {
+            // the position count comes after the positions
+            int positionCount = cols.size() + 17;
+            addText(cols, "Protein" + p, Format.QUOTED);
+            addText(cols, "Name" + p, Format.QUOTED);
+            addText(cols, "Description" + p, Format.QUOTED);
+            addText(cols, "Fasta" + p, Format.QUOTED);
+            addInt(cols, "Protein" + p + "decoy", Format.PLAIN);
+            addText(cols, "Peptide" + p, Format.QUOTED);
+            addText(cols, "BasePeptide" + p, Format.QUOTED);
+            addText(cols, "PeptideLinkMap" + p, Format.QUOTED);
+            addDouble(cols, "PeptideMass" + p);
+            addDouble(cols, "PeptideWeight" + p);
+            cols.add(new Column("Start" + p, Type.TEXT, Format.QUOTED_IF_MULTIPLE, positionCount));
+            addInt(cols, "LengthPeptide" + p, Format.PLAIN);
+            addInt(cols, "Link" + p, Format.NUMBER);
+            addText(cols, "Linked AminoAcid " + p, Format.QUOTED);
+            addText(cols, "LinkWindow" + p, Format.QUOTED);
+            cols.add(new Column("ProteinLink" + p, Type.TEXT, Format.QUOTED_IF_MULTIPLE, positionCount));
+            addInt(cols, "ProteinCount" + p, Format.NUMBER);
+            addInt(cols, "PositionCount" + p, Format.NUMBER);
+            addText(cols, "Modifications" + p, Format.QUOTED);
+            addText(cols, "ModificationPositions" + p, Format.QUOTED_IF_DELIMITER);
+            addText(cols, "ModificationMasses" + p, Format.QUOTED_IF_DELIMITER);
+            addInt(cols, "OpenModPosition" + p, Format.NUMBER);
+            cols.add(new Column("OpenMass" + p, Type.DOUBLE, Format.APPEND, -1));
+            addText(cols, "OpenModWindow" + p, Format.PLAIN);
+        }
+
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (ScoreSpectraMatch score : config.getScores()) {
+            for (String name : score.scoreNames()) {
+                slots.add(ScoreRegistry.slot(name));
+                addDouble(cols, name);
+            }
+        }
+        m_scoreSlots = new int[slots.size()];
+        for (int i = 0; i < m_scoreSlots.length; i++) {
+            m_scoreSlots[i] = slots.get(i);
+        }
+        m_columns = cols.toArray(new Column[cols.size()]);
+    }
+
+    private static void addText(ArrayList<Column> cols, String name, Format format) {
+        cols.add(new Column(name, Type.TEXT, format, -1));
+    }
+
+    private static void addInt(ArrayList<Column> cols, String name, Format format) {
+        cols.add(new Column(name, Type.INT, format, -1));
+    }
+
+    private static void addDouble(ArrayList<Column> cols, String name) {
+        cols.add(new Column(name, Type.DOUBLE, Format.NUMBER, -1));
+    }
+
+    public Column[] getColumns() {
+        return m_columns;
+    }
+
+    /**
+     * @return a row that can hold the values for these columns
+     */
+    public Row newRow() {
+        return new Row(m_columns.length);
+    }
+
+    /**
+     * fills the row with the values of the match
+     * @param row
+     * @param match
+     */
+    public void fill(Row row, MatchedXlinkedPeptide match) {
+        row.clear();
+        int c = scanValues(row, 0, match);
+        c = crosslinkerValues(row, c, match);
+        for (int p = 0; p < m_peptides; p++) {
+            c = peptideValues(row, c, match, p);
+        }
+        for (int slot : m_scoreSlots) {
+            row.set(c++, match.getScore(slot));
+        }
+    }
+
+    private int scanValues(Row row, int c, MatchedXlinkedPeptide match) {
+        Spectra s = match.getSpectrum();
+        try {
+            double calcMass = match.getPeptides()[0].getMass();
+            if (match.getPeptide(1) != null) {
+                calcMass += match.getPeptides()[1].getMass() + match.getCrosslinker().getCrossLinkedMass();
+            }
+            double calcMZ = calcMass / s.getPrecurserCharge() + Util.PROTON_MASS;
+
+            row.set(c++, s.getRun().replace(m_quoteChar, " "));
+            row.set(c++, s.getScanNumber());
+            row.set(c++, s.getScanTitle().replace(m_quoteChar, " "));
+            row.set(c++, s.getPeakFileName());
+            row.set(c++, s.getReadID());
+            row.set(c++, String.valueOf(s.getSource()));
+            row.set(c++, s.getElutionTimeStart());
+            row.set(c++, s.getElutionTimeEnd());
+            row.set(c++, s.getPrecurserMass());
+            row.set(c++, s.getPrecurserCharge());
+            row.set(c++, s.getPrecurserMZ());
+            row.set(c++, s.getPrecurserIntensity());
+            row.set(c++, calcMass);
+            row.set(c++, calcMZ);
+            row.set(c++, Boolean.toString(match.isValidated()));
+            row.set(c++, match.isDecoy() ? 1 : 0);
+            row.set(c++, match.getMatchrank());
+            return c;
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private int crosslinkerValues(Row row, int c, MatchedXlinkedPeptide match) {
+        CrossLinker cl = match.getCrosslinker();
+        if (cl != null) {
+            row.set(c, cl.getName().replace(m_quoteChar, " "));
+            row.set(c + 1, cl.getCrossLinkedMass());
+            row.set(c + 2, cl.isDecoy() ? 1 : 0);
+        }
+        return c + 3;
+    }
+
+    private int peptideValues(Row row, int c, MatchedXlinkedPeptide match, int PeptideNumber) {
+        Peptide[]  peps = match.getPeptides();
+        if (peps.length <= PeptideNumber) {
+            return c + PEPTIDE_COLUMNS;
+        }
+        double[] weights = null;
+        if (match instanceof MatchedXlinkedPeptideWeighted) {
+            weights = ((MatchedXlinkedPeptideWeighted) match).getLinkageWeights(PeptideNumber);
+        } else {
+            weights = new double[peps[PeptideNumber].length()];
+            java.util.Arrays.fill(weights, 0);
+        }
+        Peptide p = match.getPeptides()[PeptideNumber];
+        int ipepLinkSite = (match.getLinkingSite(PeptideNumber));
+        Peptide.PeptidePositions[] pps = p.getPositions();
+        StringBuilder sbAccessions= new  StringBuilder();
+        StringBuilder sbNames = new  StringBuilder();
+        StringBuilder sbDescription = new  StringBuilder();
+        StringBuilder sbFasta = new  StringBuilder();
+        StringBuilder sbPepStart = new  StringBuilder();
+        StringBuilder sbProtLink = new  StringBuilder();
+        for (Peptide.PeptidePositions pp : pps) {
+            FastaHeader fh=pp.base.getSplitFastaHeader();
+            String name = fh.isSplit() ? pp.base.getSplitFastaHeader().getName(): "";
+            if (name != null) {
+                name = name.replace(m_quoteChar, " ").replace(";", " ");
+            } else {
+                name = "";
+            }
+            sbAccessions.append(pp.base.getSplitFastaHeader().getAccession().replace(m_quoteChar, " ").replace(";", " ")).append(";");
+            sbNames.append(name).append(";");
+            sbDescription.append((fh.isSplit() ? fh.getDescription().replace(m_quoteChar, " ").replace(";", " ") : "")).append(";");
+            sbFasta.append(fh.getHeader().replace(m_quoteChar, " ").replace(";", " ")).append(";");
+            m_numberFormat.append(sbPepStart, pp.start+1).append(";");
+            m_numberFormat.append(sbProtLink, pp.start+ipepLinkSite+1).append(";");
+        }
+        String pepsequence = p.toString();
+        if (p.isNTerminal() || p instanceof NonProteinPeptide) {
+            pepsequence = "-." + pepsequence;
+        } else {
+            StringBuilder sb = new StringBuilder();
+            HashSet<String> found = new HashSet<String>(pps.length);
+            for (Peptide.PeptidePositions pp : pps) {
+                String aa = "-";
+                if (pp.start >0) {
+                    aa = pp.base.aminoAcidAt(pp.start-1).toString();
+                }
+                if (!found.contains(aa)) {
+                    sb.append(aa);
+                    found.add(aa);
+                }
+            }
+            if (found.size() >1) {
+                pepsequence = "[" + sb + "]." + pepsequence;
+            } else {
+                pepsequence = sb + "." + pepsequence;
+            }
+        }
+
+        if (p.isCTerminal() || p instanceof NonProteinPeptide) {
+            pepsequence += ".-";
+        } else {
+            StringBuilder sb = new StringBuilder();
+            HashSet<String> found = new HashSet<String>(pps.length);
+            for (Peptide.PeptidePositions pp : pps) {
+                String aa = "-";
+                if (pp.base.length() > pp.start + p.length()) {
+                    aa = pp.base.aminoAcidAt(pp.start+p.length()).toString();
+                }
+                if (!found.contains(aa)) {
+                    sb.append(aa);
+                    found.add(aa);
+                }
+            }
+            if (found.size() >1) {
+                pepsequence += ".[" + sb +"]";
+            } else {
+                pepsequence += "." + sb +"";
+            }
+        }
+
+        row.set(c++, sbAccessions.substring(0,sbAccessions.length()-1).replace(m_quoteChar, " "));
+        row.set(c++, sbNames.substring(0,sbNames.length()-1).replace(m_quoteChar, " "));
+        row.set(c++, sbDescription.substring(0,sbDescription.length()-1).replace(m_quoteChar, " "));
+        row.set(c++, sbFasta.substring(0,sbFasta.length()-1).replace(m_quoteChar, " "));
+        row.set(c++, p.getSequence().isDecoy() ? 1 : 0);
+        row.set(c++, pepsequence);
+        row.set(c++, p.toStringBaseSequence());
+        row.set(c++, p.toString(weights));
+        row.set(c++, p.getMass());
+        if (PeptideNumber == 0) {
+            row.set(c, match.getPeptide1Weight());
+        } else if (PeptideNumber == 1) {
+            row.set(c, match.getPeptide2Weight());
+        }
+        c++;
+        row.set(c++, sbPepStart.substring(0, sbPepStart.length()-1));
+        row.set(c++, p.length());
+        if (ipepLinkSite >= 0) {
+            row.set(c, ipepLinkSite + 1);
+        }
+        c++;
+        row.set(c++, ipepLinkSite < 0 ? "" : p.aminoAcidAt(ipepLinkSite).toString());
+        row.set(c++, ipepLinkSite < 0 ? "" : sequenceWindow(p, ipepLinkSite, 20));
+        row.set(c++, ipepLinkSite < 0 ? "" : sbProtLink.substring(0, sbProtLink.length()-1));
+        row.set(c++, p.getProteinCount());
+        row.set(c++, pps.length);
+
+        HashMap<Integer,AminoAcid> mods = p.getModification();
+        if (mods.isEmpty()) {
+            return c + 6;
+        }
+        StringBuilder m = new StringBuilder();
+        StringBuilder mp = new StringBuilder();
+        StringBuilder mm = new StringBuilder();
+        double om_mass = 0;
+        int om_pos = 0;
+        for (Integer i : mods.keySet() ) {
+            if (mods.get(i) instanceof AminoModification) {
+                AminoModification mod = (AminoModification) mods.get(i);
+                m.append(mod.SequenceID + ";");
+                mp.append((i+1) + ";");
+                mm.append(mod.weightDiff + ";");
+                if (mod.SequenceID.contains("_om")) {
+                    om_mass = mod.weightDiff;
+                    om_pos = i;
+                }
+            } else {
+                // replacement of some kind
+                AminoAcid aaReplacement  = mods.get(i);
+                AminoAcid aaOrig = p.getSourceSequence().aminoAcidAt(p.getStart()+i);
+                m.append(aaOrig + "->"+aaReplacement+" ;");
+                mp.append((i+1) + ";");
+                mm.append((aaReplacement.mass - aaOrig.mass) + ";");
+            }
+        }
+        row.set(c++, m.substring(0, m.length() - 1));
+        row.set(c++, mp.substring(0, mp.length() - 1));
+        row.set(c++, mm.substring(0, mm.length() - 1));
+        if (om_mass != 0) {
+            row.set(c, om_pos + 1);
+            row.set(c + 1, om_mass);
+            row.set(c + 2, sequenceWindow(p, om_pos, 20));
+        }
+        return c + 3;
+    }
+
+    private String sequenceWindow(Peptide p, int pos, int window) {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder end = new StringBuilder();
+        Sequence s = p.getSequence();
+        int sp = p.getStart() + pos;
+        int from = sp - window;
+        int to = sp + window;
+        if (from <0) {
+            for (int l = from; l < 0; l++) {
+                sb.append('.');
+            }
+            from = 0;
+        }
+
+        if (to >= s.length()) {
+            for (int l = s.length(); l<=to;l++ ) {
+                end.append('.');
+            }
+            to = s.length() - 1;
+        }
+
+        for (int l = from ; l<= to ; l++) {
+            AminoAcid aa = s.aminoAcidAt(l);
+            if (aa instanceof AminoModification) {
+                sb.append(((AminoModification)aa).BaseAminoAcid.SequenceID);
+            } else {
+                sb.append(aa.SequenceID);
+            }
+        }
+        sb.append(end);
+        return sb.toString();
+    }
+}
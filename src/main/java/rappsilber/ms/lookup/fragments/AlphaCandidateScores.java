@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.util.ArrayList;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * Accumulates the alpha-candidate scores of peptides by their peptide-id.
+ * <br/>This is the primitive counterpart to
+ * {@link rappsilber.utils.ArithmeticScoredOccurence} for the candidate
+ * generation. Scores are kept in a double[] indexed by peptide id and the ids
+ * seen since the last {@link #clear()} are recorded in an int[] - so an
+ * instance can be reused for each spectrum and does not allocate anything per
+ * peak. Instances are not thread-safe - each search thread should have its
+ * own.
+ * <br/>It is also the {@link PeptideIdVisitor} that collects the peptides for
+ * the current peak.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class AlphaCandidateScores implements PeptideIdVisitor {
+    /** score for each peptide id */
+    private double[] m_scores;
+    /** in which generation a peptide was last seen */
+    private int[] m_seenGeneration;
+    /** current generation - increased with each clear */
+    private int m_generation = 1;
+    /** the ids seen in the current generation */
+    private int[] m_seenIds = new int[1024];
+    private int m_seenCount = 0;
+    /** ids found for the current peak */
+    private int[] m_peakIds = new int[1024];
+    private int m_peakCount = 0;
+    /** used for selecting the best entries */
+    private double[] m_bestScores = new double[0];
+    private int[] m_selected = new int[1024];
+
+    /**
+     * @param peptideCount number of peptides (highest peptide id + 1)
+     */
+    public AlphaCandidateScores(int peptideCount) {
+        m_scores = new double[peptideCount];
+        m_seenGeneration = new int[peptideCount];
+    }
+
+    /**
+     * forget all scores
+     */
+    public void clear() {
+        m_seenCount = 0;
+        m_peakCount = 0;
+        if (++m_generation == Integer.MAX_VALUE) {
+            java.util.Arrays.fill(m_seenGeneration, 0);
+            m_generation = 1;
+        }
+    }
+
+    /**
+     * start collecting the peptides for a new peak
+     */
+    public void startPeak() {
+        m_peakCount = 0;
+    }
+
+    /**
+     * records a peptide for the current peak
+     * @param peptideId
+     */
+    @Override
+    public void visit(int peptideId) {
+        if (m_peakCount == m_peakIds.length) {
+            m_peakIds = java.util.Arrays.copyOf(m_peakIds, m_peakCount * 2);
+        }
+        m_peakIds[m_peakCount++] = peptideId;
+    }
+
+    /**
+     * @return how many peptides where recorded for the current peak
+     */
+    public int peakSize() {
+        return m_peakCount;
+    }
+
+    /**
+     * multiplies the score of each peptide of the current peak with the given
+     * score.
+     * @param score
+     */
+    public void multiplyPeak(double score) {
+        for (int i = 0; i < m_peakCount; i++) {
+            multiply(m_peakIds[i], score);
+        }
+    }
+
+    /**
+     * multiply the previously calculated value for this peptide, with the
+     * given number. If the peptide wasn't seen jet store the value itself.
+     * @param peptideId the peptide in question
+     * @param score the value that should be multiplied with the previous value
+     * @return the new value (score) for the peptide
+     */
+    public double multiply(int peptideId, double score) {
+        if (m_seenGeneration[peptideId] == m_generation) {
+            return m_scores[peptideId] *= score;
+        }
+        m_seenGeneration[peptideId] = m_generation;
+        if (m_seenCount == m_seenIds.length) {
+            m_seenIds = java.util.Arrays.copyOf(m_seenIds, m_seenCount * 2);
+        }
+        m_seenIds[m_seenCount++] = peptideId;
+        m_scores[peptideId] = score;
+        return score;
+    }
+
+    /**
+     * takes over the scores of the other accumulator. For peptides that
+     * have a score in both the lower one is kept - same as
+     * {@link rappsilber.utils.ArithmeticScoredOccurence#addAllLowest(rappsilber.utils.ScoredOccurence)}.
+     * @param other
+     */
+    public void addAllLowest(AlphaCandidateScores other) {
+        for (int i = 0; i < other.m_seenCount; i++) {
+            int id = other.m_seenIds[i];
+            double s = other.m_scores[id];
+            if (m_seenGeneration[id] == m_generation) {
+                if (s < m_scores[id]) {
+                    m_scores[id] = s;
+                }
+            } else {
+                multiply(id, s);
+            }
+        }
+    }
+
+    /**
+     * @param peptideId
+     * @return true if the peptide got a score since the last clear
+     */
+    public boolean seen(int peptideId) {
+        return peptideId >= 0 && peptideId < m_seenGeneration.length && m_seenGeneration[peptideId] == m_generation;
+    }
+
+    /**
+     * returns the score that was calculated for the given peptide
+     * @param peptideId the peptide in question
+     * @param defaultScore if no score was calculated return this score.
+     * @return
+     */
+    public double score(int peptideId, double defaultScore) {
+        return seen(peptideId) ? m_scores[peptideId] : defaultScore;
+    }
+
+    /**
+     * returns the score that was calculated for the given peptide
+     * @param p the peptide in question (can be null)
+     * @param defaultScore if no score was calculated return this score.
+     * @return
+     */
+    public double score(Peptide p, double defaultScore) {
+        if (p == null) {
+            return defaultScore;
+        }
+        return score(p.getPeptideIndex(), defaultScore);
+    }
+
+    /**
+     * @return number of peptides with a score
+     */
+    public int size() {
+        return m_seenCount;
+    }
+
+    /**
+     * returns the peptides with the [ranks] lowest scores - same as
+     * {@link rappsilber.utils.ArithmeticScoredOccurence#getLowestNEntries(int, int)}.
+     * <br/>Only the scores of the selected peptides get sorted. Peptides
+     * with the same score are returned ordered by id.
+     * @param ranks how many unique scores to return
+     * @param maxTotal return at most this number of results (negative for
+     * no limit)
+     * @param allPeptides the peptides by id
+     * @return
+     */
+    public ArrayList<Peptide> getLowestNEntries(int ranks, int maxTotal, Peptide[] allPeptides) {
+        int selected = selectLowest(ranks);
+        ArrayList<Peptide> ret = new ArrayList<Peptide>(Math.min(selected, Math.max(ranks, 0)));
+        int groupStart = 0;
+        while (groupStart < selected) {
+            double groupScore = m_scores[m_selected[groupStart]];
+            int groupEnd = groupStart + 1;
+            while (groupEnd < selected && m_scores[m_selected[groupEnd]] == groupScore) {
+                groupEnd++;
+            }
+            if (maxTotal >= 0 && ret.size() + groupEnd - groupStart > maxTotal) {
+                break;
+            }
+            for (int i = groupStart; i < groupEnd; i++) {
+                ret.add(allPeptides[m_selected[i]]);
+            }
+            groupStart = groupEnd;
+        }
+        return ret;
+    }
+
+    /**
+     * selects all ids that have one of the [ranks] lowest distinct scores
+     * into m_selected - sorted by score and id.
+     * @return number of selected ids
+     */
+    private int selectLowest(int ranks) {
+        if (ranks <= 0 || m_seenCount == 0) {
+            return 0;
+        }
+        if (m_bestScores.length < ranks) {
+            m_bestScores = new double[ranks];
+        }
+        // find the [ranks] lowest distinct scores
+        int best = 0;
+        for (int i = 0; i < m_seenCount; i++) {
+            double s = m_scores[m_seenIds[i]];
+            if (best == ranks && s >= m_bestScores[best - 1]) {
+                continue;
+            }
+            int pos = java.util.Arrays.binarySearch(m_bestScores, 0, best, s);
+            if (pos >= 0) {
+                continue;
+            }
+            pos = -pos - 1;
+            int move = Math.min(best, ranks - 1) - pos;
+            if (move > 0) {
+                System.arraycopy(m_bestScores, pos, m_bestScores, pos + 1, move);
+            }
+            m_bestScores[pos] = s;
+            if (best < ranks) {
+                best++;
+            }
+        }
+        double threshold = m_bestScores[best - 1];
+
+        // collect all ids up to that score
+        int selected = 0;
+        for (int i = 0; i < m_seenCount; i++) {
+            int id = m_seenIds[i];
+            if (m_scores[id] <= threshold) {
+                if (selected == m_selected.length) {
+                    m_selected = java.util.Arrays.copyOf(m_selected, selected * 2);
+                }
+                m_selected[selected++] = id;
+            }
+        }
+        final int[] sel = m_selected;
+        final double[] scores = m_scores;
+        it.unimi.dsi.fastutil.Arrays.quickSort(0, selected, new AbstractIntComparator() {
+            @Override
+            public int compare(int k1, int k2) {
+                int ret = Double.compare(scores[sel[k1]], scores[sel[k2]]);
+                if (ret == 0) {
+                    ret = Integer.compare(sel[k1], sel[k2]);
+                }
+                return ret;
+            }
+        }, new Swapper() {
+            @Override
+            public void swap(int a, int b) {
+                int t = sel[a];
+                sel[a] = sel[b];
+                sel[b] = t;
+            }
+        });
+        return selected;
+    }
+}
@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -16,139 +16,327 @@
 package rappsilber.ms.lookup.fragments;
 
 
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import java.io.File;
 import java.io.IOException;
-import java.text.ParseException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.rappsilber.utils.DoubleArrayList;
-import org.rappsilber.utils.DoubleArraySlice;
-import org.rappsilber.utils.IntArrayList;
-import rappsilber.config.AbstractRunConfig;
 import rappsilber.config.RunConfig;
-import rappsilber.ms.Range;
 import rappsilber.ms.ToleranceUnit;
-import rappsilber.ms.crosslinker.CrossLinker;
-import rappsilber.ms.crosslinker.SymetricSingleAminoAcidRestrictedCrossLinker;
 import rappsilber.ms.lookup.peptides.PeptideLookup;
-import rappsilber.ms.lookup.peptides.PeptideTree;
-import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
-import rappsilber.ms.sequence.digest.NoDigestion;
-import rappsilber.ms.sequence.ions.CrossLinkedFragmentProducer;
 import rappsilber.ms.sequence.ions.Fragment;
 import rappsilber.ms.spectra.Spectra;
 import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.utils.ArithmeticScoredOccurence;
+import rappsilber.utils.OffHeapDoubleArray;
+import rappsilber.utils.OffHeapIntArray;
 import rappsilber.utils.Util;
 
-/* 
- * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
+/**
+ * Fragment lookup that stores all fragments as two parallel, mass sorted
+ * arrays (fragment mass and peptide id) outside of the java heap.
+ * <br/>The arrays are indexed by long - so the number of fragments is not
+ * limited to Integer.MAX_VALUE. Fragmentation and sorting are done in parallel
+ * on blocks of peptides and the sorted blocks are then merged in parallel
+ * into the final arrays.
+ * <br/>To find the start of a mass range a small directory of 1Da mass
+ * buckets is used, that narrows down the binary search to a single bucket.
+ * <br/>Lookups should return the same results as
+ * {@link FragmentTreeSlimedArrayMassSplitBuild}.
+ * <br/>The arrays can be written to an index file via
+ * {@link #writeIndex(java.io.File)} and later memory-mapped via
+ * {@link #readIndex(java.io.File, rappsilber.ms.sequence.SequenceList, rappsilber.config.RunConfig)}
+ * instead of fragmenting all peptides again.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
+public class ArrayBackedFragmentLookup implements FragmentLookup {
+    /** how many peptides get fragmented in one block */
+    private static final int PEPTIDES_PER_BLOCK = 5000;
+    /** width of the mass-buckets for the directory in Da */
+    private static final double BUCKET_WIDTH = 1;
+    /** identifies an index file ("XiFRAGIX") */
+    private static final long INDEX_MAGIC = 0x5869465241474958L;
+    /** version of the index file format */
+    private static final int INDEX_VERSION = 1;
+    /** size of the header of an index file */
+    private static final int INDEX_HEADER_SIZE = 64;
 
+    /** the fragment masses - sorted ascending */
+    private OffHeapDoubleArray m_masses;
+    /** the peptide ids for each fragment mass */
+    private OffHeapIntArray m_peptideIds;
+    /** number of entries actually used in m_masses/m_peptideIds */
+    private long m_entries = 0;
+    /** how many fragments where generated (including the pruned ones) */
+    private long m_fragmentCount = 0;
 
-public class ArrayBackedFragmentLookup implements FragmentLookup {
-    DoubleArrayList fragMasses = new DoubleArrayList(10000);
-    IntArrayList pepIDs = new IntArrayList(10000);
-    double m_MaximumPeptideMass = Double.MAX_VALUE;
-    double m_MinimumMass=0;
-    RunConfig m_config;
-    ToleranceUnit tolerance;
+    /** first index of each mass bucket */
+    private long[] m_bucketStart = new long[]{0, 0};
+    /** mass at which the first bucket starts */
+    private double m_bucketMinMass = 0;
+
+    private double m_MaximumPeptideMass = Double.MAX_VALUE;
+    private double m_MinimumMass = 0;
+    private RunConfig m_config;
+    private ToleranceUnit m_Tolerance;
     private SequenceList  m_list;
-    int m_fragmentCount = 0;
-    
-    Comparator<DoubleArraySlice> massCompare =  new Comparator<DoubleArraySlice>(){
+    private int m_threads;
+    private int m_maxPeakCandidates;
+    private Peptide m_lastPeptide = null;
+
+    /**
+     * fragments of a block of peptides, sorted by mass and peptide id
+     */
+    private static class FragmentBlock {
+        double[] masses = new double[PEPTIDES_PER_BLOCK * 20];
+        int[] ids = new int[PEPTIDES_PER_BLOCK * 20];
+        int size = 0;
+
+        void add(double mass, int id) {
+            if (size == masses.length) {
+                masses = java.util.Arrays.copyOf(masses, size * 2);
+                ids = java.util.Arrays.copyOf(ids, size * 2);
+            }
+            masses[size] = mass;
+            ids[size++] = id;
+        }
+
+        void sort() {
+            it.unimi.dsi.fastutil.Arrays.quickSort(0, size, new AbstractIntComparator() {
                 @Override
-                public int compare(DoubleArraySlice o1, DoubleArraySlice o2) {
-                    return Double.compare(o1.get(0), o1.get(0));
+                public int compare(int k1, int k2) {
+                    int ret = Double.compare(masses[k1], masses[k2]);
+                    if (ret == 0) {
+                        ret = Integer.compare(ids[k1], ids[k2]);
+                    }
+                    return ret;
                 }
-            };
-    private int m_maxPeakCandidates;
-    
+            }, new Swapper() {
+                @Override
+                public void swap(int a, int b) {
+                    double m = masses[a];
+                    masses[a] = masses[b];
+                    masses[b] = m;
+                    int i = ids[a];
+                    ids[a] = ids[b];
+                    ids[b] = i;
+                }
+            });
+        }
+
+        /**
+         * @return index of the first fragment with a mass &gt;= mass
+         */
+        int lowerBound(double mass) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (masses[mid] < mass) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
     public ArrayBackedFragmentLookup(PeptideLookup peptideList, SequenceList list, int threads, RunConfig config){
+        this(list, config);
+        this.m_threads = Math.max(1, threads);
+        insertFragementsFromPeptides(peptideList);
+    }
+
+    private ArrayBackedFragmentLookup(SequenceList list, RunConfig config){
         this.m_list = list;
         this.m_config = config;
-        this.tolerance = config.getFragmentTolerance();
-        insertFragementsFromPeptides(peptideList);
-        
+        this.m_Tolerance = config.getFragmentToleranceCandidate();
+        this.m_threads = 1;
+        this.m_maxPeakCandidates = config.getMaximumPeptideCandidatesPerPeak();
     }
-    
 
-    public void insertFragementsFromPeptides(Iterable<Peptide> peptides) {
+    /**
+     * Key for an index file for the given database and settings.
+     * <br/>Hashes all sequences (after fixed modifications and decoy
+     * generation), all config lines and the maximum peptide mass.
+     * @param list the sequences
+     * @param config the config
+     * @param maxPeptideMass the maximum peptide mass the peptides where
+     * digested with
+     * @return hex-string of the hash
+     */
+    public static String indexKey(SequenceList list, RunConfig config, double maxPeptideMass) {
+        MessageDigest md;
         try {
-            fragMasses.setMaxIncrement(1000000);
-            pepIDs.setMaxIncrement(1000000);
-            int count =0;
-            int maxPeps = m_list.getAllPeptideIDs().length;
-            int percent = 0;
-            //Peptide pep;
-            for (Peptide pep : peptides ) {
-                try {
-                    if (pep.getMass() < m_MaximumPeptideMass && pep.getMass() > m_MinimumMass) {
-                        ArrayList<Fragment> frags;
-                        if (m_config == null) {
-                            frags = pep.getPrimaryFragments();
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Error(ex);
+        }
+        md.update(("INDEX_VERSION:" + INDEX_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+        md.update(("maxPeptideMass:" + maxPeptideMass + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String line : config.getConfigLines()) {
+            md.update(line.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        for (Sequence s : list) {
+            md.update(s.getFastaHeader().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+            md.update(s.toString().getBytes(StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
 
-                        } else {
-                            
-                            frags = pep.getPrimaryFragments(m_config);
-                            for (CrossLinker cl : m_config.getCrossLinker()) {
-                                for (CrossLinkedFragmentProducer cfp : m_config.getPrimaryCrossLinkedFragmentProducers()) {
-                                    frags.addAll(cfp.createCrosslinkedFragments(frags, new ArrayList<Fragment>(), cl, false));
-                                }
-                            }
-                            
-                        }
-                        for (int i = 0; i < frags.size(); i++) {
-                            
-                            Fragment f = frags.get(i);
-                            fragMasses.add(f.getMass());
-                            pepIDs.add(pep.getPeptideIndex());
-                            
-                        }
-                    }
-                    
-                } catch (Exception e) {
-                    throw new Error(e);
-                }
-                m_fragmentCount = fragMasses.size();
-                if (++count % 1000 == 0) {
-                    int newPercent = count*100/maxPeps;
-                    if (newPercent>percent) {
-                        m_config.getStatusInterface().setStatus(count + " peptides fragmented (" + newPercent +"% = " + m_fragmentCount + " fragments)"  );
-                        percent = newPercent;
-                    }
+    /**
+     * a cheap fingerprint of the peptides and their ids - used to make sure
+     * that an index file fits to the current peptides
+     */
+    protected static long peptideFingerprint(Peptide[] peptides) {
+        long fp = peptides.length;
+        for (Peptide p : peptides) {
+            fp = fp * 31 + Double.doubleToLongBits(p.getMass());
+            fp = fp * 31 + p.toString().hashCode();
+        }
+        return fp;
+    }
+
+    /**
+     * writes the fragment arrays into an index file.
+     * <br/>The file is first written under a temporary name and then renamed.
+     * @param f the index file
+     * @throws IOException
+     */
+    public void writeIndex(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            Peptide[] allPeptides = m_list.getAllPeptideIDs();
+            header.putLong(INDEX_MAGIC);
+            header.putInt(INDEX_VERSION);
+            header.putInt(m_maxPeakCandidates);
+            header.putLong(allPeptides.length);
+            header.putLong(peptideFingerprint(allPeptides));
+            header.putLong(m_fragmentCount);
+            header.putLong(m_entries);
+            header.clear();
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+            m_masses.write(ch, m_entries);
+            m_peptideIds.write(ch, m_entries);
+            ch.force(false);
+        } finally {
+            raf.close();
+        }
+        if (f.exists()) {
+            f.delete();
+        }
+        if (!tmp.renameTo(f)) {
+            throw new IOException("could not rename " + tmp + " to " + f);
+        }
+        Logger.getLogger(ArrayBackedFragmentLookup.class.getName()).log(Level.INFO, "Fragment index written to {0}", f);
+    }
+
+    /**
+     * memory-maps a fragment index previously written by
+     * {@link #writeIndex(java.io.File)}.
+     * @param f the index file
+     * @param list the sequences - peptide ids must be the same as when the
+     * index was written
+     * @param config
+     * @return the lookup or null if the file does not fit to the current
+     * peptides and settings
+     * @throws IOException
+     */
+    public static ArrayBackedFragmentLookup readIndex(File f, SequenceList list, RunConfig config) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (ch.size() < INDEX_HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining() && ch.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.getLong() != INDEX_MAGIC || header.getInt() != INDEX_VERSION) {
+                return null;
+            }
+            ArrayBackedFragmentLookup ret = new ArrayBackedFragmentLookup(list, config);
+            if (header.getInt() != ret.m_maxPeakCandidates) {
+                return null;
+            }
+            Peptide[] allPeptides = list.getAllPeptideIDs();
+            if (header.getLong() != allPeptides.length || header.getLong() != peptideFingerprint(allPeptides)) {
+                return null;
+            }
+            ret.m_fragmentCount = header.getLong();
+            ret.m_entries = header.getLong();
+            if (ch.size() != INDEX_HEADER_SIZE + ret.m_entries * 12) {
+                return null;
+            }
+            ret.m_masses = OffHeapDoubleArray.map(ch, INDEX_HEADER_SIZE, ret.m_entries);
+            ret.m_peptideIds = OffHeapIntArray.map(ch, INDEX_HEADER_SIZE + ret.m_entries * 8, ret.m_entries);
+            if (allPeptides.length > 0) {
+                ret.m_lastPeptide = allPeptides[allPeptides.length - 1];
+            }
+            ret.buildBucketDirectory();
+            Logger.getLogger(ArrayBackedFragmentLookup.class.getName()).log(Level.INFO, "Fragment index mapped from {0} ({1} fragments)", new Object[]{f, ret.m_entries});
+            return ret;
+        } finally {
+            // mapped buffers stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+
+    public void insertFragementsFromPeptides(Iterable<Peptide> peptides) {
+        try {
+            final ArrayList<Peptide> toFragment = new ArrayList<Peptide>();
+            for (Peptide pep : peptides) {
+                if (pep.getMass() < m_MaximumPeptideMass && pep.getMass() > m_MinimumMass) {
+                    toFragment.add(pep);
                 }
             }
-            m_config.getStatusInterface().setStatus(count + " peptides fragmented of "+  maxPeps +" peptides (" + m_fragmentCount + " fragments)"  );
+            if (!toFragment.isEmpty()) {
+                m_lastPeptide = toFragment.get(toFragment.size() - 1);
+            }
 
+            FragmentBlock[] blocks = fragmentBlocks(toFragment);
+            toFragment.clear();
             Util.verboseGC();
-            m_config.getStatusInterface().setStatus(count + " peptides fragmented - sorting"  );
-            
-            fragMasses.quicksort(pepIDs);
-            m_config.getStatusInterface().setStatus(" Fragmenttree build"  );
+            m_config.getStatusInterface().setStatus("Fragmenttree: merging " + m_fragmentCount + " fragments");
+            mergeBlocks(blocks);
+            blocks = null;
+            buildBucketDirectory();
+            m_config.getStatusInterface().setStatus("Fragmenttree build");
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Fragments in tree:{0}", m_fragmentCount);
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "stored peptide ids: {0}", m_entries);
             Util.verboseGC();
-            
         } catch (Exception error) {
             Logger.getLogger(this.getClass().getName()).log(Level.SEVERE, "error while building fragment tree",error);
             System.err.println(error);
@@ -158,84 +346,382 @@ public class ArrayBackedFragmentLookup implements FragmentLookup {
         }
     }
 
-    @Override
-    public ArrayList<Peptide> getForMass(double mass) {
-        return getForMass(mass, mass);
+    /**
+     * fragments the peptides in blocks of {@link #PEPTIDES_PER_BLOCK} using
+     * m_threads threads. Each block gets sorted by the thread that created it.
+     */
+    private FragmentBlock[] fragmentBlocks(final ArrayList<Peptide> peptides) {
+        final int blockCount = (peptides.size() + PEPTIDES_PER_BLOCK - 1) / PEPTIDES_PER_BLOCK;
+        final FragmentBlock[] blocks = new FragmentBlock[blockCount];
+        final AtomicInteger nextBlock = new AtomicInteger(0);
+        final AtomicInteger processed = new AtomicInteger(0);
+        final int total = peptides.size();
+
+        Thread[] workers = new Thread[m_threads];
+        for (int t = 0; t < m_threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    int b;
+                    while ((b = nextBlock.getAndIncrement()) < blockCount) {
+                        int from = b * PEPTIDES_PER_BLOCK;
+                        int to = Math.min(total, from + PEPTIDES_PER_BLOCK);
+                        FragmentBlock block = new FragmentBlock();
+                        for (int p = from; p < to; p++) {
+                            Peptide pep = peptides.get(p);
+                            ArrayList<Fragment> frags;
+                            try {
+                                frags = pep.getPrimaryFragments(m_config);
+                            } catch (Exception e) {
+                                throw new Error(e);
+                            }
+                            int id = pep.getPeptideIndex();
+                            for (int i = 0; i < frags.size(); i++) {
+                                block.add(frags.get(i).getMass(), id);
+                            }
+                        }
+                        block.sort();
+                        blocks[b] = block;
+                        int done = processed.addAndGet(to - from);
+                        m_config.getStatusInterface().setStatus("Fragmentation: " + ((int)(done/(double)total * 100)) + "% of  Peptides" );
+                    }
+                }
+            };
+            workers[t].setName("fragementing Peptides " + t);
+            workers[t].start();
+        }
+        Util.joinAllThread(workers);
+
+        long count = 0;
+        for (FragmentBlock b : blocks) {
+            count += b.size;
+        }
+        m_fragmentCount = count;
+        Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Fragmentation: " + total + " Peptides - " + count + " fragments");
+        return blocks;
     }
 
-    @Override
-    public ArrayList<Peptide> getForMass(double mass, double referenceMass) {
-        Range r = tolerance.getRange(mass,referenceMass);
-        HashSet<Integer> pepids  =getPeptideIds(r);
-        ArrayList<Peptide> ret  =new ArrayList<>(pepids.size());
-        for (int id : pepids) {
-            Peptide p  = m_list.getPeptide(id);
-            ret.add(m_list.getPeptide(id));
+    /**
+     * merges the sorted blocks into the off-heap arrays.
+     * <br/>The mass range gets split into several partitions - each of them
+     * gets merged by its own thread directly into its final place.
+     * If a maximum number of peptides per peak is defined masses with more
+     * peptides get removed afterwards.
+     */
+    private void mergeBlocks(final FragmentBlock[] blocks) {
+        m_masses = new OffHeapDoubleArray(m_fragmentCount);
+        m_peptideIds = new OffHeapIntArray(m_fragmentCount);
+        if (m_fragmentCount == 0) {
+            m_entries = 0;
+            return;
+        }
+
+        // define the partitions by sampling masses from all blocks
+        int partitions = m_threads * 4;
+        int samplesPerBlock = Math.max(1, partitions * 16 / blocks.length);
+        double[] samples = new double[blocks.length * samplesPerBlock];
+        int sampleCount = 0;
+        for (FragmentBlock b : blocks) {
+            for (int s = 0; s < samplesPerBlock && b.size > 0; s++) {
+                samples[sampleCount++] = b.masses[(int) ((long) b.size * s / samplesPerBlock)];
+            }
+        }
+        java.util.Arrays.sort(samples, 0, sampleCount);
+        final double[] splitMasses = new double[partitions + 1];
+        splitMasses[0] = Double.NEGATIVE_INFINITY;
+        splitMasses[partitions] = Double.POSITIVE_INFINITY;
+        for (int p = 1; p < partitions; p++) {
+            splitMasses[p] = samples[(int) ((long) sampleCount * p / partitions)];
+        }
+
+        // where does each partition start in each block
+        final int[][] blockStarts = new int[blocks.length][partitions + 1];
+        final long[] partitionStart = new long[partitions + 1];
+        for (int b = 0; b < blocks.length; b++) {
+            for (int p = 1; p < partitions; p++) {
+                blockStarts[b][p] = blocks[b].lowerBound(splitMasses[p]);
+            }
+            blockStarts[b][partitions] = blocks[b].size;
+        }
+        for (int p = 0; p < partitions; p++) {
+            long size = 0;
+            for (int b = 0; b < blocks.length; b++) {
+                size += blockStarts[b][p + 1] - blockStarts[b][p];
+            }
+            partitionStart[p + 1] = partitionStart[p] + size;
+        }
+
+        // merge each partition
+        final long[] partitionKept = new long[partitions];
+        final AtomicInteger nextPartition = new AtomicInteger(0);
+        final int partitionCount = partitions;
+        Thread[] workers = new Thread[m_threads];
+        for (int t = 0; t < m_threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    int p;
+                    while ((p = nextPartition.getAndIncrement()) < partitionCount) {
+                        mergePartition(blocks, blockStarts, p, partitionStart[p]);
+                        if (m_maxPeakCandidates > 0) {
+                            partitionKept[p] = prunePartition(partitionStart[p], partitionStart[p + 1]);
+                        } else {
+                            partitionKept[p] = partitionStart[p + 1] - partitionStart[p];
+                        }
+                    }
+                }
+            };
+            workers[t].setName("FragmentMerge_" + t);
+            workers[t].start();
+        }
+        Util.joinAllThread(workers);
+
+        // close the gaps left by pruning
+        long end = 0;
+        for (int p = 0; p < partitions; p++) {
+            if (end != partitionStart[p]) {
+                m_masses.moveDown(partitionStart[p], end, partitionKept[p]);
+                m_peptideIds.moveDown(partitionStart[p], end, partitionKept[p]);
+            }
+            end += partitionKept[p];
+        }
+        m_entries = end;
+        if (m_maxPeakCandidates > 0) {
+            Logger.getLogger(this.getClass().getName()).log(Level.INFO, "deleted peptide ids: {0}", m_fragmentCount - m_entries);
         }
-        return ret;
     }
 
-    protected HashSet<Integer> getPeptideIds(Range r) {
-        HashSet<Integer> pepids  =new HashSet<>();
-        // find the smallest entry larger then min
-        int smallest=fragMasses.size()/2;
-        int step = fragMasses.size()/2;
-        double m0;
-        double m1;
-        m0 = (smallest>0? fragMasses.get(smallest-1) : 0);
-        m1 = (smallest<fragMasses.size()? fragMasses.get(smallest) : 0);
-
-        while ((m0>=r.min || m1<r.min) && step>0) {
-            step /= 2;
-            if (m0 < r.min) {
-                smallest += step;
-            } else {
-                smallest -= step;
+    /**
+     * k-way merge of one partition of all blocks
+     */
+    private void mergePartition(FragmentBlock[] blocks, int[][] blockStarts, int partition, long target) {
+        // heap of block-indices ordered by the current mass (and id) of the block
+        int[] heap = new int[blocks.length];
+        int[] pos = new int[blocks.length];
+        int[] end = new int[blocks.length];
+        int heapSize = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            pos[b] = blockStarts[b][partition];
+            end[b] = blockStarts[b][partition + 1];
+            if (pos[b] < end[b]) {
+                heap[heapSize] = b;
+                siftUp(heap, heapSize++, blocks, pos);
+            }
+        }
+        while (heapSize > 0) {
+            int b = heap[0];
+            m_masses.set(target, blocks[b].masses[pos[b]]);
+            m_peptideIds.set(target++, blocks[b].ids[pos[b]]);
+            if (++pos[b] == end[b]) {
+                heap[0] = heap[--heapSize];
             }
-            m0 = (smallest>0? fragMasses.get(smallest-1) : 0);
-            m1 = (smallest<fragMasses.size()? fragMasses.get(smallest) : 0);
+            siftDown(heap, heapSize, blocks, pos);
         }
-        int next = smallest;
-        while (next<fragMasses.size() && fragMasses.get(next)<=r.max) {
-            pepids.add((int)pepIDs.get(next++));
+    }
+
+    private static boolean before(int a, int b, FragmentBlock[] blocks, int[] pos) {
+        double ma = blocks[a].masses[pos[a]];
+        double mb = blocks[b].masses[pos[b]];
+        if (ma != mb) {
+            return ma < mb;
         }
-        return pepids;
+        return blocks[a].ids[pos[a]] < blocks[b].ids[pos[b]];
     }
-    
-    @Override
-    public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass) {
-        Range r = tolerance.getRange(mass,referenceMass);
-        Collection<Integer> pepids = getPeptideIds(r);
-
-        ArrayList<Peptide> ret  =new ArrayList<>(pepids.size());
-        for (int id : pepids) {
-            Peptide p  = m_list.getPeptide(id);
-            if (p.getMass()<maxMass) {
-                ret.add(m_list.getPeptide(id));
+
+    private static void siftUp(int[] heap, int i, FragmentBlock[] blocks, int[] pos) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(heap[i], heap[parent], blocks, pos)) {
+                return;
+            }
+            int h = heap[i];
+            heap[i] = heap[parent];
+            heap[parent] = h;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, FragmentBlock[] blocks, int[] pos) {
+        int i = 0;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= size) {
+                return;
+            }
+            if (c + 1 < size && before(heap[c + 1], heap[c], blocks, pos)) {
+                c++;
+            }
+            if (!before(heap[c], heap[i], blocks, pos)) {
+                return;
+            }
+            int h = heap[i];
+            heap[i] = heap[c];
+            heap[c] = h;
+            i = c;
+        }
+    }
+
+    /**
+     * removes all masses within the range that have more then
+     * m_maxPeakCandidates peptides and moves the remaining entries to the
+     * start of the range.
+     * @return number of entries kept
+     */
+    private long prunePartition(long from, long to) {
+        long write = from;
+        long i = from;
+        while (i < to) {
+            double m = m_masses.get(i);
+            long runEnd = i + 1;
+            while (runEnd < to && m_masses.get(runEnd) == m) {
+                runEnd++;
+            }
+            if (runEnd - i <= m_maxPeakCandidates) {
+                if (write != i) {
+                    m_masses.moveDown(i, write, runEnd - i);
+                    m_peptideIds.moveDown(i, write, runEnd - i);
+                }
+                write += runEnd - i;
+            }
+            i = runEnd;
+        }
+        return write - from;
+    }
+
+    /**
+     * bucket a mass falls into - can be outside of the directory
+     */
+    private long bucket(double mass) {
+        return (long) Math.floor((mass - m_bucketMinMass) / BUCKET_WIDTH);
+    }
+
+    /**
+     * builds the bucket-directory.
+     * <br/>m_bucketStart[b] is the first index that belongs to bucket b or a
+     * later one. As bucket() is monotone, a lowerBound for a mass only needs
+     * to look within the bucket of that mass.
+     */
+    private void buildBucketDirectory() {
+        if (m_entries == 0) {
+            m_bucketMinMass = 0;
+            m_bucketStart = new long[]{0, 0};
+            return;
+        }
+        m_bucketMinMass = Math.floor(m_masses.get(0));
+        int buckets = (int) bucket(m_masses.get(m_entries - 1)) + 1;
+        m_bucketStart = new long[buckets + 1];
+        for (int b = 1; b < buckets; b++) {
+            long lo = m_bucketStart[b - 1];
+            long hi = m_entries;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (bucket(m_masses.get(mid)) < b) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            m_bucketStart[b] = lo;
+        }
+        m_bucketStart[buckets] = m_entries;
+    }
+
+    /**
+     * @return the index of the first entry with a mass &gt;= mass
+     */
+    protected long lowerBound(double mass) {
+        long b = bucket(mass);
+        if (b < 0) {
+            return 0;
+        }
+        if (b >= m_bucketStart.length - 1) {
+            return m_entries;
+        }
+        return m_masses.lowerBound(mass, m_bucketStart[(int) b], m_bucketStart[(int) b + 1]);
+    }
+
+    /**
+     * collects the peptides for all fragments with masses in [min,max)
+     */
+    protected ArrayList<Peptide> getPeptides(double min, double max, double maxPepMass) {
+        long from = lowerBound(min);
+        long to = lowerBound(max);
+        ArrayList<Peptide> ret = new ArrayList<Peptide>((int) Math.max(0, Math.min(to - from, 1000)));
+        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        for (long i = from; i < to; i++) {
+            Peptide p = allPeptides[m_peptideIds.get(i)];
+            if (p.getMass() < maxPepMass) {
+                ret.add(p);
             }
         }
         return ret;
     }
 
+    /**
+     * number of distinct fragment masses in [min,max)
+     */
+    protected int countMasses(double min, double max) {
+        return countMasses(lowerBound(min), lowerBound(max));
+    }
+
+    /**
+     * number of distinct fragment masses between the two indices
+     */
+    protected int countMasses(long from, long to) {
+        int count = 0;
+        double last = Double.NaN;
+        for (long i = from; i < to; i++) {
+            double m = m_masses.get(i);
+            if (m != last) {
+                count++;
+                last = m;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass) {
+        return getPeptides(m_Tolerance.getMinRange(mass), m_Tolerance.getMaxRange(mass), Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass) {
+        return getPeptides(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass), Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass) {
+        return getPeptides(m_Tolerance.getMinRange(mass, referenceMass), m_Tolerance.getMaxRange(mass, referenceMass), maxMass);
+    }
+
     @Override
     public ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass, int maxPeptides) {
-        Range r = tolerance.getRange(mass,referenceMass);
-        Collection<Integer> pepids = getPeptideIds(r);
-        
-        if (pepids.size() <= maxPeptides) {
-            ArrayList<Peptide> ret  =new ArrayList<>(pepids.size());
-            for (int id : pepids) {
-                Peptide p  = m_list.getPeptide(id);
-                if (p.getMass()<maxMass) {
-                    ret.add(m_list.getPeptide(id));
-                }
+        double min = m_Tolerance.getMinRange(mass, referenceMass);
+        double max = m_Tolerance.getMaxRange(mass, referenceMass);
+        if (countMasses(min, max) > maxPeptides) {
+            return new ArrayList<Peptide>(0);
+        }
+        return getPeptides(min, max, maxMass);
+    }
+
+
+
+    @Override
+    public void visitForMass(double mass, double referenceMass, double maxMass, int maxPeptides, PeptideIdVisitor visitor) {
+        long from = lowerBound(m_Tolerance.getMinRange(mass, referenceMass));
+        long to = lowerBound(m_Tolerance.getMaxRange(mass, referenceMass));
+        if (maxPeptides != -1 && countMasses(from, to) > maxPeptides) {
+            return;
+        }
+        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        for (long i = from; i < to; i++) {
+            int id = m_peptideIds.get(i);
+            if (allPeptides[id].getMass() < maxMass) {
+                visitor.visit(id);
             }
-            return ret;
         }
-        return new ArrayList<>(0);
     }
-    
-    
 
     @Override
     public Map<Peptide, Double> getPeptidesForMasses(double mass) {
@@ -243,73 +729,58 @@ public class ArrayBackedFragmentLookup implements FragmentLookup {
         for (Peptide p : getForMass(mass)) {
             ret.put(p, mass);
         }
-        return ret;    
+        return ret;
     }
 
     @Override
     public int getFragmentCount() {
-        return m_fragmentCount;
+        return (int) Math.min(Integer.MAX_VALUE, m_fragmentCount);
     }
 
     @Override
     public int countPeptides(double mass) {
-        return getPeptideIds(tolerance.getRange(mass)).size();
+        return (int) Math.min(Integer.MAX_VALUE, lowerBound(m_Tolerance.getMaxRange(mass)) - lowerBound(m_Tolerance.getMinRange(mass)));
     }
 
     @Override
     public int countPeptides(double mass, double targetMass) {
-        return getPeptideIds(tolerance.getRange(mass,targetMass)).size();
+        return countMasses(m_Tolerance.getMinRange(mass, targetMass), m_Tolerance.getMaxRange(mass, targetMass));
     }
 
     @Override
     public Peptide lastFragmentedPeptide() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return m_lastPeptide;
     }
 
     @Override
     public ArithmeticScoredOccurence<Peptide> getAlphaCandidates(Spectra s, ToleranceUnit precursorTolerance) {
         double maxPeptideMass=precursorTolerance.getMaxRange(s.getPrecurserMass());
-        int maxcandidates = m_config.getMaximumPeptideCandidatesPerPeak();
         return this.getAlphaCandidates(s, maxPeptideMass);
-    }    
-    
+    }
+
     @Override
     public ArithmeticScoredOccurence<Peptide> getAlphaCandidates(Spectra s, double maxPeptideMass) {
         ArithmeticScoredOccurence<Peptide> peakMatchScores = new ArithmeticScoredOccurence<Peptide>();
 
-        if (m_maxPeakCandidates == -1) {
-            //   go through mgc spectra
-            for (SpectraPeak sp : s) {
-                //      for each peak
-                //           count found peptides
-                ArrayList<Peptide> matchedPeptides = this.getForMass(sp.getMZ(),sp.getMZ(),maxPeptideMass); // - Util.PROTON_MASS);
-                
-                // add fragments for that match to any delta mass as well
-                for (double d : m_config.getAlphaCandidateDeltaMasses()) {
-                    matchedPeptides.addAll(this.getForMass(sp.getMZ()-d,sp.getMZ(),maxPeptideMass));
-                }
-                
-                double peakScore = (double) matchedPeptides.size() / getFragmentCount();
-                for (Peptide p : matchedPeptides) {
-                    peakMatchScores.multiply(p, peakScore);
-                }
+        //   go through mgc spectra
+        for (SpectraPeak sp : s) {
+            //      for each peak
+            //           count found peptides
+            ArrayList<Peptide> matchedPeptides;
+            if (m_maxPeakCandidates == -1) {
+                matchedPeptides = this.getForMass(sp.getMZ(),sp.getMZ(),maxPeptideMass);
+            } else {
+                matchedPeptides = this.getForMass(sp.getMZ(),sp.getMZ(),maxPeptideMass,m_maxPeakCandidates);
             }
-        } else {
-            //   go through mgc spectra
-            for (SpectraPeak sp : s) {
-                //      for each peak
-                //           count found peptides
-                ArrayList<Peptide> matchedPeptides = getForMass(sp.getMZ(),sp.getMZ(),maxPeptideMass,m_maxPeakCandidates);
-                
-                // add fragments for that match to any delta mass as well
-                for (double d : m_config.getAlphaCandidateDeltaMasses()) {
-                    matchedPeptides.addAll(this.getForMass(sp.getMZ()-d,sp.getMZ(),maxPeptideMass));
-                }
-                
-                double peakScore = (double) matchedPeptides.size() / getFragmentCount();
-                for (Peptide p : matchedPeptides) {
-                    peakMatchScores.multiply(p, peakScore);
-                }
+
+            // add fragments for that match to any delta mass as well
+            for (double d : m_config.getAlphaCandidateDeltaMasses()) {
+                matchedPeptides.addAll(this.getForMass(sp.getMZ()-d,sp.getMZ(),maxPeptideMass));
+            }
+
+            double peakScore = (double) matchedPeptides.size() / getFragmentCount();
+            for (Peptide p : matchedPeptides) {
+                peakMatchScores.multiply(p, peakScore);
             }
         }
         return peakMatchScores;
@@ -317,59 +788,25 @@ public class ArrayBackedFragmentLookup implements FragmentLookup {
 
     @Override
     public void writeOutTree(File out) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        PrintWriter o = new PrintWriter(out);
+        for (long i = 0; i < m_entries; i++) {
+            o.println("0," + m_masses.get(i) + " , " + m_peptideIds.get(i));
+        }
+        o.close();
     }
 
     @Override
     public void setTolerance(ToleranceUnit tolerance) {
-        this.tolerance = tolerance;
+        this.m_Tolerance = tolerance;
     }
 
     @Override
     public void clear() {
-        this.fragMasses.clear();
-        this.pepIDs.clear();
-        this.pepIDs = new IntArrayList();
-        this.pepIDs.setMaxIncrement(1000000);
-        this.fragMasses = new DoubleArrayList();
-        this.fragMasses.setMaxIncrement(1000000);
-    }
-    
-    public static void main(String[] args) {
-        RunConfig  conf =new AbstractRunConfig() {
-            {
-                setFragmentTolerance(new ToleranceUnit("20ppm"));
-                setPrecoursorTolerance(new ToleranceUnit("10ppm"));
-                setDigestion(new NoDigestion());
-                
-                setCrosslinker(
-                        new CrossLinker[]{
-                            new SymetricSingleAminoAcidRestrictedCrossLinker(
-                                    "dummy", 
-                                    1, 1, 
-                                    new AminoAcid[]{AminoAcid.K})
-                        }
-                );
-                try {
-                    Fragment.parseArgs("BIon", this);
-                    Fragment.parseArgs("YIon", this);
-                    Fragment.parseArgs("PeptideIon", this);
-                } catch (ParseException ex) {
-                    Logger.getLogger(ArrayBackedFragmentLookup.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            
-        };
-        SequenceList t = new SequenceList(conf);
-        Sequence s1 = new Sequence("KKKKKKKK", conf);
-        Sequence s2 = new Sequence("KKKYYKKK", conf);
-        t.add(s1);
-        t.add(s2);
-        PeptideLookup pepLookup = new PeptideTree(conf.getPrecousorTolerance());
-        conf.getDigestion_method().setPeptideLookup(pepLookup, pepLookup);
-        t.digest(conf.getDigestion_method(), conf.getCrossLinker());
-        ArrayBackedFragmentLookup test = new ArrayBackedFragmentLookup(pepLookup, t, 1, conf);
-        ArrayList<Peptide> peps1 = test.getForMass(403.30327443699997);
-        ArrayList<Peptide> peps2 = test.getForMass(566.366603012);
-    }
-}
\ No newline at end of file
+        if (m_masses != null) {
+            m_masses.free();
+            m_peptideIds.free();
+        }
+        m_entries = 0;
+        m_bucketStart = new long[]{0, 0};
+    }
+}
@@ -19,10 +19,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Map;
+import rappsilber.config.RunConfig;
 import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.lookup.Lookup;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.spectra.Spectra;
+import rappsilber.ms.spectra.SpectraPeak;
 import rappsilber.utils.ScoredOccurence;
 
 public interface FragmentLookup extends Lookup<Peptide> {
@@ -44,6 +46,26 @@ public interface FragmentLookup extends Lookup<Peptide> {
      */
     ArrayList<Peptide> getForMass(double mass, double referenceMass, double maxMass, int maxPeptides);
 
+    /**
+     * calls the visitor with the id of each peptide that could throw a
+     * fragment of the given mass.
+     * <br/>Same result as {@link #getForMass(double, double, double, int)}
+     * but implementations can do that without creating any list.
+     * @param mass the fragment mass
+     * @param referenceMass reference mass
+     * @param maxMass what is the maximal mass of a peptide to be returned
+     * @param maxPeptides only return something if not more then this number of peptides would be returned (-1 for no limit)
+     * @param visitor gets called for each found peptide
+     */
+    default void visitForMass(double mass, double referenceMass, double maxMass, int maxPeptides, PeptideIdVisitor visitor) {
+        ArrayList<Peptide> peps = maxPeptides == -1 ?
+                getForMass(mass, referenceMass, maxMass) :
+                getForMass(mass, referenceMass, maxMass, maxPeptides);
+        for (int i = 0; i < peps.size(); i++) {
+            visitor.visit(peps.get(i).getPeptideIndex());
+        }
+    }
+
     Map<Peptide,Double> getPeptidesForMasses(double mass);
     /**
      * 
@@ -69,6 +91,35 @@ public interface FragmentLookup extends Lookup<Peptide> {
 //    public boolean nextRound();
     ScoredOccurence<Peptide> getAlphaCandidates(Spectra s, ToleranceUnit precursorTolerance);
     ScoredOccurence<Peptide> getAlphaCandidates(Spectra s, double maxPeptideMass);
+
+    /**
+     * scores the alpha candidates like {@link #getAlphaCandidates(rappsilber.ms.spectra.Spectra, double)}
+     * but into a reusable, peptide-id based accumulator.
+     * @param s the spectrum
+     * @param maxPeptideMass the largest peptide mass to consider
+     * @param config defines the maximum candidates per peak and the delta masses
+     * @param scores receives the scores - gets cleared first
+     */
+    default void getAlphaCandidates(Spectra s, double maxPeptideMass, RunConfig config, AlphaCandidateScores scores) {
+        scores.clear();
+        int maxPeakCandidates = config.getMaximumPeptideCandidatesPerPeak();
+        double allFragments = getFragmentCount();
+        double[] deltaMasses = new double[config.getAlphaCandidateDeltaMasses().size()];
+        int d = 0;
+        for (Double dm : config.getAlphaCandidateDeltaMasses()) {
+            deltaMasses[d++] = dm;
+        }
+        for (SpectraPeak sp : s) {
+            double mz = sp.getMZ();
+            scores.startPeak();
+            visitForMass(mz, mz, maxPeptideMass, maxPeakCandidates, scores);
+            // add fragments for that match to any delta mass as well
+            for (int i = 0; i < deltaMasses.length; i++) {
+                visitForMass(mz - deltaMasses[i], mz, maxPeptideMass, -1, scores);
+            }
+            scores.multiplyPeak(scores.peakSize() / allFragments);
+        }
+    }
     
     public void writeOutTree(File out) throws IOException;
     
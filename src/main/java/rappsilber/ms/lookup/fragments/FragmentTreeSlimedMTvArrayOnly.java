@@ -560,6 +560,31 @@ public class FragmentTreeSlimedMTvArrayOnly implements FragmentLookup, FragmentC
         return ret;
     }
 
+    @Override
+    public void visitForMass(double mass, double referenceMass, double maxPepass, int maxPeptides, PeptideIdVisitor visitor) {
+        double min = m_Tolerance.getMinRange(mass, referenceMass);
+        double max = m_Tolerance.getMaxRange(mass, referenceMass);
+        if (maxPeptides != -1) {
+            int count = 0;
+            for (int t = 0; t<m_threadTrees.length;t++) {
+                count += m_threadTrees[t].subMap(min, max).size();
+                if (count > maxPeptides) {
+                    return;
+                }
+            }
+        }
+        Peptide[] allPeptides = m_list.getAllPeptideIDs();
+        for (int t = 0; t<m_threadTrees.length;t++) {
+            for (int[] ids : m_threadTrees[t].subMap(min, max).values()) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (allPeptides[ids[i]].getMass()<maxPepass) {
+                        visitor.visit(ids[i]);
+                    }
+                }
+            }
+        }
+    }
+
     public ArrayList<Peptide> getPeptidesExactFragmentMass(double mass) {
         ArrayList<Peptide> ret = new ArrayList<Peptide>();
         Peptide[] allPeptides = m_list.getAllPeptideIDs();
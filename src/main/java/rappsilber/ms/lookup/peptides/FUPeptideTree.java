@@ -17,12 +17,12 @@ package rappsilber.ms.lookup.peptides;
 
 import it.unimi.dsi.fastutil.doubles.Double2ObjectMap;
 import it.unimi.dsi.fastutil.doubles.Double2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.doubles.Double2ObjectSortedMap;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Iterator;
 import rappsilber.config.RunConfig;
@@ -37,7 +37,6 @@ import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.digest.Digestion;
 import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
-import rappsilber.utils.Util;
 
 public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement> implements PeptideLookup{
     private static final long serialVersionUID = -4584307853042554730L;
@@ -433,62 +432,44 @@ public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement>
         }
     }
     
+    public int removeHeavierThan(double mass) {
+        Double2ObjectSortedMap<PeptideLookupElement> heavy = tailMap(Math.nextUp(mass));
+        int removed = 0;
+        for (PeptideLookupElement ple : heavy.values()) {
+            removed += ple.size();
+        }
+        heavy.clear();
+        m_peptideCount -= removed;
+        if (isEmpty()) {
+            m_minimumMass = Double.MAX_VALUE;
+            m_MaximumMass = Double.MIN_VALUE;
+        } else if (m_MaximumMass > mass) {
+            m_MaximumMass = lastDoubleKey();
+        }
+        if (m_discarded_decoys != null) {
+            m_discarded_decoys.removeHeavierThan(mass);
+        }
+        return removed;
+    }
+
     @Override
     public void applyVariableModifications(RunConfig conf) {
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             addPeptide(p);
         }
     }
 
     @Override
     public void applyVariableModificationsLinear(RunConfig conf,PeptideLookup Crosslinked) {
-        long lt = Calendar.getInstance().getTimeInMillis();
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                long now = Calendar.getInstance().getTimeInMillis();
-                if (now-lt > 5000) {
-                    conf.getStatusInterface().setStatus("Applying variable modification to Linear Peptides " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-                    lt = now;
-                }
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
-        
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification to Linear Peptides ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             if (CrossLinker.canCrossLink(cl, p)) {
                 Crosslinked.addPeptide(p);
             } else {
@@ -536,34 +517,11 @@ public class FUPeptideTree extends Double2ObjectRBTreeMap<PeptideLookupElement>
     }
     
     public void applyVariableModifications(RunConfig conf, PeptideLookup linear) {
-        long lt = Calendar.getInstance().getTimeInMillis();
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                long now = Calendar.getInstance().getTimeInMillis();
-                if (now-lt > 5000) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-                    lt = now;
-                }
-            }
-            Peptide pep = peps.next();
-            ArrayList<Peptide> mps= pep.modify(conf, ModificationType.variable);
-            for (Peptide p : mps) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
-        
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             if (CrossLinker.canCrossLink(cl, p)) {
                 addPeptide(p);
             } else {
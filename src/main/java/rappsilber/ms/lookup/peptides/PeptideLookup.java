@@ -93,6 +93,13 @@ public interface PeptideLookup extends Lookup<Peptide>, Iterable<Peptide> {
     public void cleanup(int minLength, int maxAmbiguity);
 
     public void cleanup(int minLength, int maxAmbiguity, int maxProtAmbiguity);
+
+    /**
+     * delete all peptides heavier than the given mass
+     * @param mass
+     * @return number of deleted peptides
+     */
+    public int removeHeavierThan(double mass);
    
     /**
      * an iterator, over all peptides
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.peptides;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.sequence.ModificationType;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.digest.Digestion;
+import rappsilber.utils.OrderedParallelChunks;
+
+/**
+ * Generates the modified versions of peptides on
+ * {@link RunConfig#getPreSearchThreads()} threads.
+ * <br/>The modified peptides are returned in the same order as a sequential
+ * loop over the peptides would have produced them.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class PeptideModifier {
+
+    /**
+     * @param peptides the peptides to modify
+     * @param conf
+     * @param type which modifications to apply
+     * @param enzym if not null only modified peptides that could be the result
+     * of this digestion are returned
+     * @param status prefix for status messages reporting the progress
+     * @return the modified peptides
+     */
+    public static ArrayList<Peptide> modify(Iterable<Peptide> peptides, final RunConfig conf, final ModificationType type, final Digestion enzym, final String status) {
+        ArrayList<Peptide> toModify = new ArrayList<Peptide>();
+        for (Peptide p : peptides) {
+            toModify.add(p);
+        }
+        final double total = toModify.size();
+        final AtomicInteger done = new AtomicInteger(0);
+        final ArrayList<Peptide> ret = new ArrayList<Peptide>();
+
+        new OrderedParallelChunks<Peptide, ArrayList<Peptide>>("Modify") {
+            @Override
+            protected ArrayList<Peptide> process(List<Peptide> chunk) {
+                ArrayList<Peptide> modified = new ArrayList<Peptide>();
+                // runs on several threads - so don't share Util.twoDigits
+                DecimalFormat twoDigits = new DecimalFormat("#,##0.00");
+                for (Peptide pep : chunk) {
+                    if (done.getAndIncrement() % 10000 == 0 && status != null) {
+                        conf.getStatusInterface().setStatus(status + twoDigits.format(done.get() * 100.0 / total) + "%");
+                    }
+                    for (Peptide p : pep.modify(conf, type)) {
+                        if (enzym == null || enzym.isDigestedPeptide(p)) {
+                            modified.add(p);
+                        }
+                    }
+                }
+                return modified;
+            }
+
+            @Override
+            protected void merge(ArrayList<Peptide> result) {
+                ret.addAll(result);
+            }
+        }.run(toModify, conf.getPreSearchThreads());
+
+        return ret;
+    }
+
+}
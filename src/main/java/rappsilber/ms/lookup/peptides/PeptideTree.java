@@ -36,7 +36,6 @@ import rappsilber.ms.sequence.Sequence;
 import rappsilber.ms.sequence.SequenceList;
 import rappsilber.ms.sequence.digest.Digestion;
 import rappsilber.ms.statistics.utils.StreamingAverageMedianStdDev;
-import rappsilber.utils.Util;
 
 public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implements PeptideLookup{
     private static final long serialVersionUID = -4584307853042554730L;
@@ -432,29 +431,33 @@ public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implement
         }
     }
     
+    public int removeHeavierThan(double mass) {
+        Map<Double, PeptideLookupElement> heavy = tailMap(mass, false);
+        int removed = 0;
+        for (PeptideLookupElement ple : heavy.values()) {
+            removed += ple.size();
+        }
+        heavy.clear();
+        m_peptideCount -= removed;
+        if (isEmpty()) {
+            m_minimumMass = Double.MAX_VALUE;
+            m_MaximumMass = Double.MIN_VALUE;
+        } else if (m_MaximumMass > mass) {
+            m_MaximumMass = lastKey();
+        }
+        if (m_discarded_decoys != null) {
+            m_discarded_decoys.removeHeavierThan(mass);
+        }
+        return removed;
+    }
+
     @Override
     public void applyVariableModifications(RunConfig conf) {
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf, ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             addPeptide(p);
         }
     }
@@ -500,25 +503,9 @@ public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implement
     public void applyVariableModificationsLinear(RunConfig conf,PeptideLookup Crosslinked) {
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-
-            Peptide pep = peps.next();
-            for (Peptide p : pep.modify(conf,ModificationType.variable)) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             if (CrossLinker.canCrossLink(cl, p)) {
                 Crosslinked.addPeptide(p);
             } else {
@@ -532,26 +519,9 @@ public class PeptideTree extends TreeMap<Double, PeptideLookupElement> implement
 
         Digestion enzym = conf.getDigestion_method();
         ArrayList<CrossLinker> cl = conf.getCrossLinker();
-        Iterator<Peptide> peps = this.iterator();
-        ArrayList<Peptide> newPeps = new ArrayList<Peptide>();
-
-        int cm = this.size();
-
-        int c = 0;
-        while (peps.hasNext()) {
-            if (c++ % 10000 == 0) {
-                    conf.getStatusInterface().setStatus("Applying variable modification " +  Util.twoDigits.format(c*100.0/cm) + "%" );
-            }
-            Peptide pep = peps.next();
-            ArrayList<Peptide> mps= pep.modify(conf, ModificationType.variable);
-            for (Peptide p : mps) {
-                if (enzym.isDigestedPeptide(p)) {
-                    newPeps.add(p);
-                    p.getSequence().getPeptides().add(p);
-                }
-            }
-        }
+        ArrayList<Peptide> newPeps = PeptideModifier.modify(this, conf, ModificationType.variable, enzym, "Applying variable modification ");
         for (Peptide p : newPeps) {
+            p.getSequence().getPeptides().add(p);
             if (CrossLinker.canCrossLink(cl, p)) {
                 addPeptide(p);
             } else {
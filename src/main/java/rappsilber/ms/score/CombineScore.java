@@ -15,7 +15,7 @@
  */
 package rappsilber.ms.score;
 
-import java.util.HashMap;
+import java.util.Map;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -32,7 +32,7 @@ public class CombineScore  extends AbstractScoreSpectraMatch{
     public double score(MatchedXlinkedPeptide match) {
         double sum = 0;
         double weight = 0;
-        HashMap<String,Double> scores = match.getScores();
+        Map<String, Double> scores = match.getScores();
         
         // all fragments
         double s = match.getScore(FragmentCoverage.mCp);
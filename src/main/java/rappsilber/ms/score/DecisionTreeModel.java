@@ -0,0 +1,541 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.score;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
+import rappsilber.utils.Util;
+
+/**
+ * A set of decision trees stored as flat node arrays.
+ * <br/>The trees are read from text in the form weka prints RandomTree and J48
+ * models:
+ * <pre>
+ * # comment
+ * class Z = 0
+ * tree normal
+ * mgcBeta &lt;= 14.67
+ * |   fragment coverage &lt;= 0.22: Z (19.47/3.0)
+ * |   fragment coverage &gt; 0.22: 0.25
+ * mgcBeta &gt; 14.67 : 1
+ * </pre>
+ * Each "tree" line starts a new (optionally named) tree. Leaves are either
+ * numbers or class labels defined by "class" lines. Features are score names;
+ * names starting with "@" are properties of the match (e.g.
+ * {@link #PRECURSOR_MASS}).
+ * <br/>A comparison with a missing (NaN) value follows the "&gt;"/"&gt;=" branch.
+ * <br/>Single trees can be evaluated directly on a match. When several trees
+ * are evaluated, the features of a match are read once into a row that then
+ * is used for all trees.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class DecisionTreeModel {
+
+    /** config key for a directory, where models are looked up first */
+    public static final String MODEL_DIR_KEY = "SCORE_MODEL_DIR";
+    /** where the models shipped with xi reside in the class-path */
+    public static final String MODEL_RESOURCE_PATH = "/rappsilber/data/";
+
+    public static final String PRECURSOR_MASS = "@precursor mass";
+    public static final String PRECURSOR_MZ = "@precursor mz";
+    public static final String CALCULATED_MASS = "@calculated mass";
+    public static final String CALCULATED_MZ = "@calculated mz";
+    public static final String PEPTIDE1_LENGTH = "@peptide1 length";
+    public static final String PEPTIDE2_LENGTH = "@peptide2 length";
+
+    /** feature kinds - index into this array */
+    private static final String[] MATCH_FEATURES = new String[]{null,
+        PRECURSOR_MASS, PRECURSOR_MZ, CALCULATED_MASS, CALCULATED_MZ,
+        PEPTIDE1_LENGTH, PEPTIDE2_LENGTH};
+    private static final int KIND_SCORE = 0;
+
+    private static final Pattern SPLIT = Pattern.compile("^(.+?)\\s*(<=|>=|<|>)\\s*(\\S+?)\\s*(?::\\s*(\\S+).*)?$");
+    private static final Pattern LEAF = Pattern.compile("^:\\s*(\\S+).*$");
+    private static final Pattern CLASS = Pattern.compile("^class\\s+(\\S+)\\s*=\\s*(\\S+)\\s*$");
+
+    /** names of the features */
+    private String[] m_featureNames;
+    /** what kind of feature (score or property of the match) */
+    private int[] m_featureKind;
+    /** ScoreRegistry slots of score features (-1 = not yet known) */
+    private int[] m_featureSlot;
+
+    /** feature that gets compared by a node */
+    private int[] m_nodeFeature;
+    /** threshold for a node */
+    private double[] m_nodeThreshold;
+    /** true: feature &lt;= threshold; false: feature &lt; threshold */
+    private boolean[] m_nodeInclusive;
+    /** child if the comparison holds - negative values denote leaves (~leaf) */
+    private int[] m_nodeLower;
+    /** child if the comparison fails - negative values denote leaves (~leaf) */
+    private int[] m_nodeUpper;
+    /** value of each leaf */
+    private double[] m_leafValue;
+    /** root of each tree - negative for trees that are only a leaf */
+    private int[] m_roots;
+    private String[] m_treeNames;
+
+    /** one parsed line of a tree */
+    private static class TreeLine {
+        int lineNumber;
+        int depth;
+        String feature;
+        String op;
+        String threshold;
+        String leaf;
+    }
+
+    private DecisionTreeModel() {
+    }
+
+    /**
+     * reads a model from the class-path - or if the config defines a
+     * {@link #MODEL_DIR_KEY} containing the file from that directory
+     * @param file name of the model file
+     * @param config the config of the search (can be null)
+     * @return
+     */
+    public static DecisionTreeModel load(String file, RunConfig config) {
+        try {
+            if (config != null) {
+                String dir = config.retrieveObject(MODEL_DIR_KEY, (String) null);
+                if (dir != null && new File(dir, file).exists()) {
+                    File f = new File(dir, file);
+                    Logger.getLogger(DecisionTreeModel.class.getName()).log(Level.INFO, "Reading model from {0}", f.getAbsolutePath());
+                    BufferedReader br = new BufferedReader(new FileReader(f));
+                    try {
+                        return read(br);
+                    } finally {
+                        br.close();
+                    }
+                }
+            }
+            InputStream is = DecisionTreeModel.class.getResourceAsStream(MODEL_RESOURCE_PATH + file);
+            if (is == null) {
+                throw new IOException("Model " + file + " not found");
+            }
+            BufferedReader br = new BufferedReader(new InputStreamReader(is));
+            try {
+                return read(br);
+            } finally {
+                br.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not read decision tree model " + file, ex);
+        } catch (ParseException ex) {
+            throw new RuntimeException("Error in decision tree model " + file + " line " + ex.getErrorOffset() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * parses a model
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws ParseException with the line number as error offset
+     */
+    public static DecisionTreeModel read(BufferedReader in) throws IOException, ParseException {
+        HashMap<String, Double> classes = new HashMap<String, Double>();
+        ArrayList<String> treeNames = new ArrayList<String>();
+        ArrayList<ArrayList<TreeLine>> trees = new ArrayList<ArrayList<TreeLine>>();
+        ArrayList<TreeLine> current = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Matcher m = CLASS.matcher(line);
+            if (m.matches()) {
+                classes.put(m.group(1), parseNumber(m.group(2), lineNumber));
+                continue;
+            }
+            if (line.equals("tree") || line.startsWith("tree ")) {
+                treeNames.add(line.substring(4).trim());
+                current = new ArrayList<TreeLine>();
+                trees.add(current);
+                continue;
+            }
+            if (current == null) {
+                throw new ParseException("tree definition before first \"tree\" line", lineNumber);
+            }
+            TreeLine tl = new TreeLine();
+            tl.lineNumber = lineNumber;
+            while (line.startsWith("|")) {
+                tl.depth++;
+                line = line.substring(1).trim();
+            }
+            m = LEAF.matcher(line);
+            if (m.matches()) {
+                tl.leaf = m.group(1);
+            } else {
+                m = SPLIT.matcher(line);
+                if (!m.matches()) {
+                    throw new ParseException("can't parse \"" + line + "\"", lineNumber);
+                }
+                tl.feature = m.group(1);
+                tl.op = m.group(2);
+                tl.threshold = m.group(3);
+                tl.leaf = m.group(4);
+            }
+            current.add(tl);
+        }
+
+        DecisionTreeModel model = new DecisionTreeModel();
+        model.build(treeNames, trees, classes);
+        return model;
+    }
+
+    private static double parseNumber(String s, int lineNumber) throws ParseException {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException nfe) {
+            throw new ParseException("not a number: " + s, lineNumber);
+        }
+    }
+
+    /** state while turning the parsed lines into node arrays */
+    private static class Builder {
+        HashMap<String, Double> classes;
+        HashMap<String, Integer> features = new HashMap<String, Integer>();
+        ArrayList<String> featureNames = new ArrayList<String>();
+        int[] nodeFeature = new int[16];
+        double[] nodeThreshold = new double[16];
+        boolean[] nodeInclusive = new boolean[16];
+        int[] nodeLower = new int[16];
+        int[] nodeUpper = new int[16];
+        int nodes = 0;
+        double[] leafValue = new double[16];
+        int leaves = 0;
+        ArrayList<TreeLine> lines;
+        int pos;
+
+        int leaf(TreeLine tl) throws ParseException {
+            Double v = classes.get(tl.leaf);
+            if (v == null) {
+                v = parseNumber(tl.leaf, tl.lineNumber);
+            }
+            if (leaves == leafValue.length) {
+                leafValue = Arrays.copyOf(leafValue, leaves * 2);
+            }
+            leafValue[leaves] = v;
+            return ~(leaves++);
+        }
+
+        int feature(String name) {
+            Integer f = features.get(name);
+            if (f == null) {
+                f = featureNames.size();
+                featureNames.add(name);
+                features.put(name, f);
+            }
+            return f;
+        }
+
+        TreeLine next(int depth) throws ParseException {
+            if (pos >= lines.size()) {
+                throw new ParseException("tree ends unexpectedly", lines.isEmpty() ? 0 : lines.get(lines.size() - 1).lineNumber);
+            }
+            TreeLine tl = lines.get(pos++);
+            if (tl.depth != depth || tl.feature == null) {
+                throw new ParseException("expected a split on depth " + depth, tl.lineNumber);
+            }
+            return tl;
+        }
+
+        /** parses the (sub-)tree starting at the current line */
+        int node(int depth) throws ParseException {
+            TreeLine lower = next(depth);
+            if (!lower.op.startsWith("<")) {
+                throw new ParseException("expected \"<\" or \"<=\"", lower.lineNumber);
+            }
+            if (nodes == nodeFeature.length) {
+                int size = nodes * 2;
+                nodeFeature = Arrays.copyOf(nodeFeature, size);
+                nodeThreshold = Arrays.copyOf(nodeThreshold, size);
+                nodeInclusive = Arrays.copyOf(nodeInclusive, size);
+                nodeLower = Arrays.copyOf(nodeLower, size);
+                nodeUpper = Arrays.copyOf(nodeUpper, size);
+            }
+            int n = nodes++;
+            nodeFeature[n] = feature(lower.feature);
+            nodeThreshold[n] = parseNumber(lower.threshold, lower.lineNumber);
+            nodeInclusive[n] = lower.op.equals("<=");
+            // the arrays might get replaced while parsing the sub-tree
+            int child = lower.leaf != null ? leaf(lower) : node(depth + 1);
+            nodeLower[n] = child;
+
+            TreeLine upper = next(depth);
+            String upperOp = nodeInclusive[n] ? ">" : ">=";
+            if (!upper.feature.equals(lower.feature) || !upper.op.equals(upperOp)
+                    || parseNumber(upper.threshold, upper.lineNumber) != nodeThreshold[n]) {
+                throw new ParseException("expected \"" + lower.feature + " " + upperOp + " " + lower.threshold + "\"", upper.lineNumber);
+            }
+            child = upper.leaf != null ? leaf(upper) : node(depth + 1);
+            nodeUpper[n] = child;
+            return n;
+        }
+    }
+
+    private void build(ArrayList<String> treeNames, ArrayList<ArrayList<TreeLine>> trees, HashMap<String, Double> classes) throws ParseException {
+        Builder b = new Builder();
+        b.classes = classes;
+        m_roots = new int[trees.size()];
+        for (int t = 0; t < trees.size(); t++) {
+            b.lines = trees.get(t);
+            b.pos = 0;
+            if (b.lines.size() == 1 && b.lines.get(0).feature == null) {
+                m_roots[t] = b.leaf(b.lines.get(0));
+                continue;
+            }
+            m_roots[t] = b.node(0);
+            if (b.pos < b.lines.size()) {
+                throw new ParseException("unexpected line", b.lines.get(b.pos).lineNumber);
+            }
+        }
+        m_treeNames = treeNames.toArray(new String[treeNames.size()]);
+        m_nodeFeature = Arrays.copyOf(b.nodeFeature, b.nodes);
+        m_nodeThreshold = Arrays.copyOf(b.nodeThreshold, b.nodes);
+        m_nodeInclusive = Arrays.copyOf(b.nodeInclusive, b.nodes);
+        m_nodeLower = Arrays.copyOf(b.nodeLower, b.nodes);
+        m_nodeUpper = Arrays.copyOf(b.nodeUpper, b.nodes);
+        m_leafValue = Arrays.copyOf(b.leafValue, b.leaves);
+
+        m_featureNames = b.featureNames.toArray(new String[b.featureNames.size()]);
+        m_featureKind = new int[m_featureNames.length];
+        m_featureSlot = new int[m_featureNames.length];
+        Arrays.fill(m_featureSlot, -1);
+        for (int f = 0; f < m_featureNames.length; f++) {
+            String name = m_featureNames[f];
+            if (name.startsWith("@")) {
+                m_featureKind[f] = Arrays.asList(MATCH_FEATURES).indexOf(name);
+                if (m_featureKind[f] < 0) {
+                    throw new ParseException("unknown feature " + name, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of trees in the model
+     */
+    public int treeCount() {
+        return m_roots.length;
+    }
+
+    /**
+     * @param name
+     * @return the index of the tree with the given name or -1
+     */
+    public int treeIndex(String name) {
+        for (int t = 0; t < m_treeNames.length; t++) {
+            if (m_treeNames[t].equals(name)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name
+     * @return the indices of all trees with the given name
+     */
+    public int[] treeIndices(String name) {
+        int[] ret = new int[m_treeNames.length];
+        int count = 0;
+        for (int t = 0; t < m_treeNames.length; t++) {
+            if (m_treeNames[t].equals(name)) {
+                ret[count++] = t;
+            }
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    /**
+     * @return number of features in a row
+     */
+    public int featureCount() {
+        return m_featureNames.length;
+    }
+
+    /**
+     * @param feature
+     * @return the name of a feature
+     */
+    public String featureName(int feature) {
+        return m_featureNames[feature];
+    }
+
+    /**
+     * reads the features of a match
+     * @param match
+     * @return the feature row
+     */
+    public double[] features(MatchedXlinkedPeptide match) {
+        double[] row = new double[m_featureNames.length];
+        features(match, row);
+        return row;
+    }
+
+    /**
+     * reads the features of a match into the given row
+     * @param match
+     * @param row
+     */
+    public void features(MatchedXlinkedPeptide match, double[] row) {
+        for (int f = 0; f < row.length; f++) {
+            row[f] = feature(match, f);
+        }
+    }
+
+    /**
+     * reads a single feature of a match
+     * @param match
+     * @param feature
+     * @return
+     */
+    public double feature(MatchedXlinkedPeptide match, int feature) {
+        switch (m_featureKind[feature]) {
+            case KIND_SCORE:
+                int slot = m_featureSlot[feature];
+                if (slot < 0) {
+                    // scores not yet registered might still appear later
+                    slot = ScoreRegistry.indexOf(m_featureNames[feature]);
+                    m_featureSlot[feature] = slot;
+                }
+                return match.getScore(slot);
+            case 1:
+                return match.getSpectrum().getPrecurserMass();
+            case 2:
+                return match.getSpectrum().getPrecurserMZ();
+            case 3:
+                return match.getCalcMass();
+            case 4:
+                return (match.getCalcMass() / match.getSpectrum().getPrecurserCharge()) + Util.PROTON_MASS;
+            case 5:
+                return length(match.getPeptide1());
+            default:
+                return length(match.getPeptide2());
+        }
+    }
+
+    private static double length(Peptide p) {
+        return p == null ? Double.NaN : p.length();
+    }
+
+    /**
+     * evaluates one tree
+     * @param tree index of the tree
+     * @param row the features
+     * @return the value of the leaf reached
+     */
+    public double evaluate(int tree, double[] row) {
+        int n = m_roots[tree];
+        while (n >= 0) {
+            double v = row[m_nodeFeature[n]];
+            double t = m_nodeThreshold[n];
+            n = (m_nodeInclusive[n] ? v <= t : v < t) ? m_nodeLower[n] : m_nodeUpper[n];
+        }
+        return m_leafValue[~n];
+    }
+
+    /**
+     * evaluates one tree directly on a match - only features on the path
+     * through the tree are read.
+     * @param tree index of the tree
+     * @param match
+     * @return the value of the leaf reached
+     */
+    public double evaluate(int tree, MatchedXlinkedPeptide match) {
+        int n = m_roots[tree];
+        while (n >= 0) {
+            double v = feature(match, m_nodeFeature[n]);
+            double t = m_nodeThreshold[n];
+            n = (m_nodeInclusive[n] ? v <= t : v < t) ? m_nodeLower[n] : m_nodeUpper[n];
+        }
+        return m_leafValue[~n];
+    }
+
+    /**
+     * @param row the features
+     * @return the sum of the values of all trees
+     */
+    public double sum(double[] row) {
+        double sum = 0;
+        for (int t = 0; t < m_roots.length; t++) {
+            sum += evaluate(t, row);
+        }
+        return sum;
+    }
+
+    /**
+     * @param trees indices of the trees to evaluate
+     * @param row the features
+     * @return the sum of the values of the given trees
+     */
+    public double sum(int[] trees, double[] row) {
+        double sum = 0;
+        for (int t : trees) {
+            sum += evaluate(t, row);
+        }
+        return sum;
+    }
+
+    /**
+     * evaluates one tree for several rows - e.g. all candidates of a spectrum
+     * @param tree index of the tree
+     * @param rows the features
+     * @param values receives the value for each row
+     */
+    public void evaluate(int tree, double[][] rows, double[] values) {
+        for (int r = 0; r < rows.length; r++) {
+            values[r] = evaluate(tree, rows[r]);
+        }
+    }
+
+    /**
+     * sums up all trees for several rows. The rows are evaluated tree by tree
+     * so each tree is walked for all rows before going to the next one.
+     * @param rows the features
+     * @param values receives the sum for each row
+     */
+    public void sum(double[][] rows, double[] values) {
+        Arrays.fill(values, 0, rows.length, 0);
+        for (int t = 0; t < m_roots.length; t++) {
+            for (int r = 0; r < rows.length; r++) {
+                values[r] += evaluate(t, rows[r]);
+            }
+        }
+    }
+}
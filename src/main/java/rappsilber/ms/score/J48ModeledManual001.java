@@ -15,6 +15,7 @@
  */
 package rappsilber.ms.score;
 
+import rappsilber.config.RunConfig;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -107,314 +108,54 @@ import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
  *     19    74   356    10 |     c = A
  *     85    12     4 20781 |     d = Z
  *
+ * The trees are read from {@link #MODEL} (see {@link DecisionTreeModel}).
+ *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 
 public class J48ModeledManual001 extends AbstractScoreSpectraMatch {
 
-    private final static double CLASS_A = 1;
-    private final static double CLASS_B = 0;
-    private final static double CLASS_C = 0;
-    private final static double CLASS_Z = 0;
+    /** the file containing the trees "normal" and "homo" */
+    public final static String MODEL = "J48ModeledManual001.trees";
     private final        String m_scorename = getClass().getSimpleName();
+    private final DecisionTreeModel m_model;
+    private final int m_normal;
+    private final int m_homo;
+
+    public J48ModeledManual001() {
+        this(null);
+    }
+
+    /**
+     * @param config the trees are read from the SCORE_MODEL_DIR of the config
+     * if it contains the model
+     */
+    public J48ModeledManual001(RunConfig config) {
+        m_model = DecisionTreeModel.load(MODEL, config);
+        m_normal = m_model.treeIndex("normal");
+        m_homo = m_model.treeIndex("homo");
+    }
 
     @Override
     public double score(MatchedXlinkedPeptide match) {
-        double score = CLASS_Z;
-//        double score = 0;
+        double score;
         if (match.getPeptide(0) == match.getPeptide(1))  {
             score = scoreHomo(match);
         } else {
             score = scoreNormal(match);
         }
-
-//        if (match.getScore("mgcBeta") <= 14.673606) {
-//            if (match.getScore("fragment unique matched conservative") <= 8) {
-//                score = CLASS_Z;
-//            } else {
-//                if (match.getScore("peptide2 unique matched non lossy") <= 3) {
-//                    if (match.getScore("mgxDelta") <= 7.430109) {
-//                        score = CLASS_Z;
-//                    } else {
-//                        if (match.getScore("Precursor Error") <= -0.383511) {
-//                            score = CLASS_Z;
-//                        } else {
-//                            if (match.getScore("PrecursorAbsoluteErrorRelative") <= 0.551086) {
-//                                if (match.getScore("LengthPeptide2") <= 2) {
-//                                    score = CLASS_Z;
-//                                } else {
-//                                    if (match.getScore("fragment coverage") <= 0.22807) {
-//                                        score = CLASS_Z;
-//                                    } else {
-//                                        score = CLASS_C;
-//
-//                                    }
-//
-//                                }
-//                            } else {
-//                                score = CLASS_Z;
-//
-//                            }
-//                        }
-//                    }
-//                } else {
-//                    if (match.getScore("fragment conservative coverage") <= 0.21875) {
-//                        score = CLASS_Z;
-//                    } else {
-//                        score = CLASS_B;
-//
-//                    }
-//                }
-//            }
-//        } else {
-//            if (match.getScore("fragment non lossy matched") <= 8) {
-//                score = CLASS_Z;
-//            } else {
-//                if (match.getScore("peptide2 unique matched conservative") <= 3) {
-//                    if (match.getScore("mgxDelta") <= 4.474409) {
-//                        score = CLASS_Z;
-//                    } else {
-//                        if (match.getScore("peptide2 unique matched non lossy") <= 3) {
-//                            if (match.getScore("peptide2 non lossy matched") <= 3) {
-//                                score = CLASS_C;
-//                            } else {
-//                                score = CLASS_B;
-//
-//                            }
-//                        } else {
-//                            score = CLASS_B;
-//
-//                        }
-//                    }
-//                } else {
-//                    if (match.getScore("fragment unique matched non lossy coverage") <= 0.338983) {
-//                        if (match.getScore("peptide2 non lossy matched") <= 9) {
-//                            score = CLASS_B;
-//                        } else {
-//                            score = CLASS_A;
-//
-//                        }
-//                    } else {
-//                        if (match.getScore("spectrum intensity coverage") <= 0.696249) {
-//                            if (match.getScore("spectra intensity nonlossy coverage") <= 0.332046) {
-//                                score = CLASS_B;
-//                            } else {
-//                                if (match.getScore("fragment lossy matched") <= 7) {
-//                                    score = CLASS_B;
-//                                } else {
-//                                    score = CLASS_A;
-//
-//                                }
-//                            }
-//                        } else {
-//                            score = CLASS_A;
-//
-//                        }
-//                    }
-//                }
-//            }
-//        }
-
-
         super.addScore(match, m_scorename, score);
         return score;
     }
 
-    
     public double scoreNormal(MatchedXlinkedPeptide match) {
-        double score = CLASS_Z;
-
-
-        if (match.getScore("mgcBeta") <= 14.673606) {
-            if (match.getScore("fragment unique matched conservative") <= 8) {
-                score = CLASS_Z;
-            } else {
-                if (match.getScore("peptide2 unique matched non lossy") <= 3) {
-                    if (match.getScore("mgxDelta") <= 7.430109) {
-                        score = CLASS_Z;
-                    } else {
-                        if (match.getScore("Precursor Error") <= -0.383511) {
-                            score = CLASS_Z;
-                        } else {
-                            if (match.getScore("PrecursorAbsoluteErrorRelative") <= 0.551086) {
-                                if (match.getScore("LengthPeptide2") <= 2) {
-                                    score = CLASS_Z;
-                                } else {
-                                    if (match.getScore("fragment coverage") <= 0.22807) {
-                                        score = CLASS_Z;
-                                    } else {
-                                        score = CLASS_C;
-
-                                    }
-
-                                }
-                            } else {
-                                score = CLASS_Z;
-
-                            }
-                        }
-                    }
-                } else {
-                    if (match.getScore("fragment conservative coverage") <= 0.21875) {
-                        score = CLASS_Z;
-                    } else {
-                        score = CLASS_B;
-
-                    }
-                }
-            }
-        } else {
-            if (match.getScore("fragment non lossy matched") <= 8) {
-                score = CLASS_Z;
-            } else {
-                if (match.getScore("peptide2 unique matched conservative") <= 3) {
-                    if (match.getScore("mgxDelta") <= 4.474409) {
-                        score = CLASS_Z;
-                    } else {
-                        if (match.getScore("peptide2 unique matched non lossy") <= 3) {
-                            if (match.getScore("peptide2 non lossy matched") <= 3) {
-                                score = CLASS_C;
-                            } else {
-                                score = CLASS_B;
-
-                            }
-                        } else {
-                            score = CLASS_B;
-
-                        }
-                    }
-                } else {
-                    if (match.getScore("fragment unique matched non lossy coverage") <= 0.338983) {
-                        if (match.getScore("peptide2 non lossy matched") <= 9) {
-                            score = CLASS_B;
-                        } else {
-                            score = CLASS_A;
-
-                        }
-                    } else {
-                        if (match.getScore("spectrum intensity coverage") <= 0.696249) {
-                            if (match.getScore("spectra intensity nonlossy coverage") <= 0.332046) {
-                                score = CLASS_B;
-                            } else {
-                                if (match.getScore("fragment lossy matched") <= 7) {
-                                    score = CLASS_B;
-                                } else {
-                                    score = CLASS_A;
-
-                                }
-                            }
-                        } else {
-                            score = CLASS_A;
-
-                        }
-                    }
-                }
-            }
-        }
-
-
-//        super.addScore(match, m_scorename, score);
-        return score;
+        return m_model.evaluate(m_normal, match);
     }
-    
 
     public double scoreHomo(MatchedXlinkedPeptide match) {
-        double score = CLASS_Z;
-
-
-        if (match.getScore("mgcBeta") <= 14.673606) {
-            if (match.getScore("fragment unique matched conservative") <= 8) {
-                score = CLASS_Z;
-            } else {
-                if (match.getScore("peptide1 unique matched non lossy") <= 7) {
-                    if (match.getScore("mgxDelta") <= 7.430109) {
-                        score = CLASS_Z;
-                    } else {
-                        if (match.getScore("Precursor Error") <= -0.383511) {
-                            score = CLASS_Z;
-                        } else {
-                            if (match.getScore("PrecursorAbsoluteErrorRelative") <= 0.551086) {
-                                if (match.getScore("LengthPeptide2") <= 2) {
-                                    score = CLASS_Z;
-                                } else {
-                                    if (match.getScore("fragment coverage") <= 0.22807) {
-                                        score = CLASS_Z;
-                                    } else {
-                                        score = CLASS_C;
-
-                                    }
-
-                                }
-                            } else {
-                                score = CLASS_Z;
-
-                            }
-                        }
-                    }
-                } else {
-                    if (match.getScore("fragment conservative coverage") <= 0.21875) {
-                        score = CLASS_Z;
-                    } else {
-                        score = CLASS_B;
-
-                    }
-                }
-            }
-        } else {
-            if (match.getScore("fragment non lossy matched") <= 8) {
-                score = CLASS_Z;
-            } else {
-                if (match.getScore("peptide1 unique matched conservative") <= 7) {
-                    if (match.getScore("mgxDelta") <= 4.474409) {
-                        score = CLASS_Z;
-                    } else {
-                        if (match.getScore("peptide1 unique matched non lossy") <= 7) {
-                            if (match.getScore("peptide2 non lossy matched") <= 3) {
-                                score = CLASS_C;
-                            } else {
-                                score = CLASS_B;
-
-                            }
-                        } else {
-                            score = CLASS_B;
-
-                        }
-                    }
-                } else {
-                    if (match.getScore("fragment unique matched non lossy coverage") <= 0.338983) {
-                        if (match.getScore("peptide2 non lossy matched") <= 9) {
-                            score = CLASS_B;
-                        } else {
-                            score = CLASS_A;
-
-                        }
-                    } else {
-                        if (match.getScore("spectrum intensity coverage") <= 0.696249) {
-                            if (match.getScore("spectra intensity nonlossy coverage") <= 0.332046) {
-                                score = CLASS_B;
-                            } else {
-                                if (match.getScore("fragment lossy matched") <= 7) {
-                                    score = CLASS_B;
-                                } else {
-                                    score = CLASS_A;
-
-                                }
-                            }
-                        } else {
-                            score = CLASS_A;
-
-                        }
-                    }
-                }
-            }
-        }
-
-
-//        super.addScore(match, m_scorename, score);
-        return score;
+        return m_model.evaluate(m_homo, match);
     }
-    
-    
+
     @Override
     public double getOrder() {
         Normalizer n = new Normalizer();
@@ -16,6 +16,7 @@
 package rappsilber.ms.score;
 
 import java.util.HashMap;
+import java.util.Map;
 import rappsilber.data.ScoreInfos;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
@@ -40,7 +41,7 @@ public class Normalizer extends AbstractScoreSpectraMatch {
 
 
     public double score(MatchedXlinkedPeptide match) {
-        HashMap<String, Double> scores = match.getScores();
+        Map<String, Double> scores = match.getScores();
         double CombScore = 0;
         int scorecount = 0;
 
@@ -43,6 +43,8 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
     Double missingScoreValue = null;
     /** contains information about the score like the expected average and standard-deviation */
     HashMap<String,ScoreInfosML.ScoreInfoStruct> m_scoreInfos = ScoreInfosML.getScoreInfos();
+    /** m_scoreInfos by {@link ScoreRegistry} slot */
+    private volatile ScoreInfosML.ScoreInfoStruct[] m_slotInfos = new ScoreInfosML.ScoreInfoStruct[0];
 
     static double m_order = 100001;
     public static final String NAME = "match score";
@@ -58,16 +60,37 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
     }
 
 
+    /**
+     * the score infos by {@link ScoreRegistry} slot
+     */
+    private ScoreInfosML.ScoreInfoStruct[] slotInfos() {
+        ScoreInfosML.ScoreInfoStruct[] infos = m_slotInfos;
+        int size = ScoreRegistry.size();
+        if (infos.length < size) {
+            infos = new ScoreInfosML.ScoreInfoStruct[size];
+            for (int slot = 0; slot < size; slot++) {
+                infos[slot] = m_scoreInfos.get(ScoreRegistry.name(slot));
+            }
+            m_slotInfos = infos;
+        }
+        return infos;
+    }
+
     public double score(MatchedXlinkedPeptide match) {
-        HashMap<String, Double> scores = match.getScores();
+        ScoreInfosML.ScoreInfoStruct[] infos = slotInfos();
         double CombScore = 0;
         int scorecount = 0;
         double totalWeight= 0;
 
-        for (String name : scores.keySet()) {
-            ScoreInfosML.ScoreInfoStruct si = m_scoreInfos.get(name);
-            double score = scores.get(name);
-            if (si != null && si.weigth !=0 && score < 999999) {
+        // summed in slot order - so the result does not depend on the
+        // order in which the scores were added
+        for (int slot = 0; slot < infos.length; slot++) {
+            ScoreInfosML.ScoreInfoStruct si = infos[slot];
+            if (si == null || !match.hasScore(slot)) {
+                continue;
+            }
+            double score = match.getScore(slot);
+            if (si.weigth !=0 && score < 999999) {
                 double normScore = (score - si.average)/si.stdev;
                 if (!Double.isNaN(normScore) && !Double.isInfinite(normScore) && si.factor != 0 && si.weigth != Double.NaN ) {
                     scorecount ++;
@@ -81,7 +104,7 @@ public class NormalizerML extends AbstractScoreSpectraMatch {
                     totalWeight += Math.abs(si.weigth);
                     
                     if (m_InsertNormalizedScores) {
-                        scores.put(name, normScore);
+                        match.setScore(slot, normScore);
                     }
 
                 } else if (missingScoreValue != null)  {
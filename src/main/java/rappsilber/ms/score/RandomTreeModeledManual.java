@@ -15,6 +15,7 @@
  */
 package rappsilber.ms.score;
 
+import rappsilber.config.RunConfig;
 import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
 
 /**
@@ -106,199 +107,54 @@ import rappsilber.ms.spectra.match.MatchedXlinkedPeptide;
  * For class A we can expect 5/(24+145+372)=0.0092421442 < 1% decoys.
  * For class B 21/(52+103+54)=0.1004784689 = 10% decoys.
  *
+ * The trees are read from {@link #MODEL} (see {@link DecisionTreeModel}).
+ *
  * @author Lutz Fischer <l.fischer@ed.ac.uk>
  */
 
 public class RandomTreeModeledManual extends AbstractScoreSpectraMatch {
 
-    private final static double CLASS_A = 1;
-    private final static double CLASS_B = 0.75;
-    private final static double CLASS_C = 0.25;
-    private final static double CLASS_Z = 0;
+    /** the file containing the trees "normal" and "homo" */
+    public final static String MODEL = "RandomTreeModeledManual.trees";
     private final        String m_scorename = getClass().getSimpleName();
+    private final DecisionTreeModel m_model;
+    private final int m_normal;
+    private final int m_homo;
+
+    public RandomTreeModeledManual() {
+        this(null);
+    }
+
+    /**
+     * @param config the trees are read from the SCORE_MODEL_DIR of the config
+     * if it contains the model
+     */
+    public RandomTreeModeledManual(RunConfig config) {
+        m_model = DecisionTreeModel.load(MODEL, config);
+        m_normal = m_model.treeIndex("normal");
+        m_homo = m_model.treeIndex("homo");
+    }
 
     @Override
     public double score(MatchedXlinkedPeptide match) {
-        double score = 0;
+        double score;
         if (match.getPeptide(0) == match.getPeptide(1))  {
             score = scoreHomo(match);
         } else {
             score = scoreNormal(match);
         }
-//        if (match.getScore("MgxScore") < 59.71) {
-//            score = CLASS_Z;
-//        } else {
-//            if (match.getScore("fragment unique matched non lossy coverage") < 0.3) {
-//                if (match.getScore("mgcShiftedDelta") < 95.47) {
-//                    if (match.getScore("peptide2 unique matched conservative") < 2.5) {
-//                        score = 0;
-//                    } else {
-//                        if (match.getScore("spectra intensity nonlossy coverage") < 0.43) {
-//                            score = CLASS_Z;
-//                        } else {
-//                            score = CLASS_B;
-//                        }
-//                    }
-//                } else {
-//                    if (match.getScore("peptide2 non lossy matched") < 2.5) {
-//                        score = CLASS_Z;
-//
-//                    } else {
-//                        if (match.getScore("fragment coverage") < 0.29) {
-//                            score = CLASS_B;
-//
-//                        } else {
-//                            score = CLASS_A;
-//                        }
-//                    }
-//                }
-//            } else {
-//                if (match.getScore("combinedDelta") < 4.58) {
-//                    if (match.getScore("peptide2 unique matched non lossy coverage") < 0.04) {
-//                        score = CLASS_Z;
-//
-//                    } else {
-//                        if (match.getScore("peptide2 matched conservative") < 2.5) {
-//                            score = CLASS_Z;
-//
-//                        } else {
-//                            score = CLASS_B;
-//                        }
-//                    }
-//                } else {
-//                    if (match.getScore("peptide2 unique matched non lossy") < 3.5) {
-//                        score = CLASS_C;
-//                    } else {
-//                        if (match.getScore("peptide2 unique matched conservative") < 4.5) {
-//                            score = CLASS_B;
-//                        } else {
-//                            score = CLASS_A;
-//                        }
-//                    }
-//                }
-//
-//            }
-//        }
         super.addScore(match, m_scorename, score);
         return score;
     }
-    
-    protected double scoreNormal(MatchedXlinkedPeptide match) {
-        if (match.getScore("MgxScore") < 59.71) {
-            return CLASS_Z;
-        } else {
-            if (match.getScore("fragment unique matched non lossy coverage") < 0.3) {
-                if (match.getScore("mgcShiftedDelta") < 95.47) {
-                    if (match.getScore("peptide2 unique matched conservative") < 2.5) {
-                        return 0;
-                    } else {
-                        if (match.getScore("spectra intensity nonlossy coverage") < 0.43) {
-                            return CLASS_Z;
-                        } else {
-                            return CLASS_B;
-                        }
-                    }
-                } else {
-                    if (match.getScore("peptide2 non lossy matched") < 2.5) {
-                        return CLASS_Z;
-
-                    } else {
-                        if (match.getScore("fragment coverage") < 0.29) {
-                            return CLASS_B;
-
-                        } else {
-                            return CLASS_A;
-                        }
-                    }
-                }
-            } else {
-                if (match.getScore("combinedDelta") < 4.58) {
-                    if (match.getScore("peptide2 unique matched non lossy coverage") < 0.04) {
-                        return CLASS_Z;
-
-                    } else {
-                        if (match.getScore("peptide2 matched conservative") < 2.5) {
-                            return CLASS_Z;
-
-                        } else {
-                            return CLASS_B;
-                        }
-                    }
-                } else {
-                    if (match.getScore("peptide2 unique matched non lossy") < 3.5) {
-                        return CLASS_C;
-                    } else {
-                        if (match.getScore("peptide2 unique matched conservative") < 4.5) {
-                            return CLASS_B;
-                        } else {
-                            return CLASS_A;
-                        }
-                    }
-                }
 
-            }
-        }
-        
+    protected double scoreNormal(MatchedXlinkedPeptide match) {
+        return m_model.evaluate(m_normal, match);
     }
 
     protected double scoreHomo(MatchedXlinkedPeptide match) {
-        if (match.getScore("MgxScore") < 59.71) {
-            return CLASS_Z;
-        } else {
-            if (match.getScore("fragment unique matched non lossy coverage") < 0.3) {
-                if (match.getScore("mgcShiftedDelta") < 95.47) {
-                    if (match.getScore("peptide1 unique matched conservative") < 6.5) {
-                        return 0;
-                    } else {
-                        if (match.getScore("spectra intensity nonlossy coverage") < 0.43) {
-                            return CLASS_Z;
-                        } else {
-                            return CLASS_B;
-                        }
-                    }
-                } else {
-                    if (match.getScore("peptide1 non lossy matched") < 6.5) {
-                        return CLASS_Z;
-
-                    } else {
-                        if (match.getScore("fragment coverage") < 0.29) {
-                            return CLASS_B;
-
-                        } else {
-                            return CLASS_A;
-                        }
-                    }
-                }
-            } else {
-                if (match.getScore("combinedDelta") < 4.58) {
-                    if (match.getScore("peptide1 unique matched non lossy coverage") < 0.2) {
-                        return CLASS_Z;
-
-                    } else {
-                        if (match.getScore("peptide2 matched conservative") < 6.5) {
-                            return CLASS_Z;
-
-                        } else {
-                            return CLASS_B;
-                        }
-                    }
-                } else {
-                    if (match.getScore("peptide1 unique matched non lossy") < 7.5) {
-                        return CLASS_C;
-                    } else {
-                        if (match.getScore("peptide1 unique matched conservative") < 9.5) {
-                            return CLASS_B;
-                        } else {
-                            return CLASS_A;
-                        }
-                    }
-                }
-
-            }
-        }
-        
+        return m_model.evaluate(m_homo, match);
     }
-    
+
     @Override
     public double getOrder() {
         Normalizer n = new Normalizer();
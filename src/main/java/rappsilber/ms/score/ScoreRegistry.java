@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.score;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each score name a fixed slot.
+ * <br/>Matches store their scores in an array indexed by the slot. The scores
+ * of the search get registered when the search is set up. Names not known by
+ * then get a slot when they are first used. Once assigned, a slot never
+ * changes.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public final class ScoreRegistry {
+
+    private static final ConcurrentHashMap<String, Integer> m_slots = new ConcurrentHashMap<String, Integer>();
+    /** name of each slot */
+    private static volatile String[] m_names = new String[0];
+
+    private ScoreRegistry() {
+    }
+
+    /**
+     * returns the slot for the given score - registering the name if needed
+     * @param name
+     * @return
+     */
+    public static int slot(String name) {
+        Integer s = m_slots.get(name);
+        if (s != null) {
+            return s;
+        }
+        return register(name);
+    }
+
+    private static synchronized int register(String name) {
+        Integer s = m_slots.get(name);
+        if (s != null) {
+            return s;
+        }
+        int slot = m_names.length;
+        String[] names = Arrays.copyOf(m_names, slot + 1);
+        names[slot] = name;
+        m_names = names;
+        m_slots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * registers all scores provided by the given score classes
+     * @param scores
+     */
+    public static void register(Collection<? extends ScoreSpectraMatch> scores) {
+        for (ScoreSpectraMatch ssm : scores) {
+            for (String name : ssm.scoreNames()) {
+                slot(name);
+            }
+        }
+    }
+
+    /**
+     * returns the slot of a score without registering it
+     * @param name
+     * @return the slot or -1 if no slot was assigned to the name
+     */
+    public static int indexOf(String name) {
+        Integer s = m_slots.get(name);
+        return s == null ? -1 : s;
+    }
+
+    /**
+     * @param slot
+     * @return the name of the score in the given slot
+     */
+    public static String name(int slot) {
+        return m_names[slot];
+    }
+
+    /**
+     * @return the number of assigned slots
+     */
+    public static int size() {
+        return m_names.length;
+    }
+}
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import rappsilber.config.RunConfig;
@@ -40,6 +41,7 @@ import rappsilber.ms.sequence.Iterators.PeptideIterator;
 import rappsilber.ms.sequence.digest.Digestion;
 import rappsilber.ms.sequence.fasta.FastaFile;
 import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.utils.OrderedParallelChunks;
 
 /**
  *
@@ -275,16 +277,76 @@ public class SequenceList extends ArrayList<Sequence> {
 
 
     public int digest(Digestion method, double maxMass, ArrayList<CrossLinker> cl) {
+        return digest(method, maxMass, cl, m_config.getPreSearchThreads());
+    }
+
+    /**
+     * digests all sequences.
+     * <br/>With several threads the sequences get digested in chunks in
+     * parallel. The peptides of each chunk are collected and added to the
+     * peptide lookups in the order of the sequences - so the lookups end up
+     * the same as for a sequential digest.
+     * @param method
+     * @param maxMass
+     * @param cl
+     * @param threads
+     * @return number of peptides
+     */
+    public int digest(final Digestion method, final double maxMass, final ArrayList<CrossLinker> cl, int threads) {
+        new OrderedParallelChunks<Sequence, Digestion.DeferredPeptides>("Digest") {
+            @Override
+            protected Digestion.DeferredPeptides process(List<Sequence> chunk) {
+                Digestion.DeferredPeptides deferred = new Digestion.DeferredPeptides();
+                Digestion.setDeferredPeptides(deferred);
+                try {
+                    for (Sequence s : chunk) {
+                        s.digest(method, maxMass, cl);
+                    }
+                } finally {
+                    Digestion.setDeferredPeptides(null);
+                }
+                return deferred;
+            }
+
+            @Override
+            protected void merge(Digestion.DeferredPeptides result) {
+                result.addToLookups();
+            }
+        }.run(this, threads);
         int countPeptides = 0;
-        Iterator<Sequence> list = iterator();
-        while (list.hasNext()) {
-            countPeptides += list.next().digest(method, maxMass, cl);
+        for (Sequence s : this) {
+            countPeptides += s.getPeptides().size();
         }
         m_countPeptides = countPeptides;
         m_config.getStatusInterface().setStatus("Digest: Peptides: " + countPeptides );
         return countPeptides;
     }
 
+    /**
+     * removes all peptides heavier than the given mass from the sequences
+     * @param mass
+     * @return number of removed peptides
+     */
+    public int removePeptidesHeavierThan(double mass) {
+        int removed = 0;
+        for (Sequence s : this) {
+            ArrayList<Peptide> peps = s.getPeptides();
+            ArrayList<Peptide> keep = new ArrayList<Peptide>(peps.size());
+            for (Peptide p : peps) {
+                if (p.getMass() <= mass) {
+                    keep.add(p);
+                }
+            }
+            if (keep.size() < peps.size()) {
+                removed += peps.size() - keep.size();
+                peps.clear();
+                peps.addAll(keep);
+            }
+        }
+        m_countPeptides -= removed;
+        return removed;
+    }
+
 
 //    public int fragment(Digestion digest) {
 //        int countFragments = 0;
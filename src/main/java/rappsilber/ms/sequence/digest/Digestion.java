@@ -56,6 +56,31 @@ public class Digestion {
 
     private PeptideLookup m_peptidetree;
     private PeptideLookup m_peptideTreeLinear;
+
+    /**
+     * peptides that a thread digested but did not yet add to a peptide lookup
+     */
+    public static class DeferredPeptides {
+        private final ArrayList<PeptideLookup> m_lookups = new ArrayList<PeptideLookup>();
+        private final ArrayList<Peptide> m_peptides = new ArrayList<Peptide>();
+
+        void add(PeptideLookup lookup, Peptide p) {
+            m_lookups.add(lookup);
+            m_peptides.add(p);
+        }
+
+        /**
+         * adds the peptides to their lookups in the order they were digested
+         */
+        public void addToLookups() {
+            for (int i = 0; i < m_peptides.size(); i++) {
+                m_lookups.get(i).addPeptide(m_peptides.get(i));
+            }
+        }
+    }
+
+    /** if set, peptides are collected here instead of added to the lookups */
+    private static final ThreadLocal<DeferredPeptides> m_deferred = new ThreadLocal<DeferredPeptides>();
     private RunConfig     m_config;
 
 
@@ -214,7 +239,7 @@ public class Digestion {
 //                }
 //            }
 //        }
-        m_peptidetree.addPeptide(p);
+        addToLookup(m_peptidetree, p);
         sequencePeptides.add(p);
     }
 
@@ -378,9 +403,9 @@ public class Digestion {
 //        if (CrossLinker.canCrossLink(cl, p.subSequence((short)0, (short)(p.length() - 1))))
         if (mods.isEmpty()) {
             if (CrossLinker.canCrossLink(cl, p)) {
-                m_peptidetree.addPeptide(p);
+                addToLookup(m_peptidetree, p);
             } else if (p.length() > 3) {
-                m_peptideTreeLinear.addPeptide(p);
+                addToLookup(m_peptideTreeLinear, p);
             }
             sequencePeptides.add(p);
         }
@@ -494,9 +519,11 @@ public class Digestion {
 
         // just take the average of all digested sequences for estimation of expected peptides
         if (!peptides.isEmpty()) {
-            m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
-            m_peptides += peptides.size();
-            m_seqLength += seqLength;
+            synchronized (this) {
+                m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
+                m_peptides += peptides.size();
+                m_seqLength += seqLength;
+            }
         }
 
 
@@ -612,9 +639,11 @@ public class Digestion {
 
         // just take the average of all digested sequences for estimation of expected peptides
         if (!peptides.isEmpty()) {
-            m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
-            m_peptides += peptides.size();
-            m_seqLength += seqLength;
+            synchronized (this) {
+                m_AminoAcidsPerPeptide = (m_AminoAcidsPerPeptide*m_peptides+ pepSeqLen)/(m_peptides+peptides.size());
+                m_peptides += peptides.size();
+                m_seqLength += seqLength;
+            }
         }
 
 
@@ -636,6 +665,31 @@ public class Digestion {
         return m_peptidetree;
     }
 
+    /**
+     * while set, all peptides digested on the current thread get collected in
+     * the given list instead of being added to the peptide lookups. This way
+     * sequences can be digested in parallel and the peptides still end up in
+     * the lookups in a defined order.
+     * @param deferred where to collect the peptides or null to add them to the
+     * lookups directly again
+     */
+    public static void setDeferredPeptides(DeferredPeptides deferred) {
+        if (deferred == null) {
+            m_deferred.remove();
+        } else {
+            m_deferred.set(deferred);
+        }
+    }
+
+    private void addToLookup(PeptideLookup lookup, Peptide p) {
+        DeferredPeptides deferred = m_deferred.get();
+        if (deferred == null) {
+            lookup.addPeptide(p);
+        } else {
+            deferred.add(lookup, p);
+        }
+    }
+
     /**
      * @return the m_AminoAcidsPerPeptide
      */
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.sequence.ions;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.ions.loss.Loss;
+
+/**
+ * Caches the linear fragments of peptides - including all losses.
+ * <br/>Every match needs the fragments of both peptides. Peptides from
+ * abundant proteins (or decoys) get matched against lots of spectra and would
+ * otherwise be fragmented again and again. Only the fragments that depend on
+ * the peptide alone are cached - cross-linked fragments (and their losses)
+ * still depend on the partner peptide and are created for each match.
+ * <br/>The cached fragments are shared between matches and threads and
+ * therefore must not be changed (or {@link Fragment#free() freed}).
+ * <br/>The cache holds at most {@link #SIZE_KEY} fragments - the least
+ * recently used peptides are dropped first.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class FragmentLadderCache {
+
+    /** config key for the maximum number of cached fragments (0 disables the cache) */
+    public static final String SIZE_KEY = "FRAGMENT_CACHE_SIZE";
+    /** default for the maximum number of cached fragments */
+    public static final int DEFAULT_SIZE = 1000000;
+
+    /**
+     * The fragments of a peptide. The non-lossy fragments come first.
+     */
+    public static class Ladder extends AbstractList<Fragment> {
+        private final Fragment[] m_fragments;
+        private final int m_primary;
+
+        private Ladder(Fragment[] fragments, int primary) {
+            m_fragments = fragments;
+            m_primary = primary;
+        }
+
+        @Override
+        public Fragment get(int index) {
+            return m_fragments[index];
+        }
+
+        @Override
+        public int size() {
+            return m_fragments.length;
+        }
+
+        /**
+         * @return the fragments without losses
+         */
+        public List<Fragment> primary() {
+            return subList(0, m_primary);
+        }
+
+        /**
+         * @param extra room for additional fragments
+         * @return a new list with all fragments
+         */
+        public ArrayList<Fragment> toArrayList(int extra) {
+            ArrayList<Fragment> ret = new ArrayList<Fragment>(m_fragments.length + extra);
+            for (Fragment f : m_fragments) {
+                ret.add(f);
+            }
+            return ret;
+        }
+    }
+
+    /** the key - peptides and cross-linker are compared by identity */
+    private static class Key {
+        private final Peptide m_peptide;
+        private final CrossLinker m_crosslinker;
+        private final int m_hash;
+
+        Key(Peptide peptide, CrossLinker crosslinker) {
+            m_peptide = peptide;
+            m_crosslinker = crosslinker;
+            m_hash = System.identityHashCode(peptide) * 31 + System.identityHashCode(crosslinker);
+        }
+
+        @Override
+        public int hashCode() {
+            return m_hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.m_peptide == m_peptide && k.m_crosslinker == m_crosslinker;
+        }
+    }
+
+    private final RunConfig m_config;
+    private final long m_maxSize;
+    /** access ordered - so the eldest entry is the least recently used */
+    private final LinkedHashMap<Key, Ladder> m_ladders = new LinkedHashMap<Key, Ladder>(1024, 0.75f, true);
+    /** number of fragments in the cache */
+    private long m_size = 0;
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    public FragmentLadderCache(RunConfig config, long maxSize) {
+        m_config = config;
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * returns the cache for the given config - creating it if needed
+     * @param config
+     * @return
+     */
+    public static FragmentLadderCache get(RunConfig config) {
+        Object c = config.retrieveObject(FragmentLadderCache.class);
+        if (c == null) {
+            synchronized (config) {
+                c = config.retrieveObject(FragmentLadderCache.class);
+                if (c == null) {
+                    c = new FragmentLadderCache(config, config.retrieveObject(SIZE_KEY, DEFAULT_SIZE));
+                    config.storeObject(FragmentLadderCache.class, c);
+                }
+            }
+        }
+        return (FragmentLadderCache) c;
+    }
+
+    /**
+     * @param config
+     * @return the cache for the config or null if none was created
+     */
+    public static FragmentLadderCache peek(RunConfig config) {
+        return (FragmentLadderCache) config.retrieveObject(FragmentLadderCache.class);
+    }
+
+    /**
+     * returns all linear fragments (including losses) of the peptide
+     * @param peptide
+     * @param crosslinker
+     * @return
+     */
+    public Ladder ladder(Peptide peptide, CrossLinker crosslinker) {
+        if (m_maxSize <= 0) {
+            m_misses.incrementAndGet();
+            return fragment(peptide, crosslinker);
+        }
+        Key k = new Key(peptide, crosslinker);
+        Ladder l;
+        synchronized (m_ladders) {
+            l = m_ladders.get(k);
+        }
+        if (l != null) {
+            m_hits.incrementAndGet();
+            return l;
+        }
+        m_misses.incrementAndGet();
+        l = fragment(peptide, crosslinker);
+        if (l.size() > m_maxSize) {
+            return l;
+        }
+        synchronized (m_ladders) {
+            // some other thread might have been faster
+            Ladder prev = m_ladders.get(k);
+            if (prev != null) {
+                return prev;
+            }
+            m_ladders.put(k, l);
+            m_size += l.size();
+            Iterator<Map.Entry<Key, Ladder>> i = m_ladders.entrySet().iterator();
+            while (m_size > m_maxSize) {
+                m_size -= i.next().getValue().size();
+                i.remove();
+                m_evictions.incrementAndGet();
+            }
+        }
+        return l;
+    }
+
+    /**
+     * fragments the peptide without looking into the cache. E.g. for peptides
+     * that will not be seen again.
+     * @param peptide
+     * @param crosslinker
+     * @return
+     */
+    public Ladder fragment(Peptide peptide, CrossLinker crosslinker) {
+        ArrayList<Fragment> frags = peptide.getFragments(m_config);
+        int primary = frags.size();
+        Loss.includeLosses(frags, crosslinker, true, m_config);
+        return new Ladder(frags.toArray(new Fragment[frags.size()]), primary);
+    }
+
+    /**
+     * @return how often fragments where found in the cache
+     */
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    /**
+     * @return how often fragments where not found in the cache
+     */
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * @return how many peptides where dropped from the cache
+     */
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    /**
+     * @return number of fragments currently in the cache
+     */
+    public long getSize() {
+        synchronized (m_ladders) {
+            return m_size;
+        }
+    }
+
+    /**
+     * @return number of peptides currently in the cache
+     */
+    public int getPeptideCount() {
+        synchronized (m_ladders) {
+            return m_ladders.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return "fragment cache: " + hits + " hits of " + total + " lookups ("
+                + (total == 0 ? 0 : hits * 100 / total) + "%), "
+                + getPeptideCount() + " peptides (" + getSize() + " fragments) cached, "
+                + getEvictions() + " evicted";
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.sequence.utils;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * Remembers which ordered pairs of peptides have already been looked at.
+ * <br/>Pairs are stored as a single long made up of the peptide indices
+ * ({@link Peptide#getPeptideIndex()}) that get assigned when the peptide
+ * index is build - so no strings or per-pair objects get created. Only
+ * peptides from the same {@link rappsilber.ms.sequence.SequenceList} can be
+ * meaningfully compared.
+ * <br/>Instances are not thread-safe but can be reused via {@link #clear()}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class PeptidePairSet {
+    private final LongOpenHashSet m_pairs;
+
+    public PeptidePairSet() {
+        m_pairs = new LongOpenHashSet();
+    }
+
+    /**
+     * @param expected expected number of pairs
+     */
+    public PeptidePairSet(int expected) {
+        m_pairs = new LongOpenHashSet(expected);
+    }
+
+    /**
+     * the key under which a pair is stored
+     * @param first
+     * @param second
+     * @return
+     */
+    public static long pairKey(Peptide first, Peptide second) {
+        return ((long) first.getPeptideIndex() << 32) | (second.getPeptideIndex() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * registers the ordered pair first-second
+     * @param first
+     * @param second
+     * @return true if the pair was not yet registered
+     */
+    public boolean add(Peptide first, Peptide second) {
+        return m_pairs.add(pairKey(first, second));
+    }
+
+    /**
+     * was the ordered pair first-second registered?
+     * @param first
+     * @param second
+     * @return
+     */
+    public boolean contains(Peptide first, Peptide second) {
+        return m_pairs.contains(pairKey(first, second));
+    }
+
+    /**
+     * @return the number of registered pairs
+     */
+    public int size() {
+        return m_pairs.size();
+    }
+
+    /**
+     * forget all pairs
+     */
+    public void clear() {
+        m_pairs.clear();
+    }
+}
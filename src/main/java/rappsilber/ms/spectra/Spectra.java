@@ -15,6 +15,7 @@
  */
 package rappsilber.ms.spectra;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -22,8 +23,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.SortedMap;
+import java.util.RandomAccess;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import rappsilber.config.AbstractRunConfig;
@@ -127,9 +127,25 @@ public class Spectra implements PeakList {
     //private SortedLinkedList<SpectraPeak> m_Peaks = new SortedLinkedList<SpectraPeak>();
     //private SortedLinkedList<SpectraPeak> m_Peaks = new SortedLinkedList<SpectraPeak>();
     /**
-     * makes the peaks accessible via the m/z value
+     * the m/z values of the peaks - sorted ascending and unique.
+     * <br/>Only the first {@link #m_peakCount} entries are used. Lookups by
+     * m/z are binary searches over this array.
      */
-    private TreeMap<Double,SpectraPeak> m_PeakTree = new TreeMap<Double, SpectraPeak>();
+    private double[] m_peakMZ = NO_MZ;
+    /**
+     * the peaks - in the same order as m_peakMZ
+     */
+    private SpectraPeak[] m_peaks = NO_PEAKS;
+    /**
+     * number of peaks in the spectrum
+     */
+    private int m_peakCount = 0;
+    /**
+     * read-only view on all peaks
+     */
+    private PeakRange m_allPeaks = null;
+    private static final double[] NO_MZ = new double[0];
+    private static final SpectraPeak[] NO_PEAKS = new SpectraPeak[0];
     /**
      * when querying any m/z value (like looking up a peak at position n) this
      * tolerance is used
@@ -286,7 +302,7 @@ public class Spectra implements PeakList {
     }
 
     public static void free(Spectra s) {
-        s.m_PeakTree.clear();
+        s.clearPeaks();
         s.m_PrecurserChargeAlternatives = null;
         s.m_isotopClusters.clear();
         if (s.m_matches != null) {
@@ -378,10 +394,8 @@ public class Spectra implements PeakList {
      * @param Peaks
      */
     public void setPeaks(Collection<SpectraPeak> Peaks) {
-        m_PeakTree = new TreeMap<Double, SpectraPeak>();
-        for (SpectraPeak p : Peaks) {
-            addPeak(p.clone());
-        }
+        // the collection could be a view on our own peaks
+        setPeaks(Peaks.toArray(new SpectraPeak[Peaks.size()]));
 //        m_Peaks = new SortedLinkedList<SpectraPeak>();
 //        for (SpectraPeak p : Peaks) {
 //            SpectraPeak pc = p.clone();
@@ -398,7 +412,7 @@ public class Spectra implements PeakList {
      * @param Peaks
      */
     public void setPeaks(SpectraPeak[] Peaks) {
-        m_PeakTree = new TreeMap<Double, SpectraPeak>();
+        clearPeaks();
         for (SpectraPeak p : Peaks) {
             addPeak(p.clone());
         }
@@ -410,35 +424,51 @@ public class Spectra implements PeakList {
      * @param peak
      */
     public void addPeak(SpectraPeak peak) {
-        if (this.m_PeakTree == null) {
-            //m_Peaks = new SortedLinkedList<SpectraPeak>();
-            m_PeakTree = new TreeMap<Double, SpectraPeak>();
-        }
-        
         if (peak.getIntensity() > m_maxIntensity)  {
             m_maxIntensity=peak.getIntensity();
             m_maxPeak = peak;
         }
         //this.m_Peaks.add(peak);
-        this.m_PeakTree.put(peak.getMZ(), peak);
+        putPeak(peak);
     }
 
+    /**
+     * re-sorts the peaks by their m/z value - needs to be called if the m/z
+     * of peaks where changed.
+     */
     public void rebuildPeakTree() {
-        TreeMap<Double, SpectraPeak> t = new TreeMap<Double, SpectraPeak>();
-        for (SpectraPeak sp : m_PeakTree.values())    {
-            t.put(sp.getMZ(), sp);
+        SpectraPeak[] peaks = java.util.Arrays.copyOf(m_peaks, m_peakCount);
+        // stable sort - so of peaks with the same m/z the last one wins as before
+        java.util.Arrays.sort(peaks, new Comparator<SpectraPeak>() {
+            @Override
+            public int compare(SpectraPeak o1, SpectraPeak o2) {
+                return Double.compare(o1.getMZ(), o2.getMZ());
+            }
+        });
+        int count = 0;
+        for (SpectraPeak sp : peaks) {
+            double mz = sp.getMZ();
+            if (count > 0 && m_peakMZ[count - 1] == mz) {
+                count--;
+            }
+            m_peakMZ[count] = mz;
+            m_peaks[count++] = sp;
         }
-        
-        m_PeakTree = t;
+        java.util.Arrays.fill(m_peaks, count, m_peakCount, null);
+        m_peakCount = count;
     }
+
     protected void removePeakUnsafe(SpectraPeak peak) {
-        this.m_PeakTree.remove(peak.getMZ());
+        int i = peakIndexExact(peak.getMZ());
+        if (i >= 0) {
+            removePeakAt(i);
+        }
     }
 
     public void removePeak(double mz) {
         SpectraPeak peak = getPeakAt(mz);
         if (peak != null) {
-            this.m_PeakTree.remove(peak.getMZ());
+            removePeakUnsafe(peak);
         }
     }
 
@@ -449,15 +479,10 @@ public class Spectra implements PeakList {
      */
     public void addPeakIntesity(SpectraPeak peak) {
 
-
-        if (this.m_PeakTree == null) {
-            //m_Peaks = new SortedLinkedList<SpectraPeak>();
-            m_PeakTree = new TreeMap<Double, SpectraPeak>();
-        }
         SpectraPeak exists = getPeakAt(peak.getMZ());
         if (exists == null) {
             //this.m_Peaks.add(peak);
-            this.m_PeakTree.put(peak.getMZ(), peak);
+            putPeak(peak);
             if (peak.getIntensity() > m_maxIntensity)  {
                 m_maxIntensity=peak.getIntensity();
                 m_maxPeak = peak;                
@@ -480,18 +505,17 @@ public class Spectra implements PeakList {
      * @param peak
      */
     public void addPeakUniqe(SpectraPeak peak) {
-        if (this.m_PeakTree == null) {
-            //m_Peaks = new SortedLinkedList<SpectraPeak>();
-            m_PeakTree = new TreeMap<Double, SpectraPeak>();
-        }
-        if (!m_PeakTree.containsValue(peak)) {
-            //this.m_Peaks.add(peak);
-            this.m_PeakTree.put(peak.getMZ(), peak);
-            if (peak.getIntensity() > m_maxIntensity) {
-                m_maxIntensity=peak.getIntensity();
-                m_maxPeak = peak;                
+        for (int i = 0; i < m_peakCount; i++) {
+            if (peak.equals(m_peaks[i])) {
+                return;
             }
         }
+        //this.m_Peaks.add(peak);
+        putPeak(peak);
+        if (peak.getIntensity() > m_maxIntensity) {
+            m_maxIntensity=peak.getIntensity();
+            m_maxPeak = peak;                
+        }
     }
 
     /**
@@ -503,6 +527,155 @@ public class Spectra implements PeakList {
         addPeak(new SpectraPeak(mz, intesity, m_Tolerance));
     }
 
+    /**
+     * stores the peak under its m/z value - replacing any peak that has
+     * exactly the same m/z.
+     * @param peak
+     */
+    private void putPeak(SpectraPeak peak) {
+        double mz = peak.getMZ();
+        int i = m_peakCount;
+        // peaks are usually added in ascending order
+        if (m_peakCount > 0 && !(m_peakMZ[m_peakCount - 1] < mz)) {
+            i = peakIndex(mz);
+            if (i < m_peakCount && m_peakMZ[i] == mz) {
+                m_peaks[i] = peak;
+                return;
+            }
+        }
+        if (m_peakCount == m_peakMZ.length) {
+            int capacity = Math.max(16, m_peakCount + (m_peakCount >> 1));
+            m_peakMZ = java.util.Arrays.copyOf(m_peakMZ, capacity);
+            m_peaks = java.util.Arrays.copyOf(m_peaks, capacity);
+        }
+        if (i < m_peakCount) {
+            System.arraycopy(m_peakMZ, i, m_peakMZ, i + 1, m_peakCount - i);
+            System.arraycopy(m_peaks, i, m_peaks, i + 1, m_peakCount - i);
+        }
+        m_peakMZ[i] = mz;
+        m_peaks[i] = peak;
+        m_peakCount++;
+    }
+
+    /**
+     * removes the peak at the given index
+     * @param i
+     */
+    private void removePeakAt(int i) {
+        m_peakCount--;
+        System.arraycopy(m_peakMZ, i + 1, m_peakMZ, i, m_peakCount - i);
+        System.arraycopy(m_peaks, i + 1, m_peaks, i, m_peakCount - i);
+        m_peaks[m_peakCount] = null;
+    }
+
+    /**
+     * removes all peaks
+     */
+    private void clearPeaks() {
+        m_peakMZ = NO_MZ;
+        m_peaks = NO_PEAKS;
+        m_peakCount = 0;
+    }
+
+    /**
+     * index of the first peak with an m/z value &gt;= mz
+     * @param mz
+     * @return the index or the number of peaks if there is no such peak
+     */
+    private int peakIndex(double mz) {
+        int lo = 0;
+        int hi = m_peakCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (m_peakMZ[mid] < mz) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param mz
+     * @return the index of the peak with exactly the given m/z or -1
+     */
+    private int peakIndexExact(double mz) {
+        int i = peakIndex(mz);
+        if (i < m_peakCount && m_peakMZ[i] == mz) {
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * number of peaks with minMZ &lt;= m/z &lt; maxMZ
+     */
+    private int countPeaks(double minMZ, double maxMZ) {
+        return Math.max(0, peakIndex(maxMZ) - peakIndex(minMZ));
+    }
+
+    /**
+     * returns the peak closest to mz with minMZ &lt;= m/z &lt; maxMZ. If two
+     * peaks are equally close the lower one is returned.
+     * @return the peak or null if there is none in the range
+     */
+    private SpectraPeak closestPeak(double mz, double minMZ, double maxMZ) {
+        int i = closestPeakIndex(mz, minMZ, maxMZ);
+        return i < 0 ? null : m_peaks[i];
+    }
+
+    /**
+     * same as {@link #closestPeak(double, double, double)} but returns the
+     * index of the peak
+     * @return the index of the peak or -1 if there is none in the range
+     */
+    private int closestPeakIndex(double mz, double minMZ, double maxMZ) {
+        int from = peakIndex(minMZ);
+        int to = peakIndex(maxMZ);
+        if (from >= to) {
+            return -1;
+        }
+        int i = peakIndex(mz);
+        if (i <= from) {
+            return from;
+        }
+        if (i >= to) {
+            return to - 1;
+        }
+        if (Math.abs(m_peakMZ[i] - mz) < Math.abs(m_peakMZ[i - 1] - mz)) {
+            return i;
+        }
+        return i - 1;
+    }
+
+    /**
+     * A read-only list view of a range of the peaks of this spectrum.
+     */
+    private class PeakRange extends AbstractList<SpectraPeak> implements RandomAccess {
+        private final int m_from;
+        /** end of the range - negative for all peaks */
+        private final int m_to;
+
+        PeakRange(int from, int to) {
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        public SpectraPeak get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return m_peaks[m_from + index];
+        }
+
+        @Override
+        public int size() {
+            return (m_to < 0 ? m_peakCount : m_to) - m_from;
+        }
+    }
+
     //</editor-fold> peakdata
 
 
@@ -583,16 +756,28 @@ public class Spectra implements PeakList {
         // prepare an empty spectra
         Spectra s = this.cloneEmpty();
         
-        HashMap<SpectraPeak,SpectraPeak> peakMap = new HashMap<SpectraPeak, SpectraPeak>(m_PeakTree.size());
-        // clone the peaks
-        for (SpectraPeak p : getPeaks()) {
+        SpectraPeakClusterList clusters = getIsotopeClusters();
+        HashMap<SpectraPeak,SpectraPeak> peakMap = clusters.isEmpty() ? null : new HashMap<SpectraPeak, SpectraPeak>(m_peakCount);
+        // clone the peaks - they are already sorted so we can just copy the
+        // m/z values
+        s.m_peakMZ = java.util.Arrays.copyOf(m_peakMZ, m_peakCount);
+        s.m_peaks = new SpectraPeak[m_peakCount];
+        for (int i = 0; i < m_peakCount; i++) {
+            SpectraPeak p = m_peaks[i];
             SpectraPeak pn = p.cloneComplete();
-            peakMap.put(p, pn);
-            s.addPeak(pn);
+            if (peakMap != null) {
+                peakMap.put(p, pn);
+            }
+            s.m_peaks[i] = pn;
+            if (pn.getIntensity() > s.m_maxIntensity) {
+                s.m_maxIntensity = pn.getIntensity();
+                s.m_maxPeak = pn;
+            }
         }
+        s.m_peakCount = m_peakCount;
 
         // rebuild the spectra cluster
-        for (SpectraPeakCluster c : getIsotopeClusters()) {
+        for (SpectraPeakCluster c : clusters) {
             SpectraPeakCluster cn = c.clone(s,peakMap);
             s.m_isotopClusters.add(cn);
         }
@@ -635,12 +820,12 @@ public class Spectra implements PeakList {
     public Spectra cloneTopPeaks(int peaks, double windowSize) {
         Spectra s = cloneEmpty();
         
-        if (m_PeakTree.isEmpty()) {
+        if (m_peakCount == 0) {
             return s;
         }
         
-        double minMZ = m_PeakTree.firstKey();
-        double maxMZ =  m_PeakTree.lastKey();
+        double minMZ = m_peakMZ[0];
+        double maxMZ =  m_peakMZ[m_peakCount - 1];
 
         int windows = (int) ((maxMZ - minMZ) / windowSize + 1);
 
@@ -684,19 +869,17 @@ public class Spectra implements PeakList {
                 keepPeaks.add(sp.getMZ());
             }
         }
-        if (m_PeakTree.isEmpty()) {
+        if (m_peakCount == 0) {
             return s;
         }
-        SortedMap<Double,SpectraPeak> sm =s.m_PeakTree.headMap(minMZ);
-        for (Double mz : sm.keySet().toArray(new Double[sm.size()])) {
-            if (!keepPeaks.contains(mz)) {
-                s.m_PeakTree.remove(mz);
+        for (int i = s.peakIndex(minMZ) - 1; i >= 0; i--) {
+            if (!keepPeaks.contains(s.m_peakMZ[i])) {
+                s.removePeakAt(i);
             }
         }
-        sm =s.m_PeakTree.tailMap(maxMZ);
-        for (Double mz : sm.keySet().toArray(new Double[sm.size()])) {
-            if (!keepPeaks.contains(mz)) {
-                s.m_PeakTree.remove(mz);
+        for (int i = s.m_peakCount - 1, first = s.peakIndex(maxMZ); i >= first; i--) {
+            if (!keepPeaks.contains(s.m_peakMZ[i])) {
+                s.removePeakAt(i);
             }
         }
         
@@ -740,7 +923,7 @@ public class Spectra implements PeakList {
         Spectra s = cloneEmpty();
         
         
-        if (m_PeakTree.isEmpty()) {
+        if (m_peakCount == 0) {
             return s;
         }
         
@@ -755,9 +938,9 @@ public class Spectra implements PeakList {
             double lower2=mz-windowSize;
             double higher1=mz+windowSize/2;
             double higher2=mz+windowSize;
-            if (s.m_PeakTree.subMap(lower1,higher1).size()<peaks &&
-                    s.m_PeakTree.subMap(lower2,mz).size()<peaks &&
-                    s.m_PeakTree.subMap(mz,higher2).size()<peaks) {
+            if (s.countPeaks(lower1,higher1)<peaks &&
+                    s.countPeaks(lower2,mz)<peaks &&
+                    s.countPeaks(mz,higher2)<peaks) {
                 s.addPeak(sp);
             }
         }
@@ -778,7 +961,7 @@ public class Spectra implements PeakList {
         Spectra s = this.deIsotop();
         
         
-        if (m_PeakTree.isEmpty()) {
+        if (m_peakCount == 0) {
             return s;
         }
         
@@ -803,21 +986,15 @@ public class Spectra implements PeakList {
             if (!removedPeaks.contains(sp)) {
                 double mz =sp.getMZ();
                 // check how many peaks are in the window around it
-                SortedMap<Double,SpectraPeak> sm = s.m_PeakTree.subMap(mz-windowSize/2,mz+windowSize/2);
+                Collection<SpectraPeak> sm = s.getPeaks(mz-windowSize/2,mz+windowSize/2);
                 if (sm.size()>peaks)  {
                     // to many we need to delte some
-                    ArrayList<Map.Entry<Double,SpectraPeak>> as = new ArrayList<>(sm.entrySet());
-                    java.util.Collections.sort(as, new Comparator<Map.Entry<Double,SpectraPeak>>() {
-                            @Override
-                            public int compare(Map.Entry<Double, SpectraPeak> o1, Map.Entry<Double, SpectraPeak> o2) {
-                                return Double.compare(o1.getValue().getIntensity(),o2.getValue().getIntensity());
-                            }
-                        }
-                    );
+                    ArrayList<SpectraPeak> as = new ArrayList<>(sm);
+                    java.util.Collections.sort(as, SpectraPeak.INTENSITY_COMPARATOR);
 
                     // delete the lowest intens peaks in the window around it
-                    for (int i=sm.size()-peaks-1;i>=0; i--) {
-                        SpectraPeak toDelete= as.get(i).getValue();
+                    for (int i=as.size()-peaks-1;i>=0; i--) {
+                        SpectraPeak toDelete= as.get(i);
                         s.removePeak(toDelete.getMZ());
                         removedPeaks.add(toDelete);
                     }
@@ -980,7 +1157,10 @@ public class Spectra implements PeakList {
      * @return the m_Peaks
      */
     public Collection<SpectraPeak> getPeaks() {
-        return m_PeakTree.values();
+        if (m_allPeaks == null) {
+            m_allPeaks = new PeakRange(0, -1);
+        }
+        return m_allPeaks;
     }
 
     /**
@@ -990,7 +1170,8 @@ public class Spectra implements PeakList {
      * @return the Peaks
      */
     public Collection<SpectraPeak> getPeaks(double minMZ, double maxMZ) {
-        return m_PeakTree.subMap(minMZ, maxMZ).values();
+        int from = peakIndex(minMZ);
+        return new PeakRange(from, Math.max(from, peakIndex(maxMZ)));
     }
 
 
@@ -998,8 +1179,7 @@ public class Spectra implements PeakList {
      * @return the m_Peaks
      */
     public SpectraPeak[] getPeaksArray() {
-        ArrayList<SpectraPeak> ret = new ArrayList<SpectraPeak>(m_PeakTree.values());
-        return ret.toArray(new SpectraPeak[ret.size()]);
+        return java.util.Arrays.copyOf(m_peaks, m_peakCount);
     }
 
     /**
@@ -1067,7 +1247,8 @@ public class Spectra implements PeakList {
      * @return the peak, or null if there is non at that point
      */
     public SpectraPeak getPeakExactlyAt(double mz) {
-        return m_PeakTree.get(mz);
+        int i = peakIndexExact(mz);
+        return i < 0 ? null : m_peaks[i];
     }
     
     /**
@@ -1082,34 +1263,21 @@ public class Spectra implements PeakList {
 //        if (key <= m_Tolerance.getMaxRange(mz))
 //            return m_PeakTree.get(key);
 //        return null;
-        SortedMap<Double, SpectraPeak> sm = null;
         Range r = m_Tolerance.getRange(mz);
-        
-        sm = m_PeakTree.subMap(r.min, r.max);
-        if (sm.size() == 1) {
-            return sm.get(sm.firstKey());
-        } else if (sm.size() > 1) {
-            SpectraPeak center = null;
-            double middle = r.min+(r.max-r.min) /2;
-            SortedMap<Double, SpectraPeak> lower = sm.subMap(r.min, middle);
-            SortedMap<Double, SpectraPeak>  upper = sm.subMap(middle,r.max);
-            if (lower.isEmpty()) {
-                return upper.get(upper.firstKey());
-            } else {
-                double lk = lower.lastKey();
-                if (upper.isEmpty()) {
-                    return lower.get(lk);
-                }
-                double uk = upper.firstKey();
-                if (uk - middle < middle- lk) {
-                    return upper.get(uk);
-                }
-                return lower.get(lk);
-            }
-            
-        }
-        return null;
+        // the peak closest to the middle of the tolerance window
+        return closestPeak(r.min+(r.max-r.min) /2, r.min, r.max);
+    }
 
+    /**
+     * Returns the index (within {@link #getPeaksArray()}) of the peak that
+     * {@link #getPeakAt(double)} would return.
+     * @param mz
+     * @return the index of the peak, or -1 if there is non at that point
+     */
+    public int getPeakIndexAt(double mz) {
+        double min = m_Tolerance.getMinRange(mz);
+        double max = m_Tolerance.getMaxRange(mz);
+        return closestPeakIndex(min+(max-min) /2, min, max);
     }
 
     /**
@@ -1119,19 +1287,7 @@ public class Spectra implements PeakList {
      */
     public SpectraPeak getPeakAt(double mz, ToleranceUnit t) {
         Range r = t.getRange(mz);
-        SortedMap<Double, SpectraPeak> sm = m_PeakTree.subMap(r.min,r.max);
-        SpectraPeak center = null;
-        double diff = Double.MAX_VALUE;
-        for (SpectraPeak sp : sm.values()) {
-            double newdiff = Math.abs(sp.getMZ() - mz);
-            if (newdiff < diff) {
-                diff = newdiff;
-                center = sp;
-            } else if (newdiff > diff) {
-                return center;
-            }
-        }
-        return center;
+        return closestPeak(mz, r.min, r.max);
 //        Double key = m_PeakTree.ceilingKey(t.getMinRange(mz));
 //        if (key == null)
 //            return null;
@@ -1151,19 +1307,7 @@ public class Spectra implements PeakList {
         double minMz = m_Tolerance.getMinRange(m_Tolerance.getMinRange(peakMZ)+deltaMZ);
         double maxMz = m_Tolerance.getMaxRange(m_Tolerance.getMaxRange(peakMZ)+deltaMZ);
         double mz = minMz + (maxMz- minMz) /2;
-        SortedMap<Double, SpectraPeak> sm = m_PeakTree.subMap(minMz, maxMz);
-        SpectraPeak center = null;
-        double diff = Double.MAX_VALUE;
-        for (SpectraPeak sp : sm.values()) {
-            double newdiff = Math.abs(sp.getMZ() - mz);
-            if (newdiff < diff) {
-                diff = newdiff;
-                center = sp;
-            } else if (newdiff > diff) {
-                return center;
-            }
-        }
-        return center;
+        return closestPeak(mz, minMz, maxMz);
     }
     
 
@@ -1177,19 +1321,7 @@ public class Spectra implements PeakList {
         double minMz = t.getMinRange(t.getMinRange(peakMZ)+deltaMZ);
         double maxMz = t.getMaxRange(t.getMaxRange(peakMZ)+deltaMZ);
         double mz = minMz + (maxMz- minMz) /2;
-        SortedMap<Double, SpectraPeak> sm = m_PeakTree.subMap(minMz, maxMz);
-        SpectraPeak center = null;
-        double diff = Double.MAX_VALUE;
-        for (SpectraPeak sp : sm.values()) {
-            double newdiff = Math.abs(sp.getMZ() - mz);
-            if (newdiff < diff) {
-                diff = newdiff;
-                center = sp;
-            } else if (newdiff > diff) {
-                return center;
-            }
-        }
-        return center;
+        return closestPeak(mz, minMz, maxMz);
     }
 
 
@@ -1581,7 +1713,7 @@ public class Spectra implements PeakList {
      */
     public ArrayList<SpectraPeak> getTopPeaks(int number) {
 
-        ArrayList<SpectraPeak> ret = new ArrayList<SpectraPeak>(m_PeakTree.values());
+        ArrayList<SpectraPeak> ret = new ArrayList<SpectraPeak>(getPeaks());
         java.util.Collections.sort(ret, new Comparator() {
 
             @Override
@@ -1644,7 +1776,7 @@ public class Spectra implements PeakList {
      * to ease the work of the garbage collector we can unlink everything
      */
     public void free() {
-            m_PeakTree.clear();
+            clearPeaks();
             m_PrecurserChargeAlternatives = null;
             m_isotopClusters.clear();
             if (m_matches != null) {
@@ -1760,7 +1892,7 @@ public class Spectra implements PeakList {
             TreeMap<Double,SpectraPeak> windowedPeaks = new TreeMap<Double, SpectraPeak>();
             int c=0;
             for (SpectraPeak p : AllMGC.getTopPeaks(-1)) {
-                c = topMGC.m_PeakTree.subMap(p.getMZ()-window, p.getMZ()).size();
+                c = topMGC.countPeaks(p.getMZ()-window, p.getMZ());
                 if (c < topPeaks || ((!foundOnes.contains(p)) && p.hasAnnotation(MGC_MATCHED) && p.hasAnnotation(MGC_MATCHED_COMPLEMENT))) {
                     topMGC.addPeak(p);
                     foundOnes.add(p);
@@ -2456,7 +2588,7 @@ public class Spectra implements PeakList {
 
     @Override
     public boolean hasPeakAt(double mz) {
-        return m_PeakTree.containsKey(mz);
+        return peakIndexExact(mz) >= 0;
     }
 
     @Override
@@ -2539,11 +2671,17 @@ public class Spectra implements PeakList {
     }
     
     public double getMinMz(){
-        return m_PeakTree.firstKey();
+        if (m_peakCount == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        return m_peakMZ[0];
     }
 
     public double getMaxMz(){
-        return m_PeakTree.lastKey();
+        if (m_peakCount == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        return m_peakMZ[m_peakCount - 1];
     }
 
     /**
@@ -46,6 +46,12 @@ public class SpectraPeak implements Comparable {
     /** list of Annotation refering to matched fragments */
     private ArrayList<SpectraPeakMatchedFragment> m_MatchedFragments = new ArrayList<SpectraPeakMatchedFragment>();
 
+    /**
+     * the annotation lists are shared with a clone of this peak (or the peak
+     * this one was cloned from) and need to be copied before they get changed
+     */
+    private boolean m_sharedAnnotations = false;
+
     /** a comparator, that compares peaks based on their intensity */
     public static Comparator<SpectraPeak> INTENSITY_COMPARATOR = new Comparator<SpectraPeak>() {
         public int compare(SpectraPeak o1, SpectraPeak o2) {
@@ -152,6 +158,7 @@ public class SpectraPeak implements Comparable {
      */
     public void annotate(SpectraPeakAnnotation a) {
         if (!m_Annotaions.contains(a)) {
+            unshareAnnotations();
             this.m_Annotaions.add(a);
             if (a instanceof SpectraPeakMatchedFragment) {
                 this.m_MatchedFragments.add((SpectraPeakMatchedFragment)a);
@@ -201,6 +208,7 @@ public class SpectraPeak implements Comparable {
      * @param a
      */
     public void deleteAnnotation(SpectraPeakAnnotation a) {
+        unshareAnnotations();
         if (m_Annotaions.contains(a)) {
             this.m_Annotaions.remove(a);
         }
@@ -211,6 +219,7 @@ public class SpectraPeak implements Comparable {
 
     public boolean deleteAnnotation(Fragment f) {
         boolean deleted = false;
+        unshareAnnotations();
         for (SpectraPeakMatchedFragment mf : (ArrayList<SpectraPeakMatchedFragment>)m_MatchedFragments.clone()) {
             if (mf.getFragment().equals(f)) {
                 m_MatchedFragments.remove(mf);
@@ -226,10 +235,24 @@ public class SpectraPeak implements Comparable {
      * removes all annotations for this peak
      */
     public void clearAnnotations() {
-        m_MatchedFragments.clear();
+        if (!m_sharedAnnotations) {
+            m_MatchedFragments.clear();
+            m_Annotaions.clear();
+        }
         m_MatchedFragments=new ArrayList<>(0);
-        m_Annotaions.clear();
         m_Annotaions=new ArrayList<>(0);
+        m_sharedAnnotations = false;
+    }
+
+    /**
+     * makes sure the annotation lists are not shared with any other peak
+     */
+    private void unshareAnnotations() {
+        if (m_sharedAnnotations) {
+            m_Annotaions = new ArrayList<SpectraPeakAnnotation>(m_Annotaions);
+            m_MatchedFragments = new ArrayList<SpectraPeakMatchedFragment>(m_MatchedFragments);
+            m_sharedAnnotations = false;
+        }
     }
     
     /**
@@ -285,6 +308,8 @@ public class SpectraPeak implements Comparable {
      * @return
      */
     ArrayList<SpectraPeakAnnotation> getAllAnnotations() {
+        // the list might get changed by the caller
+        unshareAnnotations();
         return m_Annotaions;
     }
 
@@ -308,9 +333,25 @@ public class SpectraPeak implements Comparable {
     public SpectraPeak cloneComplete() {
         // create a new peak
         SpectraPeak p = new SpectraPeak(m_mz, m_charge, m_Intensity, m_tolerance);
-        // copy annotations
-        for (SpectraPeakAnnotation a : getAllAnnotations()) {
-            p.annotate(a.clone());
+        boolean share = true;
+        for (SpectraPeakAnnotation a : m_Annotaions) {
+            if (!a.isShareable()) {
+                share = false;
+                break;
+            }
+        }
+        if (share) {
+            // nothing to clone - so both peaks use the same lists until one
+            // of them gets annotated
+            p.m_Annotaions = m_Annotaions;
+            p.m_MatchedFragments = m_MatchedFragments;
+            p.m_sharedAnnotations = true;
+            m_sharedAnnotations = true;
+        } else {
+            // copy annotations
+            for (SpectraPeakAnnotation a : m_Annotaions) {
+                p.annotate(a.clone());
+            }
         }
         p.m_id = m_id;
 
@@ -322,13 +363,15 @@ public class SpectraPeak implements Comparable {
      * just a small function, in case the gc has trouble freeing up the resources
      */
     public void free() {
-        for (SpectraPeakAnnotation spa : m_Annotaions) {
-            spa.free();
-        }
+        if (!m_sharedAnnotations) {
+            for (SpectraPeakAnnotation spa : m_Annotaions) {
+                spa.free();
+            }
 
-        m_Annotaions.clear();
+            m_Annotaions.clear();
+            m_MatchedFragments.clear();
+        }
         m_Annotaions  = null;
-        m_MatchedFragments.clear();
         m_MatchedFragments = null;
         m_tolerance = null;
     }
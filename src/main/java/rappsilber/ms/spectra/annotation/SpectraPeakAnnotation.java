@@ -57,6 +57,15 @@ public class SpectraPeakAnnotation {
         m_Annotation = null;
     }
     
+    /**
+     * annotations without a value are not copied by {@link #clone()} and can
+     * therefore be shared between peaks.
+     * @return true if {@link #clone()} returns the annotation itself
+     */
+    public boolean isShareable() {
+        return m_value == null;
+    }
+
     public SpectraPeakAnnotation clone() {
         if (m_value != null) {
             return new SpectraPeakAnnotation(m_Annotation,m_value);
@@ -15,18 +15,26 @@
  */
 package rappsilber.ms.spectra.match;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import rappsilber.config.RunConfig;
 import rappsilber.ms.ToleranceUnit;
 import rappsilber.ms.crosslinker.CrossLinker;
 import rappsilber.ms.crosslinker.NonCovalentBound;
+import rappsilber.ms.score.ScoreRegistry;
 import rappsilber.ms.sequence.AminoAcid;
 import rappsilber.ms.sequence.Peptide;
 import rappsilber.ms.sequence.ions.CrossLinkedFragmentProducer;
 import rappsilber.ms.sequence.ions.DoubleFragmentation;
 import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.sequence.ions.FragmentLadderCache;
 import rappsilber.ms.sequence.ions.PeptideIon;
 import rappsilber.ms.sequence.ions.SecondaryFragment;
 import rappsilber.ms.sequence.ions.loss.Loss;
@@ -72,6 +80,11 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * the possible fragments to be matched originating from peptide 2
      */
     private ArrayList<Fragment> m_Peptide2Fragments;
+    /**
+     * the fragment lists contain fragments shared with other matches
+     * ({@link FragmentLadderCache}) - these must not be freed
+     */
+    private boolean m_sharedFragments = false;
     /**
      * the actual spectrum
      */
@@ -551,7 +564,139 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
 
     private RunConfig m_config = null;
 
-    private HashMap<String, Double> m_scores = new HashMap<String, Double>();
+    /** score values by {@link ScoreRegistry} slot */
+    private double[] m_scoreValues = new double[ScoreRegistry.size()];
+    /** which slots have a value */
+    private boolean[] m_hasScore = new boolean[ScoreRegistry.size()];
+    /** name based view of the scores */
+    private ScoreMap m_scoreMap;
+
+    /**
+     * A name based view of the scores of the match. Changes to the map are
+     * written through to the match.
+     * <br/>Entries are iterated in {@link ScoreRegistry} slot order, a null
+     * value is stored as NaN and null keys are not supported.
+     */
+    private class ScoreMap extends AbstractMap<String, Double> {
+
+        private class ScoreEntry implements Map.Entry<String, Double> {
+            private final int m_slot;
+
+            ScoreEntry(int slot) {
+                m_slot = slot;
+            }
+
+            @Override
+            public String getKey() {
+                return ScoreRegistry.name(m_slot);
+            }
+
+            @Override
+            public Double getValue() {
+                return m_scoreValues[m_slot];
+            }
+
+            @Override
+            public Double setValue(Double value) {
+                Double old = m_scoreValues[m_slot];
+                m_scoreValues[m_slot] = value == null ? Double.NaN : value;
+                return old;
+            }
+        }
+
+        private final AbstractSet<Map.Entry<String, Double>> m_entries = new AbstractSet<Map.Entry<String, Double>>() {
+            @Override
+            public Iterator<Map.Entry<String, Double>> iterator() {
+                return new Iterator<Map.Entry<String, Double>>() {
+                    int next = nextSlot(0);
+                    int last = -1;
+
+                    private int nextSlot(int from) {
+                        while (from < m_hasScore.length && !m_hasScore[from]) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < m_hasScore.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Double> next() {
+                        if (next >= m_hasScore.length) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next;
+                        next = nextSlot(next + 1);
+                        return new ScoreEntry(last);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        m_hasScore[last] = false;
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int c = 0;
+                for (boolean h : m_hasScore) {
+                    if (h) {
+                        c++;
+                    }
+                }
+                return c;
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<String, Double>> entrySet() {
+            return m_entries;
+        }
+
+        /**
+         * @return the slot of the key or -1 if it is not a registered name
+         */
+        private int slotOf(Object key) {
+            return key instanceof String ? ScoreRegistry.indexOf((String) key) : -1;
+        }
+
+        @Override
+        public Double get(Object key) {
+            int slot = slotOf(key);
+            return hasScore(slot) ? m_scoreValues[slot] : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return hasScore(slotOf(key));
+        }
+
+        @Override
+        public Double put(String key, Double value) {
+            int slot = ScoreRegistry.slot(key);
+            Double old = hasScore(slot) ? m_scoreValues[slot] : null;
+            setScore(slot, value == null ? Double.NaN : value);
+            return old;
+        }
+
+        @Override
+        public Double remove(Object key) {
+            int slot = slotOf(key);
+            if (!hasScore(slot)) {
+                return null;
+            }
+            m_hasScore[slot] = false;
+            return m_scoreValues[slot];
+        }
+    }
 
 //    /**
 //     * creates a new match
@@ -658,32 +803,44 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
 //                m_Peptide1Fragments.addAll(CrosslinkedFragment.createCrosslinkedFragments(m_Peptide1Fragments, m_Peptide2Fragments, m_crosslinker, false));
         } else {
             // all fragments considered
-            m_Peptide1Fragments = (ArrayList<Fragment>) m_Peptide1.getFragments(config).clone();
+            // the linear fragments (and their losses) come from the cache
+            FragmentLadderCache cache = FragmentLadderCache.get(config);
+            FragmentLadderCache.Ladder ladder1 = cache.ladder(m_Peptide1, m_crosslinker);
+            m_sharedFragments = true;
             if (m_Peptide2 != null) {
-                m_Peptide2Fragments = (ArrayList<Fragment>) m_Peptide2.getFragments(config).clone();
+                // a cloned peptide will not be seen again
+                FragmentLadderCache.Ladder ladder2 = peptide1 == peptide2 ? cache.fragment(m_Peptide2, m_crosslinker) : cache.ladder(m_Peptide2, m_crosslinker);
+                ArrayList<Fragment> xl1 = new ArrayList<Fragment>();
+                ArrayList<Fragment> xl2 = new ArrayList<Fragment>();
                 if (m_crosslinker != null && !(m_crosslinker instanceof NonCovalentBound)) {
-                    if (m_crosslinker != null && !(m_crosslinker instanceof NonCovalentBound)) {
+                    for (CrossLinkedFragmentProducer cfp : m_config.getCrossLinkedFragmentProducers()) {
+                        xl1.addAll(cfp.createCrosslinkedFragments(ladder1.primary(), new PeptideIon(m_Peptide2), m_crosslinker, false));
+                        xl2.addAll(cfp.createCrosslinkedFragments(ladder2.primary(), new PeptideIon(m_Peptide1), m_crosslinker, false));
+                    }
+                    if (DoubleFragmentation.isEnabled()) {
+                        ArrayList<Fragment> all1 = new ArrayList<Fragment>(ladder1.primary());
+                        all1.addAll(xl1);
+                        ArrayList<Fragment> all2 = new ArrayList<Fragment>(ladder2.primary());
+                        all2.addAll(xl2);
                         for (CrossLinkedFragmentProducer cfp : m_config.getCrossLinkedFragmentProducers()) {
-                            m_Peptide1Fragments.addAll(cfp.createCrosslinkedFragments(m_Peptide1Fragments, new PeptideIon(m_Peptide2), m_crosslinker, false));
-                            m_Peptide2Fragments.addAll(cfp.createCrosslinkedFragments(m_Peptide2Fragments, new PeptideIon(m_Peptide1), m_crosslinker, false));
-                        }
-                        if (DoubleFragmentation.isEnabled()) {
-                            for (CrossLinkedFragmentProducer cfp : m_config.getCrossLinkedFragmentProducers()) {
-                                m_Peptide1Fragments.addAll(cfp.createCrosslinkedFragments(m_Peptide1Fragments, m_Peptide2Fragments, m_crosslinker, true));
-//                                m_Peptide2Fragments.addAll(cfp.createCrosslinkedFragments(m_Peptide2Fragments, m_Peptide1Fragments, m_crosslinker, true));
-                            }
+                            ArrayList<Fragment> df = cfp.createCrosslinkedFragments(all1, all2, m_crosslinker, true);
+                            all1.addAll(df);
+                            xl1.addAll(df);
                         }
                     }
+                    // losses only depend on the fragment itself - so only the
+                    // cross-linked fragments need their losses added here
+                    Loss.includeLosses(xl1, m_crosslinker, true, config);
+                    Loss.includeLosses(xl2, m_crosslinker, true, config);
                 }
+                m_Peptide1Fragments = ladder1.toArrayList(xl1.size());
+                m_Peptide1Fragments.addAll(xl1);
+                m_Peptide2Fragments = ladder2.toArrayList(xl2.size());
+                m_Peptide2Fragments.addAll(xl2);
             } else {
+                m_Peptide1Fragments = ladder1.toArrayList(0);
                 m_Peptide2Fragments = new ArrayList<Fragment>();
             }
-
-//                m_Peptide1Fragments.addAll(CrosslinkedFragment.createCrosslinkedFragments(m_Peptide1Fragments, m_Peptide2Fragments, m_crosslinker, false));
-            Loss.includeLosses(m_Peptide1Fragments, m_crosslinker, true, config);
-
-            //        m_Peptide2Fragments.addAll(CrosslinkedFragment.createCrosslinkedFragments(m_Peptide2Fragments, peptide1, m_crosslinker, true));
-            Loss.includeLosses(m_Peptide2Fragments, m_crosslinker, true, config);
         }
 
         m_Spectra = spectra;
@@ -1228,15 +1385,19 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
             m_Spectra = null;
         }
         if (m_Peptide1Fragments != null) {
-            for (Fragment f : m_Peptide1Fragments) {
-                f.free();
+            if (!m_sharedFragments) {
+                for (Fragment f : m_Peptide1Fragments) {
+                    f.free();
+                }
             }
             m_Peptide1Fragments.clear();
             m_Peptide1Fragments = null;
         }
         if (m_Peptide2Fragments != null) {
-            for (Fragment f : m_Peptide2Fragments) {
-                f.free();
+            if (!m_sharedFragments) {
+                for (Fragment f : m_Peptide2Fragments) {
+                    f.free();
+                }
             }
             m_Peptide2Fragments.clear();
             m_Peptide2Fragments = null;
@@ -1265,7 +1426,23 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * @param value value of the score
      */
     public void setScore(String name, double value) {
-        m_scores.put(name, Double.valueOf(value));
+        setScore(ScoreRegistry.slot(name), value);
+    }
+
+    /**
+     * adds a new score
+     *
+     * @param slot the {@link ScoreRegistry} slot of the score
+     * @param value value of the score
+     */
+    public void setScore(int slot, double value) {
+        if (slot >= m_scoreValues.length) {
+            int size = Math.max(slot + 1, ScoreRegistry.size());
+            m_scoreValues = Arrays.copyOf(m_scoreValues, size);
+            m_hasScore = Arrays.copyOf(m_hasScore, size);
+        }
+        m_scoreValues[slot] = value;
+        m_hasScore[slot] = true;
     }
 
     /**
@@ -1275,18 +1452,40 @@ public class MatchedXlinkedPeptide implements ScoredPeptideMatch {
      * @return
      */
     public double getScore(String name) {
-        Double ret = m_scores.get(name);
-        return ret == null ? Double.NaN : ret.doubleValue();
+        return getScore(ScoreRegistry.indexOf(name));
     }
 
     /**
-     * returns a named score
+     * returns a score by its {@link ScoreRegistry} slot
+     *
+     * @param slot of the score
+     * @return the score or NaN if the match has no such score
+     */
+    public double getScore(int slot) {
+        return hasScore(slot) ? m_scoreValues[slot] : Double.NaN;
+    }
+
+    /**
+     * @param slot {@link ScoreRegistry} slot of the score
+     * @return whether the match has a value for the score
+     */
+    public boolean hasScore(int slot) {
+        return slot >= 0 && slot < m_hasScore.length && m_hasScore[slot];
+    }
+
+    /**
+     * returns all scores by name. The map is a view - changes are written
+     * through to the match.
+     * <br/>Scores are iterated in {@link ScoreRegistry} slot order and null
+     * values are stored as NaN.
      *
-     * @param name of the score
      * @return
      */
-    public HashMap<String, Double> getScores() {
-        return m_scores;
+    public Map<String, Double> getScores() {
+        if (m_scoreMap == null) {
+            m_scoreMap = new ScoreMap();
+        }
+        return m_scoreMap;
     }
 
     /**
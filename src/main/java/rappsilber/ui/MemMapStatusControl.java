@@ -21,6 +21,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.rappsilber.utils.MemoryInfoProvider;
 import org.rappsilber.utils.RArrayUtils;
+import rappsilber.applications.SearchStatistics;
 import rappsilber.applications.XiProcess;
 import rappsilber.utils.StringUtils;
 
@@ -40,7 +41,13 @@ public class MemMapStatusControl implements StatusInterface, MemoryInfoProvider{
     ByteBuffer doGCBuffer;
     ByteBuffer incThreadBuffer;
     ByteBuffer decThreadBuffer;
+    IntBuffer statisticsIDBuffer;
+    CharBuffer statisticsStringBuffer;
     XiProcess xiProcess;
+    /** where the search statistics start in the buffer */
+    public static final int STATISTICS_OFFSET = 2048;
+    /** maximal length of the search statistics */
+    public static final int STATISTICS_LENGTH = 7000;
     
     AtomicInteger mid = new AtomicInteger(Integer.MIN_VALUE);
     String currentStatus;
@@ -72,6 +79,10 @@ public class MemMapStatusControl implements StatusInterface, MemoryInfoProvider{
         decThreadBuffer = ((ByteBuffer)buffer).slice();
         ((ByteBuffer)buffer).position(51);
         statusStringBuffer = ((ByteBuffer)buffer).slice().asCharBuffer();
+        ((ByteBuffer)buffer).position(STATISTICS_OFFSET - 8);
+        statisticsIDBuffer = ((ByteBuffer)buffer).slice().asIntBuffer();
+        ((ByteBuffer)buffer).position(STATISTICS_OFFSET);
+        statisticsStringBuffer = ((ByteBuffer)buffer).slice().asCharBuffer();
     }
     
     
@@ -103,6 +114,60 @@ public class MemMapStatusControl implements StatusInterface, MemoryInfoProvider{
         return currentStatus;
     }
 
+    /**
+     * writes a summary of the search statistics into the buffer
+     * @param statistics
+     */
+    public void setStatistics(String statistics) {
+        char[] forward = new char[STATISTICS_LENGTH];
+        statistics.getChars(0, Math.min(STATISTICS_LENGTH, statistics.length()), forward, 0);
+        statisticsStringBuffer.position(0);
+        statisticsStringBuffer.put(forward);
+        statisticsIDBuffer.put(0, statisticsIDBuffer.get(0) + 1);
+    }
+
+    /**
+     * @return the last search statistics written into the buffer
+     */
+    public String getStatistics() {
+        char[] read = new char[STATISTICS_LENGTH];
+        statisticsStringBuffer.position(0);
+        statisticsStringBuffer.get(read);
+        return new String(read).trim();
+    }
+
+    /**
+     * @return gets increased each time the statistics are written
+     */
+    public int getStatisticsID() {
+        return statisticsIDBuffer.get(0);
+    }
+
+    /**
+     * periodically writes the summary of the search statistics into the
+     * buffer
+     * @param statistics
+     * @param interval milliseconds between two updates
+     */
+    public void autoWriteStatistics(final SearchStatistics statistics, final long interval) {
+        keepForwarding = true;
+        Runnable runnable = new Runnable() {
+            public void run() {
+                while (keepForwarding) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(MemMapStatusControl.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    setStatistics(statistics.getSummary());
+                }
+            }
+        };
+        Thread t = new Thread(runnable,"statisticsForward");
+        t.setDaemon(true);
+        t.start();
+    }
+
     public void autoWriteMemInfo() {
         keepForwarding = true;
         Runnable runnable = new Runnable() {
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.utils;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Formats numbers exactly like a {@link NumberFormat#getNumberInstance(Locale)
+ * number instance} of the locale without grouping and with a maximum number of
+ * fraction digits - but without going through the generic {@link DecimalFormat}
+ * machinery for each number.
+ * <br/>Values that can not be formatted directly - e.g. that are too close to
+ * a rounding boundary, too large, or that round to a negative zero - and
+ * locales with unusual digits or minus signs are handed to the
+ * {@link DecimalFormat}.
+ * <br/>Like {@link DecimalFormat} this is not thread-safe.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class FastDecimalFormat {
+
+    /** beyond this DecimalFormat does not write the exact value anymore */
+    private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L,
+        1000000L, 10000000L, 100000000L, 1000000000L};
+
+    /** used for everything that is not handled directly */
+    private final DecimalFormat m_format;
+    private final int m_fractionDigits;
+    private final long m_scale;
+    private final char m_decimalSeparator;
+    /** can numbers be written with plain ascii digits and '-' */
+    private final boolean m_fast;
+    /** digits of the fractional part */
+    private final char[] m_fraction;
+
+    /**
+     * @param locale the locale to format the numbers for
+     * @param maxFractionDigits up to how many digits after the decimal
+     * separator are written (at most 9)
+     */
+    public FastDecimalFormat(Locale locale, int maxFractionDigits) {
+        if (maxFractionDigits < 0 || maxFractionDigits >= POW10.length) {
+            throw new IllegalArgumentException("unsupported number of fraction digits: " + maxFractionDigits);
+        }
+        m_format = (DecimalFormat) NumberFormat.getNumberInstance(locale);
+        m_format.setGroupingUsed(false);
+        m_format.setMaximumFractionDigits(maxFractionDigits);
+        DecimalFormatSymbols symbols = m_format.getDecimalFormatSymbols();
+        m_fractionDigits = maxFractionDigits;
+        m_scale = POW10[maxFractionDigits];
+        m_decimalSeparator = symbols.getDecimalSeparator();
+        m_fraction = new char[maxFractionDigits];
+        m_fast = symbols.getZeroDigit() == '0'
+                && symbols.getMinusSign() == '-'
+                && "-".equals(m_format.getNegativePrefix())
+                && m_format.getPositivePrefix().isEmpty()
+                && m_format.getNegativeSuffix().isEmpty()
+                && m_format.getPositiveSuffix().isEmpty()
+                && m_format.getMinimumIntegerDigits() == 1
+                && m_format.getMinimumFractionDigits() == 0
+                && m_format.getMultiplier() == 1;
+    }
+
+    /**
+     * @return the {@link DecimalFormat} that defines the format
+     */
+    public DecimalFormat getDecimalFormat() {
+        return m_format;
+    }
+
+    /**
+     * appends the formatted value to the StringBuilder
+     * @param sb
+     * @param d
+     * @return sb
+     */
+    public StringBuilder append(StringBuilder sb, double d) {
+        if (!m_fast || Double.isNaN(d) || Double.isInfinite(d)) {
+            return sb.append(m_format.format(d));
+        }
+        // negative zero
+        if (d == 0 && Double.doubleToRawLongBits(d) != 0) {
+            return sb.append(m_format.format(d));
+        }
+        boolean negative = d < 0;
+        double a = Math.abs(d);
+        if (a >= MAX_EXACT) {
+            return sb.append(m_format.format(d));
+        }
+        long integer = (long) a;
+        // exact
+        double fraction = a - integer;
+        double scaled = fraction * m_scale;
+        double floor = Math.floor(scaled);
+        double rest = scaled - floor;
+        // DecimalFormat rounds the shortest decimal representation of the
+        // value - which can be up to half an ulp away from the value itself.
+        // So if we are too close to the middle between two results we leave
+        // the decision to the DecimalFormat.
+        if (Math.abs(rest - 0.5) <= Math.ulp(a) * 2 * m_scale + 1e-9) {
+            return sb.append(m_format.format(d));
+        }
+        long digits = (long) floor + (rest > 0.5 ? 1 : 0);
+        if (digits >= m_scale) {
+            integer++;
+            digits -= m_scale;
+        }
+        if (negative) {
+            if (integer == 0 && digits == 0) {
+                // DecimalFormat writes "-0" here
+                return sb.append(m_format.format(d));
+            }
+            sb.append('-');
+        }
+        sb.append(integer);
+        if (digits != 0) {
+            int len = m_fractionDigits;
+            while (digits % 10 == 0) {
+                digits /= 10;
+                len--;
+            }
+            for (int i = len - 1; i >= 0; i--) {
+                m_fraction[i] = (char) ('0' + digits % 10);
+                digits /= 10;
+            }
+            sb.append(m_decimalSeparator).append(m_fraction, 0, len);
+        }
+        return sb;
+    }
+
+    /**
+     * appends the formatted value to the StringBuilder
+     * @param sb
+     * @param i
+     * @return sb
+     */
+    public StringBuilder append(StringBuilder sb, long i) {
+        if (!m_fast || i == Long.MIN_VALUE) {
+            return sb.append(m_format.format(i));
+        }
+        return sb.append(i);
+    }
+
+    /**
+     * @param d
+     * @return the formatted value
+     */
+    public String format(double d) {
+        return append(new StringBuilder(24), d).toString();
+    }
+
+    /**
+     * @param i
+     * @return the formatted value
+     */
+    public String format(long i) {
+        if (m_fast) {
+            return Long.toString(i);
+        }
+        return m_format.format(i);
+    }
+}
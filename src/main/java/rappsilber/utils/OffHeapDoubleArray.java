@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed size, long indexed array of doubles that lives outside of the java
+ * heap.
+ * <br/>The values are stored in direct buffers of at most {@link #SEGMENT_SIZE}
+ * entries each. So the array can hold more then Integer.MAX_VALUE entries and
+ * its content does not need to be looked at by the garbage collector.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class OffHeapDoubleArray {
+    /** log2 of the number of entries per segment */
+    public static final int SEGMENT_SHIFT = 27;
+    /** number of entries per segment (1GB per segment for doubles) */
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /** the buffers holding the actual values */
+    private DoubleBuffer[] m_segments;
+    /** the underlying memory of each segment */
+    private ByteBuffer[] m_bytes;
+    /** number of entries */
+    private long m_size;
+
+    /**
+     * allocates a new array with the given number of entries - all set to 0
+     * @param size
+     */
+    public OffHeapDoubleArray(long size) {
+        m_size = size;
+        int segments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        m_segments = new DoubleBuffer[segments];
+        m_bytes = new ByteBuffer[segments];
+        long remaining = size;
+        for (int s = 0; s < segments; s++) {
+            int segSize = (int) Math.min(SEGMENT_SIZE, remaining);
+            m_bytes[s] = ByteBuffer.allocateDirect(segSize * 8).order(ByteOrder.nativeOrder());
+            m_segments[s] = m_bytes[s].asDoubleBuffer();
+            remaining -= segSize;
+        }
+    }
+
+    private OffHeapDoubleArray(ByteBuffer[] bytes, long size) {
+        m_size = size;
+        m_bytes = bytes;
+        m_segments = new DoubleBuffer[bytes.length];
+        for (int s = 0; s < bytes.length; s++) {
+            m_segments[s] = bytes[s].asDoubleBuffer();
+        }
+    }
+
+    /**
+     * maps an array previously written with {@link #write(FileChannel, long)}
+     * read-only into memory.
+     * @param channel the file to map
+     * @param position where in the file the array starts
+     * @param size number of entries
+     * @return the mapped array
+     * @throws IOException
+     */
+    public static OffHeapDoubleArray map(FileChannel channel, long position, long size) throws IOException {
+        int segments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        ByteBuffer[] bytes = new ByteBuffer[segments];
+        long remaining = size;
+        for (int s = 0; s < segments; s++) {
+            int segSize = (int) Math.min(SEGMENT_SIZE, remaining);
+            bytes[s] = channel.map(FileChannel.MapMode.READ_ONLY, position, segSize * 8L).order(ByteOrder.nativeOrder());
+            position += segSize * 8L;
+            remaining -= segSize;
+        }
+        return new OffHeapDoubleArray(bytes, size);
+    }
+
+    /**
+     * writes the first count entries of the array at the current position of
+     * the channel (in native byte order).
+     * @param channel
+     * @param count number of entries to write
+     * @throws IOException
+     */
+    public void write(FileChannel channel, long count) throws IOException {
+        for (int s = 0; s < m_bytes.length && count > 0; s++) {
+            int segSize = (int) Math.min(SEGMENT_SIZE, count);
+            ByteBuffer out = m_bytes[s].duplicate();
+            out.clear();
+            out.limit(segSize * 8);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            count -= segSize;
+        }
+    }
+
+    public double get(long index) {
+        return m_segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    public void set(long index, double value) {
+        m_segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+    }
+
+    /**
+     * copies a block of values within the array.
+     * <br/>Only supports moving values to lower indices (or non-overlapping
+     * blocks).
+     * @param from first index to copy from
+     * @param to first index to copy to
+     * @param length number of entries to copy
+     */
+    public void moveDown(long from, long to, long length) {
+        for (long i = 0; i < length; i++) {
+            set(to + i, get(from + i));
+        }
+    }
+
+    /**
+     * index of the first entry that is not smaller then the given value.
+     * <br/> only makes sense if the entries between from and to are sorted
+     * ascending.
+     * @param value the value to look for
+     * @param from first index to consider
+     * @param to first index not to consider
+     * @return the index of the first entry &gt;= value or to if there is none
+     */
+    public long lowerBound(double value, long from, long to) {
+        long lo = from;
+        long hi = to;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (get(mid) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return number of entries in the array
+     */
+    public long size() {
+        return m_size;
+    }
+
+    /**
+     * releases the references to the off-heap memory. The memory itself gets
+     * returned the next time the buffers get garbage collected.
+     */
+    public void free() {
+        m_segments = new DoubleBuffer[0];
+        m_bytes = new ByteBuffer[0];
+        m_size = 0;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.utils;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes a list in contiguous chunks on several threads and merges the
+ * results of the chunks on the calling thread in the order of the list.
+ * <br/>So as long as {@link #process(java.util.List)} only touches the items
+ * of its chunk the outcome is the same as processing the whole list
+ * sequentially.
+ * @param <I> type of the items
+ * @param <R> type of the result for a chunk
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public abstract class OrderedParallelChunks<I, R> {
+
+    /** how many chunks per thread the list gets split into */
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private final String m_name;
+
+    /**
+     * @param name used for naming the threads
+     */
+    public OrderedParallelChunks(String name) {
+        m_name = name;
+    }
+
+    /**
+     * processes one chunk. Gets called by several threads at the same time.
+     * @param chunk
+     * @return the result for the chunk
+     */
+    protected abstract R process(List<I> chunk);
+
+    /**
+     * merges the result of a chunk. Gets called on the calling thread and in
+     * the order of the chunks.
+     * @param result
+     */
+    protected abstract void merge(R result);
+
+    /**
+     * processes all items and merges the results
+     * @param items
+     * @param threads if less than two everything is done on the calling thread
+     */
+    public void run(final List<I> items, int threads) {
+        int size = items.size();
+        if (threads <= 1 || size <= 1) {
+            if (size > 0) {
+                merge(process(items));
+            }
+            return;
+        }
+        int chunkSize = Math.max(1, (size + threads * CHUNKS_PER_THREAD - 1) / (threads * CHUNKS_PER_THREAD));
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, m_name + "_" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayDeque<Future<R>> pending = new ArrayDeque<Future<R>>();
+        try {
+            for (int start = 0; start < size; start += chunkSize) {
+                final List<I> chunk = items.subList(start, Math.min(size, start + chunkSize));
+                pending.add(pool.submit(new Callable<R>() {
+                    @Override
+                    public R call() throws Exception {
+                        return process(chunk);
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                merge(pending.poll().get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(m_name + " got interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException("Error in " + m_name, ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
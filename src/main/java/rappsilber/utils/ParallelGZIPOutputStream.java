@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip-compressed data, compressing on a small pool of threads.
+ * <br/>The data is cut into blocks and each block is compressed into a
+ * complete gzip member of its own (the same idea as BGZF). The members are
+ * written in order, one after the other - which according to RFC 1952 is still
+ * a valid gzip file that decompresses to the original data (e.g. by
+ * {@link java.util.zip.GZIPInputStream} or gunzip).
+ * <br/>Like other streams this is not meant to be written to by several
+ * threads at the same time.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+    /** default size of the uncompressed blocks */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /**
+     * compresses one block into a gzip member
+     */
+    private static class Compressor implements Callable<byte[]> {
+        private byte[] m_data;
+        private final int m_length;
+
+        Compressor(byte[] data, int length) {
+            m_data = data;
+            m_length = length;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(m_length / 3 + 64);
+            GZIPOutputStream gz = new GZIPOutputStream(bos, 64 * 1024);
+            gz.write(m_data, 0, m_length);
+            gz.close();
+            m_data = null;
+            return bos.toByteArray();
+        }
+    }
+
+    private final OutputStream m_out;
+    private final ExecutorService m_compressors;
+    /** blocks handed to the compressors - in the order they have to be written */
+    private final ArrayDeque<Future<byte[]>> m_pending = new ArrayDeque<Future<byte[]>>();
+    /** up to how many blocks can wait for compression or writing */
+    private final int m_maxPending;
+    private final int m_blockSize;
+    /** the block currently filled */
+    private byte[] m_block;
+    private int m_blockFill = 0;
+    /** was anything written to m_out yet */
+    private boolean m_memberWritten = false;
+    private boolean m_closed = false;
+
+    /**
+     * @param out where to write the compressed data to
+     * @param threads how many threads compress the data
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out where to write the compressed data to
+     * @param threads how many threads compress the data
+     * @param blockSize size of the uncompressed blocks
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize) {
+        m_out = out;
+        threads = Math.max(1, threads);
+        m_blockSize = blockSize;
+        m_block = new byte[blockSize];
+        m_maxPending = threads * 2;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        m_compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gzip_" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (m_blockFill == m_blockSize) {
+            submitBlock();
+        }
+        m_block[m_blockFill++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (m_blockFill == m_blockSize) {
+                submitBlock();
+            }
+            int l = Math.min(len, m_blockSize - m_blockFill);
+            System.arraycopy(b, off, m_block, m_blockFill, l);
+            m_blockFill += l;
+            off += l;
+            len -= l;
+        }
+    }
+
+    /**
+     * hands the current block to the compressors - and writes out finished
+     * blocks if too many are waiting
+     */
+    private void submitBlock() throws IOException {
+        if (m_closed) {
+            throw new IOException("Stream closed");
+        }
+        if (m_blockFill == 0) {
+            return;
+        }
+        m_pending.add(m_compressors.submit(new Compressor(m_block, m_blockFill)));
+        m_block = new byte[m_blockSize];
+        m_blockFill = 0;
+        while (m_pending.size() >= m_maxPending) {
+            writeNext();
+        }
+    }
+
+    /**
+     * waits for the oldest block to be compressed and writes it
+     */
+    private void writeNext() throws IOException {
+        Future<byte[]> f = m_pending.poll();
+        try {
+            m_out.write(f.get());
+            m_memberWritten = true;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.toString());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * compresses and writes everything written so far
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        submitBlock();
+        while (!m_pending.isEmpty()) {
+            writeNext();
+        }
+        m_out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        try {
+            flush();
+            if (!m_memberWritten) {
+                // an empty gzip file still needs a member
+                m_out.write(new Compressor(new byte[0], 0).call());
+            }
+        } finally {
+            m_closed = true;
+            m_compressors.shutdownNow();
+            m_block = null;
+            m_out.close();
+        }
+    }
+}
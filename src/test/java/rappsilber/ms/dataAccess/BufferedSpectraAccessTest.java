@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Checks the end-of-input hand-off of {@link BufferedSpectraAccess} as a
+ * {@link BlockingSpectraAccess}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class BufferedSpectraAccessTest {
+
+    private static ArrayList<Spectra> spectra(int count) {
+        double[] masses = new double[count];
+        for (int i = 0; i < count; i++) {
+            masses[i] = 1000 + i;
+        }
+        return ListSpectraAccess.spectra(masses);
+    }
+
+    /**
+     * takes spectra until the end of the input - in its own thread
+     */
+    private static class Taker extends Thread {
+        final BlockingSpectraAccess m_access;
+        final ArrayList<Spectra> m_taken = new ArrayList<Spectra>();
+        volatile boolean m_sawEnd = false;
+
+        Taker(BlockingSpectraAccess access) {
+            m_access = access;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Spectra s;
+                while ((s = m_access.take()) != null) {
+                    m_taken.add(s);
+                }
+                m_sawEnd = true;
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void allSpectraThenEnd() throws Exception {
+        ArrayList<Spectra> input = spectra(100);
+        // smaller buffer than input - so the filling thread has to wait
+        BufferedSpectraAccess buffer = new BufferedSpectraAccess(new ListSpectraAccess(input), 3);
+        for (Spectra s : input) {
+            assertTrue(buffer.hasNext());
+            assertSame(s, buffer.take());
+        }
+        // the end stays visible
+        for (int i = 0; i < 3; i++) {
+            assertFalse(buffer.hasNext());
+            assertNull(buffer.take());
+            assertNull(buffer.next());
+        }
+        assertEquals(100, buffer.countReadSpectra());
+        assertEquals(0, buffer.bufferedSpectra());
+    }
+
+    @Test(timeout = 10000)
+    public void emptyInput() throws Exception {
+        BufferedSpectraAccess buffer = new BufferedSpectraAccess(new ListSpectraAccess(new ArrayList<Spectra>()), 3);
+        assertFalse(buffer.hasNext());
+        assertNull(buffer.take());
+    }
+
+    @Test(timeout = 10000)
+    public void severalReadersEachSpectrumOnce() throws Exception {
+        ArrayList<Spectra> input = spectra(1000);
+        BufferedSpectraAccess buffer = new BufferedSpectraAccess(new ListSpectraAccess(input), 5);
+        ArrayList<Taker> takers = new ArrayList<Taker>();
+        for (int t = 0; t < 4; t++) {
+            takers.add(new Taker(buffer));
+        }
+        for (Taker t : takers) {
+            t.start();
+        }
+        IdentityHashMap<Spectra, Boolean> seen = new IdentityHashMap<Spectra, Boolean>();
+        for (Taker t : takers) {
+            t.join();
+            assertTrue(t.m_sawEnd);
+            for (Spectra s : t.m_taken) {
+                assertNull("spectrum handed out twice", seen.put(s, Boolean.TRUE));
+            }
+            // each reader gets its spectra in input order
+            for (int i = 1; i < t.m_taken.size(); i++) {
+                assertTrue(t.m_taken.get(i - 1).getScanNumber() < t.m_taken.get(i).getScanNumber());
+            }
+        }
+        assertEquals(input.size(), seen.size());
+    }
+
+    @Test(timeout = 10000)
+    public void waitingReadersSeeTheEnd() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Spectra> input = spectra(10);
+        BufferedSpectraAccess buffer = new BufferedSpectraAccess(new ListSpectraAccess(input, start), 2);
+        ArrayList<Taker> takers = new ArrayList<Taker>();
+        for (int t = 0; t < 4; t++) {
+            Taker taker = new Taker(buffer);
+            takers.add(taker);
+            taker.start();
+        }
+        // give the readers time to start waiting
+        Thread.sleep(100);
+        for (Taker t : takers) {
+            assertTrue(t.m_taken.isEmpty());
+            assertFalse(t.m_sawEnd);
+        }
+        start.countDown();
+        int taken = 0;
+        for (Taker t : takers) {
+            t.join();
+            assertTrue(t.m_sawEnd);
+            taken += t.m_taken.size();
+        }
+        assertEquals(input.size(), taken);
+    }
+
+    @Test(timeout = 10000)
+    public void failingInputEnds() throws Exception {
+        ArrayList<Spectra> input = spectra(5);
+        ListSpectraAccess failing = new ListSpectraAccess(input) {
+            @Override
+            public Spectra next() {
+                if (countReadSpectra() == 3) {
+                    throw new IllegalStateException("read error");
+                }
+                return super.next();
+            }
+        };
+        BufferedSpectraAccess buffer = new BufferedSpectraAccess(failing, 2);
+        for (int i = 0; i < 3; i++) {
+            assertSame(input.get(i), buffer.take());
+        }
+        // the reading failed - but nobody should wait forever
+        assertNull(buffer.take());
+        assertFalse(buffer.hasNext());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Hands out the spectra of a list - used as the inner access when testing
+ * the stacked accesses.
+ * <br/>If a latch is given, hasNext() waits for it before the first
+ * spectrum - so tests can have readers waiting on an access before any
+ * spectrum arrives.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+class ListSpectraAccess extends AbstractSpectraAccess {
+    private final List<Spectra> m_spectra;
+    private final CountDownLatch m_start;
+    private int m_next = 0;
+    private Spectra m_current;
+
+    ListSpectraAccess(List<Spectra> spectra) {
+        this(spectra, new CountDownLatch(0));
+    }
+
+    ListSpectraAccess(List<Spectra> spectra, CountDownLatch start) {
+        m_spectra = spectra;
+        m_start = start;
+    }
+
+    /**
+     * @param masses
+     * @return one singly charged spectrum per mass with the index as scan
+     * number
+     */
+    static ArrayList<Spectra> spectra(double... masses) {
+        ArrayList<Spectra> ret = new ArrayList<Spectra>(masses.length);
+        for (int i = 0; i < masses.length; i++) {
+            Spectra s = new Spectra();
+            s.setRun("test");
+            s.setScanNumber(i);
+            s.setPrecurserCharge(1);
+            s.setPrecurserMass(masses[i]);
+            ret.add(s);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            m_start.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return m_next < m_spectra.size();
+    }
+
+    @Override
+    public Spectra next() {
+        m_current = m_spectra.get(m_next++);
+        return m_current;
+    }
+
+    @Override
+    public Spectra current() {
+        return m_current;
+    }
+
+    @Override
+    public int countReadSpectra() {
+        return m_next;
+    }
+
+    @Override
+    public int getSpectraCount() {
+        return m_spectra.size();
+    }
+
+    @Override
+    public void gatherData() {
+    }
+
+    @Override
+    public boolean canRestart() {
+        return true;
+    }
+
+    @Override
+    public void restart() throws IOException {
+        m_next = 0;
+        m_current = null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.dataAccess;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import org.junit.Test;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Checks the order in which {@link MassOrderedSpectraAccess} hands out
+ * spectra.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class MassOrderedSpectraAccessTest {
+
+    private static final double DELTA = 1e-6;
+
+    /**
+     * @return the masses of all spectra taken by the current thread until the
+     * end of the input
+     */
+    private static double[] takeAll(BlockingSpectraAccess access) throws InterruptedException {
+        ArrayList<Spectra> taken = new ArrayList<Spectra>();
+        Spectra s;
+        while ((s = access.take()) != null) {
+            taken.add(s);
+        }
+        double[] ret = new double[taken.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = taken.get(i).getPrecurserMass();
+        }
+        return ret;
+    }
+
+    @Test(timeout = 10000)
+    public void sortedWithinBlocks() throws Exception {
+        ListSpectraAccess inner = new ListSpectraAccess(ListSpectraAccess.spectra(5, 3, 9, 1, 8, 2, 7, 4, 6));
+        MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(inner, 1, 4);
+        assertArrayEquals(new double[]{1, 3, 5, 9, 2, 4, 7, 8, 6}, takeAll(access), DELTA);
+        // the end stays visible
+        assertNull(access.take());
+        assertFalse(access.hasNext());
+        assertEquals(9, access.countReadSpectra());
+    }
+
+    @Test(timeout = 10000)
+    public void allInOneBlock() throws Exception {
+        ListSpectraAccess inner = new ListSpectraAccess(ListSpectraAccess.spectra(5, 3, 9, 1, 8, 2, 7, 4, 6));
+        MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(inner, 1, 0);
+        assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, takeAll(access), DELTA);
+    }
+
+    @Test(timeout = 10000)
+    public void finishedBandStealsFromTheEnd() throws Exception {
+        ListSpectraAccess inner = new ListSpectraAccess(ListSpectraAccess.spectra(4, 8, 1, 6, 3, 5, 7, 2));
+        MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(inner, 2, 0);
+        // the only thread gets the lower band - then the upper band from its
+        // high-mass end
+        assertArrayEquals(new double[]{1, 2, 3, 4, 8, 7, 6, 5}, takeAll(access), DELTA);
+    }
+
+    @Test(timeout = 10000)
+    public void emptyInput() throws Exception {
+        MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(new ListSpectraAccess(new ArrayList<Spectra>()), 4, 10);
+        assertFalse(access.hasNext());
+        assertNull(access.take());
+    }
+
+    @Test(timeout = 10000)
+    public void restart() throws Exception {
+        ListSpectraAccess inner = new ListSpectraAccess(ListSpectraAccess.spectra(3, 1, 2));
+        MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(inner, 1, 0);
+        assertArrayEquals(new double[]{1, 2, 3}, takeAll(access), DELTA);
+        access.restart();
+        assertTrue(access.hasNext());
+        assertArrayEquals(new double[]{1, 2, 3}, takeAll(access), DELTA);
+    }
+
+    @Test(timeout = 10000)
+    public void severalThreadsEachSpectrumOnce() throws Exception {
+        Random r = new Random(1234);
+        double[] masses = new double[1000];
+        for (int i = 0; i < masses.length; i++) {
+            masses[i] = 500 + r.nextDouble() * 5000;
+        }
+        ArrayList<Spectra> input = ListSpectraAccess.spectra(masses);
+        final MassOrderedSpectraAccess access = new MassOrderedSpectraAccess(new ListSpectraAccess(input), 4, 100);
+        final IdentityHashMap<Spectra, Boolean> seen = new IdentityHashMap<Spectra, Boolean>();
+        final int[] duplicates = new int[1];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Spectra s;
+                        while ((s = access.take()) != null) {
+                            synchronized (seen) {
+                                if (seen.put(s, Boolean.TRUE) != null) {
+                                    duplicates[0]++;
+                                }
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, duplicates[0]);
+        assertEquals(input.size(), seen.size());
+        assertNull(access.take());
+    }
+}
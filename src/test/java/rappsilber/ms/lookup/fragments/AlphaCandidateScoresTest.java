@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import org.junit.Test;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * Behaviour of {@link AlphaCandidateScores}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class AlphaCandidateScoresTest {
+
+    private static final double DELTA = 1e-12;
+
+    private static Peptide[] peptides() throws Exception {
+        Peptide[] all = new SmallDatabase("KKKKKKKK", "KKKYYKKK", "KAKAKAKAK", "KYKYKYKYK", "KPEPKPEPK", "KEKEKEKEK").sequences.getAllPeptideIDs();
+        assertTrue(all.length >= 6);
+        return all;
+    }
+
+    /** ids in the order they where returned */
+    private static int[] ids(ArrayList<Peptide> peps) {
+        int[] ret = new int[peps.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = peps.get(i).getPeptideIndex();
+        }
+        return ret;
+    }
+
+    @Test
+    public void multiplyAndClear() {
+        AlphaCandidateScores s = new AlphaCandidateScores(10);
+        assertEquals(0.5, s.multiply(3, 0.5), DELTA);
+        assertEquals(0.1, s.multiply(3, 0.2), DELTA);
+        assertEquals(1, s.size());
+        assertTrue(s.seen(3));
+        assertFalse(s.seen(4));
+        assertEquals(7, s.score(4, 7), DELTA);
+        assertEquals(7, s.score(-1, 7), DELTA);
+        assertEquals(7, s.score((Peptide) null, 7), DELTA);
+
+        s.clear();
+        assertEquals(0, s.size());
+        assertFalse(s.seen(3));
+        // after a clear the first value is stored, not multiplied with the old one
+        assertEquals(0.3, s.multiply(3, 0.3), DELTA);
+    }
+
+    @Test
+    public void peaks() {
+        AlphaCandidateScores s = new AlphaCandidateScores(10);
+        s.startPeak();
+        s.visit(1);
+        s.visit(2);
+        assertEquals(2, s.peakSize());
+        s.multiplyPeak(0.5);
+
+        s.startPeak();
+        assertEquals(0, s.peakSize());
+        s.visit(2);
+        s.multiplyPeak(0.5);
+
+        assertEquals(0.5, s.score(1, 1), DELTA);
+        assertEquals(0.25, s.score(2, 1), DELTA);
+        assertEquals(2, s.size());
+    }
+
+    @Test
+    public void addAllLowest() {
+        AlphaCandidateScores a = new AlphaCandidateScores(10);
+        AlphaCandidateScores b = new AlphaCandidateScores(10);
+        a.multiply(1, 0.5);
+        a.multiply(2, 0.1);
+        b.multiply(1, 0.2);
+        b.multiply(2, 0.3);
+        b.multiply(3, 0.4);
+        a.addAllLowest(b);
+        assertEquals(0.2, a.score(1, 1), DELTA);
+        assertEquals(0.1, a.score(2, 1), DELTA);
+        assertEquals(0.4, a.score(3, 1), DELTA);
+        assertEquals(3, a.size());
+        // the source is not changed
+        assertEquals(0.3, b.score(2, 1), DELTA);
+    }
+
+    @Test
+    public void lowestEntries() throws Exception {
+        Peptide[] all = peptides();
+        AlphaCandidateScores s = new AlphaCandidateScores(all.length);
+        s.multiply(5, 0.3);
+        s.multiply(4, 0.1);
+        s.multiply(0, 0.2);
+        s.multiply(2, 0.1);
+        s.multiply(3, 0.2);
+        s.multiply(1, 0.5);
+
+        // ordered by score and then by id - ties count as one rank
+        assertArrayEquals(new int[]{2, 4}, ids(s.getLowestNEntries(1, -1, all)));
+        assertArrayEquals(new int[]{2, 4, 0, 3}, ids(s.getLowestNEntries(2, -1, all)));
+        assertArrayEquals(new int[]{2, 4, 0, 3, 5}, ids(s.getLowestNEntries(3, -1, all)));
+        assertArrayEquals(new int[]{2, 4, 0, 3, 5, 1}, ids(s.getLowestNEntries(10, -1, all)));
+        assertEquals(0, s.getLowestNEntries(0, -1, all).size());
+
+        // a rank is only returned if all of its entries fit
+        assertArrayEquals(new int[]{2, 4}, ids(s.getLowestNEntries(3, 3, all)));
+        assertArrayEquals(new int[]{2, 4, 0, 3}, ids(s.getLowestNEntries(3, 4, all)));
+        assertEquals(0, s.getLowestNEntries(3, 1, all).size());
+
+        s.clear();
+        assertEquals(0, s.getLowestNEntries(3, -1, all).size());
+    }
+}
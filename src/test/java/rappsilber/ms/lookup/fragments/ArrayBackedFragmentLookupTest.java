@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link ArrayBackedFragmentLookup} against
+ * {@link FragmentTreeSlimedArrayMassSplitBuild}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class ArrayBackedFragmentLookupTest {
+
+    @Test
+    public void sameAsMassSplitTree() throws Exception {
+        SmallDatabase db = new SmallDatabase("KKKKKKKK", "KKKYYKKK");
+        ArrayBackedFragmentLookup test = new ArrayBackedFragmentLookup(db.peptides, db.sequences, 2, db.conf);
+        FragmentTreeSlimedArrayMassSplitBuild reference = new FragmentTreeSlimedArrayMassSplitBuild(db.peptides, db.sequences, 2, db.conf);
+
+        assertTrue(db.fragmentMasses().size() > 0);
+        for (double m : db.fragmentMasses()) {
+            assertArrayEquals("mass " + m, SmallDatabase.ids(reference.getForMass(m)), SmallDatabase.ids(test.getForMass(m)));
+        }
+        for (double m : new double[]{403.30327443699997, 566.366603012}) {
+            assertTrue(test.getForMass(m).size() > 0);
+            assertArrayEquals("mass " + m, SmallDatabase.ids(reference.getForMass(m)), SmallDatabase.ids(test.getForMass(m)));
+        }
+    }
+}
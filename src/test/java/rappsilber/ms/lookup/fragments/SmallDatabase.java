@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import rappsilber.config.AbstractRunConfig;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.crosslinker.CrossLinker;
+import rappsilber.ms.crosslinker.SymetricSingleAminoAcidRestrictedCrossLinker;
+import rappsilber.ms.lookup.peptides.PeptideLookup;
+import rappsilber.ms.lookup.peptides.PeptideTree;
+import rappsilber.ms.sequence.AminoAcid;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.SequenceList;
+import rappsilber.ms.sequence.digest.NoDigestion;
+import rappsilber.ms.sequence.ions.Fragment;
+
+/**
+ * A tiny undigested database with b-, y- and peptide-ions used to compare the
+ * fragment lookups.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+class SmallDatabase {
+    final RunConfig conf;
+    final SequenceList sequences;
+    final PeptideLookup peptides;
+
+    SmallDatabase(String... proteins) throws ParseException {
+        conf = new AbstractRunConfig() {
+            {
+                setFragmentTolerance(new ToleranceUnit("20ppm"));
+                setPrecoursorTolerance(new ToleranceUnit("10ppm"));
+                setDigestion(new NoDigestion());
+                setCrosslinker(
+                        new CrossLinker[]{
+                            new SymetricSingleAminoAcidRestrictedCrossLinker(
+                                    "dummy",
+                                    1, 1,
+                                    new AminoAcid[]{AminoAcid.K})
+                        }
+                );
+            }
+        };
+        Fragment.parseArgs("BIon", conf);
+        Fragment.parseArgs("YIon", conf);
+        Fragment.parseArgs("PeptideIon", conf);
+        sequences = new SequenceList(conf);
+        for (String p : proteins) {
+            sequences.add(new Sequence(p, conf));
+        }
+        peptides = new PeptideTree(conf.getPrecousorTolerance());
+        conf.getDigestion_method().setPeptideLookup(peptides, peptides);
+        sequences.digest(conf.getDigestion_method(), conf.getCrossLinker());
+        sequences.buildIndex();
+    }
+
+    /**
+     * @return the masses of all primary fragments of all peptides
+     */
+    ArrayList<Double> fragmentMasses() {
+        ArrayList<Double> ret = new ArrayList<Double>();
+        for (Peptide p : peptides) {
+            for (Fragment f : p.getPrimaryFragments(conf)) {
+                ret.add(f.getMass());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the sorted ids of the given peptides
+     */
+    static int[] ids(ArrayList<Peptide> peps) {
+        int[] ret = new int[peps.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = peps.get(i).getPeptideIndex();
+        }
+        Arrays.sort(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.lookup.fragments;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import rappsilber.ms.sequence.Peptide;
+
+/**
+ * Checks that {@link FragmentLookup#visitForMass} finds the same peptides as
+ * the matching {@link FragmentLookup#getForMass} for each lookup that
+ * implements it directly.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class VisitForMassTest {
+
+    private static class IdCollector implements PeptideIdVisitor {
+        int[] ids = new int[16];
+        int count = 0;
+
+        @Override
+        public void visit(int peptideId) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = peptideId;
+        }
+
+        int[] sorted() {
+            int[] ret = Arrays.copyOf(ids, count);
+            Arrays.sort(ret);
+            return ret;
+        }
+    }
+
+    private static SmallDatabase database() throws Exception {
+        return new SmallDatabase("KKKKKKKK", "KKKYYKKK", "KAKAKAKAK", "KYKYKYKYK", "KPEPKPEPK");
+    }
+
+    private static void compare(FragmentLookup lookup, SmallDatabase db) {
+        double maxPeptideMass = Double.MAX_VALUE;
+        for (Peptide p : db.peptides) {
+            maxPeptideMass = Math.min(maxPeptideMass, p.getMass());
+        }
+        // just above the lightest peptide - so some get filtered
+        maxPeptideMass += 1;
+        ArrayList<Double> masses = db.fragmentMasses();
+        assertTrue(masses.size() > 0);
+        for (double m : masses) {
+            for (double maxMass : new double[]{Double.MAX_VALUE, maxPeptideMass}) {
+                IdCollector all = new IdCollector();
+                lookup.visitForMass(m, m, maxMass, -1, all);
+                assertArrayEquals("mass " + m, SmallDatabase.ids(lookup.getForMass(m, m, maxMass)), all.sorted());
+                for (int maxPeptides : new int[]{0, 1, 2, 1000}) {
+                    IdCollector limited = new IdCollector();
+                    lookup.visitForMass(m, m, maxMass, maxPeptides, limited);
+                    assertArrayEquals("mass " + m + " max peptides " + maxPeptides,
+                            SmallDatabase.ids(lookup.getForMass(m, m, maxMass, maxPeptides)), limited.sorted());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void treeSlimedMTvArrayOnly() throws Exception {
+        SmallDatabase db = database();
+        compare(new FragmentTreeSlimedMTvArrayOnly(db.peptides, db.sequences, 2, db.conf), db);
+    }
+
+    @Test
+    public void treeSlimedArrayMassSplitBuild() throws Exception {
+        SmallDatabase db = database();
+        compare(new FragmentTreeSlimedArrayMassSplitBuild(db.peptides, db.sequences, 2, db.conf), db);
+    }
+
+    @Test
+    public void arrayBacked() throws Exception {
+        SmallDatabase db = database();
+        compare(new ArrayBackedFragmentLookup(db.peptides, db.sequences, 2, db.conf), db);
+    }
+}
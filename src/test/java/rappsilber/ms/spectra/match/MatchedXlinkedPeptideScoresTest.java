@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.ms.spectra.match;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import rappsilber.config.AbstractRunConfig;
+import rappsilber.config.RunConfig;
+import rappsilber.ms.ToleranceUnit;
+import rappsilber.ms.score.ScoreRegistry;
+import rappsilber.ms.sequence.Peptide;
+import rappsilber.ms.sequence.Sequence;
+import rappsilber.ms.sequence.ions.Fragment;
+import rappsilber.ms.spectra.Spectra;
+
+/**
+ * Checks the slot based scores of {@link MatchedXlinkedPeptide} and the map
+ * view returned by {@link MatchedXlinkedPeptide#getScores()}.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class MatchedXlinkedPeptideScoresTest {
+
+    private MatchedXlinkedPeptide m_match;
+
+    @Before
+    public void setUp() throws Exception {
+        RunConfig conf = new AbstractRunConfig() {
+            {
+                setFragmentTolerance(new ToleranceUnit("20ppm"));
+                setPrecoursorTolerance(new ToleranceUnit("10ppm"));
+            }
+        };
+        Fragment.parseArgs("BIon", conf);
+        Fragment.parseArgs("YIon", conf);
+        Sequence s = new Sequence("PEPTIDEK", conf);
+        Peptide p = new Peptide(s, 0, s.length());
+        Spectra spectrum = new Spectra();
+        spectrum.setPrecurserCharge(2);
+        spectrum.setPrecurserMZ(p.getMass() / 2 + 1.00727646677);
+        spectrum.setTolearance(conf.getFragmentTolerance());
+        m_match = new MatchedXlinkedPeptide(spectrum, p, null, null, conf, true);
+    }
+
+    @Test
+    public void namedAndSlotAccessAgree() {
+        m_match.setScore("test score a", 1.5);
+        int slot = ScoreRegistry.indexOf("test score a");
+        assertTrue(slot >= 0);
+        assertTrue(m_match.hasScore(slot));
+        assertEquals(1.5, m_match.getScore(slot), 0);
+        assertEquals(1.5, m_match.getScore("test score a"), 0);
+        assertEquals(1.5, m_match.getScores().get("test score a"), 0);
+
+        m_match.setScore(slot, 2.5);
+        assertEquals(2.5, m_match.getScores().get("test score a"), 0);
+    }
+
+    @Test
+    public void missingScores() {
+        Map<String, Double> scores = m_match.getScores();
+        assertTrue(Double.isNaN(m_match.getScore("test score never set")));
+        assertNull(scores.get("test score never set"));
+        assertFalse(scores.containsKey("test score never set"));
+        assertNull(scores.get(null));
+        assertNull(scores.get(Integer.valueOf(1)));
+        assertFalse(scores.containsKey(Integer.valueOf(1)));
+        assertNull(scores.remove(Integer.valueOf(1)));
+        assertFalse(m_match.hasScore(-1));
+    }
+
+    @Test
+    public void putAndRemoveWriteThrough() {
+        Map<String, Double> scores = m_match.getScores();
+        assertNull(scores.put("test score b", 3.0));
+        assertEquals(3.0, m_match.getScore("test score b"), 0);
+        assertEquals(3.0, scores.put("test score b", 4.0), 0);
+        assertEquals(4.0, m_match.getScore("test score b"), 0);
+
+        assertEquals(4.0, scores.remove("test score b"), 0);
+        assertFalse(scores.containsKey("test score b"));
+        assertTrue(Double.isNaN(m_match.getScore("test score b")));
+        assertNull(scores.remove("test score b"));
+    }
+
+    @Test
+    public void nullValuesAreStoredAsNaN() {
+        Map<String, Double> scores = m_match.getScores();
+        scores.put("test score c", null);
+        assertTrue(scores.containsKey("test score c"));
+        assertTrue(Double.isNaN(scores.get("test score c")));
+
+        m_match.setScore("test score d", 1);
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            if (e.getKey().equals("test score d")) {
+                assertEquals(1, e.setValue(null), 0);
+            }
+        }
+        assertTrue(Double.isNaN(m_match.getScore("test score d")));
+    }
+
+    @Test
+    public void entriesInSlotOrder() {
+        m_match.setScore("test score f", 2);
+        m_match.setScore("test score e", 1);
+        m_match.setScore("test score g", 3);
+        Map<String, Double> scores = m_match.getScores();
+        assertEquals(3, scores.size());
+
+        ArrayList<String> names = new ArrayList<String>();
+        int lastSlot = -1;
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            int slot = ScoreRegistry.indexOf(e.getKey());
+            assertTrue(slot > lastSlot);
+            lastSlot = slot;
+            assertEquals(m_match.getScore(slot), e.getValue(), 0);
+            names.add(e.getKey());
+        }
+        assertEquals(3, names.size());
+
+        Iterator<Map.Entry<String, Double>> it = scores.entrySet().iterator();
+        it.next();
+        it.remove();
+        assertEquals(2, scores.size());
+        assertFalse(scores.containsKey(names.get(0)));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Lutz Fischer <l.fischer@ed.ac.uk>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package rappsilber.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks that {@link OrderedParallelChunks} merges the chunks in list order.
+ * @author Lutz Fischer <l.fischer@ed.ac.uk>
+ */
+public class OrderedParallelChunksTest {
+
+    /**
+     * copies the items - chunks sleep for a random time so they finish out
+     * of order
+     */
+    private static class Copy extends OrderedParallelChunks<Integer, List<Integer>> {
+        final ArrayList<Integer> merged = new ArrayList<Integer>();
+        final List<Thread> mergeThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        final List<Thread> processThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        final Random random = new Random(1234);
+
+        Copy() {
+            super("copy");
+        }
+
+        @Override
+        protected List<Integer> process(List<Integer> chunk) {
+            processThreads.add(Thread.currentThread());
+            int wait;
+            synchronized (random) {
+                wait = random.nextInt(5);
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<Integer>(chunk);
+        }
+
+        @Override
+        protected void merge(List<Integer> result) {
+            mergeThreads.add(Thread.currentThread());
+            merged.addAll(result);
+        }
+    }
+
+    private static List<Integer> items(int count) {
+        ArrayList<Integer> ret = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    @Test
+    public void mergedInListOrder() {
+        for (int size : new int[]{0, 1, 2, 7, 100, 1001}) {
+            Copy c = new Copy();
+            c.run(items(size), 4);
+            assertEquals("size " + size, items(size), c.merged);
+            for (Thread t : c.mergeThreads) {
+                assertSame(Thread.currentThread(), t);
+            }
+        }
+    }
+
+    @Test
+    public void usesSeveralChunks() {
+        Copy c = new Copy();
+        c.run(items(1000), 4);
+        assertTrue(c.mergeThreads.size() > 1);
+        for (Thread t : c.processThreads) {
+            assertTrue(t != Thread.currentThread());
+        }
+    }
+
+    @Test
+    public void singleThread() {
+        Copy c = new Copy();
+        c.run(items(100), 1);
+        assertEquals(items(100), c.merged);
+        assertEquals(1, c.mergeThreads.size());
+        assertSame(Thread.currentThread(), c.processThreads.get(0));
+    }
+
+    @Test
+    public void exceptionsArePassedOn() {
+        OrderedParallelChunks<Integer, Integer> failing = new OrderedParallelChunks<Integer, Integer>("failing") {
+            @Override
+            protected Integer process(List<Integer> chunk) {
+                if (chunk.contains(50)) {
+                    throw new IllegalStateException("chunk failed");
+                }
+                return chunk.size();
+            }
+
+            @Override
+            protected void merge(Integer result) {
+            }
+        };
+        try {
+            failing.run(items(100), 4);
+            fail("exception expected");
+        } catch (IllegalStateException ex) {
+            assertEquals("chunk failed", ex.getMessage());
+        }
+    }
+}